@@ -0,0 +1,158 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          AdaptiveBinning.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.SaimUtils;
+import java.util.Arrays;
+
+/**
+ * Divides an image in bins of neighbouring pixels, such that bright areas
+ * keep a fine resolution and dim areas are binned until their summed
+ * profile has a usable signal to noise ratio (see SaimUtils.snr).
+ *
+ * The image is cut in squares of maxBin pixels, and each square is split in
+ * four (quad-tree) as long as all four parts still reach the target SNR.
+ * Parts with an average intensity below the threshold do not need to reach
+ * the target, they become background (label 0).
+ * The result is a label image that can be fitted with SegmentFit.
+ *
+ * @author nico
+ */
+public class AdaptiveBinning {
+
+   private final ProfileExtractor extractor_;
+   private final double targetSnr_;
+   private final float threshold_;
+   private final int width_;
+   private final float[] values_;
+   private final float[] sums_;
+   private final int[] labels_;
+   private int nrLabels_ = 0;
+
+   /**
+    * @param extractor reads the pixel profiles, should not bin
+    * @param targetSnr signal to noise ratio each bin should reach
+    * @param threshold bins with a lower average intensity are background
+    */
+   private AdaptiveBinning(ProfileExtractor extractor, double targetSnr,
+           float threshold) {
+      extractor_ = extractor;
+      targetSnr_ = targetSnr;
+      threshold_ = threshold;
+      width_ = extractor.getWidth();
+      values_ = new float[extractor.getNrSlices()];
+      sums_ = new float[extractor.getNrSlices()];
+      labels_ = new int[extractor.getWidth() * extractor.getHeight()];
+   }
+
+   /**
+    * @param extractor reads the pixel profiles, labels are in the
+    *       coordinates of the extractor
+    * @param targetSnr signal to noise ratio each bin should reach
+    * @param maxBin width and height of the largest bins
+    * @param threshold bins with a lower average intensity are background
+    * @return label for every pixel (index x + y * width), 0: background
+    */
+   public static int[] createLabels(ProfileExtractor extractor,
+           double targetSnr, int maxBin, float threshold) {
+      AdaptiveBinning binning = new AdaptiveBinning(extractor, targetSnr,
+              threshold);
+      final int step = Math.max(1, maxBin);
+      for (int y = 0; y < extractor.getHeight(); y += step) {
+         for (int x = 0; x < extractor.getWidth(); x += step) {
+            binning.split(x, y, Math.min(step, extractor.getWidth() - x),
+                    Math.min(step, extractor.getHeight() - y));
+         }
+      }
+      return binning.labels_;
+   }
+
+   /**
+    * Splits the rectangle in four when all parts reach the target,
+    * otherwise labels it as a single bin
+    */
+   private void split(int x, int y, int width, int height) {
+      if (width > 1 || height > 1) {
+         final int w1 = (width + 1) / 2;
+         final int h1 = (height + 1) / 2;
+         final int[][] parts = {
+            {x, y, w1, h1},
+            {x + w1, y, width - w1, h1},
+            {x, y + h1, w1, height - h1},
+            {x + w1, y + h1, width - w1, height - h1}
+         };
+         boolean splits = true;
+         for (int[] part : parts) {
+            if (part[2] > 0 && part[3] > 0 &&
+                    !reachesTarget(part[0], part[1], part[2], part[3])) {
+               splits = false;
+               break;
+            }
+         }
+         if (splits) {
+            for (int[] part : parts) {
+               if (part[2] > 0 && part[3] > 0) {
+                  split(part[0], part[1], part[2], part[3]);
+               }
+            }
+            return;
+         }
+      }
+      final int label = sum(x, y, width, height) > threshold_ ?
+              ++nrLabels_ : 0;
+      for (int yy = y; yy < y + height; yy++) {
+         for (int xx = x; xx < x + width; xx++) {
+            labels_[yy * width_ + xx] = label;
+         }
+      }
+   }
+
+   /**
+    * @return true when the summed profile of the rectangle reaches the
+    *       target SNR, or when the rectangle is background
+    */
+   private boolean reachesTarget(int x, int y, int width, int height) {
+      if (sum(x, y, width, height) <= threshold_) {
+         return true;
+      }
+      return SaimUtils.snr(sums_) >= targetSnr_;
+   }
+
+   /**
+    * Sums the profiles of the pixels in the rectangle into sums_
+    * @return average intensity of the pixels in the rectangle
+    */
+   private float sum(int x, int y, int width, int height) {
+      Arrays.fill(sums_, 0.0f);
+      double total = 0.0;
+      for (int yy = y; yy < y + height; yy++) {
+         for (int xx = x; xx < x + width; xx++) {
+            total += extractor_.extract(xx, yy, values_);
+            for (int i = 0; i < values_.length; i++) {
+               sums_[i] += values_[i];
+            }
+         }
+      }
+      return (float) (total / (width * height));
+   }
+
+}
@@ -0,0 +1,121 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          CacheDirectory.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Directory on disk that holds the files of a cache (see ModelTableCache
+ * and ResultCache), with a maximum for the total size of its files.
+ * The modification time of a file is used as its last access time.
+ *
+ * @author nico
+ */
+public class CacheDirectory {
+
+   private final File dir_;
+   private final String extension_;
+   private final long maxBytes_;
+
+   /**
+    * @param dir directory, will be created if needed
+    * @param extension extension of the files of the cache, other files
+    *       count towards the size but are never deleted
+    * @param maxBytes the least recently used files are deleted when all
+    *       files together are larger than this
+    * @throws IOException when the directory can not be created
+    */
+   public CacheDirectory(File dir, String extension, long maxBytes)
+           throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Failed to create directory " + dir);
+      }
+      dir_ = dir;
+      extension_ = extension;
+      maxBytes_ = maxBytes;
+   }
+
+   /**
+    * @param name name of the directory in the ImageJ preferences directory
+    * @param extension extension of the files of the cache
+    * @param maxBytes maximum total size of the files
+    * @param contents what is cached, used in the message when the
+    *       directory can not be used
+    * @return cache directory, or null when the directory can not be used
+    */
+   public static CacheDirectory inPrefsDir(String name, String extension,
+           long maxBytes, String contents) {
+      try {
+         return new CacheDirectory(new File(ij.Prefs.getPrefsDir(), name),
+                 extension, maxBytes);
+      } catch (IOException ex) {
+         ij.IJ.log(contents + " will not be cached: " + ex.getMessage());
+         return null;
+      }
+   }
+
+   public File getDirectory() {
+      return dir_;
+   }
+
+   /**
+    * Deletes the least recently used files until the cache is no larger
+    * than its maximum
+    * @param keep file that should not be deleted
+    */
+   public void evict(File keep) {
+      File[] files = dir_.listFiles();
+      if (files == null) {
+         return;
+      }
+      long total = 0;
+      for (File f : files) {
+         total += f.length();
+      }
+      if (total <= maxBytes_) {
+         return;
+      }
+      Arrays.sort(files, new Comparator<File>() {
+         @Override
+         public int compare(File f1, File f2) {
+            return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+         }
+      });
+      for (File f : files) {
+         if (total <= maxBytes_) {
+            break;
+         }
+         if (f.equals(keep) || !f.getName().endsWith(extension_)) {
+            continue;
+         }
+         final long length = f.length();
+         // files that are still open or mapped may not be deletable on 
+         // some systems
+         if (f.delete()) {
+            total -= length;
+         }
+      }
+   }
+
+}
@@ -0,0 +1,317 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitCheckpoint.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.distributed.JobDirectory;
+import edu.ucsf.valelab.saim.distributed.TileJob;
+import edu.ucsf.valelab.saim.distributed.TileResult;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.process.FloatProcessor;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persists finished tiles of a SaimFit run, so that an interrupted run
+ * (ImageJ crashed, or the user stopped the fit) can be resumed.
+ *
+ * Tiles are stored as TileResults in a directory named after a fingerprint
+ * of the input pixels and the SaimData settings (see fingerprint).  A new
+ * run with the same input and settings finds the same directory and only
+ * needs to fit the tiles that are missing.  Tiles are written on a single background thread,
+ * the fitting threads only make a copy of the tile's pixels.
+ *
+ * @author nico
+ */
+public class FitCheckpoint {
+
+   private static final String DIRNAME = "saim-checkpoints";
+
+   private final JobDirectory dir_;
+   private final ExecutorService writer_;
+   private final AtomicInteger nrSaved_ = new AtomicInteger(0);
+
+   /**
+    * @param dir directory to store the tiles, will be created if needed
+    * @throws IOException when the directory can not be created
+    */
+   public FitCheckpoint(File dir) throws IOException {
+      dir_ = new JobDirectory(dir);
+      writer_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Saim checkpoint writer");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * @param fingerprint fingerprint of input and settings
+    * @return checkpoint directory in the ImageJ preferences directory
+    */
+   public static File defaultDirectory(String fingerprint) {
+      return new File(new File(ij.Prefs.getPrefsDir(), DIRNAME), fingerprint);
+   }
+
+   /**
+    * Calculates a fingerprint of all pixels of the stack, all settings and 
+    * the contents of the files named in the settings (correction images and
+    * maps).  Any change to either results in a different fingerprint.
+    * Reading every pixel of a virtual stack takes about as long as reading
+    * it for the fit, so for virtual stacks the files the stack was opened 
+    * from (name, size and modification time) are used instead of the 
+    * pixels.
+    * @param ip input stack
+    * @param sd settings
+    * @return hexadecimal fingerprint
+    */
+   public static String fingerprint(ImagePlus ip, SaimData sd) {
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-1");
+         SaimData cp = sd.copy();
+         cp.checkpoint_ = false; // does not influence the result
+         cp.pipeline_ = false;
+         // the settings as sorted key=value lines, so that the fingerprint
+         // does not depend on how the JVM serializes SaimData
+         final Charset utf8 = Charset.forName("UTF-8");
+         for (Map.Entry<Object, Object> entry : 
+                 new TreeMap<Object, Object>(cp.toProperties()).entrySet()) {
+            md.update((entry.getKey() + "=" + entry.getValue() + "\n")
+                    .getBytes(utf8));
+         }
+         for (String path : new String[] {sd.flatFieldFile_, 
+            sd.backgroundFile_, sd.angleOffsetFile_, sd.dOxFile_, 
+            sd.abFile_}) {
+            updateContents(md, path);
+         }
+         final ImageStack is = ip.getImageStack();
+         ByteBuffer bb = ByteBuffer.allocate(12);
+         bb.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getNSlices());
+         md.update(bb.array());
+         final List<File> files = StackBands.isVirtual(ip) ? 
+                 stackFiles(ip) : null;
+         if (files != null) {
+            for (File file : files) {
+               updateIdentity(md, file);
+            }
+         } else {
+            for (int i = 1; i <= ip.getNSlices(); i++) {
+               Object pixels = is.getPixels(i);
+               if (pixels instanceof short[]) {
+                  short[] px = (short[]) pixels;
+                  bb = ByteBuffer.allocate(2 * px.length);
+                  bb.asShortBuffer().put(px);
+               } else {
+                  float[] px = (float[]) is.getProcessor(i).convertToFloat().getPixels();
+                  bb = ByteBuffer.allocate(4 * px.length);
+                  bb.asFloatBuffer().put(px);
+               }
+               md.update(bb.array());
+            }
+         }
+         StringBuilder sb = new StringBuilder();
+         for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException ex) {
+         // every Java platform is required to support SHA-1
+         throw new IllegalStateException(ex);
+      }
+   }
+
+   /**
+    * @param ip virtual stack
+    * @return the files the stack was opened from, or null when these are 
+    *       not known
+    */
+   private static List<File> stackFiles(ImagePlus ip) {
+      final List<File> files = new ArrayList<File>();
+      final FileInfo fi = ip.getOriginalFileInfo();
+      if (fi != null && fi.directory != null && fi.fileName != null) {
+         files.add(new File(fi.directory, fi.fileName));
+         return files;
+      }
+      if (ip.getImageStack() instanceof VirtualStack) {
+         // stack of single images, for instance opened with File>Import
+         final VirtualStack vs = (VirtualStack) ip.getImageStack();
+         if (vs.getDirectory() == null) {
+            return null;
+         }
+         for (int i = 1; i <= vs.getSize(); i++) {
+            if (vs.getFileName(i) == null) {
+               return null;
+            }
+            files.add(new File(vs.getDirectory(), vs.getFileName(i)));
+         }
+         return files;
+      }
+      return null;
+   }
+
+   /**
+    * Adds name, size and modification time of a file to the digest
+    */
+   private static void updateIdentity(MessageDigest md, File file) {
+      md.update(file.getAbsolutePath().getBytes(Charset.forName("UTF-8")));
+      ByteBuffer bb = ByteBuffer.allocate(16);
+      bb.putLong(file.length()).putLong(file.lastModified());
+      md.update(bb.array());
+   }
+
+   /**
+    * Adds the contents of a file to the digest.  Nothing is added when the
+    * file does not exist, the settings already hold its name.  When the file
+    * can not be read, its size and modification time are added instead.
+    * @param path file name, may be empty
+    */
+   private static void updateContents(MessageDigest md, String path) {
+      final File file = new File(path == null ? "" : path);
+      if (!file.isFile()) {
+         return;
+      }
+      ByteBuffer bb = ByteBuffer.allocate(8);
+      bb.putLong(file.length());
+      md.update(bb.array());
+      try {
+         InputStream in = new BufferedInputStream(new FileInputStream(file));
+         try {
+            final byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+               md.update(buffer, 0, n);
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException ex) {
+         updateIdentity(md, file);
+      }
+   }
+
+   /**
+    * Copies tiles that were stored by an earlier run into the output
+    * @param tiles all tiles of this run
+    * @param output output images (height, R-squared, A, B)
+    * @return the tiles that still need to be fitted
+    */
+   public List<TileJob> restore(List<TileJob> tiles, FloatProcessor[] output) {
+      List<TileJob> remaining = new ArrayList<TileJob>();
+      for (TileJob tile : tiles) {
+         boolean restored = false;
+         if (dir_.hasResult(tile.index_)) {
+            try {
+               TileResult result = dir_.readResult(tile.index_);
+               if (result.x_ == tile.x_ && result.y_ == tile.y_ &&
+                       result.width_ == tile.width_ &&
+                       result.height_ == tile.height_) {
+                  result.paste(output);
+                  restored = true;
+               }
+            } catch (IOException ex) {
+               // for instance written by an older version, fit again
+            }
+         }
+         if (!restored) {
+            remaining.add(tile);
+         }
+      }
+      return remaining;
+   }
+
+   /**
+    * Copies the tile out of the output and queues it to be written to disk
+    * @param tile finished tile
+    * @param output output images (height, R-squared, A, B)
+    */
+   public void save(TileJob tile, FloatProcessor[] output) {
+      final TileResult result = TileResult.crop(tile, output, "");
+      writer_.submit(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               dir_.store(result);
+               nrSaved_.incrementAndGet();
+            } catch (IOException ex) {
+               ij.IJ.log("Failed to save checkpoint: " + ex.getMessage());
+            }
+         }
+      });
+   }
+
+   /**
+    * Writes a tile to disk in the calling thread
+    * @param tile finished tile
+    * @param output output images (height, R-squared, A, B)
+    * @throws IOException
+    */
+   public void write(TileJob tile, FloatProcessor[] output) 
+           throws IOException {
+      dir_.store(TileResult.crop(tile, output, ""));
+      nrSaved_.incrementAndGet();
+   }
+
+   /**
+    * @return number of tiles written by this instance
+    */
+   public int getNrSaved() {
+      return nrSaved_.get();
+   }
+
+   /**
+    * Waits until all queued tiles are written
+    * @throws InterruptedException
+    */
+   public void close() throws InterruptedException {
+      writer_.shutdown();
+      writer_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Removes the checkpoint, to be called when the run has finished
+    */
+   public void delete() {
+      dir_.clear();
+      dir_.getDirectory().delete();
+   }
+
+}
@@ -0,0 +1,447 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitPipeline.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.distributed.TileJob;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fits tiles in a pipeline of stages, each with its own threads, connected
+ * by bounded queues:
+ *   read:        gets the pixels of a tile (from StackBands for virtual
+ *                stacks)
+ *   preprocess:  bins and corrects all profiles of the tile at once (see
+ *                ProfileExtractor.extractBlock) and releases the raw pixels
+ *   fit:         fits the tile (RunTheFit)
+ *   write:       saves the finished tile to the checkpoint
+ * A stage that is ahead blocks when the queue to the next stage is full, so
+ * the number of tiles in memory is bounded and throughput is set by the
+ * slowest stage.  Every stage keeps track of the time it is busy,
+ * see getStages.
+ * When a stage fails (a tile can not be read, or a fit throws), all stages
+ * are stopped and run reports the failure.
+ *
+ * @author nico
+ */
+public class FitPipeline {
+
+   /**
+    * Creates the fit of a tile, with all settings except the extractor
+    */
+   public interface FitFactory {
+      RunTheFit create(TileJob tile);
+   }
+
+   /**
+    * Threads of one stage and the time they spent working
+    */
+   public static class Stage {
+      private final String name_;
+      private final int nrThreads_;
+      private final AtomicLong busyNanos_ = new AtomicLong(0);
+      private final AtomicInteger nrTiles_ = new AtomicInteger(0);
+      // threads that did not finish yet, the last one ends the next stage
+      private final AtomicInteger running_;
+      private long wallNanos_ = 0;
+
+      public Stage(String name, int nrThreads) {
+         name_ = name;
+         nrThreads_ = nrThreads;
+         running_ = new AtomicInteger(nrThreads);
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      public int getNrThreads() {
+         return nrThreads_;
+      }
+
+      public int getNrTiles() {
+         return nrTiles_.get();
+      }
+
+      /**
+       * @return fraction of the run time that the threads of this stage
+       *       were working, rather than waiting for the stages around them
+       */
+      public double getUtilization() {
+         return wallNanos_ == 0 ? 0.0 :
+                 (double) busyNanos_.get() / (nrThreads_ * wallNanos_);
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%s: %d thread%s, %d tiles, %.0f%% busy",
+                 name_, nrThreads_, nrThreads_ == 1 ? "" : "s",
+                 nrTiles_.get(), 100.0 * getUtilization());
+      }
+   }
+
+   /**
+    * A tile on its way through the pipeline, null fields end a stage
+    */
+   private static class Work {
+      final TileJob tile_;
+      int band_;               // band held for this tile, or -1
+      ProfileExtractor extractor_;
+
+      Work(TileJob tile, int band, ProfileExtractor extractor) {
+         tile_ = tile;
+         band_ = band;
+         extractor_ = extractor;
+      }
+   }
+   private static final Work END = new Work(null, -1, null);
+   // how often waiting stages check whether the pipeline was stopped
+   private static final long POLLMS = 100;
+
+   private final ImagePlus ip_;
+   private final FloatProcessor[] output_;
+   private final ProfileCorrection correction_;
+   private final StackBands bands_;
+   private final FitCheckpoint checkpoint_;
+   private final FitFactory factory_;
+   private final Stage read_;
+   private final Stage preprocess_;
+   private final Stage fit_;
+   private final Stage write_;
+   private final BlockingQueue<Work> toPreprocess_;
+   private final BlockingQueue<Work> toFit_;
+   private final BlockingQueue<Work> toWrite_;
+   private final AtomicBoolean stop_ = new AtomicBoolean(false);
+   private final AtomicReference<Throwable> failure_ = 
+           new AtomicReference<Throwable>(null);
+   private final List<Thread> threads_ = new ArrayList<Thread>();
+   private final AtomicReferenceArray<RunTheFit> current_;
+
+   /**
+    * @param ip input stack
+    * @param output output images (height, R-squared, A, B)
+    * @param correction correction of the raw pixels, or null
+    * @param bands bands of a virtual stack, or null to use the stack itself
+    * @param checkpoint finished tiles are written here, or null
+    * @param factory creates the fit of each tile
+    * @param nrPreprocess number of preprocessing threads
+    * @param nrFit number of fitting threads
+    * @param queueSize number of tiles that can wait for each stage
+    */
+   public FitPipeline(ImagePlus ip, FloatProcessor[] output,
+           ProfileCorrection correction, StackBands bands,
+           FitCheckpoint checkpoint, FitFactory factory, int nrPreprocess,
+           int nrFit, int queueSize) {
+      ip_ = ip;
+      output_ = output;
+      correction_ = correction;
+      bands_ = bands;
+      checkpoint_ = checkpoint;
+      factory_ = factory;
+      read_ = new Stage("read", 1);
+      preprocess_ = new Stage("preprocess", nrPreprocess);
+      fit_ = new Stage("fit", nrFit);
+      write_ = new Stage("write", 1);
+      toPreprocess_ = new ArrayBlockingQueue<Work>(queueSize);
+      toFit_ = new ArrayBlockingQueue<Work>(queueSize);
+      toWrite_ = new ArrayBlockingQueue<Work>(queueSize);
+      current_ = new AtomicReferenceArray<RunTheFit>(nrFit);
+   }
+
+   /**
+    * Fits the tiles, returns when all are done or the pipeline was stopped
+    * @param tiles tiles to be fitted
+    * @throws InterruptedException
+    * @throws ExecutionException when a stage failed, the cause is the first
+    *       failure.  The other stages were stopped, the tiles that were not
+    *       fitted stay empty
+    */
+   public void run(final List<TileJob> tiles) throws InterruptedException,
+           ExecutionException {
+      final long start = System.nanoTime();
+      start(read_, 0, new Runnable() {
+         @Override
+         public void run() {
+            read(tiles);
+         }
+      });
+      for (int i = 0; i < preprocess_.getNrThreads(); i++) {
+         start(preprocess_, i, new Runnable() {
+            @Override
+            public void run() {
+               preprocess();
+            }
+         });
+      }
+      for (int i = 0; i < fit_.getNrThreads(); i++) {
+         final int index = i;
+         start(fit_, i, new Runnable() {
+            @Override
+            public void run() {
+               fit(index);
+            }
+         });
+      }
+      start(write_, 0, new Runnable() {
+         @Override
+         public void run() {
+            write();
+         }
+      });
+      for (Thread t : threads()) {
+         t.join();
+      }
+      final long wall = System.nanoTime() - start;
+      for (Stage stage : getStages()) {
+         stage.wallNanos_ = wall;
+      }
+      if (failure_.get() != null) {
+         throw new ExecutionException(failure_.get());
+      }
+   }
+
+   /**
+    * Stops all stages, tiles that were not fitted stay empty
+    */
+   public void stop() {
+      stop_.set(true);
+      for (int i = 0; i < current_.length(); i++) {
+         RunTheFit rf = current_.get(i);
+         if (rf != null) {
+            rf.stopRun();
+         }
+      }
+      for (Thread t : threads()) {
+         t.interrupt();
+      }
+   }
+
+   /**
+    * @return read, preprocess, fit and write stage
+    */
+   public Stage[] getStages() {
+      return new Stage[] {read_, preprocess_, fit_, write_};
+   }
+
+   private void start(Stage stage, int index, Runnable r) {
+      Thread t = new Thread(r, "Saim " + stage.getName() + " " + index);
+      synchronized (threads_) {
+         threads_.add(t);
+      }
+      t.start();
+   }
+
+   private Thread[] threads() {
+      synchronized (threads_) {
+         return threads_.toArray(new Thread[threads_.size()]);
+      }
+   }
+
+   private void read(List<TileJob> tiles) {
+      try {
+         for (TileJob tile : tiles) {
+            if (stop_.get()) {
+               break;
+            }
+            final long start = System.nanoTime();
+            final Work work;
+            if (bands_ != null) {
+               // tiles in a row share a band of the virtual stack
+               final int band = tile.y_ / OverseeTheFit.TILESIZE;
+               work = new Work(tile, band, bands_.createExtractor(band,
+                       tile.sd_, correction_));
+            } else {
+               work = new Work(tile, -1, RunTheFit.createExtractor(ip_,
+                       tile.sd_, correction_));
+            }
+            read_.busyNanos_.addAndGet(System.nanoTime() - start);
+            read_.nrTiles_.incrementAndGet();
+            put(toPreprocess_, work);
+         }
+      } catch (InterruptedException ex) {
+         // stopped
+      } catch (Throwable t) {
+         // a tile that can not be read would stay empty
+         fail(t);
+      } finally {
+         end(read_, toPreprocess_, preprocess_.getNrThreads());
+      }
+   }
+
+   private void preprocess() {
+      try {
+         Work work;
+         while ((work = take(toPreprocess_)) != END) {
+            final long start = System.nanoTime();
+            final TileJob tile = work.tile_;
+            try {
+               work.extractor_ = work.extractor_.extractBlock(tile.x_,
+                       tile.y_, tile.width_, tile.height_);
+            } finally {
+               release(work);
+            }
+            preprocess_.busyNanos_.addAndGet(System.nanoTime() - start);
+            preprocess_.nrTiles_.incrementAndGet();
+            put(toFit_, work);
+         }
+      } catch (InterruptedException ex) {
+         // stopped
+      } catch (Throwable t) {
+         fail(t);
+      } finally {
+         end(preprocess_, toFit_, fit_.getNrThreads());
+      }
+   }
+
+   private void fit(int index) {
+      try {
+         Work work;
+         while ((work = take(toFit_)) != END) {
+            final long start = System.nanoTime();
+            RunTheFit rf = factory_.create(work.tile_);
+            rf.setExtractor(work.extractor_);
+            current_.set(index, rf);
+            if (stop_.get()) {
+               return;
+            }
+            rf.run();
+            current_.set(index, null);
+            work.extractor_ = null;
+            fit_.busyNanos_.addAndGet(System.nanoTime() - start);
+            fit_.nrTiles_.incrementAndGet();
+            put(toWrite_, work);
+         }
+      } catch (InterruptedException ex) {
+         // stopped
+      } catch (Throwable t) {
+         fail(t);
+      } finally {
+         current_.set(index, null);
+         end(fit_, toWrite_, 1);
+      }
+   }
+
+   private void write() {
+      try {
+         Work work;
+         while ((work = take(toWrite_)) != END) {
+            final long start = System.nanoTime();
+            if (checkpoint_ != null) {
+               try {
+                  checkpoint_.write(work.tile_, output_);
+               } catch (IOException ex) {
+                  ij.IJ.log("Failed to save checkpoint: " + ex.getMessage());
+               }
+            }
+            write_.busyNanos_.addAndGet(System.nanoTime() - start);
+            write_.nrTiles_.incrementAndGet();
+         }
+      } catch (InterruptedException ex) {
+         // stopped
+      } catch (Throwable t) {
+         fail(t);
+      }
+   }
+
+   /**
+    * Keeps the first failure and stops all stages
+    */
+   private void fail(Throwable t) {
+      failure_.compareAndSet(null, t);
+      stop();
+   }
+
+   /**
+    * Waits for the next tile.  Once the pipeline was stopped, tiles are no
+    * longer handed out (a stopped tile is not complete), so that stages 
+    * do not depend on the stage before them to end
+    * @return next tile, or END
+    */
+   private Work take(BlockingQueue<Work> queue) throws InterruptedException {
+      while (!stop_.get()) {
+         Work work = queue.poll(POLLMS, TimeUnit.MILLISECONDS);
+         if (work != null) {
+            if (!stop_.get()) {
+               return work;
+            }
+            release(work);
+         }
+      }
+      return END;
+   }
+
+   /**
+    * Waits for room in the queue, or drops the tile once the pipeline was
+    * stopped, so that stages do not depend on the stage after them to end
+    */
+   private void put(BlockingQueue<Work> queue, Work work) 
+           throws InterruptedException {
+      while (!queue.offer(work, POLLMS, TimeUnit.MILLISECONDS)) {
+         if (stop_.get()) {
+            release(work);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Releases the band held for a tile, if any
+    */
+   private void release(Work work) {
+      if (work.band_ >= 0) {
+         bands_.release(work.band_);
+         work.band_ = -1;
+      }
+   }
+
+   /**
+    * Called by every thread of a stage when it is done, the last one tells
+    * the threads of the next stage to end.  Not needed once the pipeline
+    * was stopped.
+    */
+   private void end(Stage stage, BlockingQueue<Work> next, int nrNext) {
+      if (stage.running_.decrementAndGet() == 0) {
+         try {
+            for (int i = 0; i < nrNext && !stop_.get(); i++) {
+               put(next, END);
+            }
+         } catch (InterruptedException ex) {
+            // stopped
+         }
+      }
+   }
+
+}
@@ -0,0 +1,269 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitRepair.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.process.FloatProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second pass over the result of a fit that refits pixels that failed (NaN)
+ * or that have an R-squared below SaimData.repairR2_.  These pixels usually
+ * form scattered holes in otherwise good data, so the median A, B and
+ * height of the well fitted neighbours is a much better starting point
+ * than the user's guesses.  When Levenberg-Marquardt does not converge from
+ * any of the starting points, the derivative free BOBYQA optimizer is tried.
+ * A new result is only written when it is better than the existing one.
+ *
+ * Pixels marked as unfitted (see RunTheFit.UNFITTED) and pixels below the
+ * threshold are left alone.  When the fit had a deadline, no more pixels 
+ * are refitted once it has passed.
+ *
+ * @author nico
+ */
+public class FitRepair {
+
+   private final SaimData sd_;
+   private final ProfileExtractor extractor_;
+   private final FitReport report_;
+   private FloatProcessor angleOffsets_ = null;
+   private FloatProcessor dOxMap_ = null;
+   private FresnelTable fresnelTable_ = null;
+   private PixelSchedule schedule_ = null; // when set, stop at its deadline
+
+   /**
+    * @param sd settings used for the fit
+    * @param extractor reads the (binned and corrected) pixel profiles
+    * @param report receives the number of repaired pixels
+    */
+   public FitRepair(SaimData sd, ProfileExtractor extractor, FitReport report) {
+      sd_ = sd;
+      extractor_ = extractor;
+      report_ = report;
+   }
+
+   /**
+    * Sets the per pixel offset of the angles and thickness of the oxide,
+    * see RunTheFit.setPixelMaps
+    * @param angleOffsets offset in degrees of every (binned) pixel, or null
+    * @param dOxMap oxide thickness in nm of every (binned) pixel, or null
+    * @param fresnelTable table covering all angles and thicknesses
+    */
+   public void setPixelMaps(FloatProcessor angleOffsets,
+           FloatProcessor dOxMap, FresnelTable fresnelTable) {
+      angleOffsets_ = angleOffsets;
+      dOxMap_ = dOxMap;
+      fresnelTable_ = fresnelTable;
+   }
+
+   /**
+    * Stops the repair at the deadline of the schedule of the fit
+    * @param schedule PixelSchedule of the fit, or null for no deadline
+    */
+   public void setSchedule(PixelSchedule schedule) {
+      schedule_ = schedule;
+   }
+
+   /**
+    * Finds the pixels that need repair, and calculates their starting
+    * points from the neighbours as they are now
+    * @param output output images (height, R-squared, A, B)
+    * @param minR2 pixels with R-squared below this value are refitted
+    * @return {x, y} and {A, B, h} start for every pixel, the start is null
+    *       when no neighbour was fitted well
+    */
+   public static List<double[][]> findCandidates(FloatProcessor[] output,
+           double minR2) {
+      final int width = output[0].getWidth();
+      final int height = output[0].getHeight();
+      final List<double[][]> candidates = new ArrayList<double[][]>();
+      final double[][] neighbours = new double[3][8];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            if (!needsRepair(output, x, y, minR2)) {
+               continue;
+            }
+            int n = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+               for (int dx = -1; dx <= 1; dx++) {
+                  int nx = x + dx;
+                  int ny = y + dy;
+                  if ((dx == 0 && dy == 0) || nx < 0 || ny < 0 ||
+                          nx >= width || ny >= height ||
+                          !isGood(output, nx, ny, minR2)) {
+                     continue;
+                  }
+                  neighbours[0][n] = output[2].getf(nx, ny);
+                  neighbours[1][n] = output[3].getf(nx, ny);
+                  neighbours[2][n] = output[0].getf(nx, ny);
+                  n++;
+               }
+            }
+            double[] start = null;
+            if (n > 0) {
+               start = new double[] {median(neighbours[0], n),
+                  median(neighbours[1], n), median(neighbours[2], n)};
+            }
+            candidates.add(new double[][] {{x, y}, start});
+         }
+      }
+      return candidates;
+   }
+
+   /**
+    * @return true when the pixel was fitted with R-squared of at least minR2
+    */
+   private static boolean isGood(FloatProcessor[] output, int x, int y,
+           double minR2) {
+      final float r2 = output[1].getf(x, y);
+      return r2 > 0.0f && r2 >= minR2;
+   }
+
+   /**
+    * @return true when the pixel failed, or was fitted with an R-squared
+    *       below minR2.  Pixels that were not fitted at all (0 or UNFITTED)
+    *       do not need repair
+    */
+   private static boolean needsRepair(FloatProcessor[] output, int x, int y,
+           double minR2) {
+      final float h = output[0].getf(x, y);
+      final float r2 = output[1].getf(x, y);
+      if (Float.isNaN(h)) {
+         return true;
+      }
+      if (h == RunTheFit.UNFITTED || (h == 0.0f && r2 == 0.0f &&
+              output[2].getf(x, y) == 0.0f)) {
+         return false;
+      }
+      return r2 < minR2;
+   }
+
+   /**
+    * @param values values, the first n will be sorted
+    * @param n number of values to use
+    * @return median of the first n values
+    */
+   private static double median(double[] values, int n) {
+      Arrays.sort(values, 0, n);
+      if (n % 2 == 1) {
+         return values[n / 2];
+      }
+      return 0.5 * (values[n / 2 - 1] + values[n / 2]);
+   }
+
+   /**
+    * Refits all pixels that need repair, using nrThreads threads.  Pixels
+    * are fitted with the retry path of RunTheFit (see RunTheFit.Refitter).
+    * @param output output images (height, R-squared, A, B), coordinates are
+    *       the same as those of the extractor
+    * @param nrThreads number of threads to use
+    * @return number of pixels that were improved
+    * @throws InterruptedException
+    */
+   public int repair(final FloatProcessor[] output, int nrThreads)
+           throws InterruptedException {
+      final List<double[][]> candidates = findCandidates(output,
+              sd_.repairR2_);
+      if (candidates.isEmpty()) {
+         return 0;
+      }
+      // only used for its settings and maps, the thread is never started
+      final RunTheFit fitter = new RunTheFit(0, extractor_.getWidth(), sd_,
+              null, output, new AtomicInteger(0));
+      fitter.setPixelMaps(angleOffsets_, dOxMap_, fresnelTable_);
+      final AtomicInteger next = new AtomicInteger(0);
+      final AtomicInteger nrRepaired = new AtomicInteger(0);
+      Thread[] threads = new Thread[Math.max(1,
+              Math.min(nrThreads, candidates.size()))];
+      for (int i = 0; i < threads.length; i++) {
+         threads[i] = new Thread() {
+            @Override
+            public void run() {
+               final RunTheFit.Refitter refitter = 
+                       fitter.createRefitter(extractor_);
+               final List<double[]> guesses = new ArrayList<double[]>();
+               int c;
+               while ((c = next.getAndIncrement()) < candidates.size()) {
+                  if (schedule_ != null && schedule_.isPastDeadline()) {
+                     return;
+                  }
+                  try {
+                     if (refit(refitter, guesses, candidates.get(c), 
+                             output)) {
+                        nrRepaired.incrementAndGet();
+                     }
+                  } catch (InvalidInputException ex) {
+                     ij.IJ.log("Failed to repair pixel: " + ex.getMessage());
+                  }
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      report_.repaired(candidates.size(), nrRepaired.get());
+      return nrRepaired.get();
+   }
+
+   /**
+    * @param refitter fitter of the calling thread
+    * @param guesses scratch space
+    * @param candidate {x, y} and start (may be null)
+    * @param output output images
+    * @return true when the result was improved
+    */
+   private boolean refit(RunTheFit.Refitter refitter, List<double[]> guesses,
+           double[][] candidate, FloatProcessor[] output)
+           throws InvalidInputException {
+      final int x = (int) candidate[0][0];
+      final int y = (int) candidate[0][1];
+      guesses.clear();
+      if (candidate[1] != null) {
+         guesses.add(candidate[1]);
+      }
+      for (double h : sd_.heights_) {
+         guesses.add(new double[] {sd_.A_, sd_.B_, h});
+      }
+      final double[] best = refitter.refit(x, y, 
+              guesses.toArray(new double[guesses.size()][]));
+      if (best == null) {
+         return false;
+      }
+      final float r2 = output[1].getf(x, y);
+      if (!Float.isNaN(r2) && !(best[3] > r2)) {
+         return false;
+      }
+      output[2].setf(x, y, (float) best[0]);
+      output[3].setf(x, y, (float) best[1]);
+      output[0].setf(x, y, (float) best[2]);
+      output[1].setf(x, y, (float) best[3]);
+      return true;
+   }
+
+}
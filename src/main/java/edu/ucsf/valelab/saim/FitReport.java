@@ -0,0 +1,179 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitReport.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happened to the pixels during a SaimFit run.  One instance
+ * is shared by all fitting threads of a run.
+ *
+ * @author nico
+ */
+public class FitReport {
+   private final AtomicLong nrFitted_ = new AtomicLong(0);
+   private final AtomicLong nrDeferred_ = new AtomicLong(0);
+   private final AtomicLong nrRecovered_ = new AtomicLong(0);
+   private final AtomicLong nrFailed_ = new AtomicLong(0);
+   private final AtomicLong nrSkipped_ = new AtomicLong(0);
+   private final AtomicLong nrReused_ = new AtomicLong(0);
+   private final AtomicLong nrCached_ = new AtomicLong(0);
+   private final AtomicLong nrRepairCandidates_ = new AtomicLong(0);
+   private final AtomicLong nrRepaired_ = new AtomicLong(0);
+
+   /**
+    * A pixel was fitted (in the first pass or in a retry)
+    */
+   public void fitted() {
+      nrFitted_.incrementAndGet();
+   }
+
+   /**
+    * A pixel exceeded the first pass budget and was put in the retry queue
+    */
+   public void deferred() {
+      nrDeferred_.incrementAndGet();
+   }
+
+   /**
+    * A deferred pixel was fitted in the retry
+    */
+   public void recovered() {
+      nrRecovered_.incrementAndGet();
+   }
+
+   /**
+    * A pixel could not be fitted at all
+    */
+   public void failed() {
+      nrFailed_.incrementAndGet();
+   }
+
+   /**
+    * A pixel got the height of a neighbour with a similar profile
+    */
+   public void reused() {
+      nrReused_.incrementAndGet();
+   }
+
+   /**
+    * A pixel kept (or improved on) its result of an earlier fit
+    */
+   public void cached() {
+      nrCached_.incrementAndGet();
+   }
+
+   /**
+    * A pixel above the threshold was not fitted because the deadline passed
+    */
+   public void skipped() {
+      nrSkipped_.incrementAndGet();
+   }
+
+   /**
+    * @param n number of pixels that were not fitted because the deadline 
+    *       passed
+    */
+   public void skipped(long n) {
+      nrSkipped_.addAndGet(n);
+   }
+
+   /**
+    * Result of the second pass (see FitRepair)
+    * @param candidates number of failed or poorly fitted pixels
+    * @param repaired number of these pixels that were improved
+    */
+   public void repaired(long candidates, long repaired) {
+      nrRepairCandidates_.addAndGet(candidates);
+      nrRepaired_.addAndGet(repaired);
+   }
+
+   public long getNrFitted() {
+      return nrFitted_.get();
+   }
+
+   public long getNrDeferred() {
+      return nrDeferred_.get();
+   }
+
+   public long getNrRecovered() {
+      return nrRecovered_.get();
+   }
+
+   public long getNrFailed() {
+      return nrFailed_.get();
+   }
+
+   public long getNrReused() {
+      return nrReused_.get();
+   }
+
+   public long getNrCached() {
+      return nrCached_.get();
+   }
+
+   public long getNrSkipped() {
+      return nrSkipped_.get();
+   }
+
+   public long getNrRepairCandidates() {
+      return nrRepairCandidates_.get();
+   }
+
+   public long getNrRepaired() {
+      return nrRepaired_.get();
+   }
+
+   /**
+    * @return fraction of the pixels above the threshold that were fitted
+    */
+   public double getCoverage() {
+      final long total = nrFitted_.get() + nrFailed_.get() + nrSkipped_.get();
+      return total == 0 ? 1.0 : (double) nrFitted_.get() / total;
+   }
+
+   @Override
+   public String toString() {
+      String result = "Fitted " + nrFitted_.get() + " pixels";
+      if (nrReused_.get() > 0) {
+         result += " (" + nrReused_.get() + 
+                 " using the height of a similar neighbour)";
+      }
+      if (nrCached_.get() > 0) {
+         result += " (" + nrCached_.get() + " from an earlier fit)";
+      }
+      result += ", " + nrDeferred_.get() + 
+              " were deferred to the retry queue (" + nrRecovered_.get() + 
+              " recovered), " + nrFailed_.get() + " failed";
+      if (nrSkipped_.get() > 0) {
+         result += ", " + nrSkipped_.get() + 
+                 " were skipped at the deadline (coverage " + 
+                 String.format("%.1f", 100.0 * getCoverage()) + "%)";
+      }
+      if (nrRepairCandidates_.get() > 0) {
+         result += ", " + nrRepaired_.get() + " of " + 
+                 nrRepairCandidates_.get() + 
+                 " poor or failed pixels were repaired";
+      }
+      return result;
+   }
+
+}
@@ -0,0 +1,265 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ModelTableCache.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache on disk of model tables (see FresnelTable), so that repeated
+ * analyses with the same optical parameters (wavelength, oxide thickness,
+ * refractive index and angles) do not need to calculate these again.
+ *
+ * Each table is stored in its own file, named after a hash of the
+ * parameters and the format version.  A file consists of a header with the
+ * parameters, followed by the real and imaginary parts as doubles in the
+ * native byte order of the computer that wrote them (recorded in the 
+ * header).  Files are memory mapped, the table uses the mapped values 
+ * without copying.
+ * Files that were not used for the longest time are deleted when the
+ * total size of the cache exceeds its maximum (see CacheDirectory).
+ *
+ * @author nico
+ */
+public class ModelTableCache {
+
+   private static final String DIRNAME = "saim-tables";
+   private static final String EXTENSION = ".tbl";
+   // increase whenever the file format or the calculation changes
+   public static final int FORMATVERSION = 2;
+   private static final int MAGIC = 0x5341494D;  // "SAIM"
+   private static final int HEADERBYTES = 64;
+   // position in the header of the byte order of the values
+   private static final int ORDERBYTE = 56;
+   private static final byte BIGENDIAN = 0;
+   private static final byte LITTLEENDIAN = 1;
+   public static final long DEFAULTMAXBYTES = 256L * 1024 * 1024;
+
+   private static ModelTableCache defaultCache_ = null;
+
+   private final CacheDirectory files_;
+   private final File dir_;
+   private final AtomicInteger nrLoaded_ = new AtomicInteger(0);
+   private final AtomicInteger nrCalculated_ = new AtomicInteger(0);
+
+   /**
+    * @param dir directory to store the tables, will be created if needed
+    * @param maxBytes the least recently used tables are deleted when all
+    *       tables together are larger than this
+    * @throws IOException when the directory can not be created
+    */
+   public ModelTableCache(File dir, long maxBytes) throws IOException {
+      this(new CacheDirectory(dir, EXTENSION, maxBytes));
+   }
+
+   private ModelTableCache(CacheDirectory files) {
+      files_ = files;
+      dir_ = files.getDirectory();
+   }
+
+   /**
+    * @return cache in the ImageJ preferences directory, or null when that
+    *       directory can not be used
+    */
+   public static synchronized ModelTableCache getDefault() {
+      if (defaultCache_ == null) {
+         CacheDirectory files = CacheDirectory.inPrefsDir(DIRNAME, EXTENSION,
+                 DEFAULTMAXBYTES, "Model tables");
+         if (files != null) {
+            defaultCache_ = new ModelTableCache(files);
+         }
+      }
+      return defaultCache_;
+   }
+
+   /**
+    * Returns the table from the cache, or calculates and stores it.
+    * Arguments are those of the FresnelTable constructor.
+    * @return FresnelTable, calculated when the cache can not be read
+    *       or written
+    */
+   public FresnelTable getFresnelTable(double wavelength, double minDOx,
+           double maxDOx, double dOxStep, double nSample, double maxAngle,
+           double step) {
+      final int nrAngles = FresnelTable.nrAngles(maxAngle, step);
+      final int nrDOx = FresnelTable.nrDOx(minDOx, maxDOx, dOxStep);
+      final File file = new File(dir_, "fresnel-" + key(wavelength, minDOx,
+              dOxStep, nrDOx, nSample, step, nrAngles) + EXTENSION);
+      if (file.isFile()) {
+         try {
+            FresnelTable table = read(file, wavelength, minDOx, dOxStep,
+                    nrDOx, nSample, step, nrAngles);
+            if (table != null) {
+               // the modification time is used as last access time
+               file.setLastModified(System.currentTimeMillis());
+               nrLoaded_.incrementAndGet();
+               return table;
+            }
+         } catch (IOException ex) {
+            ij.IJ.log("Failed to read " + file + ": " + ex.getMessage());
+         }
+      }
+      final FresnelTable table = new FresnelTable(wavelength, minDOx,
+              maxDOx, dOxStep, nSample, maxAngle, step);
+      nrCalculated_.incrementAndGet();
+      try {
+         write(file, table);
+         files_.evict(file);
+      } catch (IOException ex) {
+         ij.IJ.log("Failed to write " + file + ": " + ex.getMessage());
+      }
+      return table;
+   }
+
+   /**
+    * @return number of tables that were read from disk
+    */
+   public int getNrLoaded() {
+      return nrLoaded_.get();
+   }
+
+   /**
+    * @return number of tables that had to be calculated
+    */
+   public int getNrCalculated() {
+      return nrCalculated_.get();
+   }
+
+   /**
+    * @return hexadecimal hash of the format version and parameters
+    */
+   private static String key(double wavelength, double minDOx,
+           double dOxStep, int nrDOx, double nSample, double step,
+           int nrAngles) {
+      ByteBuffer bb = ByteBuffer.allocate(52);
+      bb.putInt(FORMATVERSION).putDouble(wavelength).putDouble(minDOx).
+              putDouble(dOxStep).putInt(nrDOx).putDouble(nSample).
+              putDouble(step).putInt(nrAngles);
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-1");
+         StringBuilder sb = new StringBuilder();
+         for (byte b : md.digest(bb.array())) {
+            sb.append(String.format("%02x", b));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException ex) {
+         // every Java platform has SHA-1
+         throw new IllegalStateException(ex);
+      }
+   }
+
+   /**
+    * Maps a table file into memory
+    * @return FresnelTable, or null when the file does not hold the
+    *       requested table (other version, incomplete, or a hash collision)
+    */
+   private static FresnelTable read(File file, double wavelength,
+           double minDOx, double dOxStep, int nrDOx, double nSample,
+           double step, int nrAngles) throws IOException {
+      final long size = 8L * nrAngles * nrDOx;
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         if (raf.length() != HEADERBYTES + 2 * size) {
+            return null;
+         }
+         // the mapping stays valid after the file is closed
+         final MappedByteBuffer mbb = raf.getChannel().map(
+                 FileChannel.MapMode.READ_ONLY, 0, raf.length());
+         if (mbb.getInt(0) != MAGIC || mbb.getInt(4) != FORMATVERSION ||
+                 mbb.getInt(8) != nrAngles || mbb.getInt(12) != nrDOx ||
+                 mbb.getDouble(16) != wavelength ||
+                 mbb.getDouble(24) != nSample ||
+                 mbb.getDouble(32) != minDOx ||
+                 mbb.getDouble(40) != dOxStep || mbb.getDouble(48) != step) {
+            return null;
+         }
+         // tables written on this computer are in its native order,
+         // others are still read correctly, only slower
+         final ByteOrder order;
+         if (mbb.get(ORDERBYTE) == BIGENDIAN) {
+            order = ByteOrder.BIG_ENDIAN;
+         } else if (mbb.get(ORDERBYTE) == LITTLEENDIAN) {
+            order = ByteOrder.LITTLE_ENDIAN;
+         } else {
+            return null;
+         }
+         mbb.position(HEADERBYTES);
+         mbb.limit((int) (HEADERBYTES + size));
+         final ByteBuffer real = mbb.slice();
+         mbb.limit((int) (HEADERBYTES + 2 * size));
+         mbb.position((int) (HEADERBYTES + size));
+         final ByteBuffer imaginary = mbb.slice();
+         return new FresnelTable(wavelength, nSample, minDOx, dOxStep, nrDOx,
+                 step, nrAngles, real.order(order).asDoubleBuffer(),
+                 imaginary.order(order).asDoubleBuffer());
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Writes a table to a temporary file, and renames that to file, so that
+    * other instances never see a partial table
+    */
+   private void write(File file, FresnelTable table) throws IOException {
+      final int n = table.getNrAngles() * table.getNrDOx();
+      final ByteBuffer bb = ByteBuffer.allocate(HEADERBYTES + 16 * n);
+      bb.putInt(MAGIC).putInt(FORMATVERSION).putInt(table.getNrAngles()).
+              putInt(table.getNrDOx()).putDouble(table.getWavelength()).
+              putDouble(table.getNSample()).putDouble(table.getMinDOx()).
+              putDouble(table.getDOxStep()).putDouble(table.getStep());
+      final ByteOrder order = ByteOrder.nativeOrder();
+      bb.put(ORDERBYTE, order == ByteOrder.BIG_ENDIAN ? BIGENDIAN : 
+              LITTLEENDIAN);
+      bb.position(HEADERBYTES);
+      bb.slice().order(order).asDoubleBuffer().put(table.getReal());
+      bb.position(HEADERBYTES + 8 * n);
+      bb.slice().order(order).asDoubleBuffer().put(table.getImaginary());
+      bb.rewind();
+      final File tmp = File.createTempFile("fresnel", ".tmp", dir_);
+      final FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+         final FileChannel channel = fos.getChannel();
+         while (bb.hasRemaining()) {
+            channel.write(bb);
+         }
+      } finally {
+         fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+         // another instance may have written the same table
+         if (!tmp.delete() || !file.isFile()) {
+            throw new IOException("Failed to rename " + tmp);
+         }
+      }
+   }
+
+}
@@ -20,33 +20,42 @@
 
 package edu.ucsf.valelab.saim;
 
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
 import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.filter.GaussianBlur;
 import ij.process.FloatProcessor;
 import ij.process.ShortProcessor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Thread to spin up the threads that carry out the SAIM fitting Detects if an
- * image is open, cuts the image in pieces that each will be handled by an
- * individual thread. Waits for the fitting threads to finish and displays the
- * result to the user.
+ * Thread that fits the current image for SaimFit (see StackFit), shows the 
+ * result to the user, and switches off the "Fit" checkbox at the end of a 
+ * run.  Also holds the static helpers that load the corrections and maps
+ * named in the settings.
  *
  * @author nico
  */
 public class OverseeTheFit extends Thread {
 
-    private final AtomicInteger nrXProcessed_ = new AtomicInteger(0);
+    // width and height (in binned pixels) of the pieces handed out to threads
+    public static final int TILESIZE = 64;
+    // accuracy of the Gaussian kernel, the default of ImageJ for float images
+    private static final double BLURACCURACY = 0.0002;
+
     private final SaimData sd_;
     private final AtomicBoolean isRunning_;
-    private final RunTheFit[] fitThreads_;
     private final int nrThreads_;
     private final GenericDialog gd_;
+    private volatile StackFit fit_ = null;
 
     /**
      *
@@ -61,7 +70,6 @@ public class OverseeTheFit extends Thread {
         sd_ = sd;
         isRunning_ = isRunning;
         nrThreads_ = ij.Prefs.getThreads();
-        fitThreads_ = new RunTheFit[nrThreads_];
     }
 
     @Override
@@ -82,87 +90,319 @@ public class OverseeTheFit extends Thread {
 
         ij.IJ.showStatus("Saim Fit is running...");
         final long startTime = System.nanoTime();
-        nrXProcessed_.set(0);
-
-        // this assumes a stack of shorts with NSlices > 1 and all other dimensions 1
-        // TODO: check!
-        final int width = ip.getWidth();
-        final int height = ip.getHeight();
-        final ImageStack newStack = new ImageStack(width, height, 4);
-        final FloatProcessor[] outputFP = new FloatProcessor[4];
-        for (int i = 0; i < 4; i++) {
-            final FloatProcessor fp = new FloatProcessor(width, height);
-            outputFP[i] = fp;
-        }
-
-        // start all threads
-        int nrXPerThread = (width / nrThreads_);
-        for (int i = 0; i < nrThreads_; i++) {
-            // Because of rounding, we need to calculate the number of columns 
-            // to be analyzed by this thread specifically for the last thread
-            int doThisManyXs = nrXPerThread;
-            if (i == nrThreads_ -1) {
-               doThisManyXs = width - (nrXPerThread * nrThreads_) + nrXPerThread;
-            }
-            RunTheFit rf = new RunTheFit(0 + (i * nrXPerThread), doThisManyXs,
-                    sd_.copy(), ip, outputFP, nrXProcessed_);
-            fitThreads_[i] = rf;
-            fitThreads_[i].start();
-        }
-
-        // wait for the threads to end 
         try {
-            for (int i = 0; i < nrThreads_; i++) {
-                fitThreads_[i].join();
-            }
-            for (int i = 0; i < 4; i++) {
-                newStack.setProcessor(outputFP[i], i + 1);
+            // background and flat field are loaded once and shared by all 
+            // threads
+            fit_ = new StackFit(ip, sd_, nrThreads_);
+            final FloatProcessor[] outputFP = fit_.fit();
+            if (outputFP != null) {
+                showResult(ip, outputFP, fit_.getBinning());
             }
-
-            ImagePlus rIp = new ImagePlus("Fit result", newStack);
-            WindowManager.setTempCurrentImage(rIp);
-            IJ.run("Fire");
-            rIp.show();
-            ij.IJ.showProgress(1);
-            ij.IJ.showStatus("");
-            isRunning_.set(false);
-            gd_.getPreviewCheckbox().setState(false);
             ij.IJ.log("Analysis took "
                     + (System.nanoTime() - startTime) / 1000000 + "ms");
+            ij.IJ.log(fit_.getReport().toString());
+        } catch (InvalidInputException ex) {
+            ij.IJ.showMessage(ex.getMessage());
         } catch (InterruptedException ex) {
             ij.IJ.log("fitThread was interupted");
+        } finally {
+            fit_ = null;
+            isRunning_.set(false);
+            gd_.getPreviewCheckbox().setState(false);
         }
     }
 
     /**
-     * Method to interrupt a running analysis
+     * Smooths the A and B images of a fit result with a Gaussian.  Only
+     * well fitted pixels contribute, and each smoothed value is normalized
+     * by the weight of the contributing pixels, so that failed, poorly
+     * fitted and background pixels do not pull A and B off.
+     * @param outputFP fit result (height, R-squared, A, B)
+     * @param sigma standard deviation of the Gaussian in pixels
+     * @param minR2 pixels with lower R-squared do not contribute
+     * @return smoothed A and B, NaN where no fitted pixel is near
      */
-    public void stopRun() {
-
-        // first set a stop flag in all running threads
-        for (int i = 0; i < nrThreads_; i++) {
-            if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
-                fitThreads_[i].stopRun();
+    public static FloatProcessor[] smoothAB(FloatProcessor[] outputFP,
+            double sigma, double minR2) {
+        final int width = outputFP[0].getWidth();
+        final int height = outputFP[0].getHeight();
+        final float[] r2 = (float[]) outputFP[1].getPixels();
+        final float[] weights = new float[width * height];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = r2[i] > 0.0f && r2[i] >= minR2 ? 1.0f : 0.0f;
+        }
+        // normalized convolution: blur(weights * value) / blur(weights)
+        final GaussianBlur gb = new GaussianBlur();
+        final FloatProcessor smoothedWeights = new FloatProcessor(width, 
+                height, weights.clone(), null);
+        gb.blurGaussian(smoothedWeights, sigma, sigma, BLURACCURACY);
+        final float[] sw = (float[]) smoothedWeights.getPixels();
+        final FloatProcessor[] abMaps = new FloatProcessor[2];
+        for (int p = 0; p < 2; p++) {
+            final float[] values = (float[]) outputFP[p + 2].getPixels();
+            final float[] smoothed = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                smoothed[i] = weights[i] > 0.0f ? values[i] : 0.0f;
+            }
+            abMaps[p] = new FloatProcessor(width, height, smoothed, null);
+            gb.blurGaussian(abMaps[p], sigma, sigma, BLURACCURACY);
+            for (int i = 0; i < smoothed.length; i++) {
+                smoothed[i] = sw[i] > 1.0e-6f ? smoothed[i] / sw[i] : 
+                        Float.NaN;
             }
         }
+        return abMaps;
+    }
 
-        // now wait for them to exit
-        for (int i = 0; i < nrThreads_; i++) {
-            if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
-                try {
-                    fitThreads_[i].join(50l);
-                } catch (InterruptedException iex) {
-                    ij.IJ.log("Thread " + i + " was interrupted");
+    /**
+     * Shows the output (height, R-squared, A, B) as a stack
+     * @param ip Image that was fitted
+     * @param outputFP fit results
+     * @param binning binning of the results relative to the image
+     */
+    private void showResult(ImagePlus ip, FloatProcessor[] outputFP, 
+            int binning) {
+        final ImageStack newStack = new ImageStack(outputFP[0].getWidth(), 
+                outputFP[0].getHeight(), 4);
+        for (int i = 0; i < 4; i++) {
+            newStack.setProcessor(outputFP[i], i + 1);
+        }
+
+        ImagePlus rIp = new ImagePlus("Fit result", newStack);
+        if (binning > 1) {
+            Calibration cal = ip.getCalibration().copy();
+            cal.pixelWidth *= binning;
+            cal.pixelHeight *= binning;
+            rIp.setCalibration(cal);
+        }
+        WindowManager.setTempCurrentImage(rIp);
+        IJ.run("Fire");
+        rIp.show();
+        ij.IJ.showProgress(1);
+        ij.IJ.showStatus("");
+    }
+
+    /**
+     * Creates the fit thread for the engine selected in SaimData
+     * @param startX image x coordinate at which analysis starts
+     * @param numberX Number of x coordinates that will be analyzed
+     * @param sd Analysis settings data structure
+     * @param ip ImageJ Image data
+     * @param fpOut Results as an ImageJ Stack of type Float
+     * @param nrXProcessed Number of X coordinates that were analyzed
+     * @return RunTheFit or RunTheBatchFit, not yet started
+     */
+    public static RunTheFit createFitThread(int startX, int numberX, 
+            SaimData sd, ImagePlus ip, FloatProcessor[] fpOut, 
+            AtomicInteger nrXProcessed) {
+        if (useBatchEngine(sd)) {
+            return new RunTheBatchFit(startX, numberX, sd, ip, fpOut, 
+                    nrXProcessed);
+        }
+        return new RunTheFit(startX, numberX, sd, ip, fpOut, nrXProcessed);
+    }
+
+    /**
+     * Creates the correction for background, flat field and laser power
+     * as requested in SaimData
+     * @param sd Data structure with user-provided settings
+     * @param ip Image that will be fitted
+     * @return ProfileCorrection, or null when no correction was requested
+     * @throws InvalidInputException when files can not be opened or do not
+     * match the data
+     */
+    public static ProfileCorrection createCorrection(SaimData sd, ImagePlus ip) 
+            throws InvalidInputException {
+        final boolean hasBackground = sd.backgroundFile_ != null && 
+                !sd.backgroundFile_.trim().isEmpty();
+        final boolean hasFlat = sd.flatFieldFile_ != null && 
+                !sd.flatFieldFile_.trim().isEmpty();
+        final boolean hasPower = sd.laserPower_ != null && 
+                sd.laserPower_.length > 0;
+        if (!hasBackground && !hasFlat && !hasPower) {
+            return null;
+        }
+        float[][] background = hasBackground ? 
+                loadPlanes(sd.backgroundFile_.trim(), ip) : null;
+        float[][] flat = hasFlat ? 
+                loadPlanes(sd.flatFieldFile_.trim(), ip) : null;
+        return new ProfileCorrection(background, flat, sd.laserPower_,
+                ip.getWidth() * ip.getHeight(), ip.getNSlices());
+    }
+
+    /**
+     * The batch engines share the angles between all pixels of a block, and
+     * always fit A and B, so they are not used with pixel maps or fixed A
+     * and/or B
+     * @param sd Data structure with user-provided settings
+     * @return true when a batch engine was selected and can be used
+     */
+    public static boolean useBatchEngine(SaimData sd) {
+        if (hasPixelMaps(sd) || sd.fixA_ || sd.fixB_) {
+            return false;
+        }
+        return sd.engine_ == SaimData.Engine.BATCH || 
+                sd.engine_ == SaimData.Engine.BATCH_FLOAT;
+    }
+
+    /**
+     * @param sd Data structure with user-provided settings
+     * @return true when an angle offset or oxide thickness map was requested
+     */
+    public static boolean hasPixelMaps(SaimData sd) {
+        return (sd.angleOffsetFile_ != null && 
+                !sd.angleOffsetFile_.trim().isEmpty()) ||
+                (sd.dOxFile_ != null && !sd.dOxFile_.trim().isEmpty());
+    }
+
+    /**
+     * Loads a map with a value for every pixel (angle offset or oxide
+     * thickness), and bins it like the data
+     * @param file path to the map, may be empty
+     * @param sd Data structure with user-provided settings
+     * @param ip Image that will be fitted
+     * @return value of every (binned) pixel, or null when file is empty
+     * @throws InvalidInputException when the file can not be opened or does
+     * not match the data
+     */
+    public static FloatProcessor loadMap(String file, SaimData sd, 
+            ImagePlus ip) throws InvalidInputException {
+        if (file == null || file.trim().isEmpty()) {
+            return null;
+        }
+        final float[] raw = loadPlanes(file.trim(), ip)[0];
+        final int bin = sd.binning_;
+        final FloatProcessor map = new FloatProcessor(ip.getWidth() / bin,
+                ip.getHeight() / bin);
+        for (int y = 0; y < map.getHeight(); y++) {
+            for (int x = 0; x < map.getWidth(); x++) {
+                double sum = 0.0;
+                for (int dy = 0; dy < bin; dy++) {
+                    for (int dx = 0; dx < bin; dx++) {
+                        sum += raw[(y * bin + dy) * ip.getWidth() + 
+                                x * bin + dx];
+                    }
                 }
+                map.setf(x, y, (float) (sum / (bin * bin)));
             }
         }
+        return map;
+    }
+
+    /**
+     * Loads A and B from the result of an earlier fit (a stack with height,
+     * R-squared, A and B)
+     * @param file path to the fit result, may be empty
+     * @param width width of the (binned) data
+     * @param height height of the (binned) data
+     * @return A and B of every (binned) pixel, or null when file is empty
+     * @throws InvalidInputException when the file can not be opened or does
+     * not match the data
+     */
+    public static FloatProcessor[] loadABMaps(String file, int width, 
+            int height) throws InvalidInputException {
+        if (file == null || file.trim().isEmpty()) {
+            return null;
+        }
+        final ImagePlus rip = IJ.openImage(file.trim());
+        if (rip == null) {
+            throw new InvalidInputException("Failed to open: " + file);
+        }
+        if (rip.getWidth() != width || rip.getHeight() != height || 
+                rip.getStackSize() < 4) {
+            throw new InvalidInputException("Image " + file + 
+                    " is not a fit result of the (binned) data");
+        }
+        final ImageStack ris = rip.getImageStack();
+        return new FloatProcessor[] {
+            (FloatProcessor) ris.getProcessor(3).convertToFloat(),
+            (FloatProcessor) ris.getProcessor(4).convertToFloat()};
+    }
 
-        // If the thread is still alive, we have to get mean
-        for (int i = 0; i < nrThreads_; i++) {
-            if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
-                fitThreads_[i].interrupt();
+    /**
+     * Creates a table of Fresnel coefficients that covers all angles of the
+     * data shifted by all offsets, and all oxide thicknesses.  The table is
+     * taken from the ModelTableCache when it was calculated before.
+     * @param sd Data structure with user-provided settings
+     * @param nrSlices number of angles
+     * @param angleOffsets offsets in degrees, or null
+     * @param dOxMap oxide thickness in nm, or null
+     * @return FresnelTable, or null when there are no maps
+     */
+    public static FresnelTable createFresnelTable(SaimData sd, int nrSlices,
+            FloatProcessor angleOffsets, FloatProcessor dOxMap) {
+        if (angleOffsets == null && dOxMap == null) {
+            return null;
+        }
+        double maxOffset = 0.0;
+        if (angleOffsets != null) {
+            for (float offset : (float[]) angleOffsets.getPixels()) {
+                maxOffset = Math.max(maxOffset, Math.abs(offset));
             }
         }
+        final double maxAngle = Math.toRadians(maxOffset + Math.max(
+                Math.abs(sd.firstAngle_), 
+                Math.abs(sd.firstAngle_ + (nrSlices - 1) * sd.angleStep_)));
+        final ModelTableCache cache = ModelTableCache.getDefault();
+        if (dOxMap == null) {
+            if (cache != null) {
+                return cache.getFresnelTable(sd.wavelength_, sd.dOx_, 
+                        sd.dOx_, 1.0, sd.nSample_, maxAngle, 
+                        FresnelTable.DEFAULTSTEP);
+            }
+            return new FresnelTable(sd.wavelength_, sd.dOx_, sd.nSample_, 
+                    maxAngle, FresnelTable.DEFAULTSTEP);
+        }
+        double minDOx = Double.MAX_VALUE;
+        double maxDOx = -Double.MAX_VALUE;
+        for (float dOx : (float[]) dOxMap.getPixels()) {
+            minDOx = Math.min(minDOx, dOx);
+            maxDOx = Math.max(maxDOx, dOx);
+        }
+        if (cache != null) {
+            return cache.getFresnelTable(sd.wavelength_, minDOx, maxDOx, 
+                    FresnelTable.DOXSTEP, sd.nSample_, maxAngle, 
+                    FresnelTable.MAPANGLESTEP);
+        }
+        return new FresnelTable(sd.wavelength_, minDOx, maxDOx, 
+                FresnelTable.DOXSTEP, sd.nSample_, maxAngle, 
+                FresnelTable.MAPANGLESTEP);
+    }
+
+    /**
+     * Opens an image (or stack) and returns its pixels as floats
+     * @param file path to the image
+     * @param ip data, the image should have the same width and height
+     * @return one float array per slice
+     * @throws InvalidInputException when the file can not be opened or differs
+     * in size from the data
+     */
+    private static float[][] loadPlanes(String file, ImagePlus ip)
+            throws InvalidInputException {
+        final ImagePlus cip = IJ.openImage(file);
+        if (cip == null) {
+            throw new InvalidInputException("Failed to open: " + file);
+        }
+        if (cip.getWidth() != ip.getWidth() || cip.getHeight() != ip.getHeight()) {
+            throw new InvalidInputException("Image " + file + 
+                    " differs in size from the data");
+        }
+        final ImageStack cis = cip.getImageStack();
+        float[][] planes = new float[cis.getSize()][];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = (float[]) cis.getProcessor(i + 1).convertToFloat().getPixels();
+        }
+        return planes;
+    }
+
+    /**
+     * Method to interrupt a running analysis
+     */
+    public void stopRun() {
+        StackFit fit = fit_;
+        if (fit != null) {
+            fit.stop();
+        }
 
         // signal that the coast is clear
         gd_.getPreviewCheckbox().setState(false);
@@ -0,0 +1,172 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          PixelSchedule.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.SaimBatchFitter;
+import edu.ucsf.valelab.saim.calculations.SaimUtils;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Order in which pixels are fitted when the fit has to finish before a
+ * deadline.  A quick pre-pass reads all (binned) pixels, drops those below
+ * the threshold, and sorts the remaining ones on priority (mean intensity,
+ * or signal to noise ratio), highest first.  Fitting threads take chunks of
+ * pixels in this order, so that the most valuable pixels are fitted first
+ * no matter how many threads there are.  Once the deadline has passed no
+ * more chunks are handed out, and the pixels that were never handed out
+ * can be marked as unfitted.
+ *
+ * @author nico
+ */
+public class PixelSchedule {
+
+   // number of pixels handed out at once, a chunk is one batch fitter block
+   public static final int CHUNKSIZE = SaimBatchFitter.DEFAULT_BLOCKSIZE;
+
+   private final int[] order_;   // y * width + x, highest priority first
+   private final int width_;
+   private final long deadline_; // System.nanoTime() at the deadline
+   private final AtomicInteger next_ = new AtomicInteger(0);
+
+   /**
+    * @param order pixel indices (y * width + x) in the order they should
+    *       be fitted
+    * @param width width of the (binned) image
+    * @param deadline value of System.nanoTime() after which no more pixels
+    *       will be handed out
+    */
+   public PixelSchedule(int[] order, int width, long deadline) {
+      order_ = order;
+      width_ = width;
+      deadline_ = deadline;
+   }
+
+   /**
+    * Reads all pixels and orders those above the threshold on priority.
+    * @param extractor reads the (binned and corrected) profiles
+    * @param sd settings, we use threshold_ and deadlineSnr_
+    * @param deadline value of System.nanoTime() at the deadline
+    * @return schedule
+    */
+   public static PixelSchedule create(ProfileExtractor extractor, SaimData sd,
+           long deadline) {
+      final int width = extractor.getWidth();
+      final int height = extractor.getHeight();
+      final float[] values = new float[extractor.getNrSlices()];
+      // priority in the upper 32 bits, pixel index in the lower 32, so that
+      // a sort of primitives orders the pixels (see sortBits)
+      long[] keys = new long[width * height];
+      int n = 0;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            float average = extractor.extract(x, y, values);
+            if (average > sd.threshold_) {
+               float priority = sd.deadlineSnr_ ? 
+                       SaimUtils.snr(values) : average;
+               keys[n] = ((long) sortBits(priority) << 32) |
+                       (y * width + x);
+               n++;
+            }
+         }
+      }
+      Arrays.sort(keys, 0, n);
+      int[] order = new int[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = (int) (keys[n - 1 - i] & 0xffffffffL);
+      }
+      return new PixelSchedule(order, width, deadline);
+   }
+
+   /**
+    * The bits of positive floats sort in the same order as the floats, those
+    * of negative floats in reverse order, for instance when a background 
+    * was subtracted and the threshold is negative.  Flipping all bits but 
+    * the sign of negative floats gives ints in the same order as the floats.
+    * @param value float that is not NaN
+    * @return int that compares to other results as value to other values
+    */
+   static int sortBits(float value) {
+      final int bits = Float.floatToIntBits(value);
+      return bits ^ ((bits >> 31) & 0x7fffffff);
+   }
+
+   /**
+    * Hands out the next chunk of pixels
+    * @param xs receives image x coordinates, at least CHUNKSIZE long
+    * @param ys receives image y coordinates, at least CHUNKSIZE long
+    * @return number of pixels in the chunk, 0 when all pixels were handed
+    *       out or the deadline has passed
+    */
+   public int next(int[] xs, int[] ys) {
+      if (isPastDeadline()) {
+         return 0;
+      }
+      final int start = next_.getAndAdd(CHUNKSIZE);
+      final int end = Math.min(order_.length, start + CHUNKSIZE);
+      for (int i = start; i < end; i++) {
+         xs[i - start] = order_[i] % width_;
+         ys[i - start] = order_[i] / width_;
+      }
+      return Math.max(0, end - start);
+   }
+
+   /**
+    * @return true once the deadline has passed
+    */
+   public boolean isPastDeadline() {
+      return System.nanoTime() - deadline_ > 0;
+   }
+
+   /**
+    * @return number of pixels above the threshold
+    */
+   public int size() {
+      return order_.length;
+   }
+
+   /**
+    * @return number of pixels handed out so far
+    */
+   public int getNrHandedOut() {
+      return Math.min(order_.length, next_.get());
+   }
+
+   /**
+    * Marks the pixels that were never handed out as unfitted, see
+    * RunTheFit.markUnfitted
+    * @param output output images (height, R-squared, A, B)
+    * @return number of pixels that were marked
+    */
+   public int markRemaining(FloatProcessor[] output) {
+      // stop handing out pixels
+      final int start = next_.getAndSet(order_.length);
+      for (int i = start; i < order_.length; i++) {
+         RunTheFit.markUnfitted(output, order_[i] % width_,
+                 order_[i] / width_);
+      }
+      return Math.max(0, order_.length - start);
+   }
+
+}
@@ -0,0 +1,258 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ResultCache.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the results of earlier fits on disk, so that a fit of the same data
+ * with slightly different settings only needs to do the work that changed.
+ *
+ * Results are stored under a fingerprint of the input pixels and all
+ * settings except the threshold and the height guesses (see key).  With a
+ * stored result, RunTheFit only fits pixels that were below the threshold
+ * of the earlier run, and tries only the heights that the earlier run did
+ * not try on the other pixels (see RunTheFit.setPrevious).
+ * The least recently used results are deleted when the total size of the
+ * cache exceeds its maximum (see CacheDirectory).
+ *
+ * @author nico
+ */
+public class ResultCache {
+
+   private static final String DIRNAME = "saim-results";
+   private static final String EXTENSION = ".result";
+   public static final long DEFAULTMAXBYTES = 1024L * 1024 * 1024;
+
+   private static ResultCache defaultCache_ = null;
+
+   private final CacheDirectory files_;
+   private final File dir_;
+
+   /**
+    * Result of a fit of the whole image
+    */
+   public static class Entry implements Serializable {
+      private static final long serialVersionUID = 4180237740921563L;
+
+      // pixels with an average above this were fitted
+      public final int threshold_;
+      // heights that were tried for all fitted pixels
+      public final double[] heights_;
+      public final int width_;
+      public final int height_;
+      public final float[][] planes_;
+
+      /**
+       * @param threshold threshold of the fit
+       * @param heights heights that were tried for all fitted pixels
+       * @param output output images (height, R-squared, A, B), copied
+       */
+      public Entry(int threshold, double[] heights, FloatProcessor[] output) {
+         threshold_ = threshold;
+         heights_ = heights;
+         width_ = output[0].getWidth();
+         height_ = output[0].getHeight();
+         planes_ = new float[output.length][];
+         for (int i = 0; i < output.length; i++) {
+            planes_[i] = ((float[]) output[i].getPixels()).clone();
+         }
+      }
+
+      /**
+       * Copies the stored result into the output
+       * @param output output images (height, R-squared, A, B)
+       */
+      public void paste(FloatProcessor[] output) {
+         for (int i = 0; i < output.length; i++) {
+            System.arraycopy(planes_[i], 0, (float[]) output[i].getPixels(),
+                    0, planes_[i].length);
+         }
+      }
+   }
+
+   /**
+    * @param dir directory to store the results, will be created if needed
+    * @param maxBytes the least recently used results are deleted when all
+    *       results together are larger than this
+    * @throws IOException when the directory can not be created
+    */
+   public ResultCache(File dir, long maxBytes) throws IOException {
+      this(new CacheDirectory(dir, EXTENSION, maxBytes));
+   }
+
+   private ResultCache(CacheDirectory files) {
+      files_ = files;
+      dir_ = files.getDirectory();
+   }
+
+   /**
+    * @return cache in the ImageJ preferences directory, or null when that
+    *       directory can not be used
+    */
+   public static synchronized ResultCache getDefault() {
+      if (defaultCache_ == null) {
+         CacheDirectory files = CacheDirectory.inPrefsDir(DIRNAME, EXTENSION,
+                 DEFAULTMAXBYTES, "Results");
+         if (files != null) {
+            defaultCache_ = new ResultCache(files);
+         }
+      }
+      return defaultCache_;
+   }
+
+   /**
+    * Fingerprint of the input pixels and the settings that influence the
+    * result of a pixel, i.e. all settings except threshold and heights, 
+    * including the contents of correction and map files (see 
+    * FitCheckpoint.fingerprint)
+    * @param ip input stack
+    * @param sd settings
+    * @return hexadecimal key
+    */
+   public static String key(ImagePlus ip, SaimData sd) {
+      SaimData cp = sd.copy();
+      cp.threshold_ = 0;
+      cp.heights_ = new double[0];
+      cp.resultCache_ = false;
+      return FitCheckpoint.fingerprint(ip, cp);
+   }
+
+   /**
+    * @param key see key()
+    * @param width width of the (binned) output
+    * @param height height of the (binned) output
+    * @return the stored result, or null when there is none (or it can not
+    *       be read)
+    */
+   public Entry load(String key, int width, int height) {
+      final File file = new File(dir_, key + EXTENSION);
+      if (!file.isFile()) {
+         return null;
+      }
+      try {
+         ObjectInputStream ois = new ObjectInputStream(
+                 new BufferedInputStream(new FileInputStream(file)));
+         try {
+            Entry entry = (Entry) ois.readObject();
+            if (entry.width_ != width || entry.height_ != height) {
+               return null;
+            }
+            // the modification time is used as last access time
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+         } finally {
+            ois.close();
+         }
+      } catch (IOException ex) {
+         // for instance written by an older version, fit again
+      } catch (ClassNotFoundException ex) {
+      } catch (ClassCastException ex) {
+      }
+      return null;
+   }
+
+   /**
+    * Stores a result, replacing the earlier result with the same key
+    * @param key see key()
+    * @param entry result
+    * @throws IOException
+    */
+   public void store(String key, Entry entry) throws IOException {
+      final File file = new File(dir_, key + EXTENSION);
+      final File tmp = File.createTempFile("result", ".tmp", dir_);
+      ObjectOutputStream oos = new ObjectOutputStream(
+              new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         oos.writeObject(entry);
+      } finally {
+         oos.close();
+      }
+      if (file.exists() && !file.delete()) {
+         tmp.delete();
+         throw new IOException("Failed to replace " + file);
+      }
+      if (!tmp.renameTo(file)) {
+         tmp.delete();
+         throw new IOException("Failed to rename " + tmp);
+      }
+      files_.evict(file);
+   }
+
+   /**
+    * @param heights heights of this fit
+    * @param tried heights tried by an earlier fit
+    * @return the heights that were not tried
+    */
+   public static double[] newHeights(double[] heights, double[] tried) {
+      List<Double> result = new ArrayList<Double>();
+      for (double h : heights) {
+         boolean found = false;
+         for (double t : tried) {
+            if (h == t) {
+               found = true;
+               break;
+            }
+         }
+         if (!found) {
+            result.add(h);
+         }
+      }
+      double[] newHeights = new double[result.size()];
+      for (int i = 0; i < newHeights.length; i++) {
+         newHeights[i] = result.get(i);
+      }
+      return newHeights;
+   }
+
+   /**
+    * @param previous result of the earlier fit, or null
+    * @param sd settings of this fit
+    * @return heights that were tried for all pixels fitted in this fit:
+    *       those of both fits when no new pixels were fitted, otherwise
+    *       only those of this fit
+    */
+   public static double[] triedHeights(Entry previous, SaimData sd) {
+      if (previous == null || sd.threshold_ < previous.threshold_) {
+         return sd.heights_;
+      }
+      double[] extra = newHeights(previous.heights_, sd.heights_);
+      double[] heights = Arrays.copyOf(sd.heights_,
+              sd.heights_.length + extra.length);
+      System.arraycopy(extra, 0, heights, sd.heights_.length, extra.length);
+      return heights;
+   }
+
+}
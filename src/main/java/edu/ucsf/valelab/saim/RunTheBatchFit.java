@@ -0,0 +1,285 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          RunTheBatchFit.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.ProfileOrganizer;
+import edu.ucsf.valelab.saim.calculations.SaimBatchFitter;
+import edu.ucsf.valelab.saim.calculations.SaimFloatBatchFitter;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative to RunTheFit that collects pixels above the threshold in
+ * blocks, and fits each block in lock-step using the SaimBatchFitter
+ * (or the SaimFloatBatchFitter when single precision was requested).
+ * Output is identical in layout to that of RunTheFit.
+ * Pixels that do not converge within the iteration budget are retried by
+ * RunTheFit.retryDeferred.
+ * With a PixelSchedule, every chunk handed out by the schedule is fitted
+ * as one block.
+ *
+ * @author nico
+ */
+public class RunTheBatchFit extends RunTheFit {
+
+   /**
+    *
+    * @param startX image x coordinate at which analysis starts
+    * @param numberX Number of x coordinates that  will be analyzes
+    * @param sd Analysis settings data structure
+    * @param ip ImageJ Image data
+    * @param fpOut Results as an ImageJ Stack of type Float
+    * @param nrXProcessed Number of X coordinates that were analyzed
+    */
+   public RunTheBatchFit(int startX, int numberX, SaimData sd, ImagePlus ip,
+           FloatProcessor[] fpOut, AtomicInteger nrXProcessed) {
+      super(startX, numberX, sd, ip, fpOut, nrXProcessed);
+   }
+
+   @Override
+   public void run() {
+      final int nrSlices = ip_.getNSlices();
+      final double[] anglesRadians = new double[nrSlices];
+      final double[] anglesDegrees = new double[nrSlices];
+      for (int i = 0; i < anglesRadians.length; i++) {
+         double angle = sd_.firstAngle_ + i * sd_.angleStep_;
+         anglesDegrees[i] = angle;
+         anglesRadians[i] = Math.toRadians(angle);
+      }
+      final ProfileExtractor extractor;
+      final ProfileOrganizer organizer;
+      try {
+         extractor = createExtractor();
+         organizer = new ProfileOrganizer(sd_, anglesDegrees, anglesRadians);
+      } catch (InvalidInputException ex) {
+         ij.IJ.error("Saim Fit", ex.getMessage());
+         return;
+      }
+      final int width = extractor.getWidth();
+      final int height = extractor.getHeight();
+      final int nrAngles = organizer.size();
+      final int blockSize = SaimBatchFitter.DEFAULT_BLOCKSIZE;
+      SaimBatchFitter sbf = null;
+      SaimFloatBatchFitter sfbf = null;
+      double[] profiles = null;
+      float[] fProfiles = null;
+      if (sd_.engine_ == SaimData.Engine.BATCH_FLOAT) {
+         sfbf = new SaimFloatBatchFitter(sd_, organizer.getAnglesRadians(),
+                 blockSize);
+         fProfiles = new float[blockSize * nrAngles];
+      } else {
+         sbf = new SaimBatchFitter(sd_, organizer.getAnglesRadians(), 
+                 blockSize);
+         profiles = new double[blockSize * nrAngles];
+      }
+
+      final boolean budget = sd_.fastIterations_ > 0;
+      if (budget) {
+         if (sfbf != null) {
+            sfbf.setMaxIterations(sd_.fastIterations_);
+         } else {
+            sbf.setMaxIterations(sd_.fastIterations_);
+         }
+      }
+      final List<int[]> deferred = new ArrayList<int[]>();
+
+      final double[][] guesses = new double[sd_.heights_.length][];
+      for (int i = 0; i < guesses.length; i++) {
+         guesses[i] = new double[]{sd_.A_, sd_.B_, sd_.heights_[i]};
+      }
+
+      // pixels of an earlier fit that will be tried with the new heights
+      final List<int[]> revisit = new ArrayList<int[]>();
+
+      final float[] values = new float[nrSlices];
+      final double[] results = new double[blockSize * 4];
+      final int[] xs = new int[blockSize];
+      final int[] ys = new int[blockSize];
+      int n = 0;
+
+      if (schedule_ != null) {
+         // chunks are exactly one block, the schedule applied the threshold
+         int m;
+         while ((m = schedule_.next(xs, ys)) > 0) {
+            if (stop_.get()) {
+               return;
+            }
+            for (int p = 0; p < m; p++) {
+               extractor.extract(xs[p], ys[p], values);
+               if (sfbf != null) {
+                  organizer.organize(values, fProfiles, p * nrAngles);
+               } else {
+                  organizer.organize(values, profiles, p * nrAngles);
+               }
+            }
+            fitBlock(sbf, profiles, sfbf, fProfiles, m, guesses, results,
+                    xs, ys, budget ? deferred : null);
+            showScheduleProgress();
+         }
+      } else {
+         int lastX = startX_ + numberX_;
+         int lastY = getLastY(height);
+         for (int x = startX_; x < lastX; x++) {
+            if (stop_.get()) {
+               return;
+            }
+            for (int y = startY_; y < lastY; y++) {
+               float average = extractor.extract(x, y, values);
+
+               // only calculate if the average pixel intensity is
+               // above the threshold
+               if (average > sd_.threshold_ && wasFitted(average)) {
+                  revisit.add(new int[] {x, y});
+               } else if (average > sd_.threshold_) {
+                  if (sfbf != null) {
+                     organizer.organize(values, fProfiles, n * nrAngles);
+                  } else {
+                     organizer.organize(values, profiles, n * nrAngles);
+                  }
+                  xs[n] = x;
+                  ys[n] = y;
+                  n++;
+                  if (n == blockSize) {
+                     fitBlock(sbf, profiles, sfbf, fProfiles, n, guesses,
+                             results, xs, ys, budget ? deferred : null);
+                     n = 0;
+                  }
+               } else if (incremental_) {
+                  clearResult(x, y);
+               }
+            }
+            nrXProcessed_.getAndIncrement();
+            synchronized (nrXProcessed_) {
+               ij.IJ.showProgress(nrXProcessed_.get(), 
+                       getProgressTotal(width));
+            }
+         }
+         if (n > 0) {
+            fitBlock(sbf, profiles, sfbf, fProfiles, n, guesses, results,
+                    xs, ys, budget ? deferred : null);
+         }
+         if (!revisit.isEmpty()) {
+            improve(revisit, extractor, organizer, sbf, profiles, sfbf, 
+                    fProfiles, results, xs, ys);
+         }
+      }
+      try {
+         retryDeferred(deferred, extractor);
+      } catch (InvalidInputException ex) {
+         ij.IJ.error("Saim Fit", ex.getMessage());
+      }
+   }
+
+   /**
+    * Fits pixels of an earlier fit starting at the heights that were not
+    * tried then, and keeps the best result of every pixel
+    * @param revisit image x, y coordinates of the pixels
+    */
+   private void improve(List<int[]> revisit, ProfileExtractor extractor,
+           ProfileOrganizer organizer, SaimBatchFitter sbf, 
+           double[] profiles, SaimFloatBatchFitter sfbf, float[] fProfiles, 
+           double[] results, int[] xs, int[] ys) {
+      final double[][] newGuesses = new double[newHeights_.length][];
+      for (int i = 0; i < newGuesses.length; i++) {
+         newGuesses[i] = new double[]{sd_.A_, sd_.B_, newHeights_[i]};
+      }
+      final float[] values = new float[extractor.getNrSlices()];
+      final int nrAngles = organizer.size();
+      final int blockSize = xs.length;
+      keepBetter_ = true;
+      try {
+         for (int start = 0; start < revisit.size() && newGuesses.length > 0; 
+                 start += blockSize) {
+            if (stop_.get()) {
+               return;
+            }
+            final int n = Math.min(blockSize, revisit.size() - start);
+            for (int p = 0; p < n; p++) {
+               xs[p] = revisit.get(start + p)[0];
+               ys[p] = revisit.get(start + p)[1];
+               extractor.extract(xs[p], ys[p], values);
+               if (sfbf != null) {
+                  organizer.organize(values, fProfiles, p * nrAngles);
+               } else {
+                  organizer.organize(values, profiles, p * nrAngles);
+               }
+            }
+            fitBlock(sbf, profiles, sfbf, fProfiles, n, newGuesses, results,
+                    xs, ys, null);
+         }
+      } finally {
+         keepBetter_ = false;
+      }
+      for (int[] pixel : revisit) {
+         if (Float.isNaN(fpOut_[1].getf(pixel[0] - outputX_, 
+                 pixel[1] - outputY_))) {
+            report_.failed();
+         } else {
+            report_.fitted();
+            report_.cached();
+         }
+      }
+   }
+
+   /**
+    * Fits a block of pixels and writes the results.  Pixels that did
+    * not converge are added to deferred, or marked as failed when deferred
+    * is null.  When improving an earlier fit, these keep their result
+    * (and the report is left to the caller).
+    */
+   private void fitBlock(SaimBatchFitter sbf, double[] profiles, 
+           SaimFloatBatchFitter sfbf, float[] fProfiles, int n,
+           double[][] guesses, double[] results, int[] xs, int[] ys,
+           List<int[]> deferred) {
+      if (sfbf != null) {
+         sfbf.fit(fProfiles, n, guesses, results);
+      } else {
+         sbf.fit(profiles, n, guesses, results);
+      }
+      for (int p = 0; p < n; p++) {
+         if (keepBetter_) {
+            if (!Double.isNaN(results[p * 4 + 3])) {
+               setResult(xs[p], ys[p], new double[] {results[p * 4], 
+                  results[p * 4 + 1], results[p * 4 + 2]}, 
+                  results[p * 4 + 3]);
+            }
+         } else if (Double.isNaN(results[p * 4 + 3])) {
+            if (deferred != null) {
+               deferred.add(new int[] {xs[p], ys[p]});
+               report_.deferred();
+            } else {
+               setFailed(xs[p], ys[p]);
+            }
+         } else {
+            setResult(xs[p], ys[p], new double[] {results[p * 4], 
+               results[p * 4 + 1], results[p * 4 + 2]}, results[p * 4 + 3]);
+            report_.fitted();
+         }
+      }
+   }
+
+}
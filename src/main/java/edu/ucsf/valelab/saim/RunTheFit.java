@@ -20,8 +20,14 @@
 
 package edu.ucsf.valelab.saim;
 
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.ProfileSimilarity;
+import edu.ucsf.valelab.saim.calculations.SaimErrorFunctionFitter;
 import edu.ucsf.valelab.saim.calculations.SaimFunction;
 import edu.ucsf.valelab.saim.calculations.SaimFunctionFitter;
+import edu.ucsf.valelab.saim.calculations.SaimHeightFitter;
 import edu.ucsf.valelab.saim.calculations.SaimUtils;
 import edu.ucsf.valelab.saim.data.IntensityData;
 import edu.ucsf.valelab.saim.data.SaimData;
@@ -29,15 +35,41 @@ import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.FloatProcessor;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import org.apache.commons.math3.exception.TooManyIterationsException;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
 
 /**
  * This class does the actual work of fitting each pixel in the data set
  * to the SAIM equation.  Only pixels with intensity higher than a user-given
  * threshold will be fitted.  Pixels that were not fit will be set to 0, pixels
  * that failed to fit will be set to NaN (not a number)
+ * When binning is requested, "pixel" refers to a binned pixel, and all
+ * x coordinates are in the binned image
+ * When an iteration budget is set, pixels that do not converge within
+ * the budget for any of the guesses are put in a queue, and are fitted
+ * with a more expensive strategy after all other pixels (see retryDeferred).
+ * When reuse is requested, a pixel whose profile has the same shape (within
+ * shot noise) as the last fully fitted pixel above it in the same column
+ * gets that pixel's height, and only A and B are calculated.
+ * When a PixelSchedule is set, the pixels are taken from the schedule 
+ * rather than from our rectangle, and fitting stops at the schedule's
+ * deadline.  Pixels that were not fitted because of the deadline are
+ * marked with UNFITTED in the height and R-squared images.
+ * When an angle offset map is set, the angles of each pixel are shifted by
+ * its offset, and when an oxide thickness map is set, each pixel is fitted
+ * with its own thickness.  The Fresnel coefficients are then interpolated
+ * in a table.
+ * When A and/or B are fixed, only the height (and the parameter that is not
+ * fixed) is fitted with SaimHeightFitter, using A and B of every pixel from
+ * the A and B maps when these are set, and the values in SaimData otherwise.
+ * Pixels without usable fixed values are fitted normally.
+ * When the output holds the result of an earlier fit (see setPrevious),
+ * pixels that were fitted then are only fitted starting at the heights
+ * that were not tried, and keep their earlier result unless the new one is
+ * better.  Pixels that are now below the threshold are cleared.
  * 
  * The run method creates an image Stack with 4 images that will be populated 
  * as follows:
@@ -52,13 +84,40 @@ import org.apache.commons.math3.exception.TooManyIterationsException;
  */
 public class RunTheFit extends Thread {
 
-   private final int startX_;   // image x coordinate at which we will start analysis
-   private final int numberX_;  // Number of x coordinates that we will analyze
-   private final SaimData sd_;  // Analysis settings data structure
-   private final ImagePlus ip_; // ImageJ Image data
-   private final FloatProcessor[] fpOut_; // Results as an ImageJ Stack of type Float
-   private final AtomicInteger nrXProcessed_;
-   private final AtomicBoolean stop_ = new AtomicBoolean(false);
+   protected final int startX_;   // image x coordinate at which we will start analysis
+   protected final int numberX_;  // Number of x coordinates that we will analyze
+   protected final SaimData sd_;  // Analysis settings data structure
+   protected final ImagePlus ip_; // ImageJ Image data
+   protected final FloatProcessor[] fpOut_; // Results as an ImageJ Stack of type Float
+   protected final AtomicInteger nrXProcessed_;
+   protected final AtomicBoolean stop_ = new AtomicBoolean(false);
+   protected ProfileCorrection correction_ = null; // applied to raw pixels
+   protected int startY_ = 0;     // image y coordinate at which we will start analysis
+   protected int numberY_ = -1;   // Number of y coordinates, -1: all
+   protected int outputX_ = 0;    // image x coordinate of pixel 0 in fpOut_
+   protected int outputY_ = 0;    // image y coordinate of pixel 0 in fpOut_
+   protected int progressTotal_ = -1; // progress is nrXProcessed_ / this, -1: width
+   protected FitReport report_ = new FitReport();
+   protected PixelSchedule schedule_ = null; // when set, fit these pixels
+   protected FloatProcessor angleOffsets_ = null; // degrees, per (binned) pixel
+   protected FloatProcessor dOxMap_ = null;  // nm, per (binned) pixel
+   protected FresnelTable fresnelTable_ = null; // used with the maps above
+   protected FloatProcessor[] abMaps_ = null; // fixed A and B per (binned) pixel
+   private SaimHeightFitter heightFitter_ = null; // when A and/or B are fixed
+   protected ProfileExtractor extractor_ = null; // when set, used for input
+   // the output holds an earlier fit of pixels above previousThreshold_,
+   // which did not try newHeights_
+   protected boolean incremental_ = false;
+   protected int previousThreshold_ = 0;
+   protected double[] newHeights_ = new double[0];
+   // when set, setResult keeps the result in the output if that is better
+   protected boolean keepBetter_ = false;
+   
+   // budget for pixels in the retry queue, and spacing of extra height guesses
+   public static final int RETRYITERATIONS = 1000;
+   public static final double RETRYHEIGHTSTEP = 100.0;
+   // height and R-squared of pixels skipped because the deadline passed
+   public static final float UNFITTED = -1.0f;
 
    /**
     * 
@@ -89,85 +148,737 @@ public class RunTheFit extends Thread {
          anglesDegrees[i] = angle;
          anglesRadians[i] = Math.toRadians(angle);
       }
-      final ImageStack is = ip_.getImageStack();
-      final int width = ip_.getWidth();
-      final int height = ip_.getHeight();
+      final ProfileExtractor extractor;
+      try {
+         extractor = createExtractor();
+      } catch (InvalidInputException ex) {
+         ij.IJ.error("Saim Fit", ex.getMessage());
+         return;
+      }
+      final int width = extractor.getWidth();
+      final int height = extractor.getHeight();
 
       // create the fitter
-      final SaimFunctionFitter sff = new SaimFunctionFitter(
-              sd_.wavelength_, sd_.dOx_, sd_.nSample_, false);
-      final SaimFunction sf = new SaimFunction(sd_);
+      final SaimFunctionFitter sff = createFitter();
+      final boolean budget = sd_.fastIterations_ > 0;
+      if (budget) {
+         sff.setMaxIterations(sd_.fastIterations_);
+         if (sd_.fastEvaluations_ > 0) {
+            sff.setMaxEvaluations(sd_.fastEvaluations_);
+         }
+      }
+      final SaimFunction sf = createFunction();
+      if (sd_.fixA_ || sd_.fixB_) {
+         heightFitter_ = new SaimHeightFitter(sf);
+      }
 
-      final int nrTries = sd_.heights_.length;
-      Double[] r2s = new Double[nrTries];
-      double[][] results = new double[nrTries][];
+      final double[][] guesses = new double[sd_.heights_.length][];
+      for (int i = 0; i < guesses.length; i++) {
+         guesses[i] = new double[]{sd_.A_, sd_.B_, sd_.heights_[i]};
+      }
+      final double[][] newGuesses = new double[newHeights_.length][];
+      for (int i = 0; i < newGuesses.length; i++) {
+         newGuesses[i] = new double[]{sd_.A_, sd_.B_, newHeights_[i]};
+      }
+      // pixels that exceeded the budget, fitted again at the end
+      final List<int[]> deferred = budget ? new ArrayList<int[]>() : null;
 
       // now cycle through the x/y pixels and fit each of them
       IntensityData observed = new IntensityData();
       IntensityData calculated = new IntensityData();
+      float[] values = new float[ip_.getNSlices()];
+      // angles of the current pixel when there is an angle offset map
+      final double[] pixelRadians = new double[anglesRadians.length];
       int lastX = startX_ + numberX_;
+      int lastY = getLastY(height);
       try {
-         for (int x = startX_; x < lastX; x++) {
-            for (int y = 0; y < height; y++) {
-               if (stop_.get()) {
-                  return;
-               }
-
-               float sum = 0.0f;
-               float[] values = new float[ip_.getNSlices()];
-               for (int i = 0; i < ip_.getNSlices(); i++) {
-                  values[i] = is.getProcessor(i + 1).get(x, y);
-                  sum += values[i];
+         if (schedule_ != null) {
+            // pixels in order of priority, the schedule applied the threshold
+            final int[] xs = new int[PixelSchedule.CHUNKSIZE];
+            final int[] ys = new int[PixelSchedule.CHUNKSIZE];
+            int n;
+            while ((n = schedule_.next(xs, ys)) > 0) {
+               for (int i = 0; i < n; i++) {
+                  if (stop_.get()) {
+                     return;
+                  }
+                  if (schedule_.isPastDeadline()) {
+                     // do not finish the chunk, single pixels are slow
+                     setUnfitted(xs[i], ys[i]);
+                     continue;
+                  }
+                  extractor.extract(xs[i], ys[i], values);
+                  setPixelDOx(sff, sf, xs[i], ys[i]);
+                  fitValues(sff, sf, observed, calculated, guesses, values,
+                          anglesDegrees, pixelAngles(xs[i], ys[i], 
+                                  anglesRadians, pixelRadians), 
+                          xs[i], ys[i], deferred);
                }
-               
-               // only calculate if the average pixel intensity is
-               // above the threshold
-               if ( (sum / (float) values.length) > sd_.threshold_) {               
-                  observed.clear();
-                  SaimUtils.organize(observed, sd_, values, anglesDegrees,
-                          anglesRadians);
-
-                  for (int i = 0; i < nrTries; i++) {
-                     try {
-                        double[] guess = new double[]{sd_.A_, sd_.B_, sd_.heights_[i]};
-                        sff.setGuess(guess);
+               showScheduleProgress();
+            }
+         } else {
+            // compares profiles with the last fully fitted pixel above
+            final ProfileSimilarity similarity = sd_.reuseTolerance_ > 0.0 ?
+                    new ProfileSimilarity(sd_.reuseTolerance_, 
+                            sd_.binSum_ ? 1.0 : 
+                                    1.0 / (sd_.binning_ * sd_.binning_)) : 
+                    null;
+            double[] reference = null;
+            for (int x = startX_; x < lastX; x++) {
+               reference = null;
+               for (int y = startY_; y < lastY; y++) {
+                  if (stop_.get()) {
+                     return;
+                  }
 
-                        results[i] = sff.fit(
-                                observed.getWeightedObservedPoints());
+                  float average = extractor.extract(x, y, values);
 
-                        calculated.clear();
-                        SaimUtils.predictValues(observed, calculated, results[i], sf);
-                        try {
-                           r2s[i] = SaimUtils.getRSquared(observed, calculated);
-                        } catch (InvalidInputException ex) {
-                           ij.IJ.log("Observed and Calculated datasets differe in size");
-                        }
-                     } catch (TooManyIterationsException tiex) {
-                        for (int j = 0; j < 4; j++) {
-                           fpOut_[j].setf(x, y, Float.NaN);
-                        }
-                        r2s[i] = 0.0;
-                        ij.IJ.log("Failed to fit pixel " + x + ", " + y);
+                  // only calculate if the average pixel intensity is
+                  // above the threshold
+                  if (average > sd_.threshold_) {   
+                     final double[] radians = pixelAngles(x, y, 
+                             anglesRadians, pixelRadians);
+                     setPixelDOx(sff, sf, x, y);
+                     if (wasFitted(average)) {
+                        reference = null;
+                        improvePixel(sff, sf, observed, calculated, 
+                                newGuesses, values, anglesDegrees, radians,
+                                x, y);
+                        continue;
+                     }
+                     if (reference != null && similarity.isSimilar(values) &&
+                             reuseHeight(sf, observed, calculated, values, 
+                                     anglesDegrees, radians, 
+                                     reference[2], x, y)) {
+                        continue;
+                     }
+                     reference = null;
+                     if (fitValues(sff, sf, observed, calculated, guesses, 
+                             values, anglesDegrees, radians, x, y, 
+                             deferred) && similarity != null) {
+                        similarity.setReference(values);
+                        reference = getResult(x, y);
+                     }
+                  } else {
+                     reference = null;
+                     if (incremental_) {
+                        clearResult(x, y);
                      }
                   }
-                  final int bestIndex = SaimUtils.getIndexOfMaxValue(r2s);
-                  fpOut_[2].setf(x, y, (float) results[bestIndex][0]);  // A
-                  fpOut_[3].setf(x, y, (float) results[bestIndex][1]);  // B
-                  fpOut_[0].setf(x, y, (float) results[bestIndex][2]);   // height
-                  fpOut_[1].setf(x, y, (float) r2s[bestIndex].doubleValue());
-
+               }
+               nrXProcessed_.getAndIncrement();
+               synchronized (nrXProcessed_) {
+                  ij.IJ.showProgress(nrXProcessed_.get(), 
+                          getProgressTotal(width));
                }
             }
-            nrXProcessed_.getAndIncrement();
-            synchronized (nrXProcessed_) {
-               ij.IJ.showProgress(nrXProcessed_.get(), width);
-            }
+         }
+         if (deferred != null) {
+            retryDeferred(deferred, extractor);
          }
       } catch (InvalidInputException ex) {
          ij.IJ.error("Saim Fit", ex.getMessage());
       }
    }
    
+   /**
+    * Fits the profile of a single pixel and keeps count in the report
+    * @param deferred pixels that do not converge are added here, or marked
+    *       as failed when this is null
+    * @return true when the pixel was fitted
+    */
+   private boolean fitValues(SaimFunctionFitter sff, SaimFunction sf,
+           IntensityData observed, IntensityData calculated, 
+           double[][] guesses, float[] values, double[] anglesDegrees, 
+           double[] anglesRadians, int x, int y, List<int[]> deferred) 
+           throws InvalidInputException {
+      observed.clear();
+      SaimUtils.organize(observed, sd_, values, anglesDegrees, anglesRadians);
+      if (heightFitter_ != null && 
+              fitHeight(sf, observed, calculated, sd_.heights_, x, y)) {
+         report_.fitted();
+         return true;
+      }
+      if (fitPixel(sff, sf, observed, calculated, guesses, x, y)) {
+         report_.fitted();
+         return true;
+      } else if (deferred != null) {
+         deferred.add(new int[] {x, y});
+         report_.deferred();
+      } else {
+         setFailed(x, y);
+      }
+      return false;
+   }
+   
+   /**
+    * Fits the height with A and/or B fixed (see SaimHeightFitter)
+    * @param heights starting heights
+    * @return false when the pixel has no usable fixed values (it was not 
+    *       fitted in the run that gave the maps), or the fit failed, in which
+    *       case the pixel should be fitted normally
+    */
+   private boolean fitHeight(SaimFunction sf, IntensityData observed,
+           IntensityData calculated, double[] heights, int x, int y) 
+           throws InvalidInputException {
+      double a = sd_.A_;
+      double b = sd_.B_;
+      if (abMaps_ != null) {
+         a = abMaps_[0].getf(x, y);
+         b = abMaps_[1].getf(x, y);
+      }
+      if ((sd_.fixA_ && !(a > 0.0)) || (sd_.fixB_ && Double.isNaN(b))) {
+         return false;
+      }
+      final double[] result = heightFitter_.fit(observed, a, b, !sd_.fixA_,
+              !sd_.fixB_, heights);
+      if (result == null) {
+         return false;
+      }
+
+      calculated.clear();
+      SaimUtils.predictValues(observed, calculated, result, sf);
+      setResult(x, y, result, SaimUtils.getRSquared(observed, calculated));
+      return true;
+   }
+   
+   /**
+    * Tries the heights that the earlier fit did not try on a pixel that was
+    * fitted then, and keeps the best result
+    * @param newGuesses {A, B, h} starting points with the new heights
+    */
+   private void improvePixel(SaimFunctionFitter sff, SaimFunction sf,
+           IntensityData observed, IntensityData calculated, 
+           double[][] newGuesses, float[] values, double[] anglesDegrees, 
+           double[] anglesRadians, int x, int y) 
+           throws InvalidInputException {
+      if (newGuesses.length > 0) {
+         observed.clear();
+         SaimUtils.organize(observed, sd_, values, anglesDegrees, 
+                 anglesRadians);
+         keepBetter_ = true;
+         try {
+            if (heightFitter_ == null || !fitHeight(sf, observed, calculated,
+                    newHeights_, x, y)) {
+               fitPixel(sff, sf, observed, calculated, newGuesses, x, y);
+            }
+         } finally {
+            keepBetter_ = false;
+         }
+      }
+      if (Float.isNaN(fpOut_[1].getf(x - outputX_, y - outputY_))) {
+         report_.failed();
+      } else {
+         report_.fitted();
+         report_.cached();
+      }
+   }
+   
+   /**
+    * Uses the height of a neighbour with a similar profile, and only
+    * calculates A and B (linear least squares)
+    * @param h height of the neighbour
+    * @return false when A and B could not be determined or A is not 
+    *       positive, in which case the pixel should be fitted normally
+    */
+   private boolean reuseHeight(SaimFunction sf, IntensityData observed, 
+           IntensityData calculated, float[] values, double[] anglesDegrees,
+           double[] anglesRadians, double h, int x, int y) 
+           throws InvalidInputException {
+      observed.clear();
+      SaimUtils.organize(observed, sd_, values, anglesDegrees, anglesRadians);
+      final double[] result = SaimUtils.fitAB(observed, h, sf);
+      if (result == null || !(result[0] > 0.0)) {
+         return false;
+      }
+      calculated.clear();
+      SaimUtils.predictValues(observed, calculated, result, sf);
+      setResult(x, y, result, SaimUtils.getRSquared(observed, calculated));
+      report_.fitted();
+      report_.reused();
+      return true;
+   }
+   
+   /**
+    * @return SaimFunctionFitter set up according to our settings
+    */
+   protected SaimFunctionFitter createFitter() {
+      return SaimUtils.createFitter(sd_, sd_.useBAngle_, fresnelTable_);
+   }
+   
+   /**
+    * @return SaimFunction used to calculate R-squared, with the same model
+    *       as the fitter
+    */
+   protected SaimFunction createFunction() {
+      return SaimUtils.createFunction(sd_, sd_.useBAngle_, 
+              fresnelTable_);
+   }
+   
+   /**
+    * Sets the oxide thickness of the pixel when there is a thickness map
+    * @param sff fitter
+    * @param sf function used to calculate R-squared
+    * @param x image x coordinate
+    * @param y image y coordinate
+    */
+   protected void setPixelDOx(SaimFunctionFitter sff, SaimFunction sf, 
+           int x, int y) {
+      if (dOxMap_ != null) {
+         final double dOx = dOxMap_.getf(x, y);
+         sff.setDOx(dOx);
+         sf.setDOx(dOx);
+      }
+   }
+   
+   /**
+    * @param x image x coordinate
+    * @param y image y coordinate
+    * @param anglesRadians raw angles in radians
+    * @param pixelRadians scratch space of the same length
+    * @return the angles seen by the pixel: anglesRadians when there is 
+    *       no angle offset map, otherwise pixelRadians
+    */
+   protected double[] pixelAngles(int x, int y, double[] anglesRadians,
+           double[] pixelRadians) {
+      if (angleOffsets_ == null) {
+         return anglesRadians;
+      }
+      final double offset = Math.toRadians(angleOffsets_.getf(x, y));
+      for (int i = 0; i < anglesRadians.length; i++) {
+         pixelRadians[i] = anglesRadians[i] + offset;
+      }
+      return pixelRadians;
+   }
+   
+   /**
+    * Fits a pixel starting at each of the guesses, and writes the best result
+    * (highest R-squared) to the output
+    * @param sff fitter
+    * @param sf function used to calculate R-squared
+    * @param observed organized profile of the pixel
+    * @param calculated scratch space
+    * @param guesses {A, B, h} starting points
+    * @param x image x coordinate of the pixel
+    * @param y image y coordinate of the pixel
+    * @return false when none of the guesses converged, nothing was written
+    * @throws InvalidInputException 
+    */
+   protected boolean fitPixel(SaimFunctionFitter sff, SaimFunction sf,
+           IntensityData observed, IntensityData calculated, 
+           double[][] guesses, int x, int y) throws InvalidInputException {
+      final double[] best = SaimUtils.fitBest(sff, sf, observed, calculated,
+              guesses);
+      if (best == null) {
+         return false;
+      }
+      setResult(x, y, best, best[3]);
+      return true;
+   }
+   
+   /**
+    * Fits pixels that did not converge within the budget of the first pass.
+    * Starting points are the usual guesses, the results of fitted
+    * neighbours, and a range of heights (see Refitter).
+    * @param deferred image x, y coordinates of the pixels
+    * @param extractor to read the pixels
+    * @throws InvalidInputException 
+    */
+   protected void retryDeferred(List<int[]> deferred, 
+           ProfileExtractor extractor) throws InvalidInputException {
+      if (deferred.isEmpty()) {
+         return;
+      }
+      final Refitter refitter = createRefitter(extractor);
+      final List<double[]> guesses = new ArrayList<double[]>();
+      for (int p = 0; p < deferred.size(); p++) {
+         if (stop_.get()) {
+            return;
+         }
+         if (schedule_ != null && schedule_.isPastDeadline()) {
+            for (int q = p; q < deferred.size(); q++) {
+               setUnfitted(deferred.get(q)[0], deferred.get(q)[1]);
+            }
+            return;
+         }
+         final int[] pixel = deferred.get(p);
+         final int x = pixel[0];
+         final int y = pixel[1];
+         
+         guesses.clear();
+         // neighbours first, these are most likely close to the answer
+         for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+               double[] neighbour = getResult(x + dx, y + dy);
+               if (neighbour != null) {
+                  guesses.add(neighbour);
+               }
+            }
+         }
+         for (double h : sd_.heights_) {
+            guesses.add(new double[] {sd_.A_, sd_.B_, h});
+         }
+         for (double h = RETRYHEIGHTSTEP / 2; h < 1000.0; h += RETRYHEIGHTSTEP) {
+            guesses.add(new double[] {sd_.A_, sd_.B_, h});
+         }
+         
+         final double[] result = refitter.refit(x, y, 
+                 guesses.toArray(new double[guesses.size()][]));
+         if (result == null) {
+            setFailed(x, y);
+            continue;
+         }
+         setResult(x, y, result, result[3]);
+         report_.fitted();
+         report_.recovered();
+      }
+   }
+   
+   /**
+    * @param extractor to read the pixels
+    * @return Refitter using our settings, pixel maps and Fresnel table
+    */
+   public Refitter createRefitter(ProfileExtractor extractor) {
+      return new Refitter(extractor);
+   }
+   
+   /**
+    * Fits single pixels the way pixels in the retry queue are fitted:
+    * without the budget of the first pass, and with the BOBYQA optimizer as 
+    * a last resort when Levenberg-Marquardt does not converge from any of 
+    * the starting points.  Results are returned rather than written to the
+    * output.  Not thread safe, every thread needs its own.
+    */
+   public class Refitter {
+      private final ProfileExtractor pixels_;
+      private final double[] anglesDegrees_;
+      private final double[] anglesRadians_;
+      private final double[] pixelRadians_;
+      private final float[] values_;
+      private final SaimFunctionFitter sff_ = createFitter();
+      private final SaimFunction sf_ = createFunction();
+      // the BOBYQA fitter takes dOx from its SaimData
+      private final SaimData pixelSd_ = sd_.copy();
+      private final SaimErrorFunctionFitter sef_ = 
+              new SaimErrorFunctionFitter(pixelSd_);
+      private final IntensityData observed_ = new IntensityData();
+      private final IntensityData calculated_ = new IntensityData();
+      
+      private Refitter(ProfileExtractor extractor) {
+         pixels_ = extractor;
+         sff_.setMaxIterations(RETRYITERATIONS);
+         anglesDegrees_ = new double[extractor.getNrSlices()];
+         anglesRadians_ = new double[extractor.getNrSlices()];
+         for (int i = 0; i < anglesDegrees_.length; i++) {
+            anglesDegrees_[i] = sd_.firstAngle_ + i * sd_.angleStep_;
+            anglesRadians_[i] = Math.toRadians(anglesDegrees_[i]);
+         }
+         pixelRadians_ = new double[anglesRadians_.length];
+         values_ = new float[extractor.getNrSlices()];
+      }
+      
+      /**
+       * @param x image x coordinate
+       * @param y image y coordinate
+       * @param guesses {A, B, h} starting points, BOBYQA starts at the first
+       * @return {A, B, h, R-squared}, or null when none of the fits converged
+       * @throws InvalidInputException 
+       */
+      public double[] refit(int x, int y, double[][] guesses) 
+              throws InvalidInputException {
+         pixels_.extract(x, y, values_);
+         observed_.clear();
+         SaimUtils.organize(observed_, sd_, values_, anglesDegrees_, 
+                 pixelAngles(x, y, anglesRadians_, pixelRadians_));
+         setPixelDOx(sff_, sf_, x, y);
+         if (dOxMap_ != null) {
+            pixelSd_.dOx_ = dOxMap_.getf(x, y);
+         }
+         final double[] best = SaimUtils.fitBest(sff_, sf_, observed_, 
+                 calculated_, guesses);
+         if (best != null || guesses.length == 0) {
+            return best;
+         }
+         try {
+            sef_.setGuess(guesses[0]);
+            double[] result = sef_.fit(observed_.getWeightedObservedPoints());
+            calculated_.clear();
+            SaimUtils.predictValues(observed_, calculated_, result, sf_);
+            return new double[] {result[0], result[1], result[2], 
+               SaimUtils.getRSquared(observed_, calculated_)};
+         } catch (TooManyEvaluationsException teex) {
+            return null;
+         }
+      }
+   }
+   
+   /**
+    * @param x image x coordinate
+    * @param y image y coordinate
+    * @return {A, B, h} of a pixel fitted by this thread, or null when the 
+    *       pixel is outside our output, was not fitted, or failed
+    */
+   private double[] getResult(int x, int y) {
+      final int outX = x - outputX_;
+      final int outY = y - outputY_;
+      if (outX < 0 || outY < 0 || outX >= fpOut_[0].getWidth() || 
+              outY >= fpOut_[0].getHeight() || x < startX_ || 
+              x >= startX_ + numberX_ || y < startY_ || 
+              (numberY_ >= 0 && y >= startY_ + numberY_)) {
+         return null;
+      }
+      final float r2 = fpOut_[1].getf(outX, outY);
+      if (!(r2 > 0.0f)) {
+         return null;
+      }
+      return new double[] {fpOut_[2].getf(outX, outY), 
+         fpOut_[3].getf(outX, outY), fpOut_[0].getf(outX, outY)};
+   }
+   
+   /**
+    * Writes the result of a pixel to the output
+    * @param x image x coordinate
+    * @param y image y coordinate
+    * @param result {A, B, h}
+    * @param r2 R-squared
+    */
+   protected void setResult(int x, int y, double[] result, double r2) {
+      final int outX = x - outputX_;
+      final int outY = y - outputY_;
+      if (keepBetter_ && !(r2 > fpOut_[1].getf(outX, outY)) && 
+              !Float.isNaN(fpOut_[1].getf(outX, outY))) {
+         return;
+      }
+      fpOut_[2].setf(outX, outY, (float) result[0]);  // A
+      fpOut_[3].setf(outX, outY, (float) result[1]);  // B
+      fpOut_[0].setf(outX, outY, (float) result[2]);  // height
+      fpOut_[1].setf(outX, outY, (float) r2);
+   }
+   
+   /**
+    * Clears the result of a pixel (0 in all output images)
+    * @param x image x coordinate
+    * @param y image y coordinate
+    */
+   protected void clearResult(int x, int y) {
+      for (int j = 0; j < 4; j++) {
+         fpOut_[j].setf(x - outputX_, y - outputY_, 0.0f);
+      }
+   }
+   
+   /**
+    * @param average average intensity of a pixel
+    * @return true when the output holds an earlier fit of the pixel
+    */
+   protected boolean wasFitted(float average) {
+      return incremental_ && average > previousThreshold_;
+   }
+   
+   /**
+    * Marks a pixel as failed (NaN in all output images)
+    * @param x image x coordinate
+    * @param y image y coordinate
+    */
+   protected void setFailed(int x, int y) {
+      for (int j = 0; j < 4; j++) {
+         fpOut_[j].setf(x - outputX_, y - outputY_, Float.NaN);
+      }
+      report_.failed();
+      ij.IJ.log("Failed to fit pixel " + x + ", " + y);
+   }
+   
+   /**
+    * Marks a pixel that was not fitted because the deadline passed
+    * @param x image x coordinate
+    * @param y image y coordinate
+    */
+   protected void setUnfitted(int x, int y) {
+      markUnfitted(fpOut_, x - outputX_, y - outputY_);
+      report_.skipped();
+   }
+   
+   /**
+    * Sets height and R-squared to UNFITTED, and A and B to 0
+    * @param fpOut output images (height, R-squared, A, B)
+    * @param x x coordinate in the output images
+    * @param y y coordinate in the output images
+    */
+   public static void markUnfitted(FloatProcessor[] fpOut, int x, int y) {
+      fpOut[0].setf(x, y, UNFITTED);
+      fpOut[1].setf(x, y, UNFITTED);
+      fpOut[2].setf(x, y, 0.0f);
+      fpOut[3].setf(x, y, 0.0f);
+   }
+   
+   /**
+    * Creates the ProfileExtractor that reads (and bins) the pixels of our stack
+    * @return ProfileExtractor
+    * @throws InvalidInputException when the image type or binning is not
+    *       supported
+    */
+   protected ProfileExtractor createExtractor() throws InvalidInputException {
+      if (extractor_ != null) {
+         return extractor_;
+      }
+      return createExtractor(ip_, sd_, correction_);
+   }
+   
+   /**
+    * Creates a ProfileExtractor that reads (and bins) the pixels of a stack
+    * @param ip stack, one slice per angle
+    * @param sd settings
+    * @param correction correction applied to raw pixels, or null for none
+    * @return ProfileExtractor
+    * @throws InvalidInputException when the image type or binning is not
+    *       supported
+    */
+   public static ProfileExtractor createExtractor(ImagePlus ip, SaimData sd,
+           ProfileCorrection correction) throws InvalidInputException {
+      final ImageStack is = ip.getImageStack();
+      Object[] pixels = new Object[ip.getNSlices()];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = is.getPixels(i + 1);
+      }
+      return new ProfileExtractor(pixels, ip.getWidth(), ip.getHeight(), 
+              sd, correction);
+   }
+   
+   /**
+    * Sets the extractor that provides the input pixels, for instance one
+    * that only holds the rows of our tile (see StackBands).  The correction
+    * set with setCorrection is not applied to it.  Should be called before 
+    * the thread is started.
+    * @param extractor extractor, or null to read the whole stack
+    */
+   public void setExtractor(ProfileExtractor extractor) {
+      extractor_ = extractor;
+   }
+   
+   /**
+    * Sets the background/flat field/laser power correction that will be 
+    * applied to raw pixels.  Should be called before the thread is started.
+    * @param correction correction, or null for none
+    */
+   public void setCorrection(ProfileCorrection correction) {
+      correction_ = correction;
+   }
+   
+   /**
+    * Restricts the analysis to a range of rows.  Coordinates are in the 
+    * (binned) image.  Should be called before the thread is started.
+    * @param startY image y coordinate at which analysis starts
+    * @param numberY Number of y coordinates that will be analyzed
+    */
+   public void setRows(int startY, int numberY) {
+      startY_ = startY;
+      numberY_ = numberY;
+   }
+   
+   /**
+    * Sets the per pixel offset of the angles and thickness of the oxide.
+    * Only the per pixel engine uses these.  Should be called before the 
+    * thread is started.
+    * @param angleOffsets offset in degrees of every (binned) pixel, or null
+    * @param dOxMap oxide thickness in nm of every (binned) pixel, or null
+    * @param fresnelTable table covering all angles including the offsets,
+    *       and all thicknesses
+    */
+   public void setPixelMaps(FloatProcessor angleOffsets, 
+           FloatProcessor dOxMap, FresnelTable fresnelTable) {
+      angleOffsets_ = angleOffsets;
+      dOxMap_ = dOxMap;
+      fresnelTable_ = fresnelTable;
+   }
+   
+   /**
+    * Sets A and B of every pixel, used when SaimData asks for A and/or B
+    * to be fixed.  Should be called before the thread is started.
+    * @param abMaps A and B of every (binned) pixel, or null to use A and B
+    *       of SaimData
+    */
+   public void setABMaps(FloatProcessor[] abMaps) {
+      abMaps_ = abMaps;
+   }
+   
+   /**
+    * Makes the fit incremental: the output already holds the result of an 
+    * earlier fit of the same data with the same settings, except threshold
+    * and heights (see ResultCache).  Should be called before the thread is 
+    * started.
+    * @param threshold threshold of the earlier fit, pixels above it were 
+    *       fitted
+    * @param heights heights that were tried for all pixels of the earlier 
+    *       fit
+    */
+   public void setPrevious(int threshold, double[] heights) {
+      incremental_ = true;
+      previousThreshold_ = threshold;
+      newHeights_ = ResultCache.newHeights(sd_.heights_, heights);
+   }
+   
+   /**
+    * Sets the image coordinate that corresponds to pixel (0, 0) of the
+    * output processors, so that fpOut can be the size of a tile rather than
+    * the size of the image.  Should be called before the thread is started.
+    * @param x image x coordinate of output pixel 0
+    * @param y image y coordinate of output pixel 0
+    */
+   public void setOutputOrigin(int x, int y) {
+      outputX_ = x;
+      outputY_ = y;
+   }
+   
+   /**
+    * Sets the report that will keep count of fitted, deferred and failed
+    * pixels.  Should be called before the thread is started.
+    * @param report FitReport, usually shared by all threads of a run
+    */
+   public void setReport(FitReport report) {
+      report_ = report;
+   }
+   
+   /**
+    * Makes this thread fit the pixels handed out by the schedule, rather than
+    * the pixels in its rectangle.  The schedule is usually shared by all 
+    * threads of a run.  Should be called before the thread is started.
+    * @param schedule PixelSchedule, or null to fit the rectangle
+    */
+   public void setSchedule(PixelSchedule schedule) {
+      schedule_ = schedule;
+   }
+   
+   /**
+    * Shows progress as the fraction of pixels that was handed out
+    */
+   protected void showScheduleProgress() {
+      ij.IJ.showProgress(schedule_.getNrHandedOut(), schedule_.size());
+   }
+   
+   /**
+    * Sets the number of columns that corresponds to 100% progress, used when
+    * the image is fitted in tiles.
+    * @param progressTotal total number of columns
+    */
+   public void setProgressTotal(int progressTotal) {
+      progressTotal_ = progressTotal;
+   }
+   
+   /**
+    * @param width width of the (binned) image
+    * @return number of columns that corresponds to 100% progress
+    */
+   protected int getProgressTotal(int width) {
+      return progressTotal_ > 0 ? progressTotal_ : width;
+   }
+   
+   /**
+    * @param height height of the (binned) image
+    * @return y coordinate just past the last row we will analyze
+    */
+   protected int getLastY(int height) {
+      return numberY_ < 0 ? height : Math.min(height, startY_ + numberY_);
+   }
+   
    /**
     * Method to set a stop flag
     */
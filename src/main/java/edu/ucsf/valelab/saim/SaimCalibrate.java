@@ -0,0 +1,177 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimCalibrate.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.ProfileOrganizer;
+import edu.ucsf.valelab.saim.calculations.SaimCalibration;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import edu.ucsf.valelab.saim.preferences.SaimPrefs;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plugin that determines the thickness of the oxide layer (and optionally
+ * the refractive index of the sample) from the data, rather than by trial
+ * and error.  Pixels above the threshold (within the selection, if any) are
+ * sampled evenly, and fitted together with a shared thickness (see
+ * SaimCalibration).  Works best on a flat reference sample, whose height
+ * can be given.  Other settings are those last used in the Saim Fit dialog,
+ * and the result can be stored there.
+ *
+ * @author nico
+ */
+public class SaimCalibrate implements PlugIn {
+   private static final int MAXITERATIONS = 200;
+
+   @Override
+   public void run(String arg) {
+      final ImagePlus ip = WindowManager.getCurrentImage();
+      if (ip == null) {
+         IJ.noImage();
+         return;
+      }
+      SaimData sd = (SaimData) SaimPrefs.getObject(SaimPrefs.SAIMDATAKEY);
+      if (sd == null) {
+         sd = new SaimData();
+      }
+
+      GenericDialog gd = new GenericDialog("Saim Calibrate " +
+              Version.VERSION);
+      gd.addMessage("Calibrates using " + ip.getTitle() +
+              " and the Saim Fit settings");
+      gd.addNumericField("Number of pixels", 2000, 0);
+      gd.addCheckbox("Sample of known height", false);
+      gd.addNumericField("Known height (nm)", 0.0, 1);
+      gd.addCheckbox("Fit sample refractive index", false);
+      gd.addCheckbox("Store in Saim Fit settings", true);
+      gd.showDialog();
+      if (gd.wasCanceled()) {
+         return;
+      }
+      final int nrPixels = Math.max(1, (int) gd.getNextNumber());
+      final boolean knownHeight = gd.getNextBoolean();
+      final double height = gd.getNextNumber();
+      final boolean fitNSample = gd.getNextBoolean();
+      final boolean store = gd.getNextBoolean();
+
+      try {
+         IJ.showStatus("Saim Calibrate is running...");
+         final long startTime = System.nanoTime();
+         final ProfileCorrection correction =
+                 OverseeTheFit.createCorrection(sd, ip);
+         final ProfileExtractor extractor = RunTheFit.createExtractor(ip, sd,
+                 correction);
+         final double[] anglesDegrees = new double[ip.getNSlices()];
+         final double[] anglesRadians = new double[ip.getNSlices()];
+         for (int i = 0; i < anglesDegrees.length; i++) {
+            anglesDegrees[i] = sd.firstAngle_ + i * sd.angleStep_;
+            anglesRadians[i] = Math.toRadians(anglesDegrees[i]);
+         }
+         final ProfileOrganizer organizer = new ProfileOrganizer(sd,
+                 anglesDegrees, anglesRadians);
+         final SaimCalibration calibration = new SaimCalibration(sd,
+                 organizer.getAnglesRadians(), fitNSample);
+         if (knownHeight) {
+            calibration.setKnownHeight(height);
+         }
+         final List<int[]> pixels = samplePixels(extractor, ip.getRoi(),
+                 sd.threshold_, nrPixels);
+         if (pixels.isEmpty()) {
+            IJ.error("Saim Calibrate", "No pixels above the threshold");
+            return;
+         }
+         final float[] values = new float[extractor.getNrSlices()];
+         for (int[] pixel : pixels) {
+            extractor.extract(pixel[0], pixel[1], values);
+            double[] organized = new double[organizer.size()];
+            organizer.organize(values, organized, 0);
+            calibration.addPixel(organized);
+         }
+         final int iterations = calibration.fit(MAXITERATIONS);
+         IJ.showStatus("");
+         IJ.log("Calibration with " + calibration.getNrPixels() +
+                 " pixels took " + (System.nanoTime() - startTime) / 1000000 +
+                 "ms, " + iterations + " iterations");
+         IJ.log("Oxide thickness: " + IJ.d2s(calibration.getDOx(), 2) +
+                 " nm" + (fitNSample ? ", sample refractive index: " +
+                 IJ.d2s(calibration.getNSample(), 4) : "") +
+                 ", rms residual: " + IJ.d2s(calibration.getRmsResidual(), 1));
+         if (store) {
+            sd.dOx_ = calibration.getDOx();
+            sd.nSample_ = calibration.getNSample();
+            SaimPrefs.putObject(SaimPrefs.SAIMDATAKEY, sd);
+         }
+      } catch (InvalidInputException ex) {
+         IJ.error("Saim Calibrate", ex.getMessage());
+      }
+   }
+
+   /**
+    * Picks pixels above the threshold spread evenly over the selection
+    * @param extractor reads the (binned) pixels
+    * @param roi selection in raw image coordinates, or null for all pixels
+    * @param threshold pixels with lower average intensity are not used
+    * @param nrPixels number of pixels wanted
+    * @return {x, y} (binned) of at most nrPixels pixels
+    */
+   public static List<int[]> samplePixels(ProfileExtractor extractor, Roi roi,
+           double threshold, int nrPixels) {
+      final int bin = extractor.getBinning();
+      Rectangle bounds = roi != null ? roi.getBounds() :
+              new Rectangle(0, 0, extractor.getWidth() * bin,
+                      extractor.getHeight() * bin);
+      final float[] values = new float[extractor.getNrSlices()];
+      List<int[]> candidates = new ArrayList<int[]>();
+      for (int y = bounds.y / bin; y < Math.min(extractor.getHeight(),
+              (bounds.y + bounds.height) / bin); y++) {
+         for (int x = bounds.x / bin; x < Math.min(extractor.getWidth(),
+                 (bounds.x + bounds.width) / bin); x++) {
+            if (roi != null && !roi.contains(x * bin + bin / 2,
+                    y * bin + bin / 2)) {
+               continue;
+            }
+            if (extractor.extract(x, y, values) > threshold) {
+               candidates.add(new int[] {x, y});
+            }
+         }
+      }
+      if (candidates.size() <= nrPixels) {
+         return candidates;
+      }
+      List<int[]> sample = new ArrayList<int[]>(nrPixels);
+      final double stride = (double) candidates.size() / nrPixels;
+      for (int i = 0; i < nrPixels; i++) {
+         sample.add(candidates.get((int) (i * stride)));
+      }
+      return sample;
+   }
+
+}
@@ -20,7 +20,9 @@
 
 package edu.ucsf.valelab.saim;
 
+import edu.ucsf.valelab.saim.calculations.FastSinCos;
 import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.guihelpers.GuiHelpers;
 import edu.ucsf.valelab.saim.preferences.SaimPrefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
@@ -28,6 +30,8 @@ import ij.gui.NonBlockingGenericDialog;
 import ij.plugin.PlugIn;
 import java.awt.AWTEvent;
 import java.awt.Frame;
+import java.awt.TextField;
+import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -72,6 +76,65 @@ public class SaimFit implements PlugIn, DialogListener {
       gd.addMessage("Only fit pixels > ");
       gd.addNumericField("Threshold", sd_.threshold_, 0);
       gd.setInsets(15, 0, 3);
+      String[] binLabels = {"1x1", "2x2", "3x3", "4x4"};
+      gd.addChoice("Binning", binLabels, 
+              binLabels[Math.max(0, Math.min(binLabels.length, sd_.binning_) - 1)]);
+      gd.addCheckbox("Sum binned pixels (average otherwise)", sd_.binSum_);
+      gd.setInsets(15, 0, 3);
+      gd.addMessage("Corrections (leave empty for none):");
+      gd.addStringField("Background", sd_.backgroundFile_, 25);
+      gd.addStringField("Flat field", sd_.flatFieldFile_, 25);
+      gd.addStringField("Angle offset map (degrees)", sd_.angleOffsetFile_, 
+              25);
+      gd.addStringField("Oxide thickness map (nm)", sd_.dOxFile_, 25);
+      gd.addStringField("Laser power per angle", 
+              SaimData.toString(sd_.laserPower_), 25);
+      Vector<TextField> stringFields = gd.getStringFields();
+      // Heights is the first string field, background, flat field, 
+      // angle offsets and oxide thickness follow
+      GuiHelpers.makeTextFieldDropTarget(stringFields.get(1));
+      GuiHelpers.makeTextFieldDropTarget(stringFields.get(2));
+      GuiHelpers.makeTextFieldDropTarget(stringFields.get(3));
+      GuiHelpers.makeTextFieldDropTarget(stringFields.get(4));
+      gd.addChoice("Fit engine", SaimData.Engine.getLabels(), 
+              sd_.engine_.getLabel());
+      String[] trigLabels = new String[FastSinCos.TABLEBITS.length + 1];
+      trigLabels[0] = "Exact";
+      String trigLabel = trigLabels[0];
+      for (int i = 0; i < FastSinCos.TABLEBITS.length; i++) {
+         int bits = FastSinCos.TABLEBITS[i];
+         trigLabels[i + 1] = "Table 2^" + bits + " (error < " + 
+                 String.format("%.0e", FastSinCos.maxError(bits)) + ")";
+         if (sd_.fastTrigBits_ == bits) {
+            trigLabel = trigLabels[i + 1];
+         }
+      }
+      gd.addChoice("Sine/cosine", trigLabels, trigLabel);
+      gd.addCheckbox("Checkpoint (resume interrupted fits)", sd_.checkpoint_);
+      gd.addNumericField("First pass iterations (0: no limit)", 
+              sd_.fastIterations_, 0);
+      gd.addNumericField("First pass evaluations (0: no limit)", 
+              sd_.fastEvaluations_, 0);
+      gd.addNumericField("Deadline (s, 0: none)", sd_.deadlineSeconds_, 1);
+      String[] priorityLabels = {"Intensity", "Signal to noise"};
+      gd.addChoice("Deadline priority", priorityLabels, 
+              priorityLabels[sd_.deadlineSnr_ ? 1 : 0]);
+      gd.addCheckbox("Repair failed pixels", sd_.repair_);
+      gd.addNumericField("Repair below R-squared", sd_.repairR2_, 2);
+      gd.addNumericField("Reuse similar neighbours (0: off)", 
+              sd_.reuseTolerance_, 1);
+      gd.addNumericField("Adaptive binning SNR (0: off)", sd_.adaptiveSnr_, 0);
+      gd.addNumericField("Largest adaptive bin", sd_.adaptiveMaxBin_, 0);
+      gd.addCheckbox("Fix A", sd_.fixA_);
+      gd.addCheckbox("Fix B", sd_.fixB_);
+      gd.addStringField("Fixed A and B from fit result", sd_.abFile_, 25);
+      GuiHelpers.makeTextFieldDropTarget(stringFields.get(6));
+      gd.addNumericField("Two stage A and B smoothing (0: off)", 
+              sd_.twoStageSigma_, 1);
+      gd.addCheckbox("Reuse results of earlier fits", sd_.resultCache_);
+      gd.addCheckbox("Staged pipeline (read, correct, fit, write)", 
+              sd_.pipeline_);
+      gd.setInsets(15, 0, 3);
       
       gd.addPreviewCheckbox(null, "Fit");
 
@@ -115,6 +178,40 @@ public class SaimFit implements PlugIn, DialogListener {
             return false;
          }
          sd_.threshold_ = (int) gd.getNextNumber();
+         sd_.binning_ = gd.getNextChoiceIndex() + 1;
+         sd_.binSum_ = gd.getNextBoolean();
+         sd_.backgroundFile_ = gd.getNextString().trim();
+         sd_.flatFieldFile_ = gd.getNextString().trim();
+         sd_.angleOffsetFile_ = gd.getNextString().trim();
+         sd_.dOxFile_ = gd.getNextString().trim();
+         String powers = gd.getNextString().trim();
+         try {
+            sd_.laserPower_ = powers.isEmpty() ? new double[0] : 
+                    SaimData.fromString(powers);
+         } catch (NumberFormatException nfe) {
+            ij.IJ.error("Laser powers should look like: \"1.0, 0.98\"");
+            return false;
+         }
+         sd_.engine_ = SaimData.Engine.values()[gd.getNextChoiceIndex()];
+         int trigIndex = gd.getNextChoiceIndex();
+         sd_.fastTrigBits_ = trigIndex == 0 ? 0 : 
+                 FastSinCos.TABLEBITS[trigIndex - 1];
+         sd_.checkpoint_ = gd.getNextBoolean();
+         sd_.fastIterations_ = (int) gd.getNextNumber();
+         sd_.fastEvaluations_ = (int) gd.getNextNumber();
+         sd_.deadlineSeconds_ = gd.getNextNumber();
+         sd_.deadlineSnr_ = gd.getNextChoiceIndex() == 1;
+         sd_.repair_ = gd.getNextBoolean();
+         sd_.repairR2_ = gd.getNextNumber();
+         sd_.reuseTolerance_ = gd.getNextNumber();
+         sd_.adaptiveSnr_ = gd.getNextNumber();
+         sd_.adaptiveMaxBin_ = (int) gd.getNextNumber();
+         sd_.fixA_ = gd.getNextBoolean();
+         sd_.fixB_ = gd.getNextBoolean();
+         sd_.abFile_ = gd.getNextString().trim();
+         sd_.twoStageSigma_ = gd.getNextNumber();
+         sd_.resultCache_ = gd.getNextBoolean();
+         sd_.pipeline_ = gd.getNextBoolean();
          
          SaimPrefs.putObject(SaimPrefs.SAIMDATAKEY, sd_);
 
@@ -0,0 +1,189 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimSegmentFit.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import edu.ucsf.valelab.saim.preferences.SaimPrefs;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plugin that fits one height per cell (or any other region) rather than
+ * per pixel.  Regions are taken from a label image (every distinct pixel
+ * value is a region, 0 is background) or from the ROI Manager.  Settings are
+ * those last used in the Saim Fit dialog.
+ * Output is a results table with one row per region, and an image in which
+ * every region has its fitted height.
+ *
+ * @author nico
+ */
+public class SaimSegmentFit implements PlugIn {
+   private static final String ROIMANAGER = "ROI Manager";
+
+   @Override
+   public void run(String arg) {
+      final ImagePlus ip = WindowManager.getCurrentImage();
+      if (ip == null) {
+         IJ.noImage();
+         return;
+      }
+      SaimData sd = (SaimData) SaimPrefs.getObject(SaimPrefs.SAIMDATAKEY);
+      if (sd == null) {
+         sd = new SaimData();
+      }
+
+      // label images should have the same size as the data
+      List<String> sources = new ArrayList<String>();
+      sources.add(ROIMANAGER);
+      List<ImagePlus> labelImages = new ArrayList<ImagePlus>();
+      int[] ids = WindowManager.getIDList();
+      if (ids != null) {
+         for (int id : ids) {
+            ImagePlus candidate = WindowManager.getImage(id);
+            if (candidate != null && candidate != ip &&
+                    candidate.getWidth() == ip.getWidth() &&
+                    candidate.getHeight() == ip.getHeight()) {
+               sources.add(candidate.getTitle());
+               labelImages.add(candidate);
+            }
+         }
+      }
+
+      GenericDialog gd = new GenericDialog("Saim Segment Fit " +
+              Version.VERSION);
+      gd.addMessage("Fits " + ip.getTitle() + " using the Saim Fit settings");
+      gd.addChoice("Regions", sources.toArray(new String[sources.size()]),
+              sources.size() > 1 ? sources.get(1) : ROIMANAGER);
+      gd.showDialog();
+      if (gd.wasCanceled()) {
+         return;
+      }
+      final int source = gd.getNextChoiceIndex();
+
+      final int[] labels;
+      if (source == 0) {
+         labels = labelsFromRoiManager(ip.getWidth(), ip.getHeight());
+         if (labels == null) {
+            IJ.error("Saim Segment Fit", "The ROI Manager has no ROIs");
+            return;
+         }
+      } else {
+         labels = labelsFromImage(labelImages.get(source - 1).getProcessor());
+      }
+
+      try {
+         IJ.showStatus("Saim Segment Fit is running...");
+         final long startTime = System.nanoTime();
+         final ProfileCorrection correction =
+                 OverseeTheFit.createCorrection(sd, ip);
+         SegmentFit segmentFit = new SegmentFit(sd, labels, ip.getNSlices());
+         if (segmentFit.getNrLabels() == 0) {
+            IJ.error("Saim Segment Fit", "No regions found");
+            return;
+         }
+         segmentFit.loadPixelMaps(ip);
+         // single pass through the stack
+         final ImageStack is = ip.getImageStack();
+         for (int i = 0; i < ip.getNSlices(); i++) {
+            segmentFit.accumulate(i, is.getPixels(i + 1), correction);
+            IJ.showProgress(i + 1, ip.getNSlices() + 1);
+         }
+         segmentFit.fit(ij.Prefs.getThreads());
+         IJ.showProgress(1);
+         IJ.showStatus("");
+
+         segmentFit.createResultsTable().show("Saim Segments");
+         ImagePlus heightMap = new ImagePlus("Segment heights",
+                 segmentFit.createHeightMap(ip.getWidth(), ip.getHeight()));
+         heightMap.setCalibration(ip.getCalibration().copy());
+         WindowManager.setTempCurrentImage(heightMap);
+         IJ.run("Fire");
+         heightMap.show();
+         IJ.log("Segment fit of " + segmentFit.getNrLabels() +
+                 " regions took " + (System.nanoTime() - startTime) / 1000000 +
+                 "ms");
+      } catch (InvalidInputException ex) {
+         IJ.error("Saim Segment Fit", ex.getMessage());
+      } catch (InterruptedException ex) {
+         IJ.log("Saim Segment Fit was interrupted");
+      }
+   }
+
+   /**
+    * @param labelProcessor label image, every distinct positive value is
+    *       a region
+    * @return label for every pixel
+    */
+   public static int[] labelsFromImage(ImageProcessor labelProcessor) {
+      final int width = labelProcessor.getWidth();
+      final int height = labelProcessor.getHeight();
+      int[] labels = new int[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            labels[y * width + x] = Math.max(0,
+                    (int) labelProcessor.getPixelValue(x, y));
+         }
+      }
+      return labels;
+   }
+
+   /**
+    * Region n + 1 consists of the pixels in ROI n of the ROI Manager.  Pixels
+    * in more than one ROI belong to the last of these.
+    * @param width width of the image
+    * @param height height of the image
+    * @return label for every pixel, or null when there are no ROIs
+    */
+   public static int[] labelsFromRoiManager(int width, int height) {
+      RoiManager rm = RoiManager.getInstance();
+      if (rm == null || rm.getCount() == 0) {
+         return null;
+      }
+      Roi[] rois = rm.getRoisAsArray();
+      int[] labels = new int[width * height];
+      for (int r = 0; r < rois.length; r++) {
+         Rectangle bounds = rois[r].getBounds();
+         for (int y = Math.max(0, bounds.y);
+                 y < Math.min(height, bounds.y + bounds.height); y++) {
+            for (int x = Math.max(0, bounds.x);
+                    x < Math.min(width, bounds.x + bounds.width); x++) {
+               if (rois[r].contains(x, y)) {
+                  labels[y * width + x] = r + 1;
+               }
+            }
+         }
+      }
+      return labels;
+   }
+
+}
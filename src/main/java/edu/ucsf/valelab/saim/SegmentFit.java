@@ -0,0 +1,383 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SegmentFit.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.calculations.SaimFunction;
+import edu.ucsf.valelab.saim.calculations.SaimFunctionFitter;
+import edu.ucsf.valelab.saim.calculations.SaimUtils;
+import edu.ucsf.valelab.saim.data.IntensityData;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fits one height per labelled region rather than one per pixel.
+ *
+ * Every pixel belongs to a label (0 is background and is ignored).  The
+ * slices of the stack are passed in one at a time (see accumulate), so the
+ * stack is read only once and slices need not be in memory together.  For
+ * each label the mean profile is accumulated, and fit then fits each mean
+ * profile with the usual guesses, in parallel over labels.
+ * The threshold is not used, all pixels of a label contribute.
+ * With angle offset and oxide thickness maps (see setPixelMaps), each label
+ * is fitted with the mean offset and thickness of its pixels.
+ *
+ * @author nico
+ */
+public class SegmentFit {
+
+   private final SaimData sd_;
+   private final int[] labels_;      // per pixel: index in the arrays below
+   private final int[] labelValues_; // label as found in the label image
+   private final int[] nrPixels_;
+   private final double[][] sums_;   // per label, per slice
+   private final double[][] results_; // per label: A, B, h, R-squared
+   private final double[][] guesses_; // {A, B, h} starting points
+   private final int nrSlices_;
+   private FloatProcessor angleOffsets_ = null;
+   private FloatProcessor dOxMap_ = null;
+   private FresnelTable fresnelTable_ = null;
+
+   /**
+    * @param sd settings used for the fit
+    * @param labels label of every pixel (index x + y * width), 0: none
+    * @param nrSlices number of slices (angles) in the stack
+    */
+   public SegmentFit(SaimData sd, int[] labels, int nrSlices) {
+      sd_ = sd;
+      nrSlices_ = nrSlices;
+      guesses_ = new double[sd_.heights_.length][];
+      for (int i = 0; i < guesses_.length; i++) {
+         guesses_[i] = new double[] {sd_.A_, sd_.B_, sd_.heights_[i]};
+      }
+      // compact the labels, label images often have gaps, and labels can
+      // be large numbers
+      final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+      labels_ = new int[labels.length];
+      for (int i = 0; i < labels.length; i++) {
+         if (labels[i] > 0) {
+            Integer l = index.get(labels[i]);
+            if (l == null) {
+               l = index.size() + 1;
+               index.put(labels[i], l);
+            }
+            labels_[i] = l;
+         }
+      }
+      final int n = index.size();
+      labelValues_ = new int[n];
+      for (Map.Entry<Integer, Integer> entry : index.entrySet()) {
+         labelValues_[entry.getValue() - 1] = entry.getKey();
+      }
+      nrPixels_ = new int[n];
+      for (int label : labels_) {
+         if (label > 0) {
+            nrPixels_[label - 1]++;
+         }
+      }
+      sums_ = new double[n][nrSlices];
+      results_ = new double[n][];
+   }
+
+   /**
+    * Sets the per pixel offset of the angles and thickness of the oxide,
+    * see RunTheFit.setPixelMaps.  Maps are at the resolution of the labels.
+    * @param angleOffsets offset in degrees of every pixel, or null
+    * @param dOxMap oxide thickness in nm of every pixel, or null
+    * @param fresnelTable table covering all angles and thicknesses
+    * @throws InvalidInputException when a map differs in size from the
+    *       labels
+    */
+   public void setPixelMaps(FloatProcessor angleOffsets,
+           FloatProcessor dOxMap, FresnelTable fresnelTable)
+           throws InvalidInputException {
+      for (FloatProcessor map : new FloatProcessor[] {angleOffsets, dOxMap}) {
+         if (map != null && 
+                 map.getWidth() * map.getHeight() != labels_.length) {
+            throw new InvalidInputException(
+                    "Maps differ in size from the labels");
+         }
+      }
+      angleOffsets_ = angleOffsets;
+      dOxMap_ = dOxMap;
+      fresnelTable_ = fresnelTable;
+   }
+
+   /**
+    * Loads the angle offset and oxide thickness maps named in the settings
+    * at full resolution, labels are never binned
+    * @param ip stack, only its size is used
+    * @throws InvalidInputException when a map can not be opened or does not
+    *       match the stack
+    */
+   public void loadPixelMaps(ImagePlus ip) throws InvalidInputException {
+      final SaimData unbinned = sd_.copy();
+      unbinned.binning_ = 1;
+      final FloatProcessor angleOffsets = OverseeTheFit.loadMap(
+              sd_.angleOffsetFile_, unbinned, ip);
+      final FloatProcessor dOxMap = OverseeTheFit.loadMap(sd_.dOxFile_, 
+              unbinned, ip);
+      setPixelMaps(angleOffsets, dOxMap, OverseeTheFit.createFresnelTable(
+              sd_, nrSlices_, angleOffsets, dOxMap));
+   }
+
+   /**
+    * Adds the pixels of one slice to the profiles
+    * @param slice index of the slice (0 based)
+    * @param pixels pixels of the slice, short[] or float[]
+    * @param correction background/flat field/laser power correction, or null
+    * @throws InvalidInputException when the pixel type is not supported or
+    *       the size does not match the labels
+    */
+   public void accumulate(int slice, Object pixels,
+           ProfileCorrection correction) throws InvalidInputException {
+      final short[] shortPixels = pixels instanceof short[] ?
+              (short[]) pixels : null;
+      final float[] floatPixels = pixels instanceof float[] ?
+              (float[]) pixels : null;
+      if (shortPixels == null && floatPixels == null) {
+         throw new InvalidInputException("Only 16 bit and 32 bit images are supported");
+      }
+      final int length = shortPixels != null ? shortPixels.length :
+              floatPixels.length;
+      if (length != labels_.length) {
+         throw new InvalidInputException("Labels differ in size from the data");
+      }
+      final double factor = correction != null ?
+              correction.getPowerFactor(slice) : 1.0;
+      for (int i = 0; i < labels_.length; i++) {
+         final int label = labels_[i];
+         if (label == 0) {
+            continue;
+         }
+         float val = shortPixels != null ? shortPixels[i] & 0xffff :
+                 floatPixels[i];
+         if (correction != null) {
+            val = correction.correct(slice, i, val);
+         }
+         sums_[label - 1][slice] += val * factor;
+      }
+   }
+
+   /**
+    * Fits the mean profile of every label
+    * @param nrThreads number of threads to use
+    * @throws InterruptedException
+    */
+   public void fit(int nrThreads) throws InterruptedException {
+      final double[] anglesDegrees = new double[nrSlices_];
+      final double[] anglesRadians = new double[nrSlices_];
+      for (int i = 0; i < nrSlices_; i++) {
+         anglesDegrees[i] = sd_.firstAngle_ + i * sd_.angleStep_;
+         anglesRadians[i] = Math.toRadians(anglesDegrees[i]);
+      }
+      final double[] offsets = meanPerLabel(angleOffsets_);
+      final double[] dOx = meanPerLabel(dOxMap_);
+      final AtomicInteger next = new AtomicInteger(0);
+      Thread[] threads = new Thread[Math.max(1,
+              Math.min(nrThreads, getNrLabels()))];
+      for (int t = 0; t < threads.length; t++) {
+         threads[t] = new Thread() {
+            @Override
+            public void run() {
+               final SaimFunctionFitter sff = SaimUtils.createFitter(sd_, 
+                       sd_.useBAngle_, fresnelTable_);
+               final SaimFunction sf = SaimUtils.createFunction(sd_, 
+                       sd_.useBAngle_, fresnelTable_);
+               final IntensityData observed = new IntensityData();
+               final IntensityData calculated = new IntensityData();
+               final float[] values = new float[nrSlices_];
+               final double[] labelRadians = new double[nrSlices_];
+               int l;
+               while ((l = next.getAndIncrement()) < getNrLabels()) {
+                  for (int i = 0; i < nrSlices_; i++) {
+                     values[i] = (float) (sums_[l][i] / nrPixels_[l]);
+                     labelRadians[i] = offsets == null ? anglesRadians[i] :
+                             anglesRadians[i] + Math.toRadians(offsets[l]);
+                  }
+                  if (dOx != null) {
+                     sff.setDOx(dOx[l]);
+                     sf.setDOx(dOx[l]);
+                  }
+                  try {
+                     observed.clear();
+                     SaimUtils.organize(observed, sd_, values, anglesDegrees,
+                             labelRadians);
+                     results_[l] = fitProfile(sff, sf, observed, calculated);
+                  } catch (InvalidInputException ex) {
+                     ij.IJ.log("Failed to fit label " + labelValues_[l] +
+                             ": " + ex.getMessage());
+                  }
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+   }
+
+   /**
+    * @param map value of every pixel, or null
+    * @return mean of the map over the pixels of every label, or null
+    */
+   private double[] meanPerLabel(FloatProcessor map) {
+      if (map == null) {
+         return null;
+      }
+      final float[] values = (float[]) map.getPixels();
+      final double[] means = new double[getNrLabels()];
+      for (int i = 0; i < labels_.length; i++) {
+         if (labels_[i] > 0) {
+            means[labels_[i] - 1] += values[i];
+         }
+      }
+      for (int l = 0; l < means.length; l++) {
+         means[l] /= nrPixels_[l];
+      }
+      return means;
+   }
+
+   /**
+    * @return A, B, h, R-squared of the best guess, or all NaN when none
+    *       of the guesses converged
+    */
+   private double[] fitProfile(SaimFunctionFitter sff, SaimFunction sf,
+           IntensityData observed, IntensityData calculated)
+           throws InvalidInputException {
+      final double[] best = SaimUtils.fitBest(sff, sf, observed, calculated,
+              guesses_);
+      if (best == null) {
+         return new double[] {Double.NaN, Double.NaN, Double.NaN, 
+            Double.NaN};
+      }
+      return best;
+   }
+
+   /**
+    * @return number of labels found
+    */
+   public int getNrLabels() {
+      return labelValues_.length;
+   }
+
+   /**
+    * @param l label index (0 based, in order of first appearance)
+    * @return label as found in the label image
+    */
+   public int getLabel(int l) {
+      return labelValues_[l];
+   }
+
+   /**
+    * @param l label index
+    * @return number of pixels in the label
+    */
+   public int getNrPixels(int l) {
+      return nrPixels_[l];
+   }
+
+   /**
+    * @param l label index
+    * @return A, B, h, R-squared, or null when the label was not fitted
+    */
+   public double[] getResult(int l) {
+      return results_[l];
+   }
+
+   /**
+    * @return results table with one row per label
+    */
+   public ResultsTable createResultsTable() {
+      ResultsTable rt = new ResultsTable();
+      for (int l = 0; l < getNrLabels(); l++) {
+         rt.incrementCounter();
+         rt.addValue("Label", labelValues_[l]);
+         rt.addValue("Pixels", nrPixels_[l]);
+         double[] result = results_[l];
+         rt.addValue("Height", result != null ? result[2] : Double.NaN);
+         rt.addValue("A", result != null ? result[0] : Double.NaN);
+         rt.addValue("B", result != null ? result[1] : Double.NaN);
+         rt.addValue("R-squared", result != null ? result[3] : Double.NaN);
+      }
+      return rt;
+   }
+
+   /**
+    * @param width width of the image
+    * @param height height of the image
+    * @return image in which each labelled pixel has the height of its label,
+    *       background is 0 and labels that failed are NaN
+    */
+   public FloatProcessor createHeightMap(int width, int height) {
+      FloatProcessor fp = new FloatProcessor(width, height);
+      float[] pixels = (float[]) fp.getPixels();
+      for (int i = 0; i < labels_.length; i++) {
+         if (labels_[i] > 0) {
+            double[] result = results_[labels_[i] - 1];
+            pixels[i] = result != null ? (float) result[2] : Float.NaN;
+         }
+      }
+      return fp;
+   }
+
+   /**
+    * @param width width of the image
+    * @param height height of the image
+    * @return height, R-squared, A and B images (as produced by the per pixel 
+    *       fit) in which each labelled pixel has the result of its label.
+    *       A and B are those of the mean profile
+    */
+   public FloatProcessor[] createOutput(int width, int height) {
+      FloatProcessor[] output = new FloatProcessor[4];
+      float[][] pixels = new float[4][];
+      for (int i = 0; i < 4; i++) {
+         output[i] = new FloatProcessor(width, height);
+         pixels[i] = (float[]) output[i].getPixels();
+      }
+      for (int i = 0; i < labels_.length; i++) {
+         if (labels_[i] > 0) {
+            double[] result = results_[labels_[i] - 1];
+            if (result == null) {
+               pixels[0][i] = Float.NaN;
+               pixels[1][i] = Float.NaN;
+               pixels[2][i] = Float.NaN;
+               pixels[3][i] = Float.NaN;
+            } else {
+               pixels[0][i] = (float) result[2];
+               pixels[1][i] = (float) result[3];
+               pixels[2][i] = (float) result[0];
+               pixels[3][i] = (float) result[1];
+            }
+         }
+      }
+      return output;
+   }
+
+}
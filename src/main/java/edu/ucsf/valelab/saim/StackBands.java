@@ -0,0 +1,596 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          StackBands.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a stack that does not fit in memory (an ImageJ VirtualStack) in
+ * bands of rows, all angles at once.  Bands are read on a background
+ * thread, and while a band is being fitted the next one is read ahead.
+ * At most capacity bands are kept in memory (more only while in use).
+ *
+ * When the stack is an uncompressed 16 bit TIFF file, the rows of a band
+ * are read directly from the file, one contiguous read per angle.  When it
+ * is compressed with LZW or Deflate, the strips of the band are read and
+ * decoded in parallel on a pool of decoder threads (see StripDecoder).
+ * The same holds for a virtual stack opened from a folder of TIFF files,
+ * one file per angle.  Otherwise the images are read through ImageJ, and
+ * for a virtual stack a band then holds all rows, so that every image is
+ * read only once.
+ *
+ * Threads that fit the rows of a band acquire it first (createExtractor)
+ * and release it when done.  All methods are thread safe.
+ *
+ * @author nico
+ */
+public class StackBands {
+
+   // bands in memory, including the one that is read ahead
+   public static final int DEFAULTCAPACITY = 3;
+
+   private final ImageStack is_;
+   private final int width_;
+   private final int height_;
+   private final int nrSlices_;
+   private final int bandRows_;
+   private final int capacity_;
+   private final File[] files_;      // file of each image, null: ImageJ
+   private final long[] offsets_;    // offset of each image in its file
+   private final FileInfo[] strips_; // strips of each compressed image
+   private final boolean intelByteOrder_;
+   private final ExecutorService reader_;
+   private final ExecutorService decoders_;  // only for compressed files
+   // in order of request, so that the oldest unused band is dropped first
+   private final Map<Integer, Future<Object[]>> bands_ =
+           new LinkedHashMap<Integer, Future<Object[]>>();
+   private final Map<Integer, Integer> users_ = new HashMap<Integer, Integer>();
+   private final AtomicInteger nrRead_ = new AtomicInteger(0);
+
+   /**
+    * @param ip stack, one image per angle
+    * @param bandRows number of (raw) rows in a band
+    * @param capacity number of bands kept in memory
+    */
+   public StackBands(ImagePlus ip, int bandRows, int capacity) {
+      is_ = ip.getImageStack();
+      width_ = ip.getWidth();
+      height_ = ip.getHeight();
+      nrSlices_ = ip.getNSlices();
+      capacity_ = Math.max(2, capacity);
+      FileInfo[] infos = tiffInfo(ip);
+      if (infos == null) {
+         infos = sequenceInfo(is_, nrSlices_);
+      }
+      offsets_ = infos != null ? imageOffsets(infos, width_, height_,
+              nrSlices_) : null;
+      strips_ = infos != null && offsets_ == null ? 
+              compressedImages(infos, width_, height_, nrSlices_) : null;
+      final boolean direct = offsets_ != null || strips_ != null;
+      files_ = direct ? imageFiles(infos, nrSlices_) : null;
+      // reading a band through ImageJ reads the whole image from disk
+      bandRows_ = !direct && is_.isVirtual() ? height_ : bandRows;
+      intelByteOrder_ = direct && infos[0].intelByteOrder;
+      reader_ = Executors.newSingleThreadExecutor(
+              new DaemonThreads("Saim band reader"));
+      decoders_ = strips_ == null ? null : Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(), 
+              new DaemonThreads("Saim strip decoder"));
+   }
+
+   private static class DaemonThreads implements ThreadFactory {
+      private final String name_;
+
+      public DaemonThreads(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, name_);
+         t.setDaemon(true);
+         return t;
+      }
+   }
+
+   /**
+    * @param ip stack
+    * @return true when the images of the stack are read from disk on
+    *       request
+    */
+   public static boolean isVirtual(ImagePlus ip) {
+      return ip.getImageStack().isVirtual();
+   }
+
+   /**
+    * @return true when bands are read directly from the file
+    */
+   public boolean readsFile() {
+      return files_ != null;
+   }
+
+   /**
+    * @return true when the file is compressed, and strips are decoded
+    *       in parallel
+    */
+   public boolean decodesStrips() {
+      return strips_ != null;
+   }
+
+   /**
+    * @return number of (raw) rows in a band
+    */
+   public int getBandRows() {
+      return bandRows_;
+   }
+
+   /**
+    * @return number of bands that were read
+    */
+   public int getNrRead() {
+      return nrRead_.get();
+   }
+
+   /**
+    * Waits for a band to be read, and reads ahead the next one.  The band
+    * should be released when done.
+    * @param band index of the band
+    * @param sd settings, binning_ and binSum_ are used
+    * @param correction correction of the raw pixels, or null
+    * @return extractor of the profiles of the pixels in the band
+    * @throws IOException when the band can not be read
+    * @throws InterruptedException
+    * @throws InvalidInputException when the pixels are not supported
+    */
+   public ProfileExtractor createExtractor(int band, SaimData sd,
+           ProfileCorrection correction) throws IOException,
+           InterruptedException, InvalidInputException {
+      final Future<Object[]> future;
+      synchronized (this) {
+         future = request(band);
+         final Integer users = users_.get(band);
+         users_.put(band, users == null ? 1 : users + 1);
+         final int next = band + 1;
+         if (next * bandRows_ < height_ && !bands_.containsKey(next)) {
+            drop();
+            if (bands_.size() < capacity_) {
+               request(next);
+            }
+         }
+      }
+      final Object[] pixels;
+      try {
+         pixels = future.get();
+      } catch (ExecutionException ex) {
+         release(band);
+         if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+         }
+         throw new IOException(ex.getCause());
+      }
+      return new ProfileExtractor(pixels, width_, height_, band * bandRows_,
+              sd, correction);
+   }
+
+   /**
+    * Signals that a band acquired with createExtractor is no longer used
+    * @param band index of the band
+    */
+   public synchronized void release(int band) {
+      final Integer users = users_.get(band);
+      if (users != null && users > 1) {
+         users_.put(band, users - 1);
+      } else {
+         users_.remove(band);
+      }
+      drop();
+   }
+
+   /**
+    * Stops reading ahead and releases the memory of all bands
+    */
+   public synchronized void close() {
+      reader_.shutdownNow();
+      if (decoders_ != null) {
+         decoders_.shutdownNow();
+      }
+      bands_.clear();
+      users_.clear();
+   }
+
+   /**
+    * @return the (future) pixels of the band, reading starts when needed
+    */
+   private Future<Object[]> request(final int band) {
+      Future<Object[]> future = bands_.get(band);
+      if (future == null) {
+         future = reader_.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call() throws IOException, InterruptedException {
+               Object[] pixels = readBand(band);
+               nrRead_.incrementAndGet();
+               return pixels;
+            }
+         });
+         bands_.put(band, future);
+      }
+      return future;
+   }
+
+   /**
+    * Drops the oldest bands that are not in use until no more than capacity
+    * are left.  Bands that are still being read are kept.
+    */
+   private void drop() {
+      Iterator<Map.Entry<Integer, Future<Object[]>>> it =
+              bands_.entrySet().iterator();
+      while (bands_.size() >= capacity_ && it.hasNext()) {
+         Map.Entry<Integer, Future<Object[]>> entry = it.next();
+         if (!users_.containsKey(entry.getKey()) && entry.getValue().isDone()) {
+            it.remove();
+         }
+      }
+   }
+
+   /**
+    * Reads the rows of a band of all images
+    * @return one pixel array per image
+    */
+   private Object[] readBand(int band) throws IOException,
+           InterruptedException {
+      final int y0 = band * bandRows_;
+      final int rows = Math.min(bandRows_, height_ - y0);
+      if (strips_ != null) {
+         return decodeRows(y0, rows);
+      }
+      if (files_ != null) {
+         return readRows(files_, offsets_, intelByteOrder_, width_, y0, rows);
+      }
+      Object[] pixels = new Object[nrSlices_];
+      for (int i = 0; i < nrSlices_; i++) {
+         ImageProcessor image = is_.getProcessor(i + 1);
+         if (image.getPixels() instanceof short[]) {
+            short[] band16 = new short[width_ * rows];
+            System.arraycopy(image.getPixels(), y0 * width_, band16, 0, 
+                    band16.length);
+            pixels[i] = band16;
+         } else {
+            float[] band32 = new float[width_ * rows];
+            System.arraycopy(image.convertToFloat().getPixels(), y0 * width_,
+                    band32, 0, band32.length);
+            pixels[i] = band32;
+         }
+      }
+      return pixels;
+   }
+
+   /**
+    * Reads rows of uncompressed 16 bit images from a file
+    * @param file file with the images
+    * @param offsets position of the first pixel of each image in the file
+    * @param intelByteOrder true for little endian pixels
+    * @param width width of the images
+    * @param y0 first row
+    * @param rows number of rows
+    * @return one short[] of width * rows pixels per image
+    * @throws IOException
+    */
+   public static short[][] readRows(File file, long[] offsets,
+           boolean intelByteOrder, int width, int y0, int rows)
+           throws IOException {
+      final File[] files = new File[offsets.length];
+      Arrays.fill(files, file);
+      return readRows(files, offsets, intelByteOrder, width, y0, rows);
+   }
+
+   /**
+    * Reads rows of uncompressed 16 bit images, each from its own file or
+    * all from the same one
+    * @param files file of each image
+    * @param offsets position of the first pixel of each image in its file
+    * @param intelByteOrder true for little endian pixels
+    * @param width width of the images
+    * @param y0 first row
+    * @param rows number of rows
+    * @return one short[] of width * rows pixels per image
+    * @throws IOException
+    */
+   public static short[][] readRows(File[] files, long[] offsets,
+           boolean intelByteOrder, int width, int y0, int rows)
+           throws IOException {
+      final byte[] bytes = new byte[2 * width * rows];
+      final ByteBuffer bb = ByteBuffer.wrap(bytes).order(intelByteOrder ?
+              ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+      final short[][] pixels = new short[offsets.length][];
+      final OpenFile reader = new OpenFile();
+      try {
+         for (int i = 0; i < offsets.length; i++) {
+            final RandomAccessFile raf = reader.open(files[i]);
+            raf.seek(offsets[i] + 2L * width * y0);
+            raf.readFully(bytes);
+            pixels[i] = new short[width * rows];
+            bb.clear();
+            bb.asShortBuffer().get(pixels[i]);
+         }
+      } finally {
+         reader.close();
+      }
+      return pixels;
+   }
+
+   /**
+    * Reads the strips that overlap a band of rows of all images, and hands
+    * them to the decoder threads as soon as they are read
+    * @param y0 first row
+    * @param rows number of rows
+    * @return one short[] of width * rows pixels per image
+    */
+   private short[][] decodeRows(final int y0, final int rows) 
+           throws IOException, InterruptedException {
+      final short[][] pixels = new short[nrSlices_][width_ * rows];
+      final List<Future<Void>> decoded = new ArrayList<Future<Void>>();
+      final OpenFile reader = new OpenFile();
+      try {
+         for (int i = 0; i < nrSlices_; i++) {
+            final RandomAccessFile raf = reader.open(files_[i]);
+            final FileInfo fi = strips_[i];
+            final int rowsPerStrip = fi.rowsPerStrip > 0 ?
+                    Math.min(fi.rowsPerStrip, height_) : height_;
+            final short[] band = pixels[i];
+            for (int s = y0 / rowsPerStrip; s * rowsPerStrip < y0 + rows;
+                    s++) {
+               final byte[] data = new byte[fi.stripLengths[s]];
+               raf.seek(fi.stripOffsets[s] & 0xffffffffL);
+               raf.readFully(data);
+               final int stripY = s * rowsPerStrip;
+               final int stripRows = Math.min(rowsPerStrip, height_ - stripY);
+               decoded.add(decoders_.submit(new Callable<Void>() {
+                  @Override
+                  public Void call() throws IOException {
+                     StripDecoder.decode(data, fi.compression,
+                             intelByteOrder_, width_, stripY, stripRows, 
+                             band, y0, rows);
+                     return null;
+                  }
+               }));
+            }
+         }
+         for (Future<Void> f : decoded) {
+            f.get();
+         }
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+         }
+         throw new IOException(ex.getCause());
+      } finally {
+         reader.close();
+         for (Future<Void> f : decoded) {
+            f.cancel(true);
+         }
+      }
+      return pixels;
+   }
+
+   /**
+    * @return the TIFF directory of the file the stack was opened from, or
+    *       null when it is not a TIFF file
+    */
+   private static FileInfo[] tiffInfo(ImagePlus ip) {
+      final FileInfo fi = ip.getOriginalFileInfo();
+      if (fi == null || fi.directory == null || fi.fileName == null) {
+         return null;
+      }
+      try {
+         FileInfo[] infos = new TiffDecoder(fi.directory, fi.fileName).
+                 getTiffInfo();
+         return infos != null && infos.length > 0 ? infos : null;
+      } catch (IOException ex) {
+         return null;
+      }
+   }
+
+   /**
+    * @return for a virtual stack opened from a folder of TIFF files, the
+    *       TIFF directory entry of the first image in each file, or null
+    */
+   private static FileInfo[] sequenceInfo(ImageStack is, int nrImages) {
+      if (!(is instanceof VirtualStack) || 
+              ((VirtualStack) is).getDirectory() == null) {
+         return null;
+      }
+      final VirtualStack vs = (VirtualStack) is;
+      final FileInfo[] infos = new FileInfo[nrImages];
+      for (int i = 0; i < nrImages; i++) {
+         final String name = vs.getFileName(i + 1);
+         if (name == null) {
+            return null;
+         }
+         try {
+            FileInfo[] file = new TiffDecoder(vs.getDirectory(), name).
+                    getTiffInfo();
+            if (file == null || file.length == 0) {
+               return null;
+            }
+            infos[i] = file[0];
+            infos[i].directory = vs.getDirectory();
+            infos[i].fileName = name;
+         } catch (IOException ex) {
+            return null;
+         }
+      }
+      return infos;
+   }
+
+   /**
+    * @param infos TIFF directory of one file, or one entry per file
+    * @return file of each image
+    */
+   private static File[] imageFiles(FileInfo[] infos, int nrImages) {
+      final File[] files = new File[nrImages];
+      for (int i = 0; i < nrImages; i++) {
+         // a single directory describes all images of an ImageJ stack
+         final FileInfo fi = infos[Math.min(i, infos.length - 1)];
+         files[i] = new File(fi.directory, fi.fileName);
+      }
+      return files;
+   }
+
+   /**
+    * Keeps the file that is being read open until the next image is in
+    * another file
+    */
+   private static class OpenFile {
+      private File file_;
+      private RandomAccessFile raf_;
+
+      public RandomAccessFile open(File file) throws IOException {
+         if (!file.equals(file_)) {
+            close();
+            raf_ = new RandomAccessFile(file, "r");
+            file_ = file;
+         }
+         return raf_;
+      }
+
+      public void close() throws IOException {
+         if (raf_ != null) {
+            raf_.close();
+            raf_ = null;
+            file_ = null;
+         }
+      }
+   }
+
+   /**
+    * @param infos TIFF directory
+    * @return position of the first pixel of each image in the file, or null
+    *       when the images are not uncompressed 16 bit images of the right
+    *       size, stored row after row
+    */
+   private static long[] imageOffsets(FileInfo[] infos, int width,
+           int height, int nrImages) {
+      final long[] offsets = new long[nrImages];
+      if (infos.length == 1 && infos[0].nImages >= nrImages) {
+         // ImageJ stacks have a single directory, images are evenly spaced
+         if (!isRaw16(infos[0], width, height)) {
+            return null;
+         }
+         for (int i = 0; i < nrImages; i++) {
+            offsets[i] = infos[0].getOffset() + i *
+                    (2L * width * height + infos[0].gapBetweenImages);
+         }
+         return offsets;
+      }
+      if (infos.length < nrImages) {
+         return null;
+      }
+      for (int i = 0; i < nrImages; i++) {
+         if (!isRaw16(infos[i], width, height) ||
+                 infos[i].intelByteOrder != infos[0].intelByteOrder) {
+            return null;
+         }
+         offsets[i] = infos[i].getOffset();
+      }
+      return offsets;
+   }
+
+   /**
+    * @param infos TIFF directory
+    * @return directory entry of each image, or null when these are not 16
+    *       bit images of the right size with one directory per image, 
+    *       compressed in strips that StripDecoder can decode
+    */
+   private static FileInfo[] compressedImages(FileInfo[] infos, int width,
+           int height, int nrImages) {
+      if (infos.length < nrImages) {
+         return null;
+      }
+      for (int i = 0; i < nrImages; i++) {
+         final FileInfo fi = infos[i];
+         if (!StripDecoder.isSupported(fi.compression) ||
+                 fi.fileType != FileInfo.GRAY16_UNSIGNED ||
+                 fi.width != width || fi.height != height ||
+                 fi.intelByteOrder != infos[0].intelByteOrder ||
+                 fi.stripOffsets == null || fi.stripLengths == null) {
+            return null;
+         }
+         final int rowsPerStrip = fi.rowsPerStrip > 0 ?
+                 Math.min(fi.rowsPerStrip, height) : height;
+         final int nrStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+         if (fi.stripOffsets.length < nrStrips ||
+                 fi.stripLengths.length < nrStrips) {
+            return null;
+         }
+      }
+      return Arrays.copyOf(infos, nrImages);
+   }
+
+   /**
+    * @return true for an uncompressed 16 bit image whose strips (if any)
+    *       follow each other in the file
+    */
+   private static boolean isRaw16(FileInfo fi, int width, int height) {
+      if (fi.compression != FileInfo.COMPRESSION_NONE ||
+              fi.fileType != FileInfo.GRAY16_UNSIGNED ||
+              fi.width != width || fi.height != height) {
+         return false;
+      }
+      if (fi.stripOffsets != null && fi.stripLengths != null) {
+         for (int s = 1; s < fi.stripOffsets.length; s++) {
+            if ((long) fi.stripOffsets[s] != (long) fi.stripOffsets[s - 1] +
+                    fi.stripLengths[s - 1]) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+}
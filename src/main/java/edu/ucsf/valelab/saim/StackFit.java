@@ -0,0 +1,816 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          StackFit.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import edu.ucsf.valelab.saim.calculations.ProfileCorrection;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.distributed.TileCoordinator;
+import edu.ucsf.valelab.saim.distributed.TileJob;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fits a stack without user interface.  SaimFit (OverseeTheFit), the
+ * folder watcher, the fit server and the distributed workers all fit
+ * through this class, so that they honour the same settings.
+ *
+ * The image is cut in tiles that are handed out to identical threads as
+ * these become available, go through a pipeline of read, preprocess, fit
+ * and write stages (see FitPipeline), or are run by a TileExecutor that
+ * is shared with other fits.
+ * When checkpointing is requested, finished tiles are saved, and a fit of
+ * the same data with the same settings will only fit the missing tiles.
+ * When a deadline is set, the image is not cut in tiles.  Instead, all
+ * threads fit pixels in order of priority from a shared PixelSchedule, and
+ * pixels that were not reached before the deadline are marked as unfitted.
+ * With adaptive binning, one profile is fitted per bin (see AdaptiveBinning).
+ * Angle offset and oxide thickness maps give every pixel its own angles
+ * and thickness, these are only used by the per pixel engine.
+ * Finally, failed and poorly fitted pixels are refitted (see FitRepair).
+ * When A and/or B are fixed, the per pixel engine fits the height only and
+ * there is no repair.  The two stage fit first fits all parameters, then
+ * smooths the A and B images (see OverseeTheFit.smoothAB) and refits the
+ * height of all pixels with A and B fixed to the smoothed values.  With a
+ * deadline, the repair and the second stage stop when it passes.
+ * With the result cache, the result of an earlier fit of the same data with
+ * the same settings (except threshold and heights) is the starting point,
+ * and only pixels and heights that are new are fitted (see ResultCache).
+ * Virtual stacks are read in bands of one row of tiles (see StackBands),
+ * these are not used with a deadline, adaptive binning or repair, which
+ * need the whole stack.
+ *
+ * @author nico
+ */
+public class StackFit {
+
+   // pixels of the first stage of the two stage fit with R-squared below
+   // this value do not contribute to the smoothed A and B.  Independent
+   // of repairR2_, which only decides which pixels are refitted.
+   private static final double TWOSTAGEMINR2 = 0.5;
+
+   /**
+    * Runs the fits of tiles, for instance on a pool of threads that is
+    * shared with other fits
+    */
+   public interface TileExecutor {
+      /**
+       * Runs all tasks and waits until they are done
+       * @param tasks fits of the tiles
+       * @throws InterruptedException
+       * @throws RuntimeException thrown by one of the tasks
+       */
+      public void run(List<? extends Runnable> tasks)
+              throws InterruptedException;
+   }
+
+   /**
+    * Everything that is loaded from the settings before fitting: the
+    * correction of the raw pixels, the per pixel maps with their Fresnel
+    * table, and the A and B maps.  Can be shared by fits of stacks of the
+    * same size with the same settings.
+    */
+   public static class Inputs {
+      public final ProfileCorrection correction_;
+      // per pixel angle offsets (degrees) and oxide thickness (nm), binned,
+      // and the matching Fresnel table
+      public final FloatProcessor angleOffsets_;
+      public final FloatProcessor dOxMap_;
+      public final FresnelTable fresnelTable_;
+      // A and B of every (binned) pixel for fits with A and/or B fixed
+      public final FloatProcessor[] abMaps_;
+
+      /**
+       * Loads the files named in the settings
+       * @param sd settings
+       * @param ip stack, only its size is used
+       * @throws InvalidInputException when the binning does not fit the
+       *       image, or files can not be opened or do not match the data
+       */
+      public Inputs(SaimData sd, ImagePlus ip) throws InvalidInputException {
+         if (sd.binning_ < 1 || sd.binning_ > ip.getWidth() ||
+                 sd.binning_ > ip.getHeight()) {
+            throw new InvalidInputException(
+                    "Binning should be between 1 and the image size");
+         }
+         correction_ = OverseeTheFit.createCorrection(sd, ip);
+         angleOffsets_ = OverseeTheFit.loadMap(sd.angleOffsetFile_, sd, ip);
+         dOxMap_ = OverseeTheFit.loadMap(sd.dOxFile_, sd, ip);
+         fresnelTable_ = OverseeTheFit.createFresnelTable(sd,
+                 ip.getNSlices(), angleOffsets_, dOxMap_);
+         abMaps_ = sd.fixA_ || sd.fixB_ ? OverseeTheFit.loadABMaps(
+                 sd.abFile_, ip.getWidth() / sd.binning_,
+                 ip.getHeight() / sd.binning_) : null;
+      }
+
+      /**
+       * Identifies the versions of the files named in the settings, so
+       * that cached inputs are not used after a file was replaced
+       * @param sd settings
+       * @return length and last modification time of each file
+       */
+      public static String fileStamps(SaimData sd) {
+         StringBuilder sb = new StringBuilder();
+         for (String path : new String[] {sd.backgroundFile_,
+                 sd.flatFieldFile_, sd.angleOffsetFile_, sd.dOxFile_,
+                 sd.abFile_}) {
+            sb.append('|');
+            if (path != null && !path.isEmpty()) {
+               File file = new File(path);
+               sb.append(file.length()).append(':').append(
+                       file.lastModified());
+            }
+         }
+         return sb.toString();
+      }
+   }
+
+   private final ImagePlus ip_;
+   private final SaimData sd_;
+   private final Inputs inputs_;
+   private final int nrThreads_;
+   private TileExecutor executor_ = null;
+   private final AtomicInteger nrXProcessed_ = new AtomicInteger(0);
+   private final AtomicBoolean stopped_ = new AtomicBoolean(false);
+   // first exception thrown by a fit, ends the run
+   private final AtomicReference<Throwable> failure_ =
+           new AtomicReference<Throwable>(null);
+   private final TileRunner[] fitThreads_;
+   // fits handed to the executor, so that they can be stopped
+   private final List<RunTheFit> executed_ = new ArrayList<RunTheFit>();
+   private FitReport report_ = new FitReport();
+   private int binning_;
+   // A and B of every (binned) pixel, from the inputs or the first stage
+   private FloatProcessor[] abMaps_;
+   // earlier fit that the tiles improve on, see ResultCache
+   private ResultCache.Entry previous_ = null;
+   // rows of a virtual stack, read when the tiles need them
+   private StackBands bands_ = null;
+   // set while the tiles go through the staged pipeline
+   private volatile FitPipeline pipeline_ = null;
+
+   /**
+    * Loads the inputs named in the settings
+    * @param ip stack, one image per angle
+    * @param sd settings
+    * @param nrThreads number of fitting threads
+    * @throws InvalidInputException when the settings do not fit the stack,
+    *       see Inputs
+    */
+   public StackFit(ImagePlus ip, SaimData sd, int nrThreads)
+           throws InvalidInputException {
+      this(ip, sd, new Inputs(sd, ip), nrThreads);
+   }
+
+   /**
+    * @param ip stack, one image per angle
+    * @param sd settings
+    * @param inputs inputs loaded for these settings and the size of ip
+    * @param nrThreads number of fitting threads
+    */
+   public StackFit(ImagePlus ip, SaimData sd, Inputs inputs, int nrThreads) {
+      ip_ = ip;
+      sd_ = sd;
+      inputs_ = inputs;
+      nrThreads_ = Math.max(1, nrThreads);
+      fitThreads_ = new TileRunner[nrThreads_];
+      binning_ = sd.binning_;
+      abMaps_ = inputs.abMaps_;
+   }
+
+   /**
+    * Fit the tiles with an executor rather than our own threads.  Not used
+    * with a deadline, the pipeline or virtual stacks.
+    * @param executor executor, or null to use our own threads
+    */
+   public void setTileExecutor(TileExecutor executor) {
+      executor_ = executor;
+   }
+
+   /**
+    * @return counts of the last fit
+    */
+   public FitReport getReport() {
+      return report_;
+   }
+
+   /**
+    * @return binning of the result relative to the image, 1 with adaptive
+    *       binning
+    */
+   public int getBinning() {
+      return binning_;
+   }
+
+   /**
+    * Fits the stack.  When stopped, the result holds the tiles that were
+    * fitted.
+    * @return height, R-squared, A and B
+    * @throws InvalidInputException when the settings do not fit the stack,
+    *       or when a fit failed
+    * @throws InterruptedException
+    */
+   public FloatProcessor[] fit() throws InvalidInputException,
+           InterruptedException {
+      final long startTime = System.nanoTime();
+      report_ = new FitReport();
+      nrXProcessed_.set(0);
+      if (inputs_.fresnelTable_ != null &&
+              sd_.engine_ != SaimData.Engine.SINGLE_PIXEL) {
+         ij.IJ.log("Angle offset and oxide thickness maps are only " +
+                 "used by the per pixel engine, which will be used");
+      }
+      final boolean virtual = StackBands.isVirtual(ip_);
+      if (virtual && (sd_.adaptiveSnr_ > 0.0 ||
+              sd_.deadlineSeconds_ > 0.0 || sd_.repair_)) {
+         ij.IJ.log("Adaptive binning, deadline and repair are not used " +
+                 "with virtual stacks");
+      }
+      if (sd_.adaptiveSnr_ > 0.0 && !virtual) {
+         return fitAdaptive();
+      }
+
+      // this assumes a stack of shorts with NSlices > 1 and all other
+      // dimensions 1
+      // output is at binned resolution
+      final int width = ip_.getWidth() / sd_.binning_;
+      final int height = ip_.getHeight() / sd_.binning_;
+      final FloatProcessor[] outputFP = new FloatProcessor[4];
+      for (int i = 0; i < 4; i++) {
+         outputFP[i] = new FloatProcessor(width, height);
+      }
+
+      // with a deadline, pixels are fitted in order of priority
+      PixelSchedule schedule = null;
+      if (sd_.deadlineSeconds_ > 0.0 && !virtual) {
+         schedule = PixelSchedule.create(
+                 RunTheFit.createExtractor(ip_, sd_, inputs_.correction_),
+                 sd_, startTime + (long) (sd_.deadlineSeconds_ * 1.0e9));
+      }
+
+      // start from the result of an earlier fit
+      ResultCache resultCache = null;
+      String resultKey = null;
+      previous_ = null;
+      if (sd_.resultCache_ && (schedule != null ||
+              sd_.twoStageSigma_ > 0.0)) {
+         ij.IJ.log("The result cache is not used with a deadline or " +
+                 "a two stage fit");
+      } else if (sd_.resultCache_) {
+         resultCache = ResultCache.getDefault();
+         if (resultCache != null) {
+            resultKey = ResultCache.key(ip_, sd_);
+            previous_ = resultCache.load(resultKey, width, height);
+            if (previous_ != null) {
+               previous_.paste(outputFP);
+               ij.IJ.log("Starting from an earlier fit with threshold " +
+                       previous_.threshold_ + " and heights " +
+                       SaimData.toString(previous_.heights_));
+            }
+         }
+      }
+
+      // otherwise the image is fitted in tiles that are handed out to the
+      // threads as these become available
+      List<TileJob> tiles = TileCoordinator.createTiles(ip_.getTitle(), sd_,
+              width, height, OverseeTheFit.TILESIZE);
+      final int nrTiles = tiles.size();
+      FitCheckpoint checkpoint = null;
+      if (sd_.checkpoint_ && schedule != null) {
+         ij.IJ.log("Checkpointing is not used when fitting to a deadline");
+      } else if (sd_.checkpoint_) {
+         try {
+            checkpoint = new FitCheckpoint(FitCheckpoint.defaultDirectory(
+                    FitCheckpoint.fingerprint(ip_, sd_)));
+            tiles = checkpoint.restore(tiles, outputFP);
+            if (tiles.size() < nrTiles) {
+               ij.IJ.log("Resuming fit, " + (nrTiles - tiles.size()) +
+                       " of " + nrTiles + " tiles were restored");
+            }
+         } catch (IOException ex) {
+            ij.IJ.log("Checkpointing is not possible: " + ex.getMessage());
+            checkpoint = null;
+         }
+      }
+      // progress is measured in columns of tiles
+      final int progressTotal = width * ((height + OverseeTheFit.TILESIZE -
+              1) / OverseeTheFit.TILESIZE);
+      int restoredColumns = progressTotal;
+      for (TileJob tile : tiles) {
+         restoredColumns -= tile.width_;
+      }
+      nrXProcessed_.set(restoredColumns);
+
+      try {
+         if (virtual) {
+            bands_ = new StackBands(ip_, OverseeTheFit.TILESIZE *
+                    sd_.binning_, StackBands.DEFAULTCAPACITY);
+            ij.IJ.log("Reading the virtual stack in bands of " +
+                    bands_.getBandRows() + " rows" +
+                    (bands_.decodesStrips() ?
+                    ", decoding strips in parallel" :
+                    bands_.readsFile() ? " directly from the file" : ""));
+         }
+         final boolean pipeline = sd_.pipeline_ && schedule == null;
+         if (sd_.pipeline_ && !pipeline) {
+            ij.IJ.log("The staged pipeline is not used with a deadline");
+         }
+         if (schedule != null) {
+            fitScheduled(schedule, outputFP);
+            report_.skipped(schedule.markRemaining(outputFP));
+         } else if (pipeline) {
+            runPipeline(tiles, outputFP, checkpoint, progressTotal);
+         } else {
+            fitTiles(tiles, outputFP, checkpoint, progressTotal, report_,
+                    null);
+         }
+         // second pass over failed and poorly fitted pixels, skipped
+         // when the fit was stopped or the deadline has passed
+         if (!virtual && !stopped_.get() &&
+                 (schedule == null || !schedule.isPastDeadline())) {
+            repair(outputFP, schedule);
+         }
+         if (resultCache != null && !stopped_.get()) {
+            try {
+               resultCache.store(resultKey, new ResultCache.Entry(
+                       sd_.threshold_,
+                       ResultCache.triedHeights(previous_, sd_), outputFP));
+            } catch (IOException ex) {
+               ij.IJ.log("Failed to cache the result: " + ex.getMessage());
+            }
+         }
+         previous_ = null;
+         if (sd_.twoStageSigma_ > 0.0 && !stopped_.get() &&
+                 (schedule == null || !schedule.isPastDeadline())) {
+            ij.IJ.log("First stage took " +
+                    (System.nanoTime() - startTime) / 1000000 + "ms");
+            ij.IJ.log(report_.toString());
+            refitHeights(outputFP, schedule);
+         }
+         if (checkpoint != null) {
+            checkpoint.close();
+            if (stopped_.get()) {
+               ij.IJ.log("Fit was stopped, " + checkpoint.getNrSaved() +
+                       " more tiles were saved.  Fit again to resume.");
+            } else {
+               checkpoint.delete();
+            }
+         }
+      } finally {
+         if (bands_ != null) {
+            bands_.close();
+            bands_ = null;
+         }
+      }
+      if (failure_.get() != null) {
+         throw new InvalidInputException("Fit failed: " + failure_.get());
+      }
+      return outputFP;
+   }
+
+   /**
+    * Stops a running fit, and waits a little for the threads to finish
+    */
+   public void stop() {
+      halt();
+
+      // now wait for them to exit
+      for (int i = 0; i < nrThreads_; i++) {
+         if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
+            try {
+               fitThreads_[i].join(50l);
+            } catch (InterruptedException iex) {
+               ij.IJ.log("Thread " + i + " was interrupted");
+            }
+         }
+      }
+
+      // If the thread is still alive, we have to get mean
+      for (int i = 0; i < nrThreads_; i++) {
+         if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
+            fitThreads_[i].interrupt();
+         }
+      }
+   }
+
+   /**
+    * Sets the stop flag of all stages and threads, without waiting
+    */
+   private void halt() {
+      stopped_.set(true);
+      FitPipeline pipeline = pipeline_;
+      if (pipeline != null) {
+         pipeline.stop();
+      }
+      for (int i = 0; i < nrThreads_; i++) {
+         if (fitThreads_[i] != null && fitThreads_[i].isAlive()) {
+            fitThreads_[i].stopRun();
+         }
+      }
+      synchronized (executed_) {
+         for (RunTheFit rf : executed_) {
+            rf.stopRun();
+         }
+      }
+   }
+
+   /**
+    * Records the first failure, and stops the fit
+    */
+   private void fail(Throwable t) {
+      if (failure_.compareAndSet(null, t)) {
+         halt();
+      }
+   }
+
+   /**
+    * Fits the tiles on the executor, or on our own threads
+    * @param tiles tiles to fit
+    * @param outputFP output
+    * @param checkpoint tiles are saved here when complete, or null
+    * @param progressTotal progress is measured in columns of tiles
+    * @param report counts of the fit
+    * @param deadline no more tiles are started after the deadline of this
+    *       schedule, or null for no deadline
+    */
+   private void fitTiles(List<TileJob> tiles, final FloatProcessor[] outputFP,
+           final FitCheckpoint checkpoint, int progressTotal,
+           FitReport report, final PixelSchedule deadline)
+           throws InterruptedException {
+      if (executor_ != null && bands_ == null) {
+         List<Runnable> tasks = new ArrayList<Runnable>();
+         for (final TileJob tile : tiles) {
+            final RunTheFit rf = createTileFit(tile, outputFP, progressTotal,
+                    report);
+            synchronized (executed_) {
+               executed_.add(rf);
+            }
+            tasks.add(new Runnable() {
+               @Override
+               public void run() {
+                  if (stopped_.get() ||
+                          (deadline != null && deadline.isPastDeadline())) {
+                     return;
+                  }
+                  rf.run();
+                  if (!stopped_.get() && checkpoint != null) {
+                     checkpoint.save(tile, outputFP);
+                  }
+               }
+            });
+         }
+         try {
+            executor_.run(tasks);
+         } catch (RuntimeException ex) {
+            fail(ex);
+         } finally {
+            synchronized (executed_) {
+               executed_.clear();
+            }
+         }
+         return;
+      }
+      final AtomicInteger nextTile = new AtomicInteger(0);
+      for (int i = 0; i < nrThreads_; i++) {
+         fitThreads_[i] = new TileRunner(tiles, nextTile, outputFP,
+                 checkpoint, progressTotal, report, null);
+         fitThreads_[i].setDeadline(deadline);
+         fitThreads_[i].start();
+      }
+      for (int i = 0; i < nrThreads_; i++) {
+         fitThreads_[i].join();
+      }
+   }
+
+   /**
+    * All threads fit pixels in order of priority from the schedule
+    */
+   private void fitScheduled(PixelSchedule schedule, FloatProcessor[] outputFP)
+           throws InterruptedException {
+      for (int i = 0; i < nrThreads_; i++) {
+         fitThreads_[i] = new TileRunner(null, null, outputFP, null, 0,
+                 report_, schedule);
+         fitThreads_[i].start();
+      }
+      for (int i = 0; i < nrThreads_; i++) {
+         fitThreads_[i].join();
+      }
+   }
+
+   /**
+    * Fits the tiles in a pipeline with one read and one write thread,
+    * a quarter of the threads for preprocessing and all threads for
+    * fitting.  Reports the utilization of every stage.
+    */
+   private void runPipeline(List<TileJob> tiles,
+           final FloatProcessor[] outputFP, FitCheckpoint checkpoint,
+           final int progressTotal) throws InterruptedException {
+      FitPipeline pipeline = new FitPipeline(ip_, outputFP,
+              inputs_.correction_, bands_, checkpoint,
+              new FitPipeline.FitFactory() {
+         @Override
+         public RunTheFit create(TileJob tile) {
+            return createTileFit(tile, outputFP, progressTotal, report_);
+         }
+      }, Math.max(1, nrThreads_ / 4), nrThreads_, 2 * nrThreads_);
+      pipeline_ = pipeline;
+      if (stopped_.get()) {
+         pipeline_ = null;
+         return;
+      }
+      try {
+         pipeline.run(tiles);
+      } catch (ExecutionException ex) {
+         fail(ex.getCause());
+      } finally {
+         pipeline_ = null;
+      }
+      for (FitPipeline.Stage stage : pipeline.getStages()) {
+         ij.IJ.log(stage.toString());
+      }
+   }
+
+   /**
+    * Creates the fit of a tile with all settings of this run
+    * @param tile tile to fit
+    * @param outputFP output of the whole image, or of the tile with its
+    *       origin set by the caller (RunTheFit.setOutputOrigin)
+    * @param progressTotal progress is measured in columns of tiles, 0 for
+    *       the width of the tile
+    * @param report counts of the fit
+    * @return fit, not yet started
+    */
+   public RunTheFit createTileFit(TileJob tile, FloatProcessor[] outputFP,
+           int progressTotal, FitReport report) {
+      RunTheFit rf = OverseeTheFit.createFitThread(tile.x_, tile.width_,
+              tile.sd_, ip_, outputFP, nrXProcessed_);
+      rf.setRows(tile.y_, tile.height_);
+      rf.setCorrection(inputs_.correction_);
+      rf.setProgressTotal(progressTotal);
+      rf.setReport(report);
+      rf.setPixelMaps(inputs_.angleOffsets_, inputs_.dOxMap_,
+              inputs_.fresnelTable_);
+      rf.setABMaps(abMaps_);
+      if (previous_ != null) {
+         rf.setPrevious(previous_.threshold_, previous_.heights_);
+      }
+      return rf;
+   }
+
+   /**
+    * Groups pixels in bins that reach the requested signal to noise ratio
+    * (see AdaptiveBinning), fits the mean profile of each bin and paints the
+    * results back at full resolution.  Takes the place of fixed binning.
+    * @return height, R-squared, A and B at full resolution, or null when
+    *       stopped
+    */
+   private FloatProcessor[] fitAdaptive() throws InvalidInputException,
+           InterruptedException {
+      if (sd_.binning_ > 1 || sd_.deadlineSeconds_ > 0.0 ||
+              sd_.checkpoint_ || sd_.fixA_ || sd_.fixB_ || 
+              sd_.twoStageSigma_ > 0.0 || sd_.resultCache_) {
+         ij.IJ.log("Binning, deadline, checkpointing, fixed A and B and " +
+                 "the result cache are not used with adaptive binning");
+      }
+      final SaimData unbinned = sd_.copy();
+      unbinned.binning_ = 1;
+      final ProfileCorrection correction = inputs_.correction_;
+      final int[] labels = AdaptiveBinning.createLabels(
+              RunTheFit.createExtractor(ip_, unbinned, correction),
+              sd_.adaptiveSnr_, sd_.adaptiveMaxBin_, (float) sd_.threshold_);
+      final SegmentFit segmentFit = new SegmentFit(unbinned, labels,
+              ip_.getNSlices());
+      // bins are fitted with the mean offset and thickness of their pixels
+      if (sd_.binning_ == 1) {
+         segmentFit.setPixelMaps(inputs_.angleOffsets_, inputs_.dOxMap_,
+                 inputs_.fresnelTable_);
+      } else {
+         segmentFit.loadPixelMaps(ip_);
+      }
+      final ImageStack is = ip_.getImageStack();
+      for (int i = 0; i < ip_.getNSlices() && !stopped_.get(); i++) {
+         segmentFit.accumulate(i, is.getPixels(i + 1), correction);
+         ij.IJ.showProgress(i + 1, ip_.getNSlices() + 1);
+      }
+      if (stopped_.get()) {
+         return null;
+      }
+      segmentFit.fit(nrThreads_);
+      binning_ = 1;
+      ij.IJ.log("Fitted " + segmentFit.getNrLabels() + " adaptive bins");
+      return segmentFit.createOutput(ip_.getWidth(), ip_.getHeight());
+   }
+
+   /**
+    * Refits failed and poorly fitted pixels of a fit of this stack (see
+    * FitRepair), when the settings ask for it.  Used for results that were
+    * fitted elsewhere, such as the merged tiles of a TileCoordinator.
+    * @param output output images (height, R-squared, A, B)
+    * @throws InterruptedException
+    */
+   public void repair(FloatProcessor[] output) throws InterruptedException {
+      repair(output, null);
+   }
+
+   private void repair(FloatProcessor[] output, PixelSchedule schedule)
+           throws InterruptedException {
+      if (!sd_.repair_ || sd_.fixA_ || sd_.fixB_) {
+         return;
+      }
+      try {
+         FitRepair repair = new FitRepair(sd_,
+                 RunTheFit.createExtractor(ip_, sd_, inputs_.correction_),
+                 report_);
+         repair.setPixelMaps(inputs_.angleOffsets_, inputs_.dOxMap_,
+                 inputs_.fresnelTable_);
+         repair.setSchedule(schedule);
+         repair.repair(output, nrThreads_);
+      } catch (InvalidInputException ex) {
+         ij.IJ.log("Repair failed: " + ex.getMessage());
+      }
+   }
+
+   /**
+    * Second stage of the two stage fit: smooths A and B of the first stage,
+    * and refits the height of every pixel with A and B fixed to the
+    * smoothed values.  Results replace those of the first stage.
+    * @param outputFP results of the first stage, receives the new results
+    * @param schedule schedule of the first stage, no more tiles are started
+    *       after its deadline, or null for no deadline
+    * @throws InterruptedException
+    */
+   private void refitHeights(FloatProcessor[] outputFP,
+           PixelSchedule schedule) throws InterruptedException {
+      final long startTime = System.nanoTime();
+      final int width = outputFP[0].getWidth();
+      final int height = outputFP[0].getHeight();
+      final SaimData heightSd = sd_.copy();
+      heightSd.fixA_ = true;
+      heightSd.fixB_ = true;
+      abMaps_ = OverseeTheFit.smoothAB(outputFP, sd_.twoStageSigma_,
+              TWOSTAGEMINR2);
+      final List<TileJob> tiles = TileCoordinator.createTiles(
+              ip_.getTitle(), heightSd, width, height,
+              OverseeTheFit.TILESIZE);
+      nrXProcessed_.set(0);
+      fitTiles(tiles, outputFP, null, width * ((height +
+              OverseeTheFit.TILESIZE - 1) / OverseeTheFit.TILESIZE),
+              new FitReport(), schedule);
+      ij.IJ.log("Height refit with smoothed A and B took " +
+              (System.nanoTime() - startTime) / 1000000 + "ms");
+   }
+
+   /**
+    * Thread that keeps fitting tiles until there are no more left, or,
+    * when a schedule is given, fits pixels from the schedule
+    */
+   private class TileRunner extends Thread {
+      private final List<TileJob> tiles_;
+      private final AtomicInteger nextTile_;
+      private final FloatProcessor[] outputFP_;
+      private final FitCheckpoint checkpoint_;
+      private final int progressTotal_;
+      private final FitReport report_;
+      private final PixelSchedule schedule_;
+      private PixelSchedule deadline_ = null; // only its deadline is used
+      private final AtomicBoolean stop_ = new AtomicBoolean(false);
+      private volatile RunTheFit current_ = null;
+
+      public TileRunner(List<TileJob> tiles, AtomicInteger nextTile,
+              FloatProcessor[] outputFP, FitCheckpoint checkpoint,
+              int progressTotal, FitReport report, PixelSchedule schedule) {
+         tiles_ = tiles;
+         nextTile_ = nextTile;
+         outputFP_ = outputFP;
+         checkpoint_ = checkpoint;
+         progressTotal_ = progressTotal;
+         report_ = report;
+         schedule_ = schedule;
+      }
+
+      /**
+       * No more tiles are started once the deadline of the schedule has
+       * passed, the output keeps what it had for the other tiles.  Not
+       * used when this runner fits pixels from a schedule.
+       * @param schedule schedule with the deadline, or null for none
+       */
+      public void setDeadline(PixelSchedule schedule) {
+         deadline_ = schedule;
+      }
+
+      @Override
+      public void run() {
+         try {
+            if (schedule_ != null) {
+               fitSchedule();
+            } else {
+               fitNextTiles();
+            }
+         } catch (RuntimeException ex) {
+            fail(ex);
+         }
+      }
+
+      /**
+       * A single fit that takes its pixels from the schedule
+       */
+      private void fitSchedule() {
+         RunTheFit rf = OverseeTheFit.createFitThread(0, 0, sd_, ip_,
+                 outputFP_, nrXProcessed_);
+         rf.setCorrection(inputs_.correction_);
+         rf.setReport(report_);
+         rf.setSchedule(schedule_);
+         rf.setPixelMaps(inputs_.angleOffsets_, inputs_.dOxMap_,
+                 inputs_.fresnelTable_);
+         rf.setABMaps(abMaps_);
+         current_ = rf;
+         if (!stop_.get()) {
+            rf.run();
+         }
+      }
+
+      /**
+       * Fits tiles until there are no more left
+       */
+      private void fitNextTiles() {
+         int t;
+         while (!stop_.get() &&
+                 (deadline_ == null || !deadline_.isPastDeadline()) &&
+                 (t = nextTile_.getAndIncrement()) < tiles_.size()) {
+            final TileJob tile = tiles_.get(t);
+            RunTheFit rf = createTileFit(tile, outputFP_, progressTotal_,
+                    report_);
+            current_ = rf;
+            if (stop_.get()) {
+               return;
+            }
+            // tiles in a row share a band of the virtual stack
+            final int band = tile.y_ / OverseeTheFit.TILESIZE;
+            if (bands_ != null) {
+               try {
+                  rf.setExtractor(bands_.createExtractor(band, tile.sd_,
+                          inputs_.correction_));
+               } catch (IOException ex) {
+                  fail(ex);
+                  return;
+               } catch (InvalidInputException ex) {
+                  fail(ex);
+                  return;
+               } catch (InterruptedException ex) {
+                  return;
+               }
+            }
+            // fit in this thread
+            try {
+               rf.run();
+            } finally {
+               if (bands_ != null) {
+                  bands_.release(band);
+               }
+            }
+            // stop_ is set before the fit is stopped, so when it is
+            // still false, the tile is complete
+            if (!stop_.get() && checkpoint_ != null) {
+               checkpoint_.save(tile, outputFP_);
+            }
+         }
+      }
+
+      public void stopRun() {
+         stop_.set(true);
+         RunTheFit rf = current_;
+         if (rf != null) {
+            rf.stopRun();
+         }
+      }
+   }
+
+}
@@ -0,0 +1,179 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          StripDecoder.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import ij.io.FileInfo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the strips of compressed 16 bit TIFF images (LZW and Deflate,
+ * without predictor).  All methods are static and thread safe, so that
+ * strips can be decoded in parallel (see StackBands).
+ *
+ * @author nico
+ */
+public class StripDecoder {
+
+   private static final int CLEARCODE = 256;
+   private static final int EOICODE = 257;
+   private static final int MAXCODES = 4096;
+
+   /**
+    * @param compression compression of a TIFF image, see FileInfo
+    * @return true when strips with this compression can be decoded
+    */
+   public static boolean isSupported(int compression) {
+      return compression == FileInfo.LZW || compression == FileInfo.ZIP;
+   }
+
+   /**
+    * Decodes a strip and copies the rows that are part of a band
+    * @param data compressed strip
+    * @param compression FileInfo.LZW or FileInfo.ZIP
+    * @param intelByteOrder true for little endian pixels
+    * @param width width of the image
+    * @param stripY first row of the strip
+    * @param stripRows number of rows in the strip
+    * @param band pixels of the band, width pixels per row
+    * @param y0 first row of the band
+    * @param rows number of rows in the band
+    * @throws IOException when the data are corrupt or too short
+    */
+   public static void decode(byte[] data, int compression,
+           boolean intelByteOrder, int width, int stripY, int stripRows,
+           short[] band, int y0, int rows) throws IOException {
+      final int size = 2 * width * stripRows;
+      final byte[] bytes = compression == FileInfo.LZW ?
+              lzwDecode(data, size) : inflate(data, size);
+      if (bytes.length < size) {
+         throw new IOException("Strip at row " + stripY + " is too short");
+      }
+      final ByteBuffer bb = ByteBuffer.wrap(bytes).order(intelByteOrder ?
+              ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+      final int first = Math.max(stripY, y0);
+      final int last = Math.min(stripY + stripRows, y0 + rows);
+      for (int y = first; y < last; y++) {
+         bb.position(2 * (y - stripY) * width);
+         bb.asShortBuffer().get(band, (y - y0) * width, width);
+      }
+   }
+
+   /**
+    * Decodes TIFF LZW data (most significant bit first, with early change
+    * of the code length)
+    * @param input compressed data
+    * @param size expected size of the decoded data
+    * @return decoded data, shorter than size when the input ends early
+    * @throws IOException when the data are corrupt
+    */
+   public static byte[] lzwDecode(byte[] input, int size) throws IOException {
+      final byte[] out = new byte[size];
+      final byte[][] table = new byte[MAXCODES][];
+      for (int i = 0; i < 256; i++) {
+         table[i] = new byte[] {(byte) i};
+      }
+      int next = EOICODE + 1;
+      int codeLength = 9;
+      byte[] previous = null;
+      int bitBuffer = 0;
+      int bits = 0;
+      int inPos = 0;
+      int outPos = 0;
+      while (outPos < size) {
+         while (bits < codeLength && inPos < input.length) {
+            bitBuffer = ((bitBuffer << 8) | (input[inPos++] & 0xff)) & 0xffffff;
+            bits += 8;
+         }
+         if (bits < codeLength) {
+            break;
+         }
+         final int code = (bitBuffer >>> (bits - codeLength)) &
+                 ((1 << codeLength) - 1);
+         bits -= codeLength;
+         if (code == EOICODE) {
+            break;
+         }
+         if (code == CLEARCODE) {
+            next = EOICODE + 1;
+            codeLength = 9;
+            previous = null;
+            continue;
+         }
+         final byte[] entry;
+         if (code < next) {
+            entry = table[code];
+         } else if (code == next && previous != null) {
+            entry = Arrays.copyOf(previous, previous.length + 1);
+            entry[previous.length] = previous[0];
+         } else {
+            throw new IOException("Corrupt LZW data");
+         }
+         if (previous != null && next < MAXCODES) {
+            byte[] added = Arrays.copyOf(previous, previous.length + 1);
+            added[previous.length] = entry[0];
+            table[next++] = added;
+         }
+         final int n = Math.min(entry.length, size - outPos);
+         System.arraycopy(entry, 0, out, outPos, n);
+         outPos += n;
+         previous = entry;
+         if (next + 1 >= (1 << codeLength) && codeLength < 12) {
+            codeLength++;
+         }
+      }
+      return outPos == size ? out : Arrays.copyOf(out, outPos);
+   }
+
+   /**
+    * Decodes Deflate (zlib) data
+    * @param input compressed data
+    * @param size expected size of the decoded data
+    * @return decoded data, shorter than size when the input ends early
+    * @throws IOException when the data are corrupt
+    */
+   public static byte[] inflate(byte[] input, int size) throws IOException {
+      final byte[] out = new byte[size];
+      final Inflater inflater = new Inflater();
+      int outPos = 0;
+      try {
+         inflater.setInput(input);
+         while (outPos < size && !inflater.finished()) {
+            final int n = inflater.inflate(out, outPos, size - outPos);
+            if (n == 0 && (inflater.needsInput() ||
+                    inflater.needsDictionary())) {
+               break;
+            }
+            outPos += n;
+         }
+      } catch (DataFormatException ex) {
+         throw new IOException("Corrupt Deflate data: " + ex.getMessage());
+      } finally {
+         inflater.end();
+      }
+      return outPos == size ? out : Arrays.copyOf(out, outPos);
+   }
+
+}
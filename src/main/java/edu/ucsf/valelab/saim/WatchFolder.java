@@ -0,0 +1,373 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          WatchFolder.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FastSinCos;
+import edu.ucsf.valelab.saim.data.RI;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import edu.ucsf.valelab.saim.preferences.SaimPrefs;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running service that fits every stack saved in a directory, for
+ * instance by the acquisition software, and writes the result next to it
+ * (stack.tif gives stack_saim.tif with height, R-squared, A and B).
+ * Stacks are fitted the way SaimFit fits them (see StackFit).
+ *
+ * The directory is watched with a WatchService.  A stack is considered
+ * complete when its size and modification time did not change for the
+ * settle time.  Several stacks are fitted at the same time when stacks
+ * arrive faster than they are fitted, each with its share of the threads.
+ * Stacks that already have a result are skipped, so the service can be
+ * restarted.  Since the JVM keeps running, refractive indices, trig tables
+ * and model tables are loaded once.
+ *
+ * Start with:
+ *    java -cp [classpath] edu.ucsf.valelab.saim.WatchFolder
+ *         directory [parameterFile] [maxStacks] [nrThreads]
+ * The parameter file holds key=value pairs (see SaimData.toProperties),
+ * without it the settings of the last SaimFit run are used.
+ *
+ * @author nico
+ */
+public class WatchFolder implements Runnable {
+
+   public static final String RESULTSUFFIX = "_saim.tif";
+   private static final String PARTSUFFIX = ".part.tif";
+   public static final long DEFAULTSETTLEMS = 2000;
+   private static final long POLLINTERVALMS = 250;
+
+   private final File dir_;
+   private final SaimData sd_;
+   private final long settleMs_;
+   private final int threadsPerStack_;
+   private final ExecutorService fitters_;
+   // size, modification time and time of the last change of files that
+   // are still being written
+   private final Map<File, long[]> pending_ = new HashMap<File, long[]>();
+   private final Set<File> submitted_ = new HashSet<File>();
+   private final AtomicInteger nrFitted_ = new AtomicInteger(0);
+   private final AtomicInteger nrFailed_ = new AtomicInteger(0);
+   private volatile boolean stop_ = false;
+
+   /**
+    * @param dir directory to watch
+    * @param sd settings used for all stacks
+    * @param maxStacks number of stacks fitted at the same time
+    * @param nrThreads number of threads shared by these stacks
+    * @param settleMs a stack is complete when it did not change for this long
+    */
+   public WatchFolder(File dir, SaimData sd, int maxStacks, int nrThreads,
+           long settleMs) {
+      dir_ = dir;
+      sd_ = sd;
+      settleMs_ = settleMs;
+      threadsPerStack_ = Math.max(1, nrThreads / maxStacks);
+      fitters_ = Executors.newFixedThreadPool(maxStacks);
+   }
+
+   /**
+    * Watches the directory until stop is called, and waits for the stacks
+    * that are being fitted
+    */
+   @Override
+   public void run() {
+      warmUp(sd_);
+      try {
+         final WatchService watcher = FileSystems.getDefault().
+                 newWatchService();
+         try {
+            final Path path = dir_.toPath();
+            path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            // stacks that were saved before we started
+            scan();
+            while (!stop_) {
+               WatchKey key = watcher.poll(POLLINTERVALMS,
+                       TimeUnit.MILLISECONDS);
+               if (key != null) {
+                  for (WatchEvent<?> event : key.pollEvents()) {
+                     if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan();
+                     } else {
+                        changed(path.resolve((Path) event.context()).
+                                toFile());
+                     }
+                  }
+                  if (!key.reset()) {
+                     IJ.log("Can no longer watch " + dir_);
+                     break;
+                  }
+               }
+               submitSettled();
+            }
+         } finally {
+            watcher.close();
+         }
+         fitters_.shutdown();
+         fitters_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (IOException ex) {
+         IJ.log("Failed to watch " + dir_ + ": " + ex.getMessage());
+      } catch (InterruptedException ex) {
+         fitters_.shutdownNow();
+      }
+   }
+
+   /**
+    * Stops watching, stacks that are being fitted are finished
+    */
+   public void stop() {
+      stop_ = true;
+   }
+
+   /**
+    * @return number of stacks that were fitted
+    */
+   public int getNrFitted() {
+      return nrFitted_.get();
+   }
+
+   /**
+    * @return number of stacks that could not be opened or fitted
+    */
+   public int getNrFailed() {
+      return nrFailed_.get();
+   }
+
+   /**
+    * @param file file in the watched directory
+    * @return true for stacks, false for results and anything else
+    */
+   public static boolean isStack(File file) {
+      final String name = file.getName().toLowerCase();
+      return (name.endsWith(".tif") || name.endsWith(".tiff")) &&
+              !name.endsWith(RESULTSUFFIX) && !name.endsWith(PARTSUFFIX);
+   }
+
+   /**
+    * @param stack stack file
+    * @return file the result of the stack is written to
+    */
+   public static File resultFile(File stack) {
+      final String name = stack.getName();
+      return new File(stack.getParentFile(),
+              name.substring(0, name.lastIndexOf('.')) + RESULTSUFFIX);
+   }
+
+   /**
+    * Reads a parameter file
+    * @param file key=value pairs, see SaimData.toProperties
+    * @return settings
+    * @throws IOException
+    * @throws InvalidInputException for unknown or invalid settings
+    */
+   public static SaimData loadSettings(File file) throws IOException,
+           InvalidInputException {
+      Properties properties = new Properties();
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+         properties.load(in);
+      } finally {
+         in.close();
+      }
+      return SaimData.fromProperties(properties);
+   }
+
+   /**
+    * Loads what every fit needs once, so that the first stack is not slower
+    * than the others
+    */
+   public static void warmUp(SaimData sd) {
+      RI.getRI(RI.Compound.SILICON, sd.wavelength_);
+      RI.getRI(RI.Compound.SILICONOXIDE, sd.wavelength_);
+      if (sd.fastTrigBits_ > 0) {
+         FastSinCos.getInstance(sd.fastTrigBits_);
+      }
+      ModelTableCache.getDefault();
+   }
+
+   /**
+    * Fits a complete stack and writes the result, called on one of the
+    * fitting threads
+    * @param stack stack file
+    */
+   protected void process(File stack) {
+      final long startTime = System.nanoTime();
+      try {
+         ImagePlus ip = IJ.openImage(stack.getPath());
+         if (ip == null) {
+            throw new IOException("Failed to open " + stack);
+         }
+         FloatProcessor[] output = new StackFit(ip, sd_, threadsPerStack_).
+                 fit();
+         ImageStack is = new ImageStack(output[0].getWidth(),
+                 output[0].getHeight());
+         for (FloatProcessor fp : output) {
+            is.addSlice("", fp);
+         }
+         // readers of the directory never see a partial result
+         final File result = resultFile(stack);
+         final File part = new File(stack.getParentFile(),
+                 result.getName() + PARTSUFFIX);
+         if (!IJ.saveAsTiff(new ImagePlus(result.getName(), is),
+                 part.getPath()) || !part.renameTo(result)) {
+            part.delete();
+            throw new IOException("Failed to write " + result);
+         }
+         nrFitted_.incrementAndGet();
+         IJ.log("Fitted " + stack.getName() + " in " +
+                 (System.nanoTime() - startTime) / 1000000 + "ms");
+      } catch (IOException ex) {
+         nrFailed_.incrementAndGet();
+         IJ.log(ex.getMessage());
+      } catch (InvalidInputException ex) {
+         nrFailed_.incrementAndGet();
+         IJ.log("Failed to fit " + stack.getName() + ": " + ex.getMessage());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Looks at all files in the directory
+    */
+   private void scan() {
+      File[] files = dir_.listFiles();
+      if (files != null) {
+         for (File f : files) {
+            changed(f);
+         }
+      }
+   }
+
+   /**
+    * Notes that a file was created or changed
+    */
+   private void changed(File file) {
+      if (!isStack(file) || submitted_.contains(file) || !file.isFile() ||
+              resultFile(file).exists()) {
+         return;
+      }
+      final long[] state = pending_.get(file);
+      final long size = file.length();
+      final long modified = file.lastModified();
+      if (state == null || state[0] != size || state[1] != modified) {
+         pending_.put(file, new long[] {size, modified,
+            System.currentTimeMillis()});
+      }
+   }
+
+   /**
+    * Hands the stacks that did not change for the settle time to the
+    * fitting threads
+    */
+   private void submitSettled() {
+      final long now = System.currentTimeMillis();
+      Iterator<Map.Entry<File, long[]>> it = pending_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<File, long[]> entry = it.next();
+         final File file = entry.getKey();
+         final long[] state = entry.getValue();
+         if (!file.isFile()) {
+            it.remove();
+         } else if (file.length() != state[0] ||
+                 file.lastModified() != state[1]) {
+            // changed without an event reaching us yet
+            state[0] = file.length();
+            state[1] = file.lastModified();
+            state[2] = now;
+         } else if (now - state[2] >= settleMs_) {
+            it.remove();
+            submitted_.add(file);
+            fitters_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     process(file);
+                  } catch (Throwable t) {
+                     // the future is not checked, so count and log here
+                     nrFailed_.incrementAndGet();
+                     IJ.log("Failed to fit " + file.getName() + ": " + t);
+                  }
+               }
+            });
+         }
+      }
+   }
+
+   /**
+    * Command line entry point
+    * @param args directory [parameterFile] [maxStacks] [nrThreads]
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: WatchFolder directory [parameterFile] " +
+                 "[maxStacks] [nrThreads]");
+         System.exit(1);
+      }
+      File dir = new File(args[0]);
+      if (!dir.isDirectory()) {
+         System.err.println(dir + " is not a directory");
+         System.exit(1);
+      }
+      SaimData sd;
+      if (args.length > 1) {
+         sd = loadSettings(new File(args[1]));
+      } else {
+         sd = (SaimData) SaimPrefs.getObject(SaimPrefs.SAIMDATAKEY);
+         if (sd == null) {
+            sd = new SaimData();
+         }
+      }
+      int maxStacks = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+      int nrThreads = args.length > 3 ? Integer.parseInt(args[3]) :
+              Runtime.getRuntime().availableProcessors();
+      System.out.println("Watching " + dir.getAbsolutePath());
+      new WatchFolder(dir, sd, maxStacks, nrThreads, DEFAULTSETTLEMS).run();
+   }
+
+}
@@ -0,0 +1,362 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          AbstractSaimBatchFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import org.apache.commons.math3.complex.Complex;
+
+/**
+ * Levenberg-Marquardt iterations of a block of pixels in lock-step, shared
+ * by SaimBatchFitter (double precision) and SaimFloatBatchFitter (single
+ * precision).
+ *
+ * Subclasses keep the observations and the state of every lane (parameters,
+ * cost, J'J and J'r) in their own precision and calculate it in 
+ * evaluateTrial, which is where nearly all time is spent.  Everything per 
+ * lane rather than per angle is done here: the damped step (solved in 
+ * double precision), accepting or rejecting it, and retiring lanes that are
+ * done by moving the last active lane into their slot.
+ *
+ * @author nico
+ */
+public abstract class AbstractSaimBatchFitter {
+
+   protected static final double INITIALLAMBDA = 1.0e-3;
+   private static final double[] LOWERBOUNDS = {0.0, 0.0, 0.0};
+   private static final double[] UPPERBOUNDS = {64000, 64000, 1000};
+
+   // elements of the normal equations, see normalEquations
+   protected static final int M00 = 0;
+   protected static final int M01 = 1;
+   protected static final int M02 = 2;
+   protected static final int M11 = 3;
+   protected static final int M12 = 4;
+   protected static final int M22 = 5;
+   protected static final int MR0 = 6;
+   protected static final int MR1 = 7;
+   protected static final int MR2 = 8;
+
+   protected final int nrAngles_;
+   protected final int blockSize_;
+
+   // per angle constants
+   protected final double[] k_;    // 4 pi nSample cos(angle) / wavelength
+   protected final double[] c2_;   // 2 * rTE.real
+   protected final double[] d2_;   // 2 * rTE.imaginary
+   protected final double[] f0_;   // 1 + |rTE|^2
+   protected final double[] bTerm_; // 1 or angle (when useBAngle)
+
+   protected final FastSinCos fastTrig_;
+   protected final double[] sinCos_ = new double[2];
+
+   private final double costTolerance_;
+   private final double parTolerance_;
+   private final double maxLambda_;
+   protected int maxIterations_ = 100;
+
+   // lane bookkeeping
+   protected final double[] ssTot_;
+   protected final int[] lane2Pixel_;
+   private final double[] lambda_;
+   private final int[] iterations_;
+   private final double[] m_ = new double[9];
+   private final double[] delta_ = new double[3];
+
+   /**
+    * @param sd SaimData, we will use wavelength_, dOx_, nSample_, useBAngle_
+    *       and fastTrigBits_
+    * @param anglesRadians angles of the (organized) observations
+    * @param blockSize maximum number of pixels fitted together
+    * @param costTolerance converged when the cost improves less than this 
+    *       fraction
+    * @param parTolerance converged when no parameter changes more than this
+    *       fraction
+    * @param maxLambda give up improving a lane when the damping exceeds this
+    */
+   protected AbstractSaimBatchFitter(SaimData sd, double[] anglesRadians, 
+           int blockSize, double costTolerance, double parTolerance, 
+           double maxLambda) {
+      nrAngles_ = anglesRadians.length;
+      blockSize_ = blockSize;
+      costTolerance_ = costTolerance;
+      parTolerance_ = parTolerance;
+      maxLambda_ = maxLambda;
+      k_ = new double[nrAngles_];
+      c2_ = new double[nrAngles_];
+      d2_ = new double[nrAngles_];
+      f0_ = new double[nrAngles_];
+      bTerm_ = new double[nrAngles_];
+      for (int j = 0; j < nrAngles_; j++) {
+         double angle = anglesRadians[j];
+         Complex rTE = SaimCalc.fresnelTE(sd.wavelength_, angle, sd.dOx_,
+                 sd.nSample_);
+         double c = rTE.getReal();
+         double d = rTE.getImaginary();
+         k_[j] = 4.0 * Math.PI * sd.nSample_ * Math.cos(angle) / sd.wavelength_;
+         c2_[j] = 2 * c;
+         d2_[j] = 2 * d;
+         f0_[j] = 1 + c * c + d * d;
+         bTerm_[j] = sd.useBAngle_ ? angle : 1.0;
+      }
+      fastTrig_ = sd.fastTrigBits_ > 0 ? 
+              FastSinCos.getInstance(sd.fastTrigBits_) : null;
+      ssTot_ = new double[blockSize_];
+      lane2Pixel_ = new int[blockSize_];
+      lambda_ = new double[blockSize_];
+      iterations_ = new int[blockSize_];
+   }
+
+   public void setMaxIterations(int val) {
+      maxIterations_ = val;
+   }
+
+   public int getBlockSize() {
+      return blockSize_;
+   }
+
+   public int getNrAngles() {
+      return nrAngles_;
+   }
+
+   /**
+    * @param trial trial or current state
+    * @param param 0: A, 1: B, 2: h
+    * @param lane lane
+    * @return parameter of the lane
+    */
+   protected abstract double parameter(boolean trial, int param, int lane);
+
+   /**
+    * @param trial trial or current state
+    * @param lane lane
+    * @return sum of squared residuals of the lane
+    */
+   protected abstract double cost(boolean trial, int lane);
+
+   /**
+    * Copies J'J and J'r of the current state of a lane into m, see M00 etc.
+    */
+   protected abstract void normalEquations(int lane, double[] m);
+
+   protected abstract void setTrial(int lane, double a, double b, double h);
+
+   /**
+    * Calculates the cost, J'J and J'r of the trial parameters of the first
+    * nActive lanes
+    */
+   protected abstract void evaluateTrial(int nActive);
+
+   /**
+    * Makes the trial state of a lane its current state
+    */
+   protected abstract void accept(int lane);
+
+   /**
+    * Copies observations, current and trial state of lane "from" into lane
+    * "to"
+    */
+   protected abstract void moveLaneState(int from, int to);
+
+   /**
+    * Starts the bookkeeping of a lane, the subclass loads the observations
+    * and parameters
+    * @param lane lane
+    * @param pixel index of the profile in the block
+    * @param ssTot total sum of squares of the profile
+    */
+   protected void startLane(int lane, int pixel, double ssTot) {
+      lambda_[lane] = INITIALLAMBDA;
+      iterations_[lane] = 0;
+      lane2Pixel_[lane] = pixel;
+      ssTot_[lane] = ssTot;
+   }
+
+   /**
+    * Prepares continuing the fit from the parameters in results.  Their
+    * R-squared in results is replaced by the one calculated in our 
+    * precision, so that the refined result is compared with a starting 
+    * point of the same precision.  Lanes whose undamped step would change 
+    * no parameter by more than minStep (relative) are already converged, 
+    * and are retired.
+    * @param nActive number of loaded lanes, current state evaluated
+    * @param minStep relative step below which lanes are not refined, 0 to 
+    *       refine all lanes
+    * @param results 4 values per profile: A, B, h, R-squared
+    * @return number of lanes left to refine
+    */
+   protected int startRefinement(int nActive, double minStep, 
+           double[] results) {
+      int p = 0;
+      while (p < nActive) {
+         results[lane2Pixel_[p] * 4 + 3] = 1.0 - cost(false, p) / ssTot_[p];
+         boolean converged = false;
+         if (minStep > 0.0) {
+            normalEquations(p, m_);
+            converged = solve(m_, 0.0, delta_);
+            for (int i = 0; i < 3 && converged; i++) {
+               converged = Math.abs(delta_[i]) <= 
+                       minStep * Math.abs(parameter(false, i, p));
+            }
+         }
+         if (converged) {
+            nActive--;
+            moveLane(nActive, p);
+         } else {
+            p++;
+         }
+      }
+      return nActive;
+   }
+
+   /**
+    * Runs LM iterations on the first nActive lanes until all are retired
+    */
+   protected void iterate(int nActive, int maxIterations, double[] results) {
+      while (nActive > 0) {
+         // solve (J'J + lambda diag(J'J)) delta = J'r for every lane
+         for (int p = 0; p < nActive; p++) {
+            normalEquations(p, m_);
+            if (!solve(m_, lambda_[p], delta_)) {
+               // not positive definite; make sure this step is rejected
+               delta_[0] = delta_[1] = delta_[2] = Double.NaN;
+            }
+            setTrial(p, clamp(parameter(false, 0, p) + delta_[0], 0), 
+                    clamp(parameter(false, 1, p) + delta_[1], 1), 
+                    clamp(parameter(false, 2, p) + delta_[2], 2));
+         }
+
+         evaluateTrial(nActive);
+
+         // accept or reject the trial step, and retire lanes that are done
+         int p = 0;
+         while (p < nActive) {
+            boolean done = false;
+            boolean failed = false;
+            double cost = cost(false, p);
+            double trialCost = cost(true, p);
+            if (trialCost < cost) {
+               boolean smallStep = true;
+               for (int i = 0; i < 3 && smallStep; i++) {
+                  smallStep = Math.abs(parameter(true, i, p) - 
+                          parameter(false, i, p)) <= 
+                          parTolerance_ * Math.abs(parameter(false, i, p));
+               }
+               accept(p);
+               lambda_[p] *= 0.1;
+               iterations_[p]++;
+               if ((cost - trialCost) <= costTolerance_ * cost || smallStep) {
+                  done = true;
+               } else if (iterations_[p] >= maxIterations) {
+                  done = true;
+                  failed = true;
+               }
+            } else {
+               lambda_[p] *= 10.0;
+               if (lambda_[p] > maxLambda_ || cost == 0.0) {
+                  // no further improvement possible
+                  done = true;
+               }
+            }
+            if (done) {
+               if (!failed) {
+                  store(p, results);
+               }
+               nActive--;
+               moveLane(nActive, p);
+            } else {
+               p++;
+            }
+         }
+      }
+   }
+
+   /**
+    * Solves the damped normal equations of one lane by Cholesky 
+    * decomposition of the symmetric 3x3 matrix
+    * @param m J'J and J'r, see M00 etc.
+    * @param lambda damping
+    * @param delta step in A, B and h
+    * @return false when the matrix is not positive definite
+    */
+   protected static boolean solve(double[] m, double lambda, double[] delta) {
+      double l = 1.0 + lambda;
+      double m00 = Math.max(m[M00], Double.MIN_NORMAL) * l;
+      double m11 = Math.max(m[M11], Double.MIN_NORMAL) * l;
+      double m22 = Math.max(m[M22], Double.MIN_NORMAL) * l;
+      double l00 = Math.sqrt(m00);
+      double l10 = m[M01] / l00;
+      double l20 = m[M02] / l00;
+      double t11 = m11 - l10 * l10;
+      double l11 = Math.sqrt(t11);
+      double l21 = (m[M12] - l20 * l10) / l11;
+      double t22 = m22 - l20 * l20 - l21 * l21;
+      double l22 = Math.sqrt(t22);
+      // forward and back substitution
+      double y0 = m[MR0] / l00;
+      double y1 = (m[MR1] - l10 * y0) / l11;
+      double y2 = (m[MR2] - l20 * y0 - l21 * y1) / l22;
+      delta[2] = y2 / l22;
+      delta[1] = (y1 - l21 * delta[2]) / l11;
+      delta[0] = (y0 - l10 * delta[1] - l20 * delta[2]) / l00;
+      return t11 > 0.0 && t22 > 0.0;
+   }
+
+   /**
+    * Writes the current parameters of a lane to the results array if its
+    * R-squared is better than what is already there
+    */
+   private void store(int lane, double[] results) {
+      int index = lane2Pixel_[lane] * 4;
+      double r2 = 1.0 - cost(false, lane) / ssTot_[lane];
+      if (Double.isNaN(results[index + 3]) || r2 > results[index + 3]) {
+         results[index] = parameter(false, 0, lane);
+         results[index + 1] = parameter(false, 1, lane);
+         results[index + 2] = parameter(false, 2, lane);
+         results[index + 3] = r2;
+      }
+   }
+
+   /**
+    * Copies all state of lane "from" into lane "to".  The trial state is
+    * copied as well, since the moved lane may not have been judged yet
+    */
+   private void moveLane(int from, int to) {
+      if (from == to) {
+         return;
+      }
+      moveLaneState(from, to);
+      lambda_[to] = lambda_[from];
+      ssTot_[to] = ssTot_[from];
+      iterations_[to] = iterations_[from];
+      lane2Pixel_[to] = lane2Pixel_[from];
+   }
+
+   private static double clamp(double val, int param) {
+      if (val < LOWERBOUNDS[param]) {
+         return LOWERBOUNDS[param];
+      }
+      if (val > UPPERBOUNDS[param]) {
+         return UPPERBOUNDS[param];
+      }
+      return val;
+   }
+
+}
@@ -0,0 +1,146 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FastSinCos.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table based sine and cosine for the phase term of the Saim function.
+ *
+ * The argument is reduced to the nearest lower table entry x0 = i * 2pi / N,
+ * with N = 2^tableBits, and the remainder e (0 <= e < 2pi / N) is
+ * handled with the angle addition formulas:
+ *    sin(x0 + e) = sin(x0) cos(e) + cos(x0) sin(e)
+ *    cos(x0 + e) = cos(x0) cos(e) - sin(x0) sin(e)
+ * where sin(e) and cos(e) are approximated by their Taylor polynomials
+ * e - e^3/6 and 1 - e^2/2 + e^4/24.  The absolute error is therefore bounded
+ * by h^5/120 + h^6/720 (with h = 2pi / N) plus the rounding error of the
+ * range reduction, which grows with the argument (about ulp(x)).
+ * The phase difference in the Saim function is at most
+ * 4 pi nSample 1000 nm / wavelength (h is limited to 1000 nm), i.e. a few
+ * tens of radians.  For |x| < MAXARGUMENT the bounds (see maxError) are:
+ *    2^8:  7.5e-11
+ *    2^10: 8.7e-14
+ *    2^12: 1.4e-14 (rounding limited)
+ * All are far below the precision of the height fit.
+ *
+ * Instances are immutable, use getInstance to share tables.
+ *
+ * @author nico
+ */
+public class FastSinCos {
+
+   public static final int[] TABLEBITS = {8, 10, 12};
+   // largest argument for which maxError is guaranteed
+   public static final double MAXARGUMENT = 64.0;
+   private static final double TWOPI = 2.0 * Math.PI;
+   private static final Map<Integer, FastSinCos> INSTANCES =
+           new HashMap<Integer, FastSinCos>();
+
+   private final int mask_;
+   private final double scale_;  // N / (2 pi)
+   private final double step_;   // 2 pi / N
+   private final double[] sin_;
+   private final double[] cos_;
+
+   /**
+    * @param tableBits table will have 2^tableBits entries covering 0 - 2pi
+    */
+   public FastSinCos(int tableBits) {
+      int n = 1 << tableBits;
+      mask_ = n - 1;
+      scale_ = n / TWOPI;
+      step_ = TWOPI / n;
+      sin_ = new double[n];
+      cos_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         sin_[i] = Math.sin(i * step_);
+         cos_[i] = Math.cos(i * step_);
+      }
+   }
+
+   /**
+    * Returns a shared instance with the given table size
+    * @param tableBits table will have 2^tableBits entries
+    * @return FastSinCos instance
+    */
+   public static synchronized FastSinCos getInstance(int tableBits) {
+      FastSinCos fsc = INSTANCES.get(tableBits);
+      if (fsc == null) {
+         fsc = new FastSinCos(tableBits);
+         INSTANCES.put(tableBits, fsc);
+      }
+      return fsc;
+   }
+
+   /**
+    * Upper bound of the absolute error of sin and cos for a given table size
+    * and arguments with an absolute value smaller than MAXARGUMENT
+    * @param tableBits table will have 2^tableBits entries
+    * @return maximum absolute error
+    */
+   public static double maxError(int tableBits) {
+      double h = TWOPI / (1 << tableBits);
+      return Math.pow(h, 5) / 120.0 + Math.pow(h, 6) / 720.0 + 
+              Math.ulp(MAXARGUMENT);
+   }
+
+   public double sin(double x) {
+      double t = x * scale_;
+      double fl = Math.floor(t);
+      int i = ((int) (long) fl) & mask_;
+      double e = (t - fl) * step_;
+      double e2 = e * e;
+      double sinE = e * (1.0 - e2 * (1.0 / 6.0));
+      double cosE = 1.0 - e2 * (0.5 - e2 * (1.0 / 24.0));
+      return sin_[i] * cosE + cos_[i] * sinE;
+   }
+
+   public double cos(double x) {
+      double t = x * scale_;
+      double fl = Math.floor(t);
+      int i = ((int) (long) fl) & mask_;
+      double e = (t - fl) * step_;
+      double e2 = e * e;
+      double sinE = e * (1.0 - e2 * (1.0 / 6.0));
+      double cosE = 1.0 - e2 * (0.5 - e2 * (1.0 / 24.0));
+      return cos_[i] * cosE - sin_[i] * sinE;
+   }
+
+   /**
+    * Calculates sine and cosine in one go
+    * @param x angle in radians
+    * @param out out[0] will contain the sine, out[1] the cosine
+    */
+   public void sinCos(double x, double[] out) {
+      double t = x * scale_;
+      double fl = Math.floor(t);
+      int i = ((int) (long) fl) & mask_;
+      double e = (t - fl) * step_;
+      double e2 = e * e;
+      double sinE = e * (1.0 - e2 * (1.0 / 6.0));
+      double cosE = 1.0 - e2 * (0.5 - e2 * (1.0 / 24.0));
+      out[0] = sin_[i] * cosE + cos_[i] * sinE;
+      out[1] = cos_[i] * cosE - sin_[i] * sinE;
+   }
+
+}
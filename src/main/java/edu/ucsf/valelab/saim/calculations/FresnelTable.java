@@ -0,0 +1,243 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FresnelTable.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import java.nio.DoubleBuffer;
+import org.apache.commons.math3.complex.Complex;
+
+/**
+ * Fresnel coefficient rTE (see SaimCalc.fresnelTE) calculated once on a fine
+ * grid of angles (and optionally oxide thicknesses), and linearly
+ * interpolated in between.  Used when every pixel sees slightly different
+ * angles (see SaimData.angleOffsetFile_) or a different oxide thickness
+ * (see SaimData.dOxFile_), so that the coefficients can not be cached.
+ * rTE is symmetric in the angle, negative angles use the positive value.
+ * Angles and thicknesses beyond the ends of the table get the value at
+ * the end.
+ *
+ * The values are kept in DoubleBuffers, so that a table stored on disk can
+ * be used without copying (see ModelTableCache).
+ * Instances are immutable and can be shared by threads.
+ *
+ * @author nico
+ */
+public class FresnelTable {
+
+   // interpolation error with this step is below 1e-6, also for oxide
+   // layers of several micrometers
+   public static final double DEFAULTSTEP = Math.toRadians(0.002);
+   // steps of tables over a range of thicknesses, these keep the error
+   // around 1e-5 and the table of a 10 nm range at a few MB
+   public static final double MAPANGLESTEP = Math.toRadians(0.01);
+   public static final double DOXSTEP = 0.25;
+
+   private final double wavelength_;
+   private final double nSample_;
+   private final double step_;
+   private final double dOxMin_;
+   private final double dOxStep_;
+   private final int nrAngles_;
+   private final int nrDOx_;
+   // thickness major: [dOx index * nrAngles_ + angle index]
+   private final DoubleBuffer real_;
+   private final DoubleBuffer imaginary_;
+
+   /**
+    * Table for a single oxide thickness
+    * @param wavelength of the excitation light source in nm
+    * @param dOx thickness of the silicon oxide layer in nm
+    * @param nSample refractive index of the sample's buffer
+    * @param maxAngle largest angle (in radians) that will be looked up
+    * @param step spacing of the table in radians
+    */
+   public FresnelTable(double wavelength, double dOx, double nSample,
+           double maxAngle, double step) {
+      this(wavelength, dOx, dOx, 1.0, nSample, maxAngle, step);
+   }
+
+   /**
+    * Table for a range of oxide thicknesses
+    * @param wavelength of the excitation light source in nm
+    * @param minDOx smallest thickness of the silicon oxide layer in nm
+    * @param maxDOx largest thickness of the silicon oxide layer in nm
+    * @param dOxStep spacing of the table in nm
+    * @param nSample refractive index of the sample's buffer
+    * @param maxAngle largest angle (in radians) that will be looked up
+    * @param step spacing of the table in radians
+    */
+   public FresnelTable(double wavelength, double minDOx, double maxDOx,
+           double dOxStep, double nSample, double maxAngle, double step) {
+      wavelength_ = wavelength;
+      nSample_ = nSample;
+      step_ = step;
+      dOxMin_ = minDOx;
+      dOxStep_ = dOxStep;
+      nrAngles_ = nrAngles(maxAngle, step);
+      nrDOx_ = nrDOx(minDOx, maxDOx, dOxStep);
+      final double[] real = new double[nrAngles_ * nrDOx_];
+      final double[] imaginary = new double[nrAngles_ * nrDOx_];
+      for (int d = 0; d < nrDOx_; d++) {
+         final double dOx = minDOx + d * dOxStep;
+         for (int i = 0; i < nrAngles_; i++) {
+            Complex rTE = SaimCalc.fresnelTE(wavelength, i * step, dOx,
+                    nSample);
+            real[d * nrAngles_ + i] = rTE.getReal();
+            imaginary[d * nrAngles_ + i] = rTE.getImaginary();
+         }
+      }
+      real_ = DoubleBuffer.wrap(real);
+      imaginary_ = DoubleBuffer.wrap(imaginary);
+   }
+
+   /**
+    * Table of values calculated earlier, for instance read from disk
+    * @param wavelength of the excitation light source in nm
+    * @param nSample refractive index of the sample's buffer
+    * @param minDOx smallest thickness of the silicon oxide layer in nm
+    * @param dOxStep spacing of the table in nm
+    * @param nrDOx number of thicknesses
+    * @param step spacing of the table in radians
+    * @param nrAngles number of angles
+    * @param real real part of rTE, thickness major, not copied
+    * @param imaginary imaginary part of rTE, thickness major, not copied
+    */
+   public FresnelTable(double wavelength, double nSample, double minDOx, 
+           double dOxStep, int nrDOx, double step, int nrAngles, 
+           DoubleBuffer real, DoubleBuffer imaginary) {
+      if (real.capacity() < nrAngles * nrDOx || 
+              imaginary.capacity() < nrAngles * nrDOx || nrAngles < 2 ||
+              nrDOx < 1) {
+         throw new IllegalArgumentException("FresnelTable: size mismatch");
+      }
+      wavelength_ = wavelength;
+      nSample_ = nSample;
+      dOxMin_ = minDOx;
+      dOxStep_ = dOxStep;
+      nrDOx_ = nrDOx;
+      step_ = step;
+      nrAngles_ = nrAngles;
+      real_ = real;
+      imaginary_ = imaginary;
+   }
+
+   /**
+    * @return number of angles in a table up to maxAngle
+    */
+   public static int nrAngles(double maxAngle, double step) {
+      return (int) Math.ceil(Math.abs(maxAngle) / step) + 2;
+   }
+
+   /**
+    * @return number of thicknesses in a table from minDOx to maxDOx
+    */
+   public static int nrDOx(double minDOx, double maxDOx, double dOxStep) {
+      return maxDOx > minDOx ?
+              (int) Math.ceil((maxDOx - minDOx) / dOxStep) + 1 : 1;
+   }
+
+   public double getWavelength() {
+      return wavelength_;
+   }
+
+   public double getNSample() {
+      return nSample_;
+   }
+
+   public double getMinDOx() {
+      return dOxMin_;
+   }
+
+   public double getDOxStep() {
+      return dOxStep_;
+   }
+
+   public int getNrDOx() {
+      return nrDOx_;
+   }
+
+   public double getStep() {
+      return step_;
+   }
+
+   public int getNrAngles() {
+      return nrAngles_;
+   }
+
+   /**
+    * @return read only view of the real part, thickness major
+    */
+   public DoubleBuffer getReal() {
+      return real_.asReadOnlyBuffer();
+   }
+
+   /**
+    * @return read only view of the imaginary part, thickness major
+    */
+   public DoubleBuffer getImaginary() {
+      return imaginary_.asReadOnlyBuffer();
+   }
+
+   /**
+    * @param angle angle with respect to the normal in radians
+    * @param rTE destination, receives the real and imaginary part at the
+    *       smallest thickness of the table
+    */
+   public void lookup(double angle, double[] rTE) {
+      lookup(angle, dOxMin_, rTE);
+   }
+
+   /**
+    * @param angle angle with respect to the normal in radians
+    * @param dOx thickness of the silicon oxide layer in nm
+    * @param rTE destination, receives the real and imaginary part
+    */
+   public void lookup(double angle, double dOx, double[] rTE) {
+      double pos = Math.abs(angle) / step_;
+      int i = (int) pos;
+      if (i >= nrAngles_ - 1) {
+         i = nrAngles_ - 2;
+         pos = i + 1;
+      }
+      final double f = pos - i;
+      double dPos = nrDOx_ > 1 ? (dOx - dOxMin_) / dOxStep_ : 0.0;
+      dPos = Math.max(0.0, Math.min(nrDOx_ - 1, dPos));
+      int d = (int) dPos;
+      if (d >= nrDOx_ - 1) {
+         d = nrDOx_ - 1;
+      }
+      final double g = dPos - d;
+      final int j = d * nrAngles_ + i;
+      final double r0 = real_.get(j);
+      final double i0 = imaginary_.get(j);
+      double re = r0 + f * (real_.get(j + 1) - r0);
+      double im = i0 + f * (imaginary_.get(j + 1) - i0);
+      if (g > 0.0) {
+         final int k = j + nrAngles_;
+         final double r1 = real_.get(k);
+         final double i1 = imaginary_.get(k);
+         re += g * (r1 + f * (real_.get(k + 1) - r1) - re);
+         im += g * (i1 + f * (imaginary_.get(k + 1) - i1) - im);
+      }
+      rTE[0] = re;
+      rTE[1] = im;
+   }
+
+}
@@ -0,0 +1,149 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ProfileCorrection.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+
+/**
+ * Background, flat-field, and laser power correction of raw pixel values.
+ *
+ * The corrected value of raw pixel index idx in slice i is:
+ *    (raw - background) / flat * powerFactor[i]
+ * Background and flat field can each be a single image (used for all
+ * angles) or one image per angle.  Every flat field image is normalized
+ * to an average of 1, so that corrected intensities stay on the raw scale.
+ * Pixels where the flat field is zero or negative are corrected to 0.
+ * The laser power of each angle is normalized to the average power.
+ *
+ * Instances do not change after construction and can be shared between
+ * threads.
+ *
+ * @author nico
+ */
+public class ProfileCorrection {
+   private final float[][] background_;
+   private final float[][] inverseFlat_;
+   private final double[] powerFactor_;
+
+   /**
+    *
+    * @param background background images (one, or one per angle),
+    *       or null for none
+    * @param flat flat field images (one, or one per angle), or null for none
+    * @param laserPower laser power for each angle, or null (or empty) for none
+    * @param nrPixels number of pixels in each image
+    * @param nrSlices number of angles in the data
+    * @throws InvalidInputException when the sizes of the inputs do not match
+    */
+   public ProfileCorrection(float[][] background, float[][] flat,
+           double[] laserPower, int nrPixels, int nrSlices)
+           throws InvalidInputException {
+      checkPlanes(background, nrPixels, nrSlices, "Background");
+      checkPlanes(flat, nrPixels, nrSlices, "Flat field");
+      background_ = background;
+      if (flat != null) {
+         inverseFlat_ = new float[flat.length][];
+         for (int i = 0; i < flat.length; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < nrPixels; j++) {
+               sum += flat[i][j];
+            }
+            double mean = sum / nrPixels;
+            if (mean <= 0.0) {
+               throw new InvalidInputException("Flat field image " + (i + 1) +
+                       " has no positive intensities");
+            }
+            inverseFlat_[i] = new float[nrPixels];
+            for (int j = 0; j < nrPixels; j++) {
+               inverseFlat_[i][j] = flat[i][j] > 0.0f ?
+                       (float) (mean / flat[i][j]) : 0.0f;
+            }
+         }
+      } else {
+         inverseFlat_ = null;
+      }
+      if (laserPower != null && laserPower.length > 0) {
+         if (laserPower.length != nrSlices) {
+            throw new InvalidInputException("Number of laser powers (" +
+                    laserPower.length + ") differs from the number of angles (" +
+                    nrSlices + ")");
+         }
+         double sum = 0.0;
+         for (double power : laserPower) {
+            if (power <= 0.0) {
+               throw new InvalidInputException("Laser powers should be positive");
+            }
+            sum += power;
+         }
+         double mean = sum / laserPower.length;
+         powerFactor_ = new double[laserPower.length];
+         for (int i = 0; i < laserPower.length; i++) {
+            powerFactor_[i] = mean / laserPower[i];
+         }
+      } else {
+         powerFactor_ = null;
+      }
+   }
+
+   private static void checkPlanes(float[][] planes, int nrPixels,
+           int nrSlices, String name) throws InvalidInputException {
+      if (planes == null) {
+         return;
+      }
+      if (planes.length != 1 && planes.length != nrSlices) {
+         throw new InvalidInputException(name + " should have 1 or " +
+                 nrSlices + " images, found " + planes.length);
+      }
+      for (float[] plane : planes) {
+         if (plane.length != nrPixels) {
+            throw new InvalidInputException(name +
+                    " differs in size from the data");
+         }
+      }
+   }
+
+   /**
+    * Corrects a raw pixel value for background and flat field
+    * @param slice index of the angle
+    * @param index index of the pixel in the raw image (x + y * width)
+    * @param raw raw intensity
+    * @return corrected intensity, not yet corrected for laser power
+    */
+   public float correct(int slice, int index, float raw) {
+      float val = raw;
+      if (background_ != null) {
+         val -= background_[background_.length == 1 ? 0 : slice][index];
+      }
+      if (inverseFlat_ != null) {
+         val *= inverseFlat_[inverseFlat_.length == 1 ? 0 : slice][index];
+      }
+      return val;
+   }
+
+   /**
+    * @param slice index of the angle
+    * @return factor to multiply with to correct for laser power at this angle
+    */
+   public double getPowerFactor(int slice) {
+      return powerFactor_ == null ? 1.0 : powerFactor_[slice];
+   }
+
+}
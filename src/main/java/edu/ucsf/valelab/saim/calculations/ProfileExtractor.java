@@ -0,0 +1,280 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ProfileExtractor.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+
+/**
+ * Reads the angle profile of a pixel directly from the pixel arrays of a
+ * stack (one array per angle).
+ *
+ * When binning is larger than 1, the profile of output pixel (x, y) is
+ * made up of the bin x bin raw pixels starting at (x * bin, y * bin).  These
+ * are summed or averaged on the fly, so no binned copy of the stack is needed.
+ * Raw pixels at the right and bottom edge that do not fill a complete bin are
+ * ignored.
+ * An optional ProfileCorrection is applied to every raw pixel before binning.
+ * The pixel arrays can hold a band of rows of the images rather than the 
+ * whole images (see StackBands), coordinates are always those of the whole
+ * image.
+ * extractBlock extracts all profiles of a block of pixels at once, the
+ * resulting extractor no longer needs the raw pixels (see FitPipeline).
+ *
+ * @author nico
+ */
+public class ProfileExtractor {
+   private final short[][] shortPixels_;
+   private final float[][] floatPixels_;
+   private final int nrSlices_;
+   private final int rawWidth_;
+   private final int firstRow_;  // raw row that is row 0 of the pixel arrays
+   private final int width_;
+   private final int height_;
+   private final int bin_;
+   private final boolean sum_;
+   private final ProfileCorrection correction_;
+   // profiles of a block of pixels extracted earlier, see extractBlock
+   private final float[] averages_;
+   private final int blockX_;
+   private final int blockY_;
+
+   /**
+    *
+    * @param pixels pixel arrays, one per angle.  Either all short[] or
+    *       all float[]
+    * @param rawWidth width of the input images
+    * @param rawHeight height of the input images
+    * @param sd SaimData, we will use binning_ and binSum_
+    * @throws InvalidInputException when the pixel type is not supported or
+    *       the binning does not make sense
+    */
+   public ProfileExtractor(Object[] pixels, int rawWidth, int rawHeight,
+           SaimData sd) throws InvalidInputException {
+      this(pixels, rawWidth, rawHeight, sd, null);
+   }
+
+   /**
+    *
+    * @param pixels pixel arrays, one per angle.  Either all short[] or
+    *       all float[]
+    * @param rawWidth width of the input images
+    * @param rawHeight height of the input images
+    * @param sd SaimData, we will use binning_ and binSum_
+    * @param correction correction applied to raw values, or null for none
+    * @throws InvalidInputException when the pixel type is not supported or
+    *       the binning does not make sense
+    */
+   public ProfileExtractor(Object[] pixels, int rawWidth, int rawHeight,
+           SaimData sd, ProfileCorrection correction) 
+           throws InvalidInputException {
+      this(pixels, rawWidth, rawHeight, 0, sd, correction);
+   }
+
+   /**
+    *
+    * @param pixels pixel arrays, one per angle, holding a band of rows of 
+    *       the images.  Either all short[] or all float[]
+    * @param rawWidth width of the input images
+    * @param rawHeight height of the input images
+    * @param firstRow row of the input images that is the first row of the
+    *       pixel arrays.  Only pixels within the band can be extracted
+    * @param sd SaimData, we will use binning_ and binSum_
+    * @param correction correction applied to raw values, or null for none
+    * @throws InvalidInputException when the pixel type is not supported or
+    *       the binning does not make sense
+    */
+   public ProfileExtractor(Object[] pixels, int rawWidth, int rawHeight,
+           int firstRow, SaimData sd, ProfileCorrection correction) 
+           throws InvalidInputException {
+      if (sd.binning_ < 1 || sd.binning_ > rawWidth || sd.binning_ > rawHeight) {
+         throw new InvalidInputException("Binning should be between 1 and the image size");
+      }
+      nrSlices_ = pixels.length;
+      rawWidth_ = rawWidth;
+      firstRow_ = firstRow;
+      bin_ = sd.binning_;
+      sum_ = sd.binSum_;
+      correction_ = correction;
+      averages_ = null;
+      blockX_ = 0;
+      blockY_ = 0;
+      width_ = rawWidth / bin_;
+      height_ = rawHeight / bin_;
+      if (pixels.length > 0 && pixels[0] instanceof short[]) {
+         shortPixels_ = new short[nrSlices_][];
+         floatPixels_ = null;
+         for (int i = 0; i < nrSlices_; i++) {
+            if (!(pixels[i] instanceof short[])) {
+               throw new InvalidInputException("All images should be of the same type");
+            }
+            shortPixels_[i] = (short[]) pixels[i];
+         }
+      } else if (pixels.length > 0 && pixels[0] instanceof float[]) {
+         shortPixels_ = null;
+         floatPixels_ = new float[nrSlices_][];
+         for (int i = 0; i < nrSlices_; i++) {
+            if (!(pixels[i] instanceof float[])) {
+               throw new InvalidInputException("All images should be of the same type");
+            }
+            floatPixels_[i] = (float[]) pixels[i];
+         }
+      } else {
+         throw new InvalidInputException("Only 16 bit and 32 bit images are supported");
+      }
+   }
+
+   /**
+    * Holds the profiles of a block of pixels
+    */
+   private ProfileExtractor(ProfileExtractor source, float[][] block,
+           float[] averages, int blockX, int blockY, int blockWidth) {
+      nrSlices_ = source.nrSlices_;
+      width_ = source.width_;
+      height_ = source.height_;
+      bin_ = source.bin_;
+      sum_ = source.sum_;
+      shortPixels_ = null;
+      floatPixels_ = block;
+      correction_ = null;
+      rawWidth_ = blockWidth;
+      firstRow_ = 0;
+      averages_ = averages;
+      blockX_ = blockX;
+      blockY_ = blockY;
+   }
+
+   /**
+    * Extracts (bins and corrects) the profiles of a block of pixels at once
+    * @param x0 first column in the output (binned) image
+    * @param y0 first row in the output (binned) image
+    * @param width width of the block
+    * @param height height of the block
+    * @return extractor that only holds the profiles of the block, and 
+    *       gives the same profiles and averages as this one
+    */
+   public ProfileExtractor extractBlock(int x0, int y0, int width, 
+           int height) {
+      final float[][] block = new float[nrSlices_][width * height];
+      final float[] averages = new float[width * height];
+      final float[] values = new float[nrSlices_];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            final int index = y * width + x;
+            averages[index] = extract(x0 + x, y0 + y, values);
+            for (int i = 0; i < nrSlices_; i++) {
+               block[i][index] = values[i];
+            }
+         }
+      }
+      return new ProfileExtractor(this, block, averages, x0, y0, width);
+   }
+
+   /**
+    * @return width of the output (binned) image
+    */
+   public int getWidth() {
+      return width_;
+   }
+
+   /**
+    * @return height of the output (binned) image
+    */
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * @return number of values in a profile
+    */
+   public int getNrSlices() {
+      return nrSlices_;
+   }
+
+   /**
+    * @return binning factor
+    */
+   public int getBinning() {
+      return bin_;
+   }
+
+   /**
+    * Extracts the profile of one (binned) pixel
+    * @param x x coordinate in the output (binned) image
+    * @param y y coordinate in the output (binned) image
+    * @param values destination array, will receive one value per angle
+    * @return average (corrected) intensity of the raw pixels that went into 
+    *       this profile, to be compared with the threshold independent of 
+    *       binning
+    */
+   public float extract(int x, int y, float[] values) {
+      if (averages_ != null) {
+         final int index = (y - blockY_) * rawWidth_ + x - blockX_;
+         for (int i = 0; i < nrSlices_; i++) {
+            values[i] = floatPixels_[i][index];
+         }
+         return averages_[index];
+      }
+      final int area = bin_ * bin_;
+      final int start = (y * bin_ - firstRow_) * rawWidth_ + x * bin_;
+      // the correction is indexed in the whole image
+      final int correctionOffset = firstRow_ * rawWidth_;
+      double total = 0.0;
+      for (int i = 0; i < nrSlices_; i++) {
+         float acc = 0.0f;
+         int row = start;
+         if (correction_ != null) {
+            for (int dy = 0; dy < bin_; dy++) {
+               for (int dx = 0; dx < bin_; dx++) {
+                  int index = row + dx;
+                  float raw = shortPixels_ != null ? 
+                          shortPixels_[i][index] & 0xffff : 
+                          floatPixels_[i][index];
+                  acc += correction_.correct(i, index + correctionOffset, 
+                          raw);
+               }
+               row += rawWidth_;
+            }
+            acc *= correction_.getPowerFactor(i);
+         } else if (shortPixels_ != null) {
+            final short[] px = shortPixels_[i];
+            for (int dy = 0; dy < bin_; dy++) {
+               for (int dx = 0; dx < bin_; dx++) {
+                  acc += px[row + dx] & 0xffff;
+               }
+               row += rawWidth_;
+            }
+         } else {
+            final float[] px = floatPixels_[i];
+            for (int dy = 0; dy < bin_; dy++) {
+               for (int dx = 0; dx < bin_; dx++) {
+                  acc += px[row + dx];
+               }
+               row += rawWidth_;
+            }
+         }
+         total += acc;
+         values[i] = sum_ ? acc : acc / area;
+      }
+      return (float) (total / (nrSlices_ * area));
+   }
+
+}
@@ -0,0 +1,153 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ProfileOrganizer.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.IntensityData;
+import edu.ucsf.valelab.saim.data.IntensityDataItem;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.util.List;
+
+/**
+ * Primitive-array version of SaimUtils.organize.
+ *
+ * SaimUtils.organize only averages and re-orders input values, i.e. every
+ * organized value is a weighted sum of raw values.  The weights are determined
+ * once by running SaimUtils.organize on unit vectors, so that the mirroring
+ * and zero-doubling rules stay defined in a single place.  After that,
+ * organizing a profile does not create any objects.
+ *
+ * @author nico
+ */
+public class ProfileOrganizer {
+   private final int nrRaw_;
+   private final double[] anglesRadians_;
+   private final int[][] indices_;
+   private final double[][] weights_;
+
+   /**
+    * @param sd SaimData, we will use mirrorAround0_ and zeroDoubled_
+    * @param anglesDegrees raw angles in degrees
+    * @param anglesRadians raw angles in radians
+    * @throws InvalidInputException when SaimUtils.organize does
+    */
+   public ProfileOrganizer(SaimData sd, double[] anglesDegrees,
+           double[] anglesRadians) throws InvalidInputException {
+      nrRaw_ = anglesDegrees.length;
+      double[][] matrix = null;
+      IntensityData id = new IntensityData();
+      float[] unit = new float[nrRaw_];
+      for (int k = 0; k < nrRaw_; k++) {
+         unit[k] = 1.0f;
+         id.clear();
+         SaimUtils.organize(id, sd, unit, anglesDegrees, anglesRadians);
+         unit[k] = 0.0f;
+         if (matrix == null) {
+            matrix = new double[id.size()][nrRaw_];
+         }
+         List<IntensityDataItem> items = id.getDataList();
+         for (int j = 0; j < items.size(); j++) {
+            matrix[j][k] = items.get(j).getIntensity();
+         }
+      }
+      // the angles do not depend on the values
+      List<IntensityDataItem> items = id.getDataList();
+      anglesRadians_ = new double[items.size()];
+      for (int j = 0; j < anglesRadians_.length; j++) {
+         anglesRadians_[j] = items.get(j).getAngleRadians();
+      }
+
+      // store as sparse rows, most rows have only one entry
+      indices_ = new int[anglesRadians_.length][];
+      weights_ = new double[anglesRadians_.length][];
+      for (int j = 0; j < anglesRadians_.length; j++) {
+         int count = 0;
+         for (int k = 0; k < nrRaw_; k++) {
+            if (matrix[j][k] != 0.0) {
+               count++;
+            }
+         }
+         indices_[j] = new int[count];
+         weights_[j] = new double[count];
+         count = 0;
+         for (int k = 0; k < nrRaw_; k++) {
+            if (matrix[j][k] != 0.0) {
+               indices_[j][count] = k;
+               weights_[j][count] = matrix[j][k];
+               count++;
+            }
+         }
+      }
+   }
+
+   /**
+    * @return number of values in an organized profile
+    */
+   public int size() {
+      return anglesRadians_.length;
+   }
+
+   /**
+    * @return number of values expected in a raw profile
+    */
+   public int rawSize() {
+      return nrRaw_;
+   }
+
+   /**
+    * @return angles (in radians) belonging to the organized values
+    */
+   public double[] getAnglesRadians() {
+      return anglesRadians_.clone();
+   }
+
+   /**
+    * Organizes a raw profile
+    * @param values raw intensities, one per slice
+    * @param out destination array
+    * @param offset index in out where the first organized value will be written
+    */
+   public void organize(float[] values, double[] out, int offset) {
+      for (int j = 0; j < indices_.length; j++) {
+         double val = 0.0;
+         for (int i = 0; i < indices_[j].length; i++) {
+            val += weights_[j][i] * values[indices_[j][i]];
+         }
+         out[offset + j] = val;
+      }
+   }
+
+   /**
+    * Organizes a raw profile into single precision output
+    * @param values raw intensities, one per slice
+    * @param out destination array
+    * @param offset index in out where the first organized value will be written
+    */
+   public void organize(float[] values, float[] out, int offset) {
+      for (int j = 0; j < indices_.length; j++) {
+         double val = 0.0;
+         for (int i = 0; i < indices_[j].length; i++) {
+            val += weights_[j][i] * values[indices_[j][i]];
+         }
+         out[offset + j] = (float) val;
+      }
+   }
+}
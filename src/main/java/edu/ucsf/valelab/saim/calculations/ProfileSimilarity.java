@@ -0,0 +1,134 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          ProfileSimilarity.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+/**
+ * Decides whether the angle profile of a pixel has the same shape as that
+ * of a reference pixel, within shot noise.
+ *
+ * Profiles are normalized to zero mean and unit standard deviation, which
+ * removes A and B: two pixels at the same height have the same normalized
+ * profile regardless of their brightness.  The squared difference between
+ * the normalized profiles is compared with the variance expected from shot
+ * noise (intensity times noiseScale, in normalized units) of both profiles.
+ * A tolerance of 1 accepts differences as large as expected from noise
+ * alone.
+ *
+ * @author nico
+ */
+public class ProfileSimilarity {
+   private final double tolerance_;
+   private final double noiseScale_;
+   private double[] reference_ = null;
+   private double referenceVariance_;
+   private double[] scratch_ = null;
+
+   /**
+    * @param tolerance accepted difference relative to the expected noise
+    * @param noiseScale variance of a value divided by the value, 1 for
+    *       photon counts, 1 / n when values are the average of n pixels
+    */
+   public ProfileSimilarity(double tolerance, double noiseScale) {
+      tolerance_ = tolerance;
+      noiseScale_ = noiseScale;
+   }
+
+   /**
+    * Sets the profile that others will be compared with
+    * @param values profile of a fitted pixel
+    */
+   public void setReference(float[] values) {
+      if (reference_ == null || reference_.length != values.length) {
+         reference_ = new double[values.length];
+      }
+      referenceVariance_ = normalize(values, reference_);
+      if (Double.isNaN(referenceVariance_)) {
+         reference_ = null;
+      }
+   }
+
+   /**
+    * Forgets the reference
+    */
+   public void clear() {
+      reference_ = null;
+   }
+
+   /**
+    * @return true when a reference was set
+    */
+   public boolean hasReference() {
+      return reference_ != null;
+   }
+
+   /**
+    * @param values profile of the pixel
+    * @return true when the profile has the same shape as the reference
+    */
+   public boolean isSimilar(float[] values) {
+      if (reference_ == null || values.length != reference_.length) {
+         return false;
+      }
+      if (scratch_ == null || scratch_.length != values.length) {
+         scratch_ = new double[values.length];
+      }
+      final double variance = normalize(values, scratch_);
+      if (Double.isNaN(variance)) {
+         return false;
+      }
+      double difference = 0.0;
+      for (int i = 0; i < values.length; i++) {
+         final double d = scratch_[i] - reference_[i];
+         difference += d * d;
+      }
+      return difference < tolerance_ * (variance + referenceVariance_);
+   }
+
+   /**
+    * Normalizes to zero mean and unit standard deviation
+    * @param values profile
+    * @param normalized destination
+    * @return summed shot noise variance of the normalized values, NaN when
+    *       the profile is flat
+    */
+   private double normalize(float[] values, double[] normalized) {
+      double sum = 0.0;
+      for (float v : values) {
+         sum += v;
+      }
+      final double mean = sum / values.length;
+      double ss = 0.0;
+      for (float v : values) {
+         ss += (v - mean) * (v - mean);
+      }
+      if (!(ss > 0.0)) {
+         return Double.NaN;
+      }
+      final double sd = Math.sqrt(ss / values.length);
+      double variance = 0.0;
+      for (int i = 0; i < values.length; i++) {
+         normalized[i] = (values[i] - mean) / sd;
+         variance += Math.max(values[i], 1.0f) * noiseScale_;
+      }
+      return variance / (sd * sd);
+   }
+
+}
@@ -0,0 +1,267 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimArrayFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.IntensityData;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fits many profiles without ImageJ images, for scripts and other programs.
+ *
+ * Profiles are packed in one array: profile p occupies
+ * profiles[p * nrAngles, (p + 1) * nrAngles).  Results are packed the same
+ * way as those of SaimBatchFitter, 4 values per profile: A, B, h and 
+ * R-squared.  All 4 are NaN when none of the guesses converged.
+ *
+ * Profiles are fitted in blocks, in parallel on the given executor (or a 
+ * shared pool with one thread per processor), with the engine in
+ * SaimData.engine_.  Angles are in degrees, mirroring and zero doubling are
+ * applied as in SaimFit, and the heights in SaimData are the guesses.
+ * Settings that only make sense for images (threshold, binning, correction
+ * images and maps, fixed A or B, repair) are not used.
+ *
+ * Instances can be used by several threads at the same time.
+ *
+ * @author nico
+ */
+public class SaimArrayFitter {
+
+   private static ExecutorService defaultExecutor_ = null;
+
+   private final SaimData sd_;
+   private final double[] anglesDegrees_;
+   private final double[] anglesRadians_;
+   private final ProfileOrganizer organizer_;
+   private final double[][] guesses_;
+   private final Executor executor_;
+   private int blockSize_ = SaimBatchFitter.DEFAULT_BLOCKSIZE;
+
+   /**
+    * @param sd settings, a copy is made
+    * @param anglesDegrees angle of every value of a profile, in degrees
+    * @param executor runs the blocks of profiles
+    * @throws InvalidInputException when the angles can not be organized
+    *       (for instance mirroring around 0 of angles that are not symmetric)
+    */
+   public SaimArrayFitter(SaimData sd, double[] anglesDegrees, 
+           Executor executor) throws InvalidInputException {
+      sd_ = sd.copy();
+      anglesDegrees_ = anglesDegrees.clone();
+      anglesRadians_ = new double[anglesDegrees_.length];
+      for (int i = 0; i < anglesRadians_.length; i++) {
+         anglesRadians_[i] = Math.toRadians(anglesDegrees_[i]);
+      }
+      organizer_ = new ProfileOrganizer(sd_, anglesDegrees_, anglesRadians_);
+      guesses_ = new double[sd_.heights_.length][];
+      for (int i = 0; i < guesses_.length; i++) {
+         guesses_[i] = new double[]{sd_.A_, sd_.B_, sd_.heights_[i]};
+      }
+      executor_ = executor;
+   }
+
+   /**
+    * Uses the shared executor, see getDefaultExecutor
+    * @param sd settings, a copy is made
+    * @param anglesDegrees angle of every value of a profile, in degrees
+    * @throws InvalidInputException when the angles can not be organized
+    */
+   public SaimArrayFitter(SaimData sd, double[] anglesDegrees) 
+           throws InvalidInputException {
+      this(sd, anglesDegrees, getDefaultExecutor());
+   }
+
+   /**
+    * @return daemon thread pool with one thread per processor, shared by 
+    *       all fitters that were not given an executor
+    */
+   public static synchronized ExecutorService getDefaultExecutor() {
+      if (defaultExecutor_ == null) {
+         defaultExecutor_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(),
+                 new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Saim array fitter");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return defaultExecutor_;
+   }
+
+   /**
+    * @param blockSize number of profiles fitted by one task
+    */
+   public void setBlockSize(int blockSize) {
+      blockSize_ = blockSize;
+   }
+
+   public int getNrAngles() {
+      return anglesDegrees_.length;
+   }
+
+   /**
+    * Fits all profiles, returns when they are done
+    * @param profiles packed profiles, nrAngles values each
+    * @return A, B, h and R-squared of every profile
+    * @throws InvalidInputException when profiles is not a multiple of the 
+    *       number of angles
+    * @throws InterruptedException 
+    */
+   public double[] fit(final float[] profiles) throws InvalidInputException,
+           InterruptedException {
+      final int nrAngles = anglesDegrees_.length;
+      if (nrAngles == 0 || profiles.length % nrAngles != 0) {
+         throw new InvalidInputException(
+                 "Number of values is not a multiple of the number of angles");
+      }
+      final int n = profiles.length / nrAngles;
+      final double[] results = new double[n * 4];
+      final CompletionService<Void> done = 
+              new ExecutorCompletionService<Void>(executor_);
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int start = 0; start < n; start += blockSize_) {
+         final int first = start;
+         final int count = Math.min(blockSize_, n - start);
+         futures.add(done.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+               fitBlock(profiles, first, count, results);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (int i = 0; i < futures.size(); i++) {
+            done.take().get();
+         }
+      } catch (ExecutionException ex) {
+         cancel(futures);
+         if (ex.getCause() instanceof InvalidInputException) {
+            throw (InvalidInputException) ex.getCause();
+         }
+         if (ex.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ex.getCause();
+         }
+         throw new IllegalStateException(ex.getCause());
+      } catch (InterruptedException ex) {
+         cancel(futures);
+         throw ex;
+      }
+      return results;
+   }
+
+   /**
+    * Convenience method, fits on the shared executor
+    * @param profiles packed profiles, anglesDegrees.length values each
+    * @param anglesDegrees angle of every value of a profile, in degrees
+    * @param sd settings
+    * @return A, B, h and R-squared of every profile
+    * @throws InvalidInputException
+    * @throws InterruptedException 
+    */
+   public static double[] fit(float[] profiles, double[] anglesDegrees, 
+           SaimData sd) throws InvalidInputException, InterruptedException {
+      return new SaimArrayFitter(sd, anglesDegrees).fit(profiles);
+   }
+
+   private static void cancel(List<Future<Void>> futures) {
+      for (Future<Void> future : futures) {
+         future.cancel(true);
+      }
+   }
+
+   /**
+    * Fits count profiles starting at profile first, fitters are not thread 
+    * safe, so every block gets its own
+    */
+   private void fitBlock(float[] profiles, int first, int count, 
+           double[] results) throws InvalidInputException {
+      final int nrRaw = organizer_.rawSize();
+      final int nrOrganized = organizer_.size();
+      final float[] values = new float[nrRaw];
+      if (sd_.engine_ == SaimData.Engine.SINGLE_PIXEL) {
+         fitSingle(profiles, first, count, values, results);
+         return;
+      }
+      final double[] blockResults = new double[count * 4];
+      if (sd_.engine_ == SaimData.Engine.BATCH_FLOAT) {
+         final SaimFloatBatchFitter sfbf = new SaimFloatBatchFitter(sd_,
+                 organizer_.getAnglesRadians(), count);
+         final float[] block = new float[count * nrOrganized];
+         for (int p = 0; p < count; p++) {
+            System.arraycopy(profiles, (first + p) * nrRaw, values, 0, nrRaw);
+            organizer_.organize(values, block, p * nrOrganized);
+         }
+         sfbf.fit(block, count, guesses_, blockResults);
+      } else {
+         final SaimBatchFitter sbf = new SaimBatchFitter(sd_,
+                 organizer_.getAnglesRadians(), count);
+         final double[] block = new double[count * nrOrganized];
+         for (int p = 0; p < count; p++) {
+            System.arraycopy(profiles, (first + p) * nrRaw, values, 0, nrRaw);
+            organizer_.organize(values, block, p * nrOrganized);
+         }
+         sbf.fit(block, count, guesses_, blockResults);
+      }
+      System.arraycopy(blockResults, 0, results, first * 4, count * 4);
+   }
+
+   /**
+    * Fits one profile at a time with SaimFunctionFitter, keeping the guess
+    * with the best R-squared
+    */
+   private void fitSingle(float[] profiles, int first, int count, 
+           float[] values, double[] results) throws InvalidInputException {
+      final SaimFunctionFitter sff = SaimUtils.createFitter(sd_, 
+              sd_.useBAngle_, null);
+      final SaimFunction sf = SaimUtils.createFunction(sd_, 
+              sd_.useBAngle_, null);
+      final IntensityData observed = new IntensityData();
+      final IntensityData calculated = new IntensityData();
+      for (int p = first; p < first + count; p++) {
+         System.arraycopy(profiles, p * values.length, values, 0, 
+                 values.length);
+         observed.clear();
+         SaimUtils.organize(observed, sd_, values, anglesDegrees_, 
+                 anglesRadians_);
+         final double[] best = SaimUtils.fitBest(sff, sf, observed, 
+                 calculated, guesses_);
+         for (int i = 0; i < 4; i++) {
+            results[p * 4 + i] = best == null ? Double.NaN : best[i];
+         }
+      }
+   }
+
+}
@@ -0,0 +1,307 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimBatchFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Arrays;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+/**
+ * Levenberg-Marquardt fitter of the Saim function that advances a block of
+ * pixels through the iterations together.
+ *
+ * All per-pixel state (parameters, cost, the 3x3 normal matrix J'J and J'r)
+ * is kept in arrays indexed by lane, and observations are stored angle-major,
+ * so that the inner loops run over contiguous memory without creating objects.
+ * Lanes that converge (or run out of iterations) are retired by moving the
+ * last active lane into their slot, so the active lanes stay packed (see
+ * AbstractSaimBatchFitter).
+ *
+ * Model, bounds and iteration limit are the same as in SaimFunctionFitter.
+ * The model and its gradient are calculated in the same pass, so that
+ * sin and cos are only evaluated once per angle per iteration.
+ *
+ * Instances are not thread safe, use one per thread.
+ *
+ * @author nico
+ */
+public class SaimBatchFitter extends AbstractSaimBatchFitter {
+
+   public static final int DEFAULT_BLOCKSIZE = 256;
+
+   // rows of the state arrays
+   private static final int PA = 0;
+   private static final int PB = 1;
+   private static final int PH = 2;
+   private static final int COST = 3;
+   private static final int J00 = 4;
+   private static final int J01 = 5;
+   private static final int J02 = 6;
+   private static final int J11 = 7;
+   private static final int J12 = 8;
+   private static final int J22 = 9;
+   private static final int R0 = 10;
+   private static final int R1 = 11;
+   private static final int R2 = 12;
+   private static final int NRSTATES = 13;
+
+   private static final double COSTTOLERANCE = 1.0e-10;
+   private static final double PARTOLERANCE = 1.0e-10;
+   private static final double MAXLAMBDA = 1.0e20;
+
+   // lane buffers
+   private final double[] obs_;  // angle-major: obs_[angle * blockSize_ + lane]
+   private final double[][] cur_;
+   private final double[][] trial_;
+
+   /**
+    * @param sd SaimData, we will use wavelength_, dOx_, nSample_, useBAngle_
+    *       and fastTrigBits_
+    * @param anglesRadians angles of the (organized) observations
+    * @param blockSize maximum number of pixels fitted together
+    */
+   public SaimBatchFitter(SaimData sd, double[] anglesRadians, int blockSize) {
+      super(sd, anglesRadians, blockSize, COSTTOLERANCE, PARTOLERANCE, 
+              MAXLAMBDA);
+      obs_ = new double[nrAngles_ * blockSize_];
+      cur_ = new double[NRSTATES][blockSize_];
+      trial_ = new double[NRSTATES][blockSize_];
+   }
+
+   /**
+    * Fits a block of profiles starting from each of the given guesses,
+    * and keeps the result with the highest R-squared for each profile.
+    *
+    * @param profiles organized profiles, profile p occupies
+    *       profiles[p * nrAngles, (p + 1) * nrAngles)
+    * @param n number of profiles, should not exceed the block size
+    * @param guesses array of {A, B, h} starting points
+    * @param results 4 values per profile: A, B, h, R-squared.  All 4 are NaN
+    *       when none of the guesses converged.
+    */
+   public void fit(double[] profiles, int n, double[][] guesses,
+           double[] results) {
+      if (n > blockSize_) {
+         throw new DimensionMismatchException(n, blockSize_);
+      }
+      for (int p = 0; p < n; p++) {
+         for (int i = 0; i < 4; i++) {
+            results[p * 4 + i] = Double.NaN;
+         }
+      }
+      for (double[] guess : guesses) {
+         if (guess.length != 3) {
+            throw new DimensionMismatchException(guess.length, 3);
+         }
+         int nActive = load(profiles, n, guess, null);
+         iterate(nActive, maxIterations_, results);
+      }
+   }
+
+   /**
+    * Continues fitting from the parameters already present in results.
+    * Profiles whose R-squared in results is NaN are skipped.  R-squared of
+    * the other profiles is recalculated in double precision, and results 
+    * are only replaced when the refined fit converges with a better 
+    * R-squared.
+    *
+    * @param profiles organized profiles, laid out as in fit
+    * @param n number of profiles, should not exceed the block size
+    * @param maxIterations maximum number of iterations for the refinement
+    * @param results 4 values per profile: A, B, h, R-squared
+    */
+   public void refine(double[] profiles, int n, int maxIterations,
+           double[] results) {
+      refine(profiles, n, maxIterations, 0.0, results);
+   }
+
+   /**
+    * Same as refine, but profiles whose Gauss-Newton step from the 
+    * parameters in results changes no parameter by more than minStep
+    * (relative) are considered converged and not refined.
+    *
+    * @param profiles organized profiles, laid out as in fit
+    * @param n number of profiles, should not exceed the block size
+    * @param maxIterations maximum number of iterations for the refinement
+    * @param minStep relative step below which profiles are not refined
+    * @param results 4 values per profile: A, B, h, R-squared
+    */
+   public void refine(double[] profiles, int n, int maxIterations,
+           double minStep, double[] results) {
+      if (n > blockSize_) {
+         throw new DimensionMismatchException(n, blockSize_);
+      }
+      int nActive = load(profiles, n, null, results);
+      nActive = startRefinement(nActive, minStep, results);
+      iterate(nActive, maxIterations, results);
+   }
+
+   /**
+    * Copies profiles into the lane buffers and initializes the state
+    * Each lane starts either at guess, or, when guess is null, at the
+    * parameters in starts (4 values per profile, skipped when the 4th is NaN)
+    * @return number of lanes loaded
+    */
+   private int load(double[] profiles, int n, double[] guess, double[] starts) {
+      int lane = 0;
+      for (int p = 0; p < n; p++) {
+         if (guess == null && Double.isNaN(starts[p * 4 + 3])) {
+            continue;
+         }
+         double avg = 0.0;
+         for (int j = 0; j < nrAngles_; j++) {
+            double val = profiles[p * nrAngles_ + j];
+            obs_[j * blockSize_ + lane] = val;
+            avg += val;
+         }
+         avg /= nrAngles_;
+         double ssTot = 0.0;
+         for (int j = 0; j < nrAngles_; j++) {
+            double diff = profiles[p * nrAngles_ + j] - avg;
+            ssTot += diff * diff;
+         }
+         if (guess != null) {
+            cur_[PA][lane] = guess[0];
+            cur_[PB][lane] = guess[1];
+            cur_[PH][lane] = guess[2];
+         } else {
+            cur_[PA][lane] = starts[p * 4];
+            cur_[PB][lane] = starts[p * 4 + 1];
+            cur_[PH][lane] = starts[p * 4 + 2];
+         }
+         startLane(lane, p, ssTot);
+         lane++;
+      }
+      evaluate(cur_, lane);
+      return lane;
+   }
+
+   @Override
+   protected double parameter(boolean trial, int param, int lane) {
+      return trial ? trial_[PA + param][lane] : cur_[PA + param][lane];
+   }
+
+   @Override
+   protected double cost(boolean trial, int lane) {
+      return trial ? trial_[COST][lane] : cur_[COST][lane];
+   }
+
+   @Override
+   protected void normalEquations(int lane, double[] m) {
+      m[M00] = cur_[J00][lane];
+      m[M01] = cur_[J01][lane];
+      m[M02] = cur_[J02][lane];
+      m[M11] = cur_[J11][lane];
+      m[M12] = cur_[J12][lane];
+      m[M22] = cur_[J22][lane];
+      m[MR0] = cur_[R0][lane];
+      m[MR1] = cur_[R1][lane];
+      m[MR2] = cur_[R2][lane];
+   }
+
+   @Override
+   protected void setTrial(int lane, double a, double b, double h) {
+      trial_[PA][lane] = a;
+      trial_[PB][lane] = b;
+      trial_[PH][lane] = h;
+   }
+
+   @Override
+   protected void evaluateTrial(int nActive) {
+      evaluate(trial_, nActive);
+   }
+
+   @Override
+   protected void accept(int lane) {
+      for (int s = 0; s < NRSTATES; s++) {
+         cur_[s][lane] = trial_[s][lane];
+      }
+   }
+
+   @Override
+   protected void moveLaneState(int from, int to) {
+      for (int s = 0; s < NRSTATES; s++) {
+         cur_[s][to] = cur_[s][from];
+         trial_[s][to] = trial_[s][from];
+      }
+      for (int j = 0; j < nrAngles_; j++) {
+         obs_[j * blockSize_ + to] = obs_[j * blockSize_ + from];
+      }
+   }
+
+   /**
+    * Calculates the cost, J'J and J'r for the given parameters
+    * of the first nActive lanes
+    */
+   private void evaluate(double[][] s, int nActive) {
+      final double[] pA = s[PA];
+      final double[] pB = s[PB];
+      final double[] pH = s[PH];
+      final double[] cost = s[COST];
+      final double[] j00 = s[J00];
+      final double[] j01 = s[J01];
+      final double[] j02 = s[J02];
+      final double[] j11 = s[J11];
+      final double[] j12 = s[J12];
+      final double[] j22 = s[J22];
+      final double[] r0 = s[R0];
+      final double[] r1 = s[R1];
+      final double[] r2 = s[R2];
+      for (int q = COST; q < NRSTATES; q++) {
+         Arrays.fill(s[q], 0, nActive, 0.0);
+      }
+      for (int j = 0; j < nrAngles_; j++) {
+         final double k = k_[j];
+         final double c2 = c2_[j];
+         final double d2 = d2_[j];
+         final double f0 = f0_[j];
+         final double b = bTerm_[j];
+         final int offset = j * blockSize_;
+         for (int p = 0; p < nActive; p++) {
+            double phaseDiff = k * pH[p];
+            double cos;
+            double sin;
+            if (fastTrig_ != null) {
+               fastTrig_.sinCos(phaseDiff, sinCos_);
+               sin = sinCos_[0];
+               cos = sinCos_[1];
+            } else {
+               cos = Math.cos(phaseDiff);
+               sin = Math.sin(phaseDiff);
+            }
+            double f = f0 + c2 * cos - d2 * sin;
+            double gh = -pA[p] * k * (c2 * sin + d2 * cos);
+            double r = obs_[offset + p] - (pA[p] * f + pB[p] * b);
+            cost[p] += r * r;
+            j00[p] += f * f;
+            j01[p] += f * b;
+            j02[p] += f * gh;
+            j11[p] += b * b;
+            j12[p] += b * gh;
+            j22[p] += gh * gh;
+            r0[p] += f * r;
+            r1[p] += b * r;
+            r2[p] += gh * r;
+         }
+      }
+   }
+
+}
@@ -0,0 +1,526 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimCalibration.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.math3.complex.Complex;
+
+/**
+ * Fits the thickness of the oxide layer (and optionally the refractive index
+ * of the sample) shared by many pixels, together with A, B and h of every
+ * pixel.  When the height of the sample is known, only A and B are fitted
+ * per pixel.
+ *
+ * Levenberg-Marquardt on all parameters at once, but the normal matrix is
+ * never built: the parameters of a pixel only couple to their own
+ * observations and to the shared parameters, so the matrix consists of small
+ * per pixel blocks bordered by the shared rows.  The shared parameters are
+ * solved first through the Schur complement (a 1x1 or 2x2 system), after
+ * which every pixel's step follows from its own 3x3 system.  Cost per
+ * iteration is linear in the number of pixels.
+ * The Fresnel coefficients and their derivatives (by finite differences)
+ * depend only on the angle, and are calculated once per iteration.
+ *
+ * Bounds on A, B and h are the same as in SaimFunctionFitter.
+ *
+ * @author nico
+ */
+public class SaimCalibration {
+
+   private static final double INITIALLAMBDA = 1.0e-3;
+   private static final double MAXLAMBDA = 1.0e20;
+   private static final double COSTTOLERANCE = 1.0e-10;
+   // smallest diagonal element that is damped, so that parameters without
+   // influence (the height of a pixel with A of 0) do not make the damped
+   // matrix singular
+   private static final double MINDIAGONAL = 1.0e-6;
+   // steps for the numerical derivatives of rTE
+   private static final double DOXSTEP = 0.01;
+   private static final double NSAMPLESTEP = 1.0e-5;
+   // spacing of the heights tried to find the starting point of each pixel
+   private static final double STARTHEIGHTSTEP = 5.0;
+   private static final double[] LOWERBOUNDS = {0.0, 0.0, 0.0};
+   private static final double[] UPPERBOUNDS = {64000, 64000, 1000};
+
+   private final SaimData sd_;
+   private final double[] angles_;
+   private final int nrAngles_;
+   private final int nrGlobal_;
+   private final List<double[]> observed_ = new ArrayList<double[]>();
+   private double knownHeight_ = Double.NaN;
+   private int nrLocal_ = 3;
+   private double[][] local_;  // per pixel A, B, h
+   private double dOx_;
+   private double nSample_;
+   private double cost_;
+   private int iterations_;
+
+   // per angle terms at the current shared parameters
+   private final double[] c_;   // rTE.real
+   private final double[] d_;   // rTE.imaginary
+   private final double[] k_;   // 4 pi nSample cos(angle) / wavelength
+   private final double[][] dc_; // derivative of c per shared parameter
+   private final double[][] dd_; // derivative of d per shared parameter
+
+   /**
+    * @param sd settings, wavelength_, dOx_ and nSample_ are used, the latter
+    *       two as starting points
+    * @param anglesRadians angles of the (organized) observations
+    * @param fitNSample also fit the refractive index of the sample
+    */
+   public SaimCalibration(SaimData sd, double[] anglesRadians,
+           boolean fitNSample) {
+      sd_ = sd;
+      angles_ = anglesRadians.clone();
+      nrAngles_ = angles_.length;
+      nrGlobal_ = fitNSample ? 2 : 1;
+      dOx_ = sd.dOx_;
+      nSample_ = sd.nSample_;
+      c_ = new double[nrAngles_];
+      d_ = new double[nrAngles_];
+      k_ = new double[nrAngles_];
+      dc_ = new double[nrGlobal_][nrAngles_];
+      dd_ = new double[nrGlobal_][nrAngles_];
+   }
+
+   /**
+    * Fixes the height of all pixels, for calibration with a sample of
+    * known height
+    * @param h height in nm, or NaN to fit the height of every pixel
+    */
+   public void setKnownHeight(double h) {
+      knownHeight_ = h;
+      nrLocal_ = Double.isNaN(h) ? 3 : 2;
+   }
+
+   /**
+    * @param organized observations of a pixel, one per angle
+    */
+   public void addPixel(double[] organized) {
+      if (organized.length != nrAngles_) {
+         throw new IllegalArgumentException("Expected " + nrAngles_ +
+                 " observations, got " + organized.length);
+      }
+      observed_.add(organized.clone());
+   }
+
+   /**
+    * @return number of pixels added
+    */
+   public int getNrPixels() {
+      return observed_.size();
+   }
+
+   /**
+    * Fits the shared and per pixel parameters
+    * @param maxIterations maximum number of iterations
+    * @return number of iterations used
+    */
+   public int fit(int maxIterations) {
+      final int n = observed_.size();
+      dOx_ = sd_.dOx_;
+      nSample_ = sd_.nSample_;
+      angleTerms(dOx_, nSample_, c_, d_, k_);
+      local_ = new double[n][];
+      for (int i = 0; i < n; i++) {
+         local_[i] = start(observed_.get(i));
+      }
+      cost_ = totalCost(local_, c_, d_, k_);
+
+      final int nl = nrLocal_;
+      final int ng = nrGlobal_;
+      final double[][] u = new double[n][nl * nl];
+      final double[][] w = new double[n][nl * ng];
+      final double[][] bl = new double[n][nl];
+      final double[] v = new double[ng * ng];
+      final double[] bg = new double[ng];
+      final double[][] trial = new double[n][3];
+      final double[] tc = new double[nrAngles_];
+      final double[] td = new double[nrAngles_];
+      final double[] tk = new double[nrAngles_];
+      final double[] jl = new double[3];
+      final double[] jg = new double[2];
+      double lambda = INITIALLAMBDA;
+
+      for (iterations_ = 0; iterations_ < maxIterations; iterations_++) {
+         derivatives();
+         Arrays.fill(v, 0.0);
+         Arrays.fill(bg, 0.0);
+         for (int i = 0; i < n; i++) {
+            Arrays.fill(u[i], 0.0);
+            Arrays.fill(w[i], 0.0);
+            Arrays.fill(bl[i], 0.0);
+            final double[] obs = observed_.get(i);
+            final double a = local_[i][0];
+            final double b = local_[i][1];
+            final double h = local_[i][2];
+            for (int j = 0; j < nrAngles_; j++) {
+               final double phi = k_[j] * h;
+               final double cos = Math.cos(phi);
+               final double sin = Math.sin(phi);
+               final double f = 1 + 2 * (c_[j] * cos - d_[j] * sin) +
+                       c_[j] * c_[j] + d_[j] * d_[j];
+               final double r = a * f + b - obs[j];
+               final double dFdc = 2 * cos + 2 * c_[j];
+               final double dFdd = -2 * sin + 2 * d_[j];
+               final double dFdphi = -2 * (c_[j] * sin + d_[j] * cos);
+               jl[0] = f;
+               jl[1] = 1.0;
+               jl[2] = a * dFdphi * k_[j];
+               for (int g = 0; g < ng; g++) {
+                  jg[g] = a * (dFdc * dc_[g][j] + dFdd * dd_[g][j]);
+               }
+               if (ng > 1) {
+                  // the phase also depends on the refractive index
+                  jg[1] += a * dFdphi * phi / nSample_;
+               }
+               for (int p = 0; p < nl; p++) {
+                  for (int q = 0; q < nl; q++) {
+                     u[i][p * nl + q] += jl[p] * jl[q];
+                  }
+                  for (int g = 0; g < ng; g++) {
+                     w[i][p * ng + g] += jl[p] * jg[g];
+                  }
+                  bl[i][p] += jl[p] * r;
+               }
+               for (int g = 0; g < ng; g++) {
+                  for (int g2 = 0; g2 < ng; g2++) {
+                     v[g * ng + g2] += jg[g] * jg[g2];
+                  }
+                  bg[g] += jg[g] * r;
+               }
+            }
+         }
+
+         // find a lambda that lowers the cost
+         boolean improved = false;
+         double trialCost = cost_;
+         double trialDOx = dOx_;
+         double trialNSample = nSample_;
+         while (!improved && lambda < MAXLAMBDA) {
+            final double[] step = solve(u, w, bl, v, bg, lambda, trial);
+            if (step != null) {
+               trialDOx = Math.max(0.0, dOx_ + step[0]);
+               trialNSample = ng > 1 ? nSample_ + step[1] : nSample_;
+               angleTerms(trialDOx, trialNSample, tc, td, tk);
+               trialCost = totalCost(trial, tc, td, tk);
+               improved = trialCost < cost_;
+            }
+            if (!improved) {
+               lambda *= 10.0;
+            }
+         }
+         if (!improved) {
+            break;
+         }
+         lambda = Math.max(lambda / 10.0, 1.0e-12);
+         final double decrease = (cost_ - trialCost) / cost_;
+         for (int i = 0; i < n; i++) {
+            System.arraycopy(trial[i], 0, local_[i], 0, 3);
+         }
+         dOx_ = trialDOx;
+         nSample_ = trialNSample;
+         cost_ = trialCost;
+         System.arraycopy(tc, 0, c_, 0, nrAngles_);
+         System.arraycopy(td, 0, d_, 0, nrAngles_);
+         System.arraycopy(tk, 0, k_, 0, nrAngles_);
+         if (decrease < COSTTOLERANCE) {
+            iterations_++;
+            break;
+         }
+      }
+      return iterations_;
+   }
+
+   /**
+    * Solves the damped normal equations through the Schur complement of the
+    * per pixel blocks, and writes the per pixel trial parameters
+    * @return step of the shared parameters, or null when singular
+    */
+   private double[] solve(double[][] u, double[][] w, double[][] bl,
+           double[] v, double[] bg, double lambda, double[][] trial) {
+      final int n = u.length;
+      final int nl = nrLocal_;
+      final int ng = nrGlobal_;
+      // S = Vd - sum W' Ud^-1 W,  rhs = -bg + sum W' Ud^-1 bl
+      final double[][] s = new double[ng][ng];
+      final double[] rhs = new double[ng];
+      for (int g = 0; g < ng; g++) {
+         for (int g2 = 0; g2 < ng; g2++) {
+            s[g][g2] = v[g * ng + g2];
+         }
+         s[g][g] += lambda * Math.max(s[g][g], MINDIAGONAL);
+         rhs[g] = -bg[g];
+      }
+      final double[][][] uInvW = new double[n][][];
+      final double[][] uInvB = new double[n][];
+      final double[][] ud = new double[nl][nl];
+      final double[] column = new double[nl];
+      for (int i = 0; i < n; i++) {
+         dampedBlock(u[i], lambda, ud);
+         uInvW[i] = new double[ng][];
+         for (int g = 0; g < ng; g++) {
+            for (int p = 0; p < nl; p++) {
+               column[p] = w[i][p * ng + g];
+            }
+            uInvW[i][g] = solveSmall(ud, column);
+            if (uInvW[i][g] == null) {
+               return null;
+            }
+         }
+         uInvB[i] = solveSmall(ud, bl[i]);
+         if (uInvB[i] == null) {
+            return null;
+         }
+         for (int g = 0; g < ng; g++) {
+            for (int p = 0; p < nl; p++) {
+               final double wpg = w[i][p * ng + g];
+               for (int g2 = 0; g2 < ng; g2++) {
+                  s[g][g2] -= wpg * uInvW[i][g2][p];
+               }
+               rhs[g] += wpg * uInvB[i][p];
+            }
+         }
+      }
+      final double[] step = solveSmall(s, rhs);
+      if (step == null) {
+         return null;
+      }
+      // per pixel: step = -Ud^-1 bl - Ud^-1 W step_g
+      for (int i = 0; i < n; i++) {
+         trial[i][2] = local_[i][2];
+         for (int p = 0; p < nl; p++) {
+            double delta = -uInvB[i][p];
+            for (int g = 0; g < ng; g++) {
+               delta -= uInvW[i][g][p] * step[g];
+            }
+            trial[i][p] = Math.max(LOWERBOUNDS[p], Math.min(UPPERBOUNDS[p],
+                    local_[i][p] + delta));
+         }
+      }
+      return step;
+   }
+
+   /**
+    * Copies a per pixel block into ud with Marquardt damping of the
+    * diagonal, with a floor so that the damped block is never singular
+    */
+   private void dampedBlock(double[] block, double lambda, double[][] ud) {
+      final int nl = nrLocal_;
+      for (int p = 0; p < nl; p++) {
+         for (int q = 0; q < nl; q++) {
+            ud[p][q] = block[p * nl + q];
+         }
+         ud[p][p] += lambda * Math.max(ud[p][p], MINDIAGONAL);
+      }
+   }
+
+   /**
+    * Gaussian elimination with partial pivoting of a small system
+    * @param a matrix, not changed
+    * @param b right hand side, not changed
+    * @return solution, or null when the matrix is singular
+    */
+   static double[] solveSmall(double[][] a, double[] b) {
+      final int m = b.length;
+      final double[][] t = new double[m][m + 1];
+      for (int r = 0; r < m; r++) {
+         System.arraycopy(a[r], 0, t[r], 0, m);
+         t[r][m] = b[r];
+      }
+      for (int col = 0; col < m; col++) {
+         int pivot = col;
+         for (int r = col + 1; r < m; r++) {
+            if (Math.abs(t[r][col]) > Math.abs(t[pivot][col])) {
+               pivot = r;
+            }
+         }
+         if (!(Math.abs(t[pivot][col]) > 0.0)) {
+            return null;
+         }
+         final double[] tmp = t[col];
+         t[col] = t[pivot];
+         t[pivot] = tmp;
+         for (int r = col + 1; r < m; r++) {
+            final double factor = t[r][col] / t[col][col];
+            for (int c = col; c <= m; c++) {
+               t[r][c] -= factor * t[col][c];
+            }
+         }
+      }
+      final double[] x = new double[m];
+      for (int r = m - 1; r >= 0; r--) {
+         double sum = t[r][m];
+         for (int c = r + 1; c < m; c++) {
+            sum -= t[r][c] * x[c];
+         }
+         x[r] = sum / t[r][r];
+      }
+      return x;
+   }
+
+   /**
+    * Calculates rTE and the phase factor for every angle
+    */
+   private void angleTerms(double dOx, double nSample, double[] c,
+           double[] d, double[] k) {
+      for (int j = 0; j < nrAngles_; j++) {
+         Complex rTE = SaimCalc.fresnelTE(sd_.wavelength_, angles_[j], dOx,
+                 nSample);
+         c[j] = rTE.getReal();
+         d[j] = rTE.getImaginary();
+         k[j] = 4.0 * Math.PI * nSample * Math.cos(angles_[j]) /
+                 sd_.wavelength_;
+      }
+   }
+
+   /**
+    * Derivatives of rTE to the shared parameters (central differences)
+    */
+   private void derivatives() {
+      for (int j = 0; j < nrAngles_; j++) {
+         Complex plus = SaimCalc.fresnelTE(sd_.wavelength_, angles_[j],
+                 dOx_ + DOXSTEP, nSample_);
+         Complex minus = SaimCalc.fresnelTE(sd_.wavelength_, angles_[j],
+                 dOx_ - DOXSTEP, nSample_);
+         dc_[0][j] = (plus.getReal() - minus.getReal()) / (2 * DOXSTEP);
+         dd_[0][j] = (plus.getImaginary() - minus.getImaginary()) /
+                 (2 * DOXSTEP);
+         if (nrGlobal_ > 1) {
+            plus = SaimCalc.fresnelTE(sd_.wavelength_, angles_[j], dOx_,
+                    nSample_ + NSAMPLESTEP);
+            minus = SaimCalc.fresnelTE(sd_.wavelength_, angles_[j], dOx_,
+                    nSample_ - NSAMPLESTEP);
+            dc_[1][j] = (plus.getReal() - minus.getReal()) / (2 * NSAMPLESTEP);
+            dd_[1][j] = (plus.getImaginary() - minus.getImaginary()) /
+                    (2 * NSAMPLESTEP);
+         }
+      }
+   }
+
+   /**
+    * @return sum of squared residuals of a pixel
+    */
+   private double pixelCost(double[] obs, double a, double b, double h,
+           double[] c, double[] d, double[] k) {
+      double sum = 0.0;
+      for (int j = 0; j < nrAngles_; j++) {
+         final double phi = k[j] * h;
+         final double f = 1 + 2 * (c[j] * Math.cos(phi) - d[j] * Math.sin(phi))
+                 + c[j] * c[j] + d[j] * d[j];
+         final double r = a * f + b - obs[j];
+         sum += r * r;
+      }
+      return sum;
+   }
+
+   private double totalCost(double[][] params, double[] c, double[] d,
+           double[] k) {
+      double sum = 0.0;
+      for (int i = 0; i < params.length; i++) {
+         sum += pixelCost(observed_.get(i), params[i][0], params[i][1],
+                 params[i][2], c, d, k);
+      }
+      return sum;
+   }
+
+   /**
+    * Starting point of a pixel at the current shared parameters: the best
+    * of a range of heights (or the known height), each with A and B by
+    * linear least squares
+    * @return {A, B, h}
+    */
+   private double[] start(double[] obs) {
+      double[] best = {sd_.A_, sd_.B_, Double.isNaN(knownHeight_) ?
+         sd_.heights_[0] : knownHeight_};
+      double bestCost = Double.MAX_VALUE;
+      final double first = Double.isNaN(knownHeight_) ? 0.0 : knownHeight_;
+      final double last = Double.isNaN(knownHeight_) ? UPPERBOUNDS[2] :
+              knownHeight_;
+      for (double h = first; h <= last; h += STARTHEIGHTSTEP) {
+         double sf = 0.0, sff = 0.0, sy = 0.0, sfy = 0.0;
+         for (int j = 0; j < nrAngles_; j++) {
+            final double phi = k_[j] * h;
+            final double f = 1 + 2 * (c_[j] * Math.cos(phi) -
+                    d_[j] * Math.sin(phi)) + c_[j] * c_[j] + d_[j] * d_[j];
+            sf += f;
+            sff += f * f;
+            sy += obs[j];
+            sfy += f * obs[j];
+         }
+         final double det = nrAngles_ * sff - sf * sf;
+         if (!(Math.abs(det) > 0.0)) {
+            continue;
+         }
+         final double a = Math.max(LOWERBOUNDS[0], Math.min(UPPERBOUNDS[0],
+                 (nrAngles_ * sfy - sf * sy) / det));
+         final double b = Math.max(LOWERBOUNDS[1], Math.min(UPPERBOUNDS[1],
+                 (sy - a * sf) / nrAngles_));
+         final double cost = pixelCost(obs, a, b, h, c_, d_, k_);
+         if (cost < bestCost) {
+            bestCost = cost;
+            best = new double[] {a, b, h};
+         }
+      }
+      return best;
+   }
+
+   /**
+    * @return fitted thickness of the oxide layer in nm
+    */
+   public double getDOx() {
+      return dOx_;
+   }
+
+   /**
+    * @return fitted (or, when not fitted, given) refractive index of the
+    *       sample
+    */
+   public double getNSample() {
+      return nSample_;
+   }
+
+   /**
+    * @param i index of the pixel, in order of addition
+    * @return A, B, h of the pixel
+    */
+   public double[] getResult(int i) {
+      return local_[i].clone();
+   }
+
+   /**
+    * @return root mean square of the residuals
+    */
+   public double getRmsResidual() {
+      return Math.sqrt(cost_ / (observed_.size() * nrAngles_));
+   }
+
+   /**
+    * @return number of iterations of the last fit
+    */
+   public int getIterations() {
+      return iterations_;
+   }
+
+}
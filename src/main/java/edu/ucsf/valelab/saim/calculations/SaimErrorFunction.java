@@ -41,11 +41,14 @@ public class SaimErrorFunction implements MultivariateFunction {
    // note that we only use wavelength, dOx and nSample from SaimData
    private final SaimData data_;
    private final Map<Double, Complex> fresnelTE_;
+   private final FastSinCos fastTrig_;
    
    public SaimErrorFunction(SaimData data, Collection<WeightedObservedPoint> observedPoints) {
       data_ = data;
       observedPoints_ = observedPoints;
       fresnelTE_ = new HashMap<Double, Complex>(observedPoints_.size());
+      fastTrig_ = data.fastTrigBits_ > 0 ? 
+              FastSinCos.getInstance(data.fastTrigBits_) : null;
       // pre-calculate all the fresnel coefficients
       for (WeightedObservedPoint observedPoint : observedPoints_) {
          double angle = observedPoint.getX();
@@ -79,8 +82,17 @@ public class SaimErrorFunction implements MultivariateFunction {
                   data_.nSample_, h);
          double c = rTE.getReal();
          double d = rTE.getImaginary();
-         double val = 1 + 2 * c * Math.cos(phaseDiff) - 
-             2 * d * Math.sin(phaseDiff) + c * c + d * d;
+         double cos;
+         double sin;
+         if (fastTrig_ != null) {
+            cos = fastTrig_.cos(phaseDiff);
+            sin = fastTrig_.sin(phaseDiff);
+         } else {
+            cos = Math.cos(phaseDiff);
+            sin = Math.sin(phaseDiff);
+         }
+         double val = 1 + 2 * c * cos - 
+             2 * d * sin + c * c + d * d;
          error += Math.abs(A * val + B - observedPoint.getY());
       }
       return error;
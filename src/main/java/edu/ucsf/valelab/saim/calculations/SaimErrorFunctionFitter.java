@@ -60,7 +60,6 @@ public class SaimErrorFunctionFitter {
               new InitialGuess(guess_),
               new ObjectiveFunction(ser),
               sb);
-      System.out.println("Value: " + results.getValue());
       return results.getPoint();
               
    }
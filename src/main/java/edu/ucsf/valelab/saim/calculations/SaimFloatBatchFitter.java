@@ -0,0 +1,293 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimFloatBatchFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Arrays;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+/**
+ * Single precision version of the SaimBatchFitter.
+ *
+ * Observations, parameters and normal equations are all stored as floats,
+ * which halves the memory traffic of the inner loops.  The lane logic is
+ * shared with SaimBatchFitter (see AbstractSaimBatchFitter).  Single 
+ * precision can not reach the convergence tolerance of the double precision
+ * fitter, so lanes are considered converged at a looser tolerance.  The best
+ * single precision result of every pixel is then checked in double 
+ * precision, and refined with a few iterations of the SaimBatchFitter when
+ * it is not within that looser tolerance of the double precision solution.
+ *
+ * Instances are not thread safe, use one per thread.
+ *
+ * @author nico
+ */
+public class SaimFloatBatchFitter extends AbstractSaimBatchFitter {
+
+   // rows of the state arrays
+   private static final int PA = 0;
+   private static final int PB = 1;
+   private static final int PH = 2;
+   private static final int COST = 3;
+   private static final int J00 = 4;
+   private static final int J01 = 5;
+   private static final int J02 = 6;
+   private static final int J11 = 7;
+   private static final int J12 = 8;
+   private static final int J22 = 9;
+   private static final int R0 = 10;
+   private static final int R1 = 11;
+   private static final int R2 = 12;
+   private static final int NRSTATES = 13;
+
+   // about 100 times the float epsilon
+   private static final double COSTTOLERANCE = 1.0e-5;
+   private static final double PARTOLERANCE = 1.0e-5;
+   private static final double MAXLAMBDA = 1.0e10;
+   // iterations used by the double precision refinement
+   public static final int REFINEITERATIONS = 10;
+
+   // per angle constants in single precision
+   private final float[] fK_;
+   private final float[] fC2_;
+   private final float[] fD2_;
+   private final float[] fF0_;
+   private final float[] fBTerm_;
+
+   // lane buffers
+   private final float[] obs_;
+   private final float[][] cur_;
+   private final float[][] trial_;
+
+   // double precision refinement
+   private final SaimBatchFitter polisher_;
+   private final double[] dProfiles_;
+
+   /**
+    * @param sd SaimData, we will use wavelength_, dOx_, nSample_, useBAngle_
+    *       and fastTrigBits_
+    * @param anglesRadians angles of the (organized) observations
+    * @param blockSize maximum number of pixels fitted together
+    */
+   public SaimFloatBatchFitter(SaimData sd, double[] anglesRadians,
+           int blockSize) {
+      super(sd, anglesRadians, blockSize, COSTTOLERANCE, PARTOLERANCE, 
+              MAXLAMBDA);
+      fK_ = toFloat(k_);
+      fC2_ = toFloat(c2_);
+      fD2_ = toFloat(d2_);
+      fF0_ = toFloat(f0_);
+      fBTerm_ = toFloat(bTerm_);
+      obs_ = new float[nrAngles_ * blockSize_];
+      cur_ = new float[NRSTATES][blockSize_];
+      trial_ = new float[NRSTATES][blockSize_];
+      polisher_ = new SaimBatchFitter(sd, anglesRadians, blockSize);
+      dProfiles_ = new double[nrAngles_ * blockSize_];
+   }
+
+   /**
+    * Fits a block of profiles in single precision starting from each of the
+    * given guesses, and refines the best result for each profile in double
+    * precision when it is not yet converged in double precision.
+    *
+    * @param profiles organized profiles, profile p occupies
+    *       profiles[p * nrAngles, (p + 1) * nrAngles)
+    * @param n number of profiles, should not exceed the block size
+    * @param guesses array of {A, B, h} starting points
+    * @param results 4 values per profile: A, B, h, R-squared.  All 4 are NaN
+    *       when none of the guesses converged.
+    */
+   public void fit(float[] profiles, int n, double[][] guesses,
+           double[] results) {
+      fitSingle(profiles, n, guesses, results);
+      for (int i = 0; i < n * nrAngles_; i++) {
+         dProfiles_[i] = profiles[i];
+      }
+      // R-squared is recalculated in double precision for all pixels, 
+      // only pixels whose double precision step exceeds the single 
+      // precision tolerance are refined
+      polisher_.refine(dProfiles_, n, REFINEITERATIONS, PARTOLERANCE, 
+              results);
+   }
+
+   /**
+    * Same as fit, but without the double precision refinement
+    * @param profiles organized profiles
+    * @param n number of profiles, should not exceed the block size
+    * @param guesses array of {A, B, h} starting points
+    * @param results 4 values per profile: A, B, h, R-squared
+    */
+   public void fitSingle(float[] profiles, int n, double[][] guesses,
+           double[] results) {
+      if (n > blockSize_) {
+         throw new DimensionMismatchException(n, blockSize_);
+      }
+      for (int p = 0; p < n; p++) {
+         for (int i = 0; i < 4; i++) {
+            results[p * 4 + i] = Double.NaN;
+         }
+      }
+      for (double[] guess : guesses) {
+         if (guess.length != 3) {
+            throw new DimensionMismatchException(guess.length, 3);
+         }
+         load(profiles, n, guess);
+         iterate(n, maxIterations_, results);
+      }
+   }
+
+   private void load(float[] profiles, int n, double[] guess) {
+      for (int p = 0; p < n; p++) {
+         float avg = 0.0f;
+         for (int j = 0; j < nrAngles_; j++) {
+            float val = profiles[p * nrAngles_ + j];
+            obs_[j * blockSize_ + p] = val;
+            avg += val;
+         }
+         avg /= nrAngles_;
+         float ssTot = 0.0f;
+         for (int j = 0; j < nrAngles_; j++) {
+            float diff = profiles[p * nrAngles_ + j] - avg;
+            ssTot += diff * diff;
+         }
+         cur_[PA][p] = (float) guess[0];
+         cur_[PB][p] = (float) guess[1];
+         cur_[PH][p] = (float) guess[2];
+         startLane(p, p, ssTot);
+      }
+      evaluate(cur_, n);
+   }
+
+   @Override
+   protected double parameter(boolean trial, int param, int lane) {
+      return trial ? trial_[PA + param][lane] : cur_[PA + param][lane];
+   }
+
+   @Override
+   protected double cost(boolean trial, int lane) {
+      return trial ? trial_[COST][lane] : cur_[COST][lane];
+   }
+
+   @Override
+   protected void normalEquations(int lane, double[] m) {
+      m[M00] = cur_[J00][lane];
+      m[M01] = cur_[J01][lane];
+      m[M02] = cur_[J02][lane];
+      m[M11] = cur_[J11][lane];
+      m[M12] = cur_[J12][lane];
+      m[M22] = cur_[J22][lane];
+      m[MR0] = cur_[R0][lane];
+      m[MR1] = cur_[R1][lane];
+      m[MR2] = cur_[R2][lane];
+   }
+
+   @Override
+   protected void setTrial(int lane, double a, double b, double h) {
+      trial_[PA][lane] = (float) a;
+      trial_[PB][lane] = (float) b;
+      trial_[PH][lane] = (float) h;
+   }
+
+   @Override
+   protected void evaluateTrial(int nActive) {
+      evaluate(trial_, nActive);
+   }
+
+   @Override
+   protected void accept(int lane) {
+      for (int s = 0; s < NRSTATES; s++) {
+         cur_[s][lane] = trial_[s][lane];
+      }
+   }
+
+   @Override
+   protected void moveLaneState(int from, int to) {
+      for (int s = 0; s < NRSTATES; s++) {
+         cur_[s][to] = cur_[s][from];
+         trial_[s][to] = trial_[s][from];
+      }
+      for (int j = 0; j < nrAngles_; j++) {
+         obs_[j * blockSize_ + to] = obs_[j * blockSize_ + from];
+      }
+   }
+
+   private void evaluate(float[][] s, int nActive) {
+      final float[] pA = s[PA];
+      final float[] pB = s[PB];
+      final float[] pH = s[PH];
+      final float[] cost = s[COST];
+      final float[] j00 = s[J00];
+      final float[] j01 = s[J01];
+      final float[] j02 = s[J02];
+      final float[] j11 = s[J11];
+      final float[] j12 = s[J12];
+      final float[] j22 = s[J22];
+      final float[] r0 = s[R0];
+      final float[] r1 = s[R1];
+      final float[] r2 = s[R2];
+      for (int q = COST; q < NRSTATES; q++) {
+         Arrays.fill(s[q], 0, nActive, 0.0f);
+      }
+      for (int j = 0; j < nrAngles_; j++) {
+         final float k = fK_[j];
+         final float c2 = fC2_[j];
+         final float d2 = fD2_[j];
+         final float f0 = fF0_[j];
+         final float b = fBTerm_[j];
+         final int offset = j * blockSize_;
+         for (int p = 0; p < nActive; p++) {
+            float phaseDiff = k * pH[p];
+            float cos;
+            float sin;
+            if (fastTrig_ != null) {
+               fastTrig_.sinCos(phaseDiff, sinCos_);
+               sin = (float) sinCos_[0];
+               cos = (float) sinCos_[1];
+            } else {
+               cos = (float) Math.cos(phaseDiff);
+               sin = (float) Math.sin(phaseDiff);
+            }
+            float f = f0 + c2 * cos - d2 * sin;
+            float gh = -pA[p] * k * (c2 * sin + d2 * cos);
+            float r = obs_[offset + p] - (pA[p] * f + pB[p] * b);
+            cost[p] += r * r;
+            j00[p] += f * f;
+            j01[p] += f * b;
+            j02[p] += f * gh;
+            j11[p] += b * b;
+            j12[p] += b * gh;
+            j22[p] += gh * gh;
+            r0[p] += f * r;
+            r1[p] += b * r;
+            r2[p] += gh * r;
+         }
+      }
+   }
+
+   private static float[] toFloat(double[] values) {
+      float[] result = new float[values.length];
+      for (int i = 0; i < values.length; i++) {
+         result[i] = (float) values[i];
+      }
+      return result;
+   }
+
+}
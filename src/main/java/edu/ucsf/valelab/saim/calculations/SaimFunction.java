@@ -21,6 +21,7 @@
 package edu.ucsf.valelab.saim.calculations;
 
 import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.math3.analysis.ParametricUnivariateFunction;
@@ -37,6 +38,18 @@ public class SaimFunction implements UnivariateFunction,
    protected SaimData sd_;
    protected double angle_ = 0.0;   // input in degrees, internally used in radians
    private final Map<Double, Complex> fresnelTE_;
+   private FastSinCos fastTrig_ = null;
+   private FresnelTable fresnelTable_ = null;
+   private final double[] rTE_ = new double[2];
+   // angle, phase difference, sine and cosine per slice.  Fitters 
+   // calculate the values at all slices in order and then the gradients at 
+   // the same parameters, so the gradient re-uses the sine and cosine of 
+   // the value (see setNrSlices)
+   private double[] sliceTrig_ = new double[0];
+   private int slice_ = 0;
+   private final double[] sinCosOut_ = new double[2];
+   private double lastSin_;
+   private double lastCos_;
    
    public int counter = 0;
    
@@ -92,6 +105,103 @@ public class SaimFunction implements UnivariateFunction,
    public SaimFunction(SaimData sd) {
       sd_ = sd;
       fresnelTE_ = new HashMap<Double, Complex>(100);
+      if (sd.fastTrigBits_ > 0) {
+         fastTrig_ = FastSinCos.getInstance(sd.fastTrigBits_);
+      }
+   }
+   
+   /**
+    * Use table based sine and cosine instead of Math.sin and Math.cos
+    * @param fastTrig FastSinCos to use, or null to use Math
+    */
+   public void setFastTrig(FastSinCos fastTrig) {
+      fastTrig_ = fastTrig;
+      Arrays.fill(sliceTrig_, Double.NaN);
+   }
+   
+   /**
+    * Re-use the sine and cosine of the value in the gradient.  Only for
+    * callers that evaluate the function at all slices in the same order
+    * every time, as AbstractCurveFitter does.
+    * @param nrSlices number of observations, or 0 to calculate sine and 
+    *       cosine on every call
+    */
+   public void setNrSlices(int nrSlices) {
+      if (4 * nrSlices != sliceTrig_.length) {
+         sliceTrig_ = new double[4 * nrSlices];
+         Arrays.fill(sliceTrig_, Double.NaN);
+      }
+      slice_ = 0;
+   }
+   
+   /**
+    * Interpolate the Fresnel coefficients in a table rather than calculating
+    * and caching them for every angle.  Use when angles differ per pixel.
+    * @param fresnelTable table calculated with our wavelength, dOx and 
+    *       nSample, or null to calculate the coefficients
+    */
+   public void setFresnelTable(FresnelTable fresnelTable) {
+      fresnelTable_ = fresnelTable;
+   }
+   
+   /**
+    * Changes the thickness of the oxide layer, for instance for every pixel
+    * when the thickness varies over the image.  Use with a FresnelTable
+    * covering the thicknesses, as the cached coefficients are discarded.
+    * @param dOx thickness of the oxide layer in nm
+    */
+   public void setDOx(double dOx) {
+      if (dOx != sd_.dOx_) {
+         sd_.dOx_ = dOx;
+         fresnelTE_.clear();
+      }
+   }
+   
+   /**
+    * Stores the real and imaginary part of the Fresnel coefficient in rTE_
+    * @param angle angle in radians
+    */
+   private void fresnel(double angle) {
+      if (fresnelTable_ != null) {
+         fresnelTable_.lookup(angle, sd_.dOx_, rTE_);
+      } else {
+         Complex rTE = getFresnelTE(angle);
+         rTE_[0] = rTE.getReal();
+         rTE_[1] = rTE.getImaginary();
+      }
+   }
+   
+   /**
+    * Calculates (or re-uses) sine and cosine of the phase difference
+    * at the current slice and stores them in lastSin_ and lastCos_
+    * @param angle angle in radians
+    * @param phaseDiff 
+    */
+   private void sinCos(double angle, double phaseDiff) {
+      final int i = 4 * slice_;
+      if (i < sliceTrig_.length && sliceTrig_[i] == angle && 
+              sliceTrig_[i + 1] == phaseDiff) {
+         lastSin_ = sliceTrig_[i + 2];
+         lastCos_ = sliceTrig_[i + 3];
+      } else {
+         if (fastTrig_ != null) {
+            fastTrig_.sinCos(phaseDiff, sinCosOut_);
+            lastSin_ = sinCosOut_[0];
+            lastCos_ = sinCosOut_[1];
+         } else {
+            lastSin_ = Math.sin(phaseDiff);
+            lastCos_ = Math.cos(phaseDiff);
+         }
+         if (i < sliceTrig_.length) {
+            sliceTrig_[i] = angle;
+            sliceTrig_[i + 1] = phaseDiff;
+            sliceTrig_[i + 2] = lastSin_;
+            sliceTrig_[i + 3] = lastCos_;
+         }
+      }
+      if (sliceTrig_.length > 0) {
+         slice_ = (slice_ + 1) % (sliceTrig_.length / 4);
+      }
    }
    
    /**
@@ -118,12 +228,13 @@ public class SaimFunction implements UnivariateFunction,
    public double value(double h) {
       counter++;
       
-      Complex rTE = getFresnelTE(angle_);
+      fresnel(angle_);
       double phaseDiff = SaimCalc.PhaseDiff(sd_.wavelength_, angle_, sd_.nSample_, h);
-      double c = rTE.getReal();
-      double d = rTE.getImaginary();
-      double val = 1 + 2 * c * Math.cos(phaseDiff) - 
-             2 * d * Math.sin(phaseDiff) + c * c + d * d;
+      sinCos(angle_, phaseDiff);
+      double c = rTE_[0];
+      double d = rTE_[1];
+      double val = 1 + 2 * c * lastCos_ - 
+             2 * d * lastSin_ + c * c + d * d;
       
       // The following is more literal, but about 10 times slower:
       /**
@@ -182,13 +293,15 @@ public class SaimFunction implements UnivariateFunction,
       double h = parameters[2];
       
       // partial derivative for A is the square of |1+rTE*eiphi(h)|
-      Complex rTE = getFresnelTE(angle_);
+      fresnel(angle_);
       double f = 4.0 * Math.PI * sd_.nSample_ * Math.cos(angle_) / sd_.wavelength_;
-      double phaseDiff = f * h;
-      double c = rTE.getReal();
-      double d = rTE.getImaginary();
-      double val = 1 + 2 * c * Math.cos(phaseDiff) - 
-             2 * d * Math.sin(phaseDiff) + c * c + d * d;
+      // use the same expression as value(), so that sin and cos can be re-used
+      double phaseDiff = SaimCalc.PhaseDiff(sd_.wavelength_, angle_, sd_.nSample_, h);
+      sinCos(angle_, phaseDiff);
+      double c = rTE_[0];
+      double d = rTE_[1];
+      double val = 1 + 2 * c * lastCos_ - 
+             2 * d * lastSin_ + c * c + d * d;
 
       // partial derivative for B is 1 or angle
       double bDerivative = 1.0;
@@ -200,8 +313,8 @@ public class SaimFunction implements UnivariateFunction,
       // where f = phaseDiffFactor
       // c = rTE.Real(), and d = rTE.Imaginary()
 
-      double pdh =  - 2 * A *  f *  ( c * Math.sin(phaseDiff) +  
-               d  * Math.cos(phaseDiff) );
+      double pdh =  - 2 * A *  f *  ( c * lastSin_ +  
+               d  * lastCos_ );
       
       double result[] = {val, bDerivative, pdh};
       return result;
@@ -44,6 +44,7 @@ public class SaimFunctionFitter extends AbstractCurveFitter {
    private final SaimFunction saimFunction_;
    private double[] guess_ = { 1.0, 1.0, 1.0 };
    private int maxIterations_ = 100;
+   private int maxEvaluations_ = Integer.MAX_VALUE;
 
    public SaimFunctionFitter(double wavelength, double dOx, double nSample, 
            boolean useBAngle) {
@@ -57,10 +58,42 @@ public class SaimFunctionFitter extends AbstractCurveFitter {
       guess_ = guess;
    }
    
+   /**
+    * Use table based sine and cosine in the model function
+    * @param fastTrig FastSinCos to use, or null to use Math
+    */
+   public void setFastTrig(FastSinCos fastTrig) {
+      saimFunction_.setFastTrig(fastTrig);
+   }
+   
+   /**
+    * Interpolate the Fresnel coefficients in a table, see SaimFunction
+    * @param fresnelTable table, or null to calculate the coefficients
+    */
+   public void setFresnelTable(FresnelTable fresnelTable) {
+      saimFunction_.setFresnelTable(fresnelTable);
+   }
+   
+   /**
+    * @param dOx thickness of the oxide layer in nm, see SaimFunction.setDOx
+    */
+   public void setDOx(double dOx) {
+      saimFunction_.setDOx(dOx);
+   }
+   
    public void setMaxIterations (int val) {
       maxIterations_ = val;
    }
 
+   /**
+    * Limits the number of model evaluations, the fit will throw a 
+    * TooManyEvaluationsException when it exceeds this number
+    * @param val maximum number of evaluations
+    */
+   public void setMaxEvaluations (int val) {
+      maxEvaluations_ = val;
+   }
+
    public int getCalcCount() {
       return saimFunction_.counter;
    }
@@ -81,6 +114,8 @@ public class SaimFunctionFitter extends AbstractCurveFitter {
          weights[i] = point.getWeight();
          i += 1;
       }
+      // values and gradients are evaluated at all points in order
+      saimFunction_.setNrSlices(len);
 
       final AbstractCurveFitter.TheoreticalValuesFunction model = 
               new AbstractCurveFitter.TheoreticalValuesFunction(
@@ -96,7 +131,7 @@ public class SaimFunctionFitter extends AbstractCurveFitter {
       ParameterValidator spv = new SaimParameterValidator(lowerBounds, upperBounds);
       
       return new LeastSquaresBuilder().
-              maxEvaluations(Integer.MAX_VALUE).
+              maxEvaluations(maxEvaluations_).
               maxIterations(maxIterations_).
               lazyEvaluation(true).
               //checker(checker).
@@ -0,0 +1,200 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          SaimHeightFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.IntensityData;
+import edu.ucsf.valelab.saim.data.IntensityDataItem;
+
+/**
+ * Fits the height of a single pixel while A and/or B are held fixed.
+ * The height is found with scalar Gauss-Newton steps (halved until the
+ * error decreases), and a parameter that is not fixed is calculated
+ * exactly (linear least squares) at every height.  This is much cheaper
+ * than the full fit with SaimFunctionFitter, and gives less noisy heights
+ * when A and B are known, for instance from a smoothed earlier fit.
+ *
+ * The model (Fresnel table, oxide thickness) is that of the given
+ * SaimFunction.  Not thread safe, use one instance per thread.
+ *
+ * @author nico
+ */
+public class SaimHeightFitter {
+
+   public static final double MINHEIGHT = 0.0;
+   public static final double MAXHEIGHT = 1000.0;
+   public static final double MAXAB = 64000.0;
+   // step (nm) below which the height is considered converged
+   private static final double TOLERANCE = 1.0e-4;
+   private static final int MAXHALVINGS = 20;
+
+   private final SaimFunction sf_;
+   private int maxIterations_ = 50;
+   private double[] angles_ = new double[0];
+   private double[] intensities_ = new double[0];
+   private double[] f_ = new double[0];   // F(h) at every angle
+   private double[] df_ = new double[0];  // dF/dh at every angle
+   private int n_ = 0;
+   private final double[] unit_ = new double[] {1.0, 0.0, 0.0};
+
+   /**
+    * @param sf function that calculates F (the field strength) and its
+    *       derivative
+    */
+   public SaimHeightFitter(SaimFunction sf) {
+      sf_ = sf;
+   }
+
+   public void setMaxIterations(int maxIterations) {
+      maxIterations_ = maxIterations;
+   }
+
+   /**
+    * Fits the height starting at each of the given heights, and returns
+    * the result with the smallest sum of squared residuals
+    * @param observed organized profile of the pixel
+    * @param a A, used when fitA is false
+    * @param b B, used when fitB is false
+    * @param fitA calculate A rather than using a
+    * @param fitB calculate B rather than using b
+    * @param heights starting heights
+    * @return {A, B, h}, or null when no starting height gave a usable result
+    */
+   public double[] fit(IntensityData observed, double a, double b,
+           boolean fitA, boolean fitB, double[] heights) {
+      setData(observed);
+      double[] best = null;
+      double bestCost = Double.MAX_VALUE;
+      final double[] ab = new double[2];
+      final double[] trial = new double[2];
+      for (double start : heights) {
+         double h = Math.max(MINHEIGHT, Math.min(MAXHEIGHT, start));
+         double cost = evaluate(h, a, b, fitA, fitB, ab);
+         for (int i = 0; i < maxIterations_ && !Double.isNaN(cost); i++) {
+            // Gauss-Newton step for h, with A and B at their current values
+            double g = 0.0;
+            double hss = 0.0;
+            for (int j = 0; j < n_; j++) {
+               final double r = ab[0] * f_[j] + ab[1] - intensities_[j];
+               final double jac = ab[0] * df_[j];
+               g += jac * r;
+               hss += jac * jac;
+            }
+            if (!(hss > 0.0)) {
+               break;
+            }
+            double step = -g / hss;
+            double trialH = h;
+            double trialCost = Double.NaN;
+            int halvings = 0;
+            for (; halvings < MAXHALVINGS; halvings++) {
+               trialH = Math.max(MINHEIGHT, Math.min(MAXHEIGHT, h + step));
+               trialCost = evaluate(trialH, a, b, fitA, fitB, trial);
+               if (trialCost < cost) {
+                  break;
+               }
+               step *= 0.5;
+            }
+            if (halvings == MAXHALVINGS) {
+               // no step downhill, h is at a minimum (or a bound)
+               break;
+            }
+            final double change = Math.abs(trialH - h);
+            h = trialH;
+            cost = trialCost;
+            ab[0] = trial[0];
+            ab[1] = trial[1];
+            if (change < TOLERANCE) {
+               break;
+            }
+         }
+         if (!Double.isNaN(cost) && cost < bestCost) {
+            bestCost = cost;
+            best = new double[] {ab[0], ab[1], h};
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Copies angles and intensities into arrays
+    */
+   private void setData(IntensityData observed) {
+      n_ = observed.size();
+      if (angles_.length < n_) {
+         angles_ = new double[n_];
+         intensities_ = new double[n_];
+         f_ = new double[n_];
+         df_ = new double[n_];
+      }
+      int j = 0;
+      for (IntensityDataItem item : observed.getDataList()) {
+         angles_[j] = item.getAngleRadians();
+         intensities_[j] = item.getIntensity();
+         j++;
+      }
+   }
+
+   /**
+    * Calculates F and dF/dh at height h, A and B (the ones that are not
+    * fixed are solved by linear least squares), and the sum of squared
+    * residuals
+    * @param ab destination for A and B
+    * @return sum of squared residuals, NaN when A and B can not be solved
+    */
+   private double evaluate(double h, double a, double b, boolean fitA,
+           boolean fitB, double[] ab) {
+      unit_[2] = h;
+      double sf1 = 0.0, sff = 0.0, sy = 0.0, sfy = 0.0;
+      for (int j = 0; j < n_; j++) {
+         final double[] gradient = sf_.gradient(angles_[j], unit_);
+         f_[j] = gradient[0];
+         df_[j] = gradient[2];
+         sf1 += f_[j];
+         sff += f_[j] * f_[j];
+         sy += intensities_[j];
+         sfy += f_[j] * intensities_[j];
+      }
+      if (fitA && fitB) {
+         final double det = n_ * sff - sf1 * sf1;
+         if (!(Math.abs(det) > 1.0e-12 * n_ * sff)) {
+            return Double.NaN;
+         }
+         a = (n_ * sfy - sf1 * sy) / det;
+         b = (sy - a * sf1) / n_;
+      } else if (fitA) {
+         if (!(sff > 0.0)) {
+            return Double.NaN;
+         }
+         a = (sfy - b * sf1) / sff;
+      } else if (fitB) {
+         b = (sy - a * sf1) / n_;
+      }
+      ab[0] = Math.max(0.0, Math.min(MAXAB, a));
+      ab[1] = Math.max(0.0, Math.min(MAXAB, b));
+      double cost = 0.0;
+      for (int j = 0; j < n_; j++) {
+         final double r = ab[0] * f_[j] + ab[1] - intensities_[j];
+         cost += r * r;
+      }
+      return cost;
+   }
+
+}
@@ -24,6 +24,8 @@ import edu.ucsf.valelab.saim.data.IntensityData;
 import edu.ucsf.valelab.saim.data.IntensityDataItem;
 import edu.ucsf.valelab.saim.data.SaimData;
 import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.exception.TooManyIterationsException;
 
 /**
  * Collection of static utility functions for the data structures used in 
@@ -79,6 +81,139 @@ public class SaimUtils {
       }
    }
    
+   /**
+    * Creates a SaimFunctionFitter for the settings, using table based sine 
+    * and cosine when SaimData asks for it
+    * @param sd settings, we will use wavelength_, dOx_, nSample_ and 
+    *       fastTrigBits_
+    * @param useBAngle use B or B * Angle in the function
+    * @param fresnelTable table of Fresnel coefficients, or null to calculate
+    *       them
+    * @return SaimFunctionFitter
+    */
+   public static SaimFunctionFitter createFitter(SaimData sd, 
+           boolean useBAngle, FresnelTable fresnelTable) {
+      final SaimFunctionFitter sff = new SaimFunctionFitter(sd.wavelength_,
+              sd.dOx_, sd.nSample_, useBAngle);
+      if (sd.fastTrigBits_ > 0) {
+         sff.setFastTrig(FastSinCos.getInstance(sd.fastTrigBits_));
+      }
+      sff.setFresnelTable(fresnelTable);
+      return sff;
+   }
+   
+   /**
+    * Creates the SaimFunction that goes with a fitter of createFitter, for 
+    * instance to calculate R-squared
+    * @param sd settings, we will use wavelength_, dOx_, nSample_ and 
+    *       fastTrigBits_.  SaimFunction stores A and B in its SaimData, so it
+    *       gets a copy, and sd is not changed
+    * @param useBAngle use B or B * Angle in the function, should be the same
+    *       as for the fitter
+    * @param fresnelTable table of Fresnel coefficients, or null to calculate
+    *       them
+    * @return SaimFunction
+    */
+   public static SaimFunction createFunction(SaimData sd, boolean useBAngle,
+           FresnelTable fresnelTable) {
+      final SaimData cp = sd.copy();
+      cp.useBAngle_ = useBAngle;
+      final SaimFunction sf = new SaimFunction(cp);
+      sf.setFresnelTable(fresnelTable);
+      return sf;
+   }
+   
+   /**
+    * Fits a profile starting at each of the guesses, and keeps the result 
+    * with the highest R-squared.  Guesses that do not converge are skipped.
+    * @param sff fitter
+    * @param sf function used to calculate R-squared, with the same model as
+    *       the fitter
+    * @param observed organized profile
+    * @param calculated scratch space
+    * @param guesses {A, B, h} starting points
+    * @return {A, B, h, R-squared}, or null when none of the guesses converged
+    * @throws InvalidInputException 
+    */
+   public static double[] fitBest(SaimFunctionFitter sff, SaimFunction sf,
+           IntensityData observed, IntensityData calculated, 
+           double[][] guesses) throws InvalidInputException {
+      double[] best = null;
+      for (double[] guess : guesses) {
+         try {
+            sff.setGuess(guess);
+            double[] result = sff.fit(observed.getWeightedObservedPoints());
+            calculated.clear();
+            predictValues(observed, calculated, result, sf);
+            double r2 = getRSquared(observed, calculated);
+            if (best == null || r2 > best[3]) {
+               best = new double[] {result[0], result[1], result[2], r2};
+            }
+         } catch (TooManyIterationsException tiex) {
+            // try the next guess
+         } catch (TooManyEvaluationsException teex) {
+            // try the next guess
+         }
+      }
+      return best;
+   }
+   
+   /**
+    * Estimate of the signal to noise ratio of a profile: the modulation
+    * (maximum - minimum) over the shot noise at the mean intensity
+    * @param values profile
+    * @return signal to noise ratio, 0 for flat or empty profiles
+    */
+   public static float snr(float[] values) {
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      double sum = 0.0;
+      for (float v : values) {
+         min = Math.min(min, v);
+         max = Math.max(max, v);
+         sum += v;
+      }
+      final double mean = sum / values.length;
+      if (!(mean > 0.0) || !(max > min)) {
+         return 0.0f;
+      }
+      return (float) ((max - min) / Math.sqrt(mean));
+   }
+
+   /**
+    * For a given height, the SAIM function is linear in A and B.  This
+    * calculates A and B by linear least squares, with B multiplied by the
+    * angle when the function uses B * angle.
+    * @param observed - observed data set
+    * @param h - height in nm
+    * @param sf - SaimFunction, generated with the appropriate parameters
+    * @return {A, B, h}, or null when A and B can not be determined (the 
+    *       field strength does not vary independently of the B term)
+    */
+   public static double[] fitAB(IntensityData observed, double h, 
+           SaimFunction sf) {
+      final double[] unitA = new double[] {1.0, 0.0, h};
+      final double[] unitB = new double[] {0.0, 1.0, h};
+      double sff = 0.0, sfg = 0.0, sgg = 0.0, sfy = 0.0, sgy = 0.0;
+      for (IntensityDataItem item : observed.getDataList()) {
+         // f multiplies A, g (1 or the angle) multiplies B
+         double f = sf.value(item.getAngleRadians(), unitA);
+         double g = sf.value(item.getAngleRadians(), unitB);
+         sff += f * f;
+         sfg += f * g;
+         sgg += g * g;
+         sfy += f * item.getIntensity();
+         sgy += g * item.getIntensity();
+      }
+      final double det = sff * sgg - sfg * sfg;
+      if (!(Math.abs(det) > 1.0e-12 * sff * sgg)) {
+         return null;
+      }
+      final double A = (sgg * sfy - sfg * sgy) / det;
+      final double B = (sff * sgy - sfg * sfy) / det;
+      return new double[] {A, B, h};
+   }
+   
    /**
     * Organizes input data based on requirement to average values for 
     * positive and negative angles and whether there are two observations
@@ -20,8 +20,14 @@
 
 package edu.ucsf.valelab.saim.data;
 
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * Very simple data structure to hold parameters that are used over and over
@@ -32,7 +38,35 @@ public class SaimData implements Serializable {
    
    private static final long serialVersionUID = 8172353819825617L;
    
-   public static final String VERSION = "1";  // Increase whenever this object changes
+   public static final String VERSION = "17";  // Increase whenever this object changes
+   
+   /**
+    * Available fitting engines.
+    * SINGLE_PIXEL fits one pixel at a time with SaimFunctionFitter,
+    * BATCH fits blocks of pixels in lock-step with SaimBatchFitter,
+    * BATCH_FLOAT does the same in single precision with SaimFloatBatchFitter
+    */
+   public static enum Engine {
+      SINGLE_PIXEL ("Per pixel"),
+      BATCH ("Batched"),
+      BATCH_FLOAT ("Batched, single precision");
+      
+      private final String label_;
+      Engine(String label) {
+         label_ = label;
+      }
+      public String getLabel() {
+         return label_;
+      }
+      public static String[] getLabels() {
+         Engine[] engines = Engine.values();
+         String[] labels = new String[engines.length];
+         for (int i = 0; i < engines.length; i++) {
+            labels[i] = engines[i].getLabel();
+         }
+         return labels;
+      }
+   }
    
    public double wavelength_ = 488.0;
    public double nSample_ = 1.36;
@@ -48,6 +82,49 @@ public class SaimData implements Serializable {
    public boolean useBAngle_ = false;
    public String flatFieldFile_ = "";
    public String backgroundFile_ = "";
+   // image with the offset (in degrees) of the angle of every pixel
+   public String angleOffsetFile_ = "";
+   // image with the thickness of the oxide layer (nm) under every pixel
+   public String dOxFile_ = "";
+   public double[] laserPower_ = new double[0];  // per angle, empty: no correction
+   public Engine engine_ = Engine.SINGLE_PIXEL;
+   public int fastTrigBits_ = 0;  // table size for FastSinCos, 0: use Math
+   public int binning_ = 1;  // fit binning_ x binning_ pixels as one
+   public boolean binSum_ = false;  // sum binned pixels rather than average
+   public boolean checkpoint_ = false;  // save finished tiles to resume later
+   // budget per guess in the first pass, pixels exceeding it are retried 
+   // at the end.  0: no budget
+   public int fastIterations_ = 20;
+   public int fastEvaluations_ = 60;
+   // seconds after which fitting stops, brightest pixels are fitted first.
+   // 0: no deadline
+   public double deadlineSeconds_ = 0.0;
+   public boolean deadlineSnr_ = false;  // prioritize on SNR, not intensity
+   // refit failed pixels and pixels with R-squared below repairR2_ 
+   // starting from their neighbours
+   public boolean repair_ = true;
+   public double repairR2_ = 0.5;
+   // reuse the height of a neighbour whose profile differs less than this
+   // times the shot noise.  0: always fit
+   public double reuseTolerance_ = 0.0;
+   // group neighbouring pixels in square bins (at most adaptiveMaxBin_ wide)
+   // until each bin reaches this signal to noise ratio.  0: off
+   public double adaptiveSnr_ = 0.0;
+   public int adaptiveMaxBin_ = 16;
+   // hold A and/or B fixed and fit the height only.  Fixed values are taken
+   // from abFile_ (an earlier fit result) when given, otherwise from A_ and B_
+   public boolean fixA_ = false;
+   public boolean fixB_ = false;
+   public String abFile_ = "";
+   // fit all parameters, smooth the A and B images with a Gaussian of this
+   // sigma (in binned pixels), and refit the height with A and B fixed.
+   // 0: off
+   public double twoStageSigma_ = 0.0;
+   // reuse results of earlier fits of the same data (see ResultCache)
+   public boolean resultCache_ = false;
+   // run the tiles through a pipeline of read, correct, fit and write
+   // stages (see FitPipeline)
+   public boolean pipeline_ = false;
    
    public SaimData copy() {
       SaimData cp = new SaimData();
@@ -62,9 +139,120 @@ public class SaimData implements Serializable {
       cp.threshold_ = threshold_;
       cp.mirrorAround0_ = mirrorAround0_;
       cp.zeroDoubled_ = zeroDoubled_;
+      cp.useBAngle_ = useBAngle_;
+      cp.flatFieldFile_ = flatFieldFile_;
+      cp.backgroundFile_ = backgroundFile_;
+      cp.angleOffsetFile_ = angleOffsetFile_;
+      cp.dOxFile_ = dOxFile_;
+      cp.laserPower_ = laserPower_;
+      cp.engine_ = engine_;
+      cp.fastTrigBits_ = fastTrigBits_;
+      cp.binning_ = binning_;
+      cp.binSum_ = binSum_;
+      cp.checkpoint_ = checkpoint_;
+      cp.fastIterations_ = fastIterations_;
+      cp.fastEvaluations_ = fastEvaluations_;
+      cp.deadlineSeconds_ = deadlineSeconds_;
+      cp.deadlineSnr_ = deadlineSnr_;
+      cp.repair_ = repair_;
+      cp.repairR2_ = repairR2_;
+      cp.reuseTolerance_ = reuseTolerance_;
+      cp.adaptiveSnr_ = adaptiveSnr_;
+      cp.adaptiveMaxBin_ = adaptiveMaxBin_;
+      cp.fixA_ = fixA_;
+      cp.fixB_ = fixB_;
+      cp.abFile_ = abFile_;
+      cp.twoStageSigma_ = twoStageSigma_;
+      cp.resultCache_ = resultCache_;
+      cp.pipeline_ = pipeline_;
       return cp;
    }
    
+   /**
+    * Represents all settings as key=value pairs, for instance to be saved
+    * as a parameter file.  Keys are the names of the fields without the 
+    * trailing underscore, arrays are comma separated.
+    * @return settings
+    */
+   public Properties toProperties() {
+      Properties properties = new Properties();
+      for (Map.Entry<String, Field> entry : settingFields().entrySet()) {
+         try {
+            Object value = entry.getValue().get(this);
+            properties.setProperty(entry.getKey(), value instanceof double[] ?
+                    toString((double[]) value) : String.valueOf(value));
+         } catch (IllegalAccessException ex) {
+            // settings are public fields
+            throw new IllegalStateException(ex);
+         }
+      }
+      return properties;
+   }
+   
+   /**
+    * Reads settings written by toProperties.  Settings that are missing keep
+    * their default value.
+    * @param properties settings
+    * @return new SaimData
+    * @throws InvalidInputException for unknown keys or invalid values
+    */
+   public static SaimData fromProperties(Properties properties) 
+           throws InvalidInputException {
+      SaimData sd = new SaimData();
+      Map<String, Field> fields = settingFields();
+      for (String key : properties.stringPropertyNames()) {
+         Field field = fields.get(key);
+         if (field == null) {
+            throw new InvalidInputException("Unknown setting: " + key);
+         }
+         String value = properties.getProperty(key).trim();
+         Class<?> type = field.getType();
+         try {
+            if (type == double.class) {
+               field.setDouble(sd, Double.parseDouble(value));
+            } else if (type == int.class) {
+               field.setInt(sd, Integer.parseInt(value));
+            } else if (type == boolean.class) {
+               // parseBoolean would turn anything else into false
+               if (!value.equalsIgnoreCase("true") &&
+                       !value.equalsIgnoreCase("false")) {
+                  throw new IllegalArgumentException(value);
+               }
+               field.setBoolean(sd, Boolean.parseBoolean(value));
+            } else if (type == double[].class) {
+               field.set(sd, value.isEmpty() ? new double[0] : 
+                       fromString(value));
+            } else if (type == Engine.class) {
+               field.set(sd, Engine.valueOf(value));
+            } else {
+               field.set(sd, value);
+            }
+         } catch (IllegalArgumentException ex) {
+            throw new InvalidInputException("Invalid value for " + key + 
+                    ": " + value);
+         } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+         }
+      }
+      return sd;
+   }
+   
+   /**
+    * @return the public settings fields by name without trailing underscore
+    */
+   private static Map<String, Field> settingFields() {
+      Map<String, Field> fields = new LinkedHashMap<String, Field>();
+      for (Field field : SaimData.class.getFields()) {
+         final int modifiers = field.getModifiers();
+         final String name = field.getName();
+         if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) &&
+                 name.endsWith("_")) {
+            fields.put(name.substring(0, name.length() - 1), field);
+         }
+      }
+      return fields;
+   }
+   
    /**
     * Utility function to represent heights array to the user 
     * Array will be represented as:
@@ -0,0 +1,257 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          JobDirectory.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Shared directory through which a TileCoordinator hands out TileJobs to
+ * any number of TileWorkers (in other processes, possibly on other hosts)
+ * and collects their TileResults.
+ *
+ * All state lives in file names:
+ *    tile-NNNNNN.job              job waiting to be claimed
+ *    tile-NNNNNN.claimed-WORKER   job claimed by WORKER
+ *    tile-NNNNNN.result           finished tile
+ * Files are always written under a temporary name and renamed into place,
+ * and a worker claims a job by renaming it.  Since a rename is atomic
+ * (also on NFS), every job is claimed by exactly one worker and readers never
+ * see partially written files.  A worker that dies leaves its claim behind,
+ * requeueStale returns such jobs to the queue.
+ *
+ * Jobs and results are stored in a plain data format of their own (see
+ * TileJob and TileResult) rather than as serialized objects, since anyone
+ * who can write to the directory can put files in it.
+ *
+ * @author nico
+ */
+public class JobDirectory {
+
+   public static final String JOBEXTENSION = ".job";
+   public static final String CLAIMEDEXTENSION = ".claimed-";
+   public static final String RESULTEXTENSION = ".result";
+   private static final String PREFIX = "tile-";
+   private static final String TMPEXTENSION = ".part";
+
+   private final File dir_;
+
+   /**
+    * @param dir directory shared by coordinator and workers, will be created
+    *       if it does not exist
+    * @throws IOException when the directory can not be created
+    */
+   public JobDirectory(File dir) throws IOException {
+      dir_ = dir;
+      if (!dir_.isDirectory() && !dir_.mkdirs()) {
+         throw new IOException("Failed to create job directory " + dir);
+      }
+   }
+
+   public File getDirectory() {
+      return dir_;
+   }
+
+   /**
+    * Makes a job available to workers
+    * @param job tile to be fitted
+    * @throws IOException
+    */
+   public void submit(TileJob job) throws IOException {
+      writeAtomically(job.toBytes(), 
+              new File(dir_, name(job.index_) + JOBEXTENSION));
+   }
+
+   /**
+    * Tries to claim one of the waiting jobs
+    * @param workerId identifier of the worker, should be unique among all
+    *       workers using this directory and be usable in a file name
+    * @return claimed job, or null when no jobs are waiting
+    * @throws IOException
+    */
+   public TileJob claim(String workerId) throws IOException {
+      String[] jobs = list(JOBEXTENSION);
+      for (String job : jobs) {
+         String base = job.substring(0, job.length() - JOBEXTENSION.length());
+         File waiting = new File(dir_, job);
+         File claimed = new File(dir_, base + CLAIMEDEXTENSION + workerId);
+         // renaming keeps the time of submission, requeueStale needs the 
+         // time of the claim.  Set it before the rename, so that a claim
+         // never appears with the old time and gets requeued right away.
+         waiting.setLastModified(System.currentTimeMillis());
+         if (waiting.renameTo(claimed)) {
+            DataInputStream in = open(claimed);
+            try {
+               return TileJob.read(in);
+            } finally {
+               in.close();
+            }
+         }
+         // another worker was faster, try the next one
+      }
+      return null;
+   }
+
+   /**
+    * Stores the result of a claimed job and releases the claim
+    * @param result fitted tile
+    * @param workerId identifier of the worker that claimed the job
+    * @throws IOException
+    */
+   public void complete(TileResult result, String workerId) throws IOException {
+      store(result);
+      File claimed = new File(dir_, name(result.index_) + CLAIMEDEXTENSION +
+              workerId);
+      if (!claimed.delete()) {
+         // the claim was requeued, take the job out of the queue if no 
+         // other worker claimed it yet
+         new File(dir_, name(result.index_) + JOBEXTENSION).delete();
+      }
+   }
+
+   /**
+    * Stores a result without a preceding claim
+    * @param result fitted tile
+    * @throws IOException
+    */
+   public void store(TileResult result) throws IOException {
+      writeAtomically(result.toBytes(), resultFile(result.index_));
+   }
+
+   /**
+    * @param index tile index
+    * @return true when the result for this tile is available
+    */
+   public boolean hasResult(int index) {
+      return resultFile(index).isFile();
+   }
+
+   /**
+    * @param index tile index
+    * @return result of the tile
+    * @throws IOException when the result is not there or can not be read
+    */
+   public TileResult readResult(int index) throws IOException {
+      DataInputStream in = open(resultFile(index));
+      try {
+         return TileResult.read(in);
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Returns claimed jobs that were not completed within the given time to
+    * the queue, so that another worker can pick them up.
+    * @param maxAgeMs claims older than this (in ms) are considered stale
+    * @return number of jobs that were requeued
+    */
+   public int requeueStale(long maxAgeMs) {
+      int count = 0;
+      final long now = System.currentTimeMillis();
+      for (String claim : list(null)) {
+         int pos = claim.indexOf(CLAIMEDEXTENSION);
+         if (pos < 0) {
+            continue;
+         }
+         File claimed = new File(dir_, claim);
+         if (now - claimed.lastModified() > maxAgeMs &&
+                 claimed.renameTo(new File(dir_, claim.substring(0, pos) +
+                         JOBEXTENSION))) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * @return number of jobs that have not been claimed yet
+    */
+   public int nrWaiting() {
+      return list(JOBEXTENSION).length;
+   }
+
+   /**
+    * Removes all job, claim and result files
+    */
+   public void clear() {
+      for (String name : list(null)) {
+         new File(dir_, name).delete();
+      }
+   }
+
+   private File resultFile(int index) {
+      return new File(dir_, name(index) + RESULTEXTENSION);
+   }
+
+   private static String name(int index) {
+      return String.format("%s%06d", PREFIX, index);
+   }
+
+   /**
+    * @param extension file extension, or null for all files of ours
+    * @return sorted names of matching files in the job directory
+    */
+   private String[] list(final String extension) {
+      String[] names = dir_.list(new FilenameFilter() {
+         @Override
+         public boolean accept(File dir, String name) {
+            return name.startsWith(PREFIX) &&
+                    (extension == null || name.endsWith(extension));
+         }
+      });
+      if (names == null) {
+         return new String[0];
+      }
+      Arrays.sort(names);
+      return names;
+   }
+
+   private void writeAtomically(byte[] data, File target) throws IOException {
+      File tmp = File.createTempFile(PREFIX, TMPEXTENSION, dir_);
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+         out.write(data);
+      } finally {
+         out.close();
+      }
+      if (!tmp.renameTo(target)) {
+         // renameTo does not replace existing files on all platforms
+         target.delete();
+         if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Failed to write " + target);
+         }
+      }
+   }
+
+   private static DataInputStream open(File file) throws IOException {
+      return new DataInputStream(new BufferedInputStream(
+              new FileInputStream(file)));
+   }
+
+}
@@ -0,0 +1,216 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TileCoordinator.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import edu.ucsf.valelab.saim.StackFit;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import edu.ucsf.valelab.saim.preferences.SaimPrefs;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits the fit of a stack into tiles, hands these out to TileWorkers through
+ * a JobDirectory, and merges the fitted tiles into the 4 output images
+ * (height, R-squared, A, B) that SaimFit produces.
+ *
+ * The stack has to be readable by all workers under the same path, i.e.
+ * it should be on the shared file system, as should the background and flat
+ * field files if these are used.
+ *
+ * Command line use (settings are those last used in the SaimFit dialog):
+ *    java -cp [classpath] edu.ucsf.valelab.saim.distributed.TileCoordinator
+ *         stack.tif jobDirectory tileSize output.tif
+ *
+ * @author nico
+ */
+public class TileCoordinator {
+
+   public static final long DEFAULTSTALEMS = 10 * 60 * 1000;
+   private static final long POLLINTERVALMS = 250;
+
+   private final JobDirectory jobDir_;
+   private final ImagePlus ip_;
+   private final SaimData sd_;
+   private final int width_;
+   private final int height_;
+   private int nrTiles_ = 0;
+
+   /**
+    * @param jobDir Job directory shared with the workers
+    * @param ip stack that will be fitted, read only to repair the merged fit
+    * @param sd settings, we use binning_ to calculate the output size
+    */
+   public TileCoordinator(JobDirectory jobDir, ImagePlus ip, SaimData sd) {
+      jobDir_ = jobDir;
+      ip_ = ip;
+      sd_ = sd;
+      width_ = ip.getWidth() / sd.binning_;
+      height_ = ip.getHeight() / sd.binning_;
+   }
+
+   /**
+    * Clears the job directory and submits one job per tile
+    * @param imagePath path to the stack, as seen by the workers
+    * @param sd settings used for the fit
+    * @param tileSize width and height of the tiles (in output pixels)
+    * @return number of tiles
+    * @throws IOException
+    */
+   public int submit(String imagePath, SaimData sd, int tileSize)
+           throws IOException {
+      if (tileSize < 1) {
+         throw new IOException("Tile size should be at least 1");
+      }
+      jobDir_.clear();
+      List<TileJob> tiles = createTiles(imagePath, sd, width_, height_, 
+              tileSize);
+      for (TileJob tile : tiles) {
+         jobDir_.submit(tile);
+      }
+      nrTiles_ = tiles.size();
+      return nrTiles_;
+   }
+
+   /**
+    * Splits an image in tiles, row by row
+    * @param imagePath path to the stack
+    * @param sd settings, every tile gets its own copy
+    * @param width width of the (binned) output image
+    * @param height height of the (binned) output image
+    * @param tileSize width and height of the tiles, tiles at the right and
+    *       bottom edge can be smaller
+    * @return tiles, with index equal to their position in the list
+    */
+   public static List<TileJob> createTiles(String imagePath, SaimData sd,
+           int width, int height, int tileSize) {
+      List<TileJob> tiles = new ArrayList<TileJob>();
+      for (int y = 0; y < height; y += tileSize) {
+         for (int x = 0; x < width; x += tileSize) {
+            tiles.add(new TileJob(tiles.size(), imagePath, sd.copy(), x, y,
+                    Math.min(tileSize, width - x),
+                    Math.min(tileSize, height - y)));
+         }
+      }
+      return tiles;
+   }
+
+   /**
+    * Waits for all tiles to be fitted, and merges them.  Pixels not
+    * fitted are 0, and failed and poorly fitted pixels are refitted
+    * afterwards (see FitRepair), just as in SaimFit.
+    * @param timeoutMs give up when not all tiles are done after this time
+    * @param staleMs claims older than this are handed to another worker
+    * @return output images: height, R-squared, A, B
+    * @throws IOException when a result can not be read
+    * @throws InterruptedException
+    * @throws TimeoutException when not all tiles were done in time
+    */
+   public FloatProcessor[] merge(long timeoutMs, long staleMs)
+           throws IOException, InterruptedException, TimeoutException {
+      final FloatProcessor[] output = new FloatProcessor[4];
+      for (int i = 0; i < output.length; i++) {
+         output[i] = new FloatProcessor(width_, height_);
+      }
+      final boolean[] merged = new boolean[nrTiles_];
+      int nrMerged = 0;
+      final long start = System.currentTimeMillis();
+      while (nrMerged < nrTiles_) {
+         for (int t = 0; t < nrTiles_; t++) {
+            if (!merged[t] && jobDir_.hasResult(t)) {
+               jobDir_.readResult(t).paste(output);
+               merged[t] = true;
+               nrMerged++;
+               IJ.showProgress(nrMerged, nrTiles_);
+            }
+         }
+         if (nrMerged < nrTiles_) {
+            if (System.currentTimeMillis() - start > timeoutMs) {
+               throw new TimeoutException("Only " + nrMerged + " of " +
+                       nrTiles_ + " tiles were fitted");
+            }
+            int requeued = jobDir_.requeueStale(staleMs);
+            if (requeued > 0) {
+               IJ.log("Requeued " + requeued + " tiles");
+            }
+            Thread.sleep(POLLINTERVALMS);
+         }
+      }
+      // repair needs the neighbours of a pixel, which may be in other tiles
+      if (sd_.repair_) {
+         try {
+            new StackFit(ip_, sd_, Runtime.getRuntime().availableProcessors()).
+                    repair(output);
+         } catch (InvalidInputException ex) {
+            IJ.log("Repair failed: " + ex.getMessage());
+         }
+      }
+      return output;
+   }
+
+   /**
+    * Command line entry point
+    * @param args stack jobDirectory tileSize output
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: TileCoordinator stack jobDirectory " +
+                 "tileSize output");
+         System.exit(1);
+      }
+      SaimData sd = (SaimData) SaimPrefs.getObject(SaimPrefs.SAIMDATAKEY);
+      if (sd == null) {
+         sd = new SaimData();
+      }
+      String imagePath = new File(args[0]).getAbsolutePath();
+      ImagePlus ip = IJ.openImage(imagePath);
+      if (ip == null) {
+         System.err.println("Failed to open " + imagePath);
+         System.exit(1);
+      }
+      JobDirectory jobDir = new JobDirectory(new File(args[1]));
+      TileCoordinator tc = new TileCoordinator(jobDir, ip, sd);
+      long startTime = System.nanoTime();
+      int nrTiles = tc.submit(imagePath, sd, Integer.parseInt(args[2]));
+      System.out.println("Submitted " + nrTiles + " tiles to " +
+              jobDir.getDirectory());
+      FloatProcessor[] output = tc.merge(Long.MAX_VALUE, DEFAULTSTALEMS);
+      ImageStack is = new ImageStack(output[0].getWidth(),
+              output[0].getHeight());
+      for (FloatProcessor fp : output) {
+         is.addSlice("", fp);
+      }
+      IJ.saveAsTiff(new ImagePlus("Fit result", is), args[3]);
+      jobDir.clear();
+      System.out.println("Analysis took " +
+              (System.nanoTime() - startTime) / 1000000 + "ms");
+      System.exit(0);
+   }
+
+}
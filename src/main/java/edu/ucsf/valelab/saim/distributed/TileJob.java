@@ -0,0 +1,128 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TileJob.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Description of one tile that needs to be fitted: the stack to read,
+ * the settings to use, and the tile bounds.  Bounds are in the coordinates
+ * of the (binned) output image.
+ *
+ * In the JobDirectory a job is stored as: magic number, format version,
+ * index, path of the stack, the settings as key/value pairs (see
+ * SaimData.toProperties), and the bounds.
+ *
+ * @author nico
+ */
+public class TileJob {
+
+   private static final int MAGIC = 0x53414A42;  // "SAJB"
+   private static final int FORMATVERSION = 1;
+   private static final int MAXSETTINGS = 256;
+
+   public final int index_;
+   public final String imagePath_;
+   public final SaimData sd_;
+   public final int x_;
+   public final int y_;
+   public final int width_;
+   public final int height_;
+
+   public TileJob(int index, String imagePath, SaimData sd, int x, int y,
+           int width, int height) {
+      index_ = index;
+      imagePath_ = imagePath;
+      sd_ = sd;
+      x_ = x;
+      y_ = y;
+      width_ = width;
+      height_ = height;
+   }
+
+   /**
+    * @return the job in the format of the JobDirectory
+    * @throws IOException
+    */
+   byte[] toBytes() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMATVERSION);
+      out.writeInt(index_);
+      out.writeUTF(imagePath_);
+      final Properties settings = sd_.toProperties();
+      out.writeInt(settings.size());
+      for (String key : settings.stringPropertyNames()) {
+         out.writeUTF(key);
+         out.writeUTF(settings.getProperty(key));
+      }
+      out.writeInt(x_);
+      out.writeInt(y_);
+      out.writeInt(width_);
+      out.writeInt(height_);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Reads a job written by toBytes
+    * @param in stream from the job file
+    * @return job
+    * @throws IOException when the stream does not hold a valid job
+    */
+   static TileJob read(DataInputStream in) throws IOException {
+      if (in.readInt() != MAGIC || in.readInt() != FORMATVERSION) {
+         throw new IOException("Not a tile job");
+      }
+      final int index = in.readInt();
+      final String imagePath = in.readUTF();
+      final int nrSettings = in.readInt();
+      if (nrSettings < 0 || nrSettings > MAXSETTINGS) {
+         throw new IOException("Invalid number of settings");
+      }
+      final Properties settings = new Properties();
+      for (int i = 0; i < nrSettings; i++) {
+         settings.setProperty(in.readUTF(), in.readUTF());
+      }
+      final SaimData sd;
+      try {
+         sd = SaimData.fromProperties(settings);
+      } catch (InvalidInputException ex) {
+         throw new IOException("Invalid settings: " + ex.getMessage());
+      }
+      final int x = in.readInt();
+      final int y = in.readInt();
+      final int width = in.readInt();
+      final int height = in.readInt();
+      if (index < 0 || x < 0 || y < 0 || width <= 0 || height <= 0) {
+         throw new IOException("Invalid tile");
+      }
+      return new TileJob(index, imagePath, sd, x, y, width, height);
+   }
+
+}
@@ -0,0 +1,165 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TileResult.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import ij.process.FloatProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fit result of one tile.  planes_ contains the 4 output images
+ * (height, R-squared, A, B, same order as the output of SaimFit) of the
+ * tile, each width_ * height_ pixels in row-major order.
+ *
+ * In the JobDirectory a result is stored as: magic number, format version,
+ * index, bounds, identifier of the worker, number of planes, and the
+ * float values of every plane.
+ *
+ * @author nico
+ */
+public class TileResult {
+
+   private static final int MAGIC = 0x53415252;  // "SARR"
+   private static final int FORMATVERSION = 1;
+   private static final int NRPLANES = 4;
+   private static final long MAXVALUES = 1L << 28;
+
+   public final int index_;
+   public final int x_;
+   public final int y_;
+   public final int width_;
+   public final int height_;
+   public final float[][] planes_;
+   public final String workerId_;
+
+   public TileResult(TileJob job, float[][] planes, String workerId) {
+      this(job.index_, job.x_, job.y_, job.width_, job.height_, planes,
+              workerId);
+   }
+
+   private TileResult(int index, int x, int y, int width, int height,
+           float[][] planes, String workerId) {
+      index_ = index;
+      x_ = x;
+      y_ = y;
+      width_ = width;
+      height_ = height;
+      planes_ = planes;
+      workerId_ = workerId;
+   }
+
+   /**
+    * Copies the pixels of a tile out of full size output images
+    * @param job tile
+    * @param output output images (height, R-squared, A, B)
+    * @param workerId identifier of the process that fitted the tile
+    * @return TileResult with a copy of the pixels of the tile
+    */
+   public static TileResult crop(TileJob job, FloatProcessor[] output,
+           String workerId) {
+      float[][] planes = new float[output.length][job.width_ * job.height_];
+      for (int i = 0; i < output.length; i++) {
+         float[] src = (float[]) output[i].getPixels();
+         int srcWidth = output[i].getWidth();
+         for (int y = 0; y < job.height_; y++) {
+            System.arraycopy(src, (job.y_ + y) * srcWidth + job.x_, planes[i],
+                    y * job.width_, job.width_);
+         }
+      }
+      return new TileResult(job, planes, workerId);
+   }
+
+   /**
+    * Copies the pixels of this tile into full size output images
+    * @param output output images (height, R-squared, A, B)
+    */
+   public void paste(FloatProcessor[] output) {
+      for (int i = 0; i < output.length; i++) {
+         float[] dest = (float[]) output[i].getPixels();
+         int destWidth = output[i].getWidth();
+         for (int y = 0; y < height_; y++) {
+            System.arraycopy(planes_[i], y * width_, dest,
+                    (y_ + y) * destWidth + x_, width_);
+         }
+      }
+   }
+
+   /**
+    * @return the result in the format of the JobDirectory
+    * @throws IOException
+    */
+   byte[] toBytes() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMATVERSION);
+      out.writeInt(index_);
+      out.writeInt(x_);
+      out.writeInt(y_);
+      out.writeInt(width_);
+      out.writeInt(height_);
+      out.writeUTF(workerId_);
+      out.writeInt(planes_.length);
+      for (float[] plane : planes_) {
+         ByteBuffer bb = ByteBuffer.allocate(4 * plane.length);
+         bb.asFloatBuffer().put(plane);
+         out.write(bb.array());
+      }
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Reads a result written by toBytes, sizes are checked before anything
+    * is allocated
+    * @param in stream from the result file
+    * @return result
+    * @throws IOException when the stream does not hold a valid result
+    */
+   static TileResult read(DataInputStream in) throws IOException {
+      if (in.readInt() != MAGIC || in.readInt() != FORMATVERSION) {
+         throw new IOException("Not a tile result");
+      }
+      final int index = in.readInt();
+      final int x = in.readInt();
+      final int y = in.readInt();
+      final int width = in.readInt();
+      final int height = in.readInt();
+      final String workerId = in.readUTF();
+      final int nrPlanes = in.readInt();
+      if (index < 0 || x < 0 || y < 0 || width <= 0 || height <= 0 ||
+              nrPlanes != NRPLANES ||
+              (long) width * height * nrPlanes > MAXVALUES) {
+         throw new IOException("Invalid tile result");
+      }
+      final float[][] planes = new float[nrPlanes][width * height];
+      final byte[] bytes = new byte[4 * width * height];
+      for (float[] plane : planes) {
+         in.readFully(bytes);
+         ByteBuffer.wrap(bytes).asFloatBuffer().get(plane);
+      }
+      return new TileResult(index, x, y, width, height, planes, workerId);
+   }
+
+}
@@ -0,0 +1,201 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TileWorker.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import edu.ucsf.valelab.saim.FitReport;
+import edu.ucsf.valelab.saim.RunTheFit;
+import edu.ucsf.valelab.saim.StackFit;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.TreeMap;
+
+/**
+ * Claims TileJobs from a JobDirectory, fits them using the same code as
+ * SaimFit (RunTheFit or RunTheBatchFit), and writes the TileResults back.
+ * A worker stops when no jobs have been waiting for longer than its idle
+ * timeout.
+ *
+ * Start worker processes (on any host that sees the job directory) with:
+ *    java -cp [classpath] edu.ucsf.valelab.saim.distributed.TileWorker
+ *         jobDirectory [nrThreads] [idleTimeoutSeconds]
+ *
+ * @author nico
+ */
+public class TileWorker implements Runnable {
+
+   public static final long DEFAULTIDLETIMEOUTMS = 30000;
+   private static final long POLLINTERVALMS = 200;
+
+   // the stack (with its correction and maps) of the last job, shared by all
+   // workers in this process since consecutive tiles nearly always use the 
+   // same stack
+   private static String cachedKey_ = null;
+   private static StackFit cachedFit_ = null;
+
+   private final JobDirectory jobDir_;
+   private final String workerId_;
+   private final long idleTimeoutMs_;
+   private int nrTilesFitted_ = 0;
+
+   /**
+    * @param jobDir Job directory shared with the coordinator
+    * @param workerId identifier, unique among all workers of this job directory
+    * @param idleTimeoutMs stop when no job was available for this long
+    */
+   public TileWorker(JobDirectory jobDir, String workerId, long idleTimeoutMs) {
+      jobDir_ = jobDir;
+      workerId_ = workerId;
+      idleTimeoutMs_ = idleTimeoutMs;
+   }
+
+   @Override
+   public void run() {
+      long idleSince = System.currentTimeMillis();
+      try {
+         while (true) {
+            TileJob job = jobDir_.claim(workerId_);
+            if (job == null) {
+               if (System.currentTimeMillis() - idleSince > idleTimeoutMs_) {
+                  return;
+               }
+               Thread.sleep(POLLINTERVALMS);
+               continue;
+            }
+            jobDir_.complete(fit(job, workerId_), workerId_);
+            nrTilesFitted_++;
+            idleSince = System.currentTimeMillis();
+         }
+      } catch (IOException ex) {
+         IJ.log("Worker " + workerId_ + " failed: " + ex.getMessage());
+      } catch (InvalidInputException ex) {
+         IJ.log("Worker " + workerId_ + " failed: " + ex.getMessage());
+      } catch (InterruptedException ex) {
+         IJ.log("Worker " + workerId_ + " was interrupted");
+      }
+   }
+
+   /**
+    * @return number of tiles this worker has fitted
+    */
+   public int getNrTilesFitted() {
+      return nrTilesFitted_;
+   }
+
+   /**
+    * Fits a single tile
+    * @param job tile to be fitted
+    * @param workerId identifier of the worker, will be stored in the result
+    * @return fitted tile
+    * @throws IOException when the stack can not be opened
+    * @throws InvalidInputException when the correction images or maps do 
+    *       not match
+    */
+   public static TileResult fit(TileJob job, String workerId)
+           throws IOException, InvalidInputException {
+      StackFit stackFit;
+      synchronized (TileWorker.class) {
+         // maps and the Fresnel table depend on most settings
+         File image = new File(job.imagePath_);
+         String key = job.imagePath_ + "|" + image.length() + ":" +
+                 image.lastModified() + "|" + 
+                 new TreeMap<Object, Object>(job.sd_.toProperties()) +
+                 StackFit.Inputs.fileStamps(job.sd_);
+         if (!key.equals(cachedKey_)) {
+            cachedKey_ = null;
+            ImagePlus ip = IJ.openImage(job.imagePath_);
+            if (ip == null) {
+               throw new IOException("Failed to open " + job.imagePath_);
+            }
+            cachedFit_ = new StackFit(ip, job.sd_, 1);
+            cachedKey_ = key;
+         }
+         stackFit = cachedFit_;
+      }
+
+      final FloatProcessor[] fpOut = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(job.width_, job.height_);
+      }
+      // the same fit of the tile as SaimFit, maps are indexed by image
+      // coordinates, like the tile
+      RunTheFit rf = stackFit.createTileFit(job, fpOut, 0, new FitReport());
+      rf.setOutputOrigin(job.x_, job.y_);
+      // fit in the calling thread
+      rf.run();
+
+      float[][] planes = new float[fpOut.length][];
+      for (int i = 0; i < fpOut.length; i++) {
+         planes[i] = (float[]) fpOut[i].getPixels();
+      }
+      return new TileResult(job, planes, workerId);
+   }
+
+   /**
+    * @return identifier that is unique for this process, made up of the
+    *       host name and process id
+    */
+   public static String processId() {
+      // the name of the runtime bean is pid@host on all common JVMs
+      return ManagementFactory.getRuntimeMXBean().getName().
+              replaceAll("[^A-Za-z0-9.@-]", "_");
+   }
+
+   /**
+    * Command line entry point
+    * @param args jobDirectory [nrThreads] [idleTimeoutSeconds]
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: TileWorker jobDirectory [nrThreads] " +
+                 "[idleTimeoutSeconds]");
+         System.exit(1);
+      }
+      JobDirectory jobDir = new JobDirectory(new File(args[0]));
+      int nrThreads = args.length > 1 ? Integer.parseInt(args[1]) :
+              Runtime.getRuntime().availableProcessors();
+      long idleTimeoutMs = args.length > 2 ?
+              (long) (Double.parseDouble(args[2]) * 1000) :
+              DEFAULTIDLETIMEOUTMS;
+      Thread[] threads = new Thread[nrThreads];
+      TileWorker[] workers = new TileWorker[nrThreads];
+      for (int i = 0; i < nrThreads; i++) {
+         workers[i] = new TileWorker(jobDir, processId() + "-" + i,
+                 idleTimeoutMs);
+         threads[i] = new Thread(workers[i]);
+         threads[i].start();
+      }
+      int total = 0;
+      for (int i = 0; i < nrThreads; i++) {
+         threads[i].join();
+         total += workers[i].getNrTilesFitted();
+      }
+      System.out.println("Worker " + processId() + " fitted " + total +
+              " tiles");
+      System.exit(0);
+   }
+
+}
@@ -0,0 +1,173 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FairScheduler.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import edu.ucsf.valelab.saim.StackFit;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of worker threads shared by concurrent requests.  Every request is
+ * a list of tasks (the tiles of a stack).  Workers take one task from each
+ * request in turn, so that a large request does not hold up small ones
+ * that arrive later.
+ *
+ * @author nico
+ */
+public class FairScheduler implements StackFit.TileExecutor {
+
+   private static class Job {
+      final List<? extends Runnable> tasks_;
+      int next_ = 0;
+      int remaining_;
+      RuntimeException failure_ = null;
+
+      Job(List<? extends Runnable> tasks) {
+         tasks_ = tasks;
+         remaining_ = tasks.size();
+      }
+   }
+
+   // requests with tasks that were not started, in the order they are served
+   private final LinkedList<Job> jobs_ = new LinkedList<Job>();
+   private final Thread[] workers_;
+   private boolean stop_ = false;
+
+   /**
+    * @param nrThreads number of worker threads
+    */
+   public FairScheduler(int nrThreads) {
+      workers_ = new Thread[nrThreads];
+      for (int i = 0; i < nrThreads; i++) {
+         workers_[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               work();
+            }
+         }, "Saim fit server worker " + i);
+         workers_[i].setDaemon(true);
+         workers_[i].start();
+      }
+   }
+
+   /**
+    * @return number of worker threads
+    */
+   public int getNrThreads() {
+      return workers_.length;
+   }
+
+   /**
+    * Runs the tasks on the workers, and waits until all are done
+    * @param tasks tasks of one request
+    * @throws InterruptedException
+    * @throws RuntimeException thrown by one of the tasks
+    */
+   @Override
+   public void run(List<? extends Runnable> tasks) throws InterruptedException {
+      if (tasks.isEmpty()) {
+         return;
+      }
+      final Job job = new Job(tasks);
+      synchronized (this) {
+         if (stop_) {
+            throw new IllegalStateException("Scheduler was stopped");
+         }
+         jobs_.addLast(job);
+         notifyAll();
+      }
+      synchronized (job) {
+         while (job.remaining_ > 0) {
+            job.wait();
+         }
+      }
+      if (job.failure_ != null) {
+         throw job.failure_;
+      }
+   }
+
+   /**
+    * Stops the workers, tasks that did not start are dropped and their
+    * requests fail
+    */
+   public void stop() {
+      final List<Job> dropped;
+      synchronized (this) {
+         stop_ = true;
+         dropped = new ArrayList<Job>(jobs_);
+         jobs_.clear();
+         notifyAll();
+      }
+      // requests waiting for tasks that will not run fail
+      for (Job job : dropped) {
+         synchronized (job) {
+            job.remaining_ -= job.tasks_.size() - job.next_;
+            if (job.failure_ == null) {
+               job.failure_ = new IllegalStateException(
+                       "Scheduler was stopped");
+            }
+            job.notifyAll();
+         }
+      }
+   }
+
+   private void work() {
+      while (true) {
+         final Job job;
+         final Runnable task;
+         synchronized (this) {
+            while (jobs_.isEmpty() && !stop_) {
+               try {
+                  wait();
+               } catch (InterruptedException ex) {
+                  return;
+               }
+            }
+            if (stop_) {
+               return;
+            }
+            job = jobs_.removeFirst();
+            task = job.tasks_.get(job.next_++);
+            if (job.next_ < job.tasks_.size()) {
+               // to the back of the line
+               jobs_.addLast(job);
+            }
+         }
+         RuntimeException failure = null;
+         try {
+            task.run();
+         } catch (RuntimeException ex) {
+            failure = ex;
+         }
+         synchronized (job) {
+            if (failure != null && job.failure_ == null) {
+               job.failure_ = failure;
+            }
+            job.remaining_--;
+            if (job.remaining_ == 0) {
+               job.notifyAll();
+            }
+         }
+      }
+   }
+
+}
@@ -0,0 +1,121 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitClient.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import edu.ucsf.valelab.saim.WatchFolder;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Sends fit requests to a FitServer on this computer, using the token the
+ * server wrote to its token file.
+ *
+ * From a shell script:
+ *    java -cp [classpath] edu.ucsf.valelab.saim.server.FitClient
+ *         stack [parameterFile] [output] [port]
+ * prints the path of the result (by default stack_saim.tif next to the 
+ * stack), or the error, in which case the exit status is 1.
+ *
+ * @author nico
+ */
+public class FitClient {
+
+   private final int port_;
+   private final String token_;
+
+   /**
+    * Reads the token from the default token file
+    * @param port port of the server on the loopback interface
+    * @throws IOException when the token file can not be read
+    */
+   public FitClient(int port) throws IOException {
+      this(port, FitServer.readToken(FitServer.tokenFile()));
+   }
+
+   /**
+    * @param port port of the server on the loopback interface
+    * @param token token of the server
+    */
+   public FitClient(int port, String token) {
+      port_ = port;
+      token_ = token;
+   }
+
+   /**
+    * Sends a request and waits for the answer
+    * @param request request
+    * @return answer of the server
+    * @throws IOException when the server can not be reached
+    * @throws InvalidInputException when the request holds invalid images
+    */
+   public FitResponse fit(FitRequest request) throws IOException,
+           InvalidInputException {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), port_);
+      try {
+         DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(socket.getOutputStream()));
+         request.write(out, token_);
+         out.flush();
+         return FitResponse.read(new DataInputStream(
+                 new BufferedInputStream(socket.getInputStream())));
+      } finally {
+         socket.close();
+      }
+   }
+
+   /**
+    * Command line entry point
+    * @param args stack [parameterFile] [output] [port]
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: FitClient stack [parameterFile] " +
+                 "[output] [port]");
+         System.exit(1);
+      }
+      File stack = new File(args[0]).getAbsoluteFile();
+      SaimData sd = args.length > 1 && !args[1].isEmpty() ?
+              WatchFolder.loadSettings(new File(args[1])) : new SaimData();
+      String output = args.length > 2 && !args[2].isEmpty() ?
+              new File(args[2]).getAbsolutePath() :
+              WatchFolder.resultFile(stack).getPath();
+      int port = args.length > 3 ? Integer.parseInt(args[3]) :
+              FitServer.DEFAULTPORT;
+      FitResponse response = new FitClient(port).fit(
+              FitRequest.forFile(stack.getPath(), output, sd));
+      if (response.error_ != null) {
+         System.err.println(response.error_);
+         System.exit(1);
+      }
+      System.out.println(response.outputPath_);
+      System.exit(0);
+   }
+
+}
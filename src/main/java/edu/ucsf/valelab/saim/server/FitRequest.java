@@ -0,0 +1,213 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitRequest.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Request to fit a stack, sent by FitClient to FitServer.  The stack is
+ * either a file that the server can read, or the pixels themselves.
+ *
+ * On the wire a request is: magic number, protocol version, token of the
+ * server, the settings as key/value pairs (see SaimData.toProperties),
+ * and either the path of the stack and the result, or the image size 
+ * followed by the type and values of every image.  Nothing else is 
+ * accepted, and sizes are checked before anything is allocated.
+ *
+ * @author nico
+ */
+public class FitRequest {
+
+   static final int MAGIC = 0x5341494D;  // "SAIM"
+   static final int PROTOCOLVERSION = 1;
+   private static final byte FILE = 0;
+   private static final byte PIXELS = 1;
+   private static final byte SHORTIMAGE = 0;
+   private static final byte FLOATIMAGE = 1;
+   private static final int MAXSETTINGS = 256;
+   private static final long MAXVALUES = 1L << 28;
+
+   public final SaimData sd_;
+   // file with the stack, or null when the pixels are given
+   public final String stackPath_;
+   // the result is written to this file when given, otherwise returned
+   public final String outputPath_;
+   public final int width_;
+   public final int height_;
+   // short[] or float[] per angle, or null when stackPath_ is given
+   public final Object[] pixels_;
+
+   private FitRequest(SaimData sd, String stackPath, String outputPath,
+           int width, int height, Object[] pixels) {
+      sd_ = sd;
+      stackPath_ = stackPath;
+      outputPath_ = outputPath;
+      width_ = width;
+      height_ = height;
+      pixels_ = pixels;
+   }
+
+   /**
+    * @param stackPath stack file, as seen by the server
+    * @param outputPath result file, or null to return the result
+    * @param sd settings
+    * @return request
+    */
+   public static FitRequest forFile(String stackPath, String outputPath,
+           SaimData sd) {
+      return new FitRequest(sd, stackPath, outputPath, 0, 0, null);
+   }
+
+   /**
+    * @param pixels short[] or float[] per angle
+    * @param width width of the images
+    * @param height height of the images
+    * @param sd settings
+    * @return request, the result will be returned
+    */
+   public static FitRequest forPixels(Object[] pixels, int width, int height,
+           SaimData sd) {
+      return new FitRequest(sd, null, null, width, height, pixels);
+   }
+
+   /**
+    * @param out stream to the server
+    * @param token token of the server
+    * @throws IOException
+    * @throws InvalidInputException when the images are not short[] or 
+    *       float[] of width * height
+    */
+   public void write(DataOutputStream out, String token) throws IOException,
+           InvalidInputException {
+      out.writeInt(MAGIC);
+      out.writeInt(PROTOCOLVERSION);
+      out.writeUTF(token);
+      final Properties settings = sd_.toProperties();
+      out.writeInt(settings.size());
+      for (String key : settings.stringPropertyNames()) {
+         out.writeUTF(key);
+         out.writeUTF(settings.getProperty(key));
+      }
+      if (stackPath_ != null) {
+         out.writeByte(FILE);
+         out.writeUTF(stackPath_);
+         out.writeUTF(outputPath_ == null ? "" : outputPath_);
+         return;
+      }
+      out.writeByte(PIXELS);
+      out.writeInt(width_);
+      out.writeInt(height_);
+      out.writeInt(pixels_.length);
+      final int size = width_ * height_;
+      for (Object pixels : pixels_) {
+         if (pixels instanceof short[] && ((short[]) pixels).length == size) {
+            ByteBuffer bb = ByteBuffer.allocate(2 * size);
+            bb.asShortBuffer().put((short[]) pixels);
+            out.writeByte(SHORTIMAGE);
+            out.write(bb.array());
+         } else if (pixels instanceof float[] &&
+                 ((float[]) pixels).length == size) {
+            ByteBuffer bb = ByteBuffer.allocate(4 * size);
+            bb.asFloatBuffer().put((float[]) pixels);
+            out.writeByte(FLOATIMAGE);
+            out.write(bb.array());
+         } else {
+            throw new InvalidInputException(
+                    "Images should be short[] or float[] of width * height");
+         }
+      }
+   }
+
+   /**
+    * Reads a request, the token is checked before anything else is read
+    * @param in stream from the client
+    * @param token token of this server
+    * @return request
+    * @throws IOException when the stream ends or fails
+    * @throws InvalidInputException when this is not a valid request, or the
+    *       token is wrong
+    */
+   public static FitRequest read(DataInputStream in, String token)
+           throws IOException, InvalidInputException {
+      if (in.readInt() != MAGIC || in.readInt() != PROTOCOLVERSION) {
+         throw new InvalidInputException("Not a fit request");
+      }
+      if (!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"),
+              token.getBytes("UTF-8"))) {
+         throw new InvalidInputException("Invalid token");
+      }
+      final int nrSettings = in.readInt();
+      if (nrSettings < 0 || nrSettings > MAXSETTINGS) {
+         throw new InvalidInputException("Invalid number of settings");
+      }
+      final Properties settings = new Properties();
+      for (int i = 0; i < nrSettings; i++) {
+         settings.setProperty(in.readUTF(), in.readUTF());
+      }
+      final SaimData sd = SaimData.fromProperties(settings);
+      final byte kind = in.readByte();
+      if (kind == FILE) {
+         final String stackPath = in.readUTF();
+         final String outputPath = in.readUTF();
+         return forFile(stackPath, outputPath.isEmpty() ? null : outputPath,
+                 sd);
+      }
+      if (kind != PIXELS) {
+         throw new InvalidInputException("Not a fit request");
+      }
+      final int width = in.readInt();
+      final int height = in.readInt();
+      final int nrImages = in.readInt();
+      if (width <= 0 || height <= 0 || nrImages <= 0 ||
+              (long) width * height * nrImages > MAXVALUES) {
+         throw new InvalidInputException("Invalid image size");
+      }
+      final int size = width * height;
+      final Object[] pixels = new Object[nrImages];
+      for (int i = 0; i < nrImages; i++) {
+         final byte type = in.readByte();
+         if (type == SHORTIMAGE) {
+            byte[] bytes = new byte[2 * size];
+            in.readFully(bytes);
+            short[] image = new short[size];
+            ByteBuffer.wrap(bytes).asShortBuffer().get(image);
+            pixels[i] = image;
+         } else if (type == FLOATIMAGE) {
+            byte[] bytes = new byte[4 * size];
+            in.readFully(bytes);
+            float[] image = new float[size];
+            ByteBuffer.wrap(bytes).asFloatBuffer().get(image);
+            pixels[i] = image;
+         } else {
+            throw new InvalidInputException("Invalid image type");
+         }
+      }
+      return forPixels(pixels, width, height, sd);
+   }
+
+}
@@ -0,0 +1,129 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitResponse.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer of FitServer to a FitRequest
+ *
+ * On the wire: magic number, the error (empty when the fit succeeded), the
+ * result file (empty when the result is returned), the report, the size of
+ * the result and the values of every returned image.
+ *
+ * @author nico
+ */
+public class FitResponse {
+
+   private static final int MAXPLANES = 16;
+
+   // null when the fit succeeded
+   public final String error_;
+   // file the result was written to, or null when it is returned
+   public final String outputPath_;
+   public final int width_;
+   public final int height_;
+   // height, R-squared, A and B, or null when written to outputPath_
+   public final float[][] planes_;
+   // summary of the fit, see FitReport
+   public final String report_;
+
+   public FitResponse(String outputPath, int width, int height,
+           float[][] planes, String report) {
+      error_ = null;
+      outputPath_ = outputPath;
+      width_ = width;
+      height_ = height;
+      planes_ = planes;
+      report_ = report;
+   }
+
+   public FitResponse(String error) {
+      error_ = error;
+      outputPath_ = null;
+      width_ = 0;
+      height_ = 0;
+      planes_ = null;
+      report_ = null;
+   }
+
+   /**
+    * @param out stream to the client
+    * @throws IOException
+    */
+   public void write(DataOutputStream out) throws IOException {
+      out.writeInt(FitRequest.MAGIC);
+      out.writeUTF(error_ == null ? "" : error_);
+      if (error_ != null) {
+         return;
+      }
+      out.writeUTF(outputPath_ == null ? "" : outputPath_);
+      out.writeUTF(report_ == null ? "" : report_);
+      out.writeInt(width_);
+      out.writeInt(height_);
+      out.writeInt(planes_ == null ? 0 : planes_.length);
+      if (planes_ != null) {
+         for (float[] plane : planes_) {
+            ByteBuffer bb = ByteBuffer.allocate(4 * plane.length);
+            bb.asFloatBuffer().put(plane);
+            out.write(bb.array());
+         }
+      }
+   }
+
+   /**
+    * @param in stream from the server
+    * @return answer
+    * @throws IOException when the stream fails or is not an answer
+    */
+   public static FitResponse read(DataInputStream in) throws IOException {
+      if (in.readInt() != FitRequest.MAGIC) {
+         throw new IOException("Not an answer of a fit server");
+      }
+      final String error = in.readUTF();
+      if (!error.isEmpty()) {
+         return new FitResponse(error);
+      }
+      final String outputPath = in.readUTF();
+      final String report = in.readUTF();
+      final int width = in.readInt();
+      final int height = in.readInt();
+      final int nrPlanes = in.readInt();
+      if (width < 0 || height < 0 || nrPlanes < 0 || nrPlanes > MAXPLANES) {
+         throw new IOException("Invalid answer of the fit server");
+      }
+      float[][] planes = null;
+      if (nrPlanes > 0) {
+         planes = new float[nrPlanes][width * height];
+         byte[] bytes = new byte[4 * width * height];
+         for (float[] plane : planes) {
+            in.readFully(bytes);
+            ByteBuffer.wrap(bytes).asFloatBuffer().get(plane);
+         }
+      }
+      return new FitResponse(outputPath.isEmpty() ? null : outputPath, width,
+              height, planes, report);
+   }
+
+}
@@ -0,0 +1,352 @@
+ ///////////////////////////////////////////////////////////////////////////////
+ //FILE:          FitServer.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import edu.ucsf.valelab.saim.FitReport;
+import edu.ucsf.valelab.saim.StackFit;
+import edu.ucsf.valelab.saim.WatchFolder;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fits stacks for scripts and other programs on this computer, so that 
+ * these do not pay for starting ImageJ, warming up the JIT and loading 
+ * correction images and model tables every time.
+ *
+ * The server only listens on the loopback interface.  Every connection
+ * carries one FitRequest and receives one FitResponse (see FitClient), in
+ * a plain data format rather than serialized objects.  Requests have to 
+ * carry the token the server writes at start up to a file that only its 
+ * owner can read (see tokenFile), so other users can not make the server
+ * read or write files on their behalf.  Requests are fitted in tiles by 
+ * a fixed pool of workers that take tiles from all requests in turn (see 
+ * FairScheduler).  Corrections, maps and Fresnel tables of recently used 
+ * settings are kept in memory, until one of their files changes.
+ *
+ * Start with:
+ *    java -cp [classpath] edu.ucsf.valelab.saim.server.FitServer
+ *         [port] [nrThreads]
+ *
+ * @author nico
+ */
+public class FitServer implements Runnable {
+
+   public static final int DEFAULTPORT = 7362;
+   public static final String TOKENFILE = "saimserver.token";
+   private static final int MAXPREPARED = 8;
+
+   private final ServerSocket socket_;
+   private final String token_;
+   private final FairScheduler scheduler_;
+   private final ExecutorService connections_;
+   // least recently used settings are dropped first
+   private final Map<String, StackFit.Inputs> prepared_ =
+           new LinkedHashMap<String, StackFit.Inputs>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+              Map.Entry<String, StackFit.Inputs> e) {
+         return size() > MAXPREPARED;
+      }
+   };
+   private final AtomicInteger nrServed_ = new AtomicInteger(0);
+
+   /**
+    * Writes its token to the default token file
+    * @param port port on the loopback interface, 0 for any free port
+    * @param nrThreads number of fitting threads shared by all requests
+    * @throws IOException when the port or token file can not be used
+    */
+   public FitServer(int port, int nrThreads) throws IOException {
+      this(port, nrThreads, tokenFile());
+   }
+
+   /**
+    * @param port port on the loopback interface, 0 for any free port
+    * @param nrThreads number of fitting threads shared by all requests
+    * @param tokenFile a new token is written here, readable by the owner only
+    * @throws IOException when the port or token file can not be used
+    */
+   public FitServer(int port, int nrThreads, File tokenFile) 
+           throws IOException {
+      token_ = createToken(tokenFile);
+      socket_ = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+      scheduler_ = new FairScheduler(nrThreads);
+      connections_ = Executors.newCachedThreadPool();
+   }
+
+   /**
+    * @return port the server listens on
+    */
+   public int getPort() {
+      return socket_.getLocalPort();
+   }
+
+   /**
+    * @return file in the ImageJ preferences directory with the token of 
+    *       the server
+    */
+   public static File tokenFile() {
+      return new File(ij.Prefs.getPrefsDir(), TOKENFILE);
+   }
+
+   /**
+    * @param file token file written by a server
+    * @return token
+    * @throws IOException 
+    */
+   public static String readToken(File file) throws IOException {
+      return new String(Files.readAllBytes(file.toPath()), "US-ASCII").trim();
+   }
+
+   /**
+    * Writes a new random token to a file that only the owner can read
+    */
+   private static String createToken(File file) throws IOException {
+      final byte[] bytes = new byte[32];
+      new SecureRandom().nextBytes(bytes);
+      final StringBuilder token = new StringBuilder();
+      for (byte b : bytes) {
+         token.append(String.format("%02x", b));
+      }
+      final Path path = file.toPath();
+      Files.deleteIfExists(path);
+      if (FileSystems.getDefault().supportedFileAttributeViews().
+              contains("posix")) {
+         Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                 PosixFilePermissions.fromString("rw-------")));
+      } else {
+         Files.createFile(path);
+         file.setReadable(false, false);
+         file.setReadable(true, true);
+         file.setWritable(false, false);
+         file.setWritable(true, true);
+      }
+      Files.write(path, token.toString().getBytes("US-ASCII"));
+      return token.toString();
+   }
+
+   /**
+    * @return number of requests that were fitted
+    */
+   public int getNrServed() {
+      return nrServed_.get();
+   }
+
+   /**
+    * Accepts connections until close is called
+    */
+   @Override
+   public void run() {
+      try {
+         while (true) {
+            final Socket socket = socket_.accept();
+            connections_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  serve(socket);
+               }
+            });
+         }
+      } catch (IOException ex) {
+         // closed
+      } finally {
+         connections_.shutdownNow();
+         scheduler_.stop();
+      }
+   }
+
+   /**
+    * Stops accepting requests, requests that are being fitted fail
+    * @throws IOException
+    */
+   public void close() throws IOException {
+      socket_.close();
+   }
+
+   private void serve(Socket socket) {
+      try {
+         try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            FitResponse response;
+            try {
+               response = fit(FitRequest.read(in, token_));
+            } catch (InvalidInputException ex) {
+               response = new FitResponse(ex.getMessage());
+            }
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            response.write(out);
+            out.flush();
+         } finally {
+            socket.close();
+         }
+      } catch (IOException ex) {
+         IJ.log("Fit request failed: " + ex.getMessage());
+      }
+   }
+
+   /**
+    * Fits a request in the calling thread, the tiles are fitted by the
+    * shared workers
+    * @param request request
+    * @return result, or the reason there is none
+    */
+   public FitResponse fit(FitRequest request) {
+      try {
+         final SaimData sd = request.sd_;
+         final ImagePlus ip = open(request);
+         // tiles are fitted by the shared workers, the steps that do not
+         // use tiles (such as repair, which is usually small) by the 
+         // calling thread
+         final StackFit stackFit = new StackFit(ip, sd, prepare(sd, ip), 1);
+         stackFit.setTileExecutor(scheduler_);
+         final FloatProcessor[] output = stackFit.fit();
+         final FitReport report = stackFit.getReport();
+         final int width = output[0].getWidth();
+         final int height = output[0].getHeight();
+         nrServed_.incrementAndGet();
+         if (request.outputPath_ != null) {
+            ImageStack is = new ImageStack(width, height);
+            for (FloatProcessor fp : output) {
+               is.addSlice("", fp);
+            }
+            if (!IJ.saveAsTiff(new ImagePlus("Fit result", is),
+                    request.outputPath_)) {
+               throw new IOException("Failed to write " +
+                       request.outputPath_);
+            }
+            return new FitResponse(request.outputPath_, width, height, null,
+                    report.toString());
+         }
+         float[][] planes = new float[output.length][];
+         for (int i = 0; i < output.length; i++) {
+            planes[i] = (float[]) output[i].getPixels();
+         }
+         return new FitResponse(null, width, height, planes,
+                 report.toString());
+      } catch (InvalidInputException ex) {
+         return new FitResponse(ex.getMessage());
+      } catch (IOException ex) {
+         return new FitResponse(ex.getMessage());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return new FitResponse("Fit was interrupted");
+      } catch (RuntimeException ex) {
+         return new FitResponse(ex.toString());
+      }
+   }
+
+   /**
+    * @return the stack of the request
+    */
+   private static ImagePlus open(FitRequest request) throws IOException,
+           InvalidInputException {
+      if (request.stackPath_ != null) {
+         ImagePlus ip = IJ.openImage(request.stackPath_);
+         if (ip == null) {
+            throw new IOException("Failed to open " + request.stackPath_);
+         }
+         return ip;
+      }
+      if (request.pixels_ == null || request.pixels_.length == 0) {
+         throw new InvalidInputException("The request holds no images");
+      }
+      final int size = request.width_ * request.height_;
+      ImageStack is = new ImageStack(request.width_, request.height_);
+      for (Object pixels : request.pixels_) {
+         if (pixels instanceof short[] && ((short[]) pixels).length == size) {
+            is.addSlice("", new ShortProcessor(request.width_,
+                    request.height_, (short[]) pixels, null));
+         } else if (pixels instanceof float[] &&
+                 ((float[]) pixels).length == size) {
+            is.addSlice("", new FloatProcessor(request.width_,
+                    request.height_, (float[]) pixels));
+         } else {
+            throw new InvalidInputException(
+                    "Images should be short[] or float[] of width * height");
+         }
+      }
+      return new ImagePlus("Fit request", is);
+   }
+
+   /**
+    * Loads corrections, maps and tables, or takes them from the cache
+    */
+   private StackFit.Inputs prepare(SaimData sd, ImagePlus ip)
+           throws InvalidInputException {
+      final String key = new TreeMap<Object, Object>(sd.toProperties()) +
+              "|" + ip.getWidth() + "x" + ip.getHeight() + "x" +
+              ip.getNSlices() + StackFit.Inputs.fileStamps(sd);
+      synchronized (prepared_) {
+         StackFit.Inputs p = prepared_.get(key);
+         if (p != null) {
+            return p;
+         }
+      }
+      StackFit.Inputs p = new StackFit.Inputs(sd, ip);
+      synchronized (prepared_) {
+         prepared_.put(key, p);
+      }
+      return p;
+   }
+
+   /**
+    * Command line entry point
+    * @param args [port] [nrThreads]
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTPORT;
+      int nrThreads = args.length > 1 ? Integer.parseInt(args[1]) :
+              Runtime.getRuntime().availableProcessors();
+      WatchFolder.warmUp(new SaimData());
+      FitServer server = new FitServer(port, nrThreads);
+      System.out.println("Listening on localhost:" + server.getPort());
+      server.run();
+   }
+
+}
@@ -0,0 +1,161 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SyntheticStack.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.SaimCalc;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Noise free stacks of WIDTH * HEIGHT pixels with known heights, and a
+ * plain fit of all their pixels, shared by the tests.  Pixels are 
+ * A * F(h) + BACKGROUND, with one image per angle.
+ *
+ * @author nico
+ */
+public class SyntheticStack {
+   public static final int WIDTH = 8;
+   public static final int HEIGHT = 6;
+   public static final int NRANGLES = 43;
+   public static final double BACKGROUND = 2000.0;
+
+   /**
+    * @param x x coordinate
+    * @param y y coordinate
+    * @return height used for the synthetic pixel at x, y
+    */
+   public static double trueHeight(int x, int y) {
+      return 60.0 + 12.0 * x + 5.0 * y;
+   }
+
+   /**
+    * @return the heights of trueHeight as an image
+    */
+   public static FloatProcessor trueHeights() {
+      FloatProcessor heights = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            heights.setf(x, y, (float) trueHeight(x, y));
+         }
+      }
+      return heights;
+   }
+
+   /**
+    * @param value value of every pixel
+    * @return image of WIDTH * HEIGHT pixels
+    */
+   public static FloatProcessor constant(double value) {
+      FloatProcessor fp = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            fp.setf(x, y, (float) value);
+         }
+      }
+      return fp;
+   }
+
+   /**
+    * Creates a stack with the heights of trueHeight, brightness increases
+    * with x
+    * @param sd settings, angles are taken from here
+    * @return stack
+    */
+   public static ImagePlus createStack(SaimData sd) {
+      FloatProcessor amplitudes = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            amplitudes.setf(x, y, 500.0f + 200.0f * x);
+         }
+      }
+      return createStack(sd, amplitudes, trueHeights(), null, null);
+   }
+
+   /**
+    * @param sd settings, angles, wavelength and refractive index are taken
+    *       from here
+    * @param amplitudes A of every pixel
+    * @param heights height of every pixel
+    * @param angleOffsets offset in degrees of the angles of every pixel, 
+    *       or null for none
+    * @param dOxMap oxide thickness of every pixel, or null for sd.dOx_
+    * @return stack
+    */
+   public static ImagePlus createStack(SaimData sd, FloatProcessor amplitudes,
+           FloatProcessor heights, FloatProcessor angleOffsets,
+           FloatProcessor dOxMap) {
+      ImageStack is = new ImageStack(WIDTH, HEIGHT);
+      for (int i = 0; i < NRANGLES; i++) {
+         short[] pixels = new short[WIDTH * HEIGHT];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               double angle = Math.toRadians(sd.firstAngle_ + 
+                       i * sd.angleStep_ + 
+                       (angleOffsets == null ? 0.0 : angleOffsets.getf(x, y)));
+               double dOx = dOxMap == null ? sd.dOx_ : dOxMap.getf(x, y);
+               pixels[y * WIDTH + x] = (short) Math.round(
+                       amplitudes.getf(x, y) * SaimCalc.fieldStrength(
+                               sd.wavelength_, angle, sd.nSample_, dOx, 
+                               heights.getf(x, y)) + BACKGROUND);
+            }
+         }
+         is.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+      }
+      return new ImagePlus("test", is);
+   }
+
+   /**
+    * Fits all pixels of the stack in the calling thread
+    * @param sd settings
+    * @param ip stack
+    * @param abMaps fixed A and B, or null
+    * @param previous earlier result to start from, or null
+    * @param report receives the statistics of the fit, or null
+    * @return fit result (height, R-squared, A, B)
+    */
+   public static FloatProcessor[] fit(SaimData sd, ImagePlus ip,
+           FloatProcessor[] abMaps, ResultCache.Entry previous, 
+           FitReport report) {
+      final int width = ip.getWidth() / sd.binning_;
+      FloatProcessor[] fpOut = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(width, ip.getHeight() / sd.binning_);
+      }
+      RunTheFit rf = OverseeTheFit.createFitThread(0, width, sd, ip, fpOut,
+              new AtomicInteger(0));
+      rf.setABMaps(abMaps);
+      if (report != null) {
+         rf.setReport(report);
+      }
+      if (previous != null) {
+         previous.paste(fpOut);
+         rf.setPrevious(previous.threshold_, previous.heights_);
+      }
+      rf.run();
+      return fpOut;
+   }
+
+}
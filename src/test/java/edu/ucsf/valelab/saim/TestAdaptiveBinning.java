@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestAdaptiveBinning.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.calculations.SaimCalc;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.process.FloatProcessor;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestAdaptiveBinning extends TestCase {
+
+   public TestAdaptiveBinning (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * Left half of the image is bright, the right half dim, both at a height
+    * of 80 nm.  The bright half should be fitted per pixel, the dim half
+    * in larger bins, and the fit of the bins should give the height.
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      final int width = 32;
+      final int height = 16;
+      final double h = 80.0;
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 50;
+
+      Random random = new Random(11);
+      Object[] pixels = new Object[43];
+      for (int i = 0; i < 43; i++) {
+         double angle = Math.toRadians(sd.firstAngle_ + i * sd.angleStep_);
+         double f = SaimCalc.fieldStrength(sd.wavelength_, angle, sd.nSample_,
+                 sd.dOx_, h);
+         short[] slice = new short[width * height];
+         for (int p = 0; p < slice.length; p++) {
+            double intensity = p % width < width / 2 ?
+                    6000.0 * f + 1000.0 : 40.0 * f + 40.0;
+            slice[p] = (short) Math.round(intensity +
+                    Math.sqrt(intensity) * random.nextGaussian());
+         }
+         pixels[i] = slice;
+      }
+
+      ProfileExtractor extractor = new ProfileExtractor(pixels, width, height,
+              sd);
+      int[] labels = AdaptiveBinning.createLabels(extractor, 100.0, 8,
+              sd.threshold_);
+      SegmentFit segmentFit = new SegmentFit(sd, labels, 43);
+      for (int i = 0; i < 43; i++) {
+         segmentFit.accumulate(i, pixels[i], null);
+      }
+      // every bright pixel is a bin of its own, the dim half is binned
+      assertTrue(segmentFit.getNrLabels() >= width / 2 * height);
+      for (int l = 0; l < segmentFit.getNrLabels(); l++) {
+         assertTrue(segmentFit.getNrPixels(l) == 1 ||
+                 segmentFit.getNrPixels(l) >= 16);
+      }
+      assertTrue(labels[0] != labels[1]);
+      assertEquals(labels[width - 1], labels[width - 2]);
+      assertTrue(segmentFit.getNrLabels() < width * height / 2 + 8);
+
+      segmentFit.fit(2);
+      FloatProcessor[] output = segmentFit.createOutput(width, height);
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            assertEquals(h, output[0].getf(x, y), x < width / 2 ? 5.0 : 20.0);
+         }
+      }
+   }
+
+}
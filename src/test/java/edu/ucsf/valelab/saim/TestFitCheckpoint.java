@@ -0,0 +1,148 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestFitCheckpoint.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.distributed.TileCoordinator;
+import edu.ucsf.valelab.saim.distributed.TileJob;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestFitCheckpoint extends TestCase {
+   
+   public TestFitCheckpoint (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Fingerprint should follow input and settings, and saved tiles should
+    * be restored by a new checkpoint in the same directory
+    * @throws Exception 
+    */
+   public void test() throws Exception {
+      final int width = 20;
+      final int height = 12;
+      ImageStack is = new ImageStack(width, height);
+      for (int i = 0; i < 3; i++) {
+         short[] pixels = new short[width * height];
+         for (int j = 0; j < pixels.length; j++) {
+            pixels[j] = (short) (j + i);
+         }
+         is.addSlice("", new ShortProcessor(width, height, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      SaimData sd = new SaimData();
+      
+      String fp = FitCheckpoint.fingerprint(ip, sd);
+      assertEquals(fp, FitCheckpoint.fingerprint(ip, sd.copy()));
+      sd.checkpoint_ = true;
+      assertEquals(fp, FitCheckpoint.fingerprint(ip, sd));
+      SaimData other = sd.copy();
+      other.threshold_ += 1;
+      assertFalse(fp.equals(FitCheckpoint.fingerprint(ip, other)));
+      ((short[]) is.getPixels(2))[7] += 1;
+      assertFalse(fp.equals(FitCheckpoint.fingerprint(ip, sd)));
+      
+      File dir = File.createTempFile("saimcheckpoint", "");
+      dir.delete();
+      List<TileJob> tiles = TileCoordinator.createTiles("test", sd, width, 
+              height, 8);
+      assertEquals(6, tiles.size());
+      FloatProcessor[] output = new FloatProcessor[4];
+      for (int i = 0; i < output.length; i++) {
+         output[i] = new FloatProcessor(width, height);
+         for (int j = 0; j < width * height; j++) {
+            output[i].setf(j, i * 1000 + j);
+         }
+      }
+      FitCheckpoint cp = new FitCheckpoint(dir);
+      cp.save(tiles.get(1), output);
+      cp.save(tiles.get(5), output);
+      cp.close();
+      assertEquals(2, cp.getNrSaved());
+      
+      FloatProcessor[] restored = new FloatProcessor[4];
+      for (int i = 0; i < restored.length; i++) {
+         restored[i] = new FloatProcessor(width, height);
+      }
+      cp = new FitCheckpoint(dir);
+      List<TileJob> remaining = cp.restore(tiles, restored);
+      assertEquals(4, remaining.size());
+      for (TileJob tile : remaining) {
+         assertTrue(tile.index_ != 1 && tile.index_ != 5);
+      }
+      for (int t : new int[] {1, 5}) {
+         TileJob tile = tiles.get(t);
+         for (int i = 0; i < restored.length; i++) {
+            for (int y = tile.y_; y < tile.y_ + tile.height_; y++) {
+               for (int x = tile.x_; x < tile.x_ + tile.width_; x++) {
+                  assertEquals(output[i].getf(x, y), restored[i].getf(x, y));
+               }
+            }
+         }
+      }
+      // pixels of other tiles were not touched
+      assertEquals(0.0f, restored[0].getf(0, 0));
+      cp.close();
+      cp.delete();
+      assertFalse(dir.exists());
+   }
+   
+   /**
+    * Fingerprint should follow the contents of the files named in the 
+    * settings, not only their names
+    * @throws Exception 
+    */
+   public void testFiles() throws Exception {
+      ImageStack is = new ImageStack(4, 4);
+      is.addSlice("", new ShortProcessor(4, 4, new short[16], null));
+      ImagePlus ip = new ImagePlus("test", is);
+      File map = File.createTempFile("saimdox", ".tif");
+      try {
+         SaimData sd = new SaimData();
+         sd.dOxFile_ = map.getPath();
+         FileOutputStream fos = new FileOutputStream(map);
+         fos.write(new byte[] {1, 2, 3});
+         fos.close();
+         String fp = FitCheckpoint.fingerprint(ip, sd);
+         assertEquals(fp, FitCheckpoint.fingerprint(ip, sd));
+         fos = new FileOutputStream(map);
+         fos.write(new byte[] {1, 2, 4});
+         fos.close();
+         assertFalse(fp.equals(FitCheckpoint.fingerprint(ip, sd)));
+      } finally {
+         map.delete();
+      }
+   }
+   
+}
@@ -0,0 +1,172 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestFitPipeline.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.distributed.TileCoordinator;
+import edu.ucsf.valelab.saim.distributed.TileJob;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestFitPipeline extends TestCase {
+   static final int WIDTH = SyntheticStack.WIDTH;
+   static final int HEIGHT = SyntheticStack.HEIGHT;
+
+   public TestFitPipeline (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * A block should give the profiles and averages of the whole stack
+    * @throws Exception
+    */
+   public void testBlock() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      ImagePlus ip = SyntheticStack.createStack(sd);
+      ProfileExtractor whole = RunTheFit.createExtractor(ip, sd, null);
+      ProfileExtractor block = whole.extractBlock(2, 1, 4, 3);
+      assertEquals(whole.getWidth(), block.getWidth());
+      float[] expected = new float[whole.getNrSlices()];
+      float[] actual = new float[whole.getNrSlices()];
+      for (int y = 1; y < 4; y++) {
+         for (int x = 2; x < 6; x++) {
+            assertEquals(whole.extract(x, y, expected),
+                    block.extract(x, y, actual));
+            for (int i = 0; i < expected.length; i++) {
+               assertEquals(expected[i], actual[i]);
+            }
+         }
+      }
+   }
+
+   /**
+    * All tiles should pass through every stage and be fitted
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      final SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.heights_ = new double[] {50.0, 150.0};
+      sd.threshold_ = 0;
+      final ImagePlus ip = SyntheticStack.createStack(sd);
+      final FloatProcessor[] output = new FloatProcessor[4];
+      for (int i = 0; i < output.length; i++) {
+         output[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      List<TileJob> tiles = TileCoordinator.createTiles("test", sd, WIDTH,
+              HEIGHT, 3);
+      FitPipeline pipeline = new FitPipeline(ip, output, null, null, null,
+              new FitPipeline.FitFactory() {
+         @Override
+         public RunTheFit create(TileJob tile) {
+            RunTheFit rf = OverseeTheFit.createFitThread(tile.x_,
+                    tile.width_, tile.sd_, ip, output, new AtomicInteger(0));
+            rf.setRows(tile.y_, tile.height_);
+            return rf;
+         }
+      }, 2, 3, 1);
+      pipeline.run(tiles);
+      for (FitPipeline.Stage stage : pipeline.getStages()) {
+         assertEquals(tiles.size(), stage.getNrTiles());
+         assertTrue(stage.getUtilization() >= 0.0);
+         assertTrue(stage.getUtilization() <= 1.0);
+      }
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            assertEquals(SyntheticStack.trueHeight(x, y),
+                    output[0].getf(x, y), 1.0);
+         }
+      }
+   }
+
+   /**
+    * A stage that fails should stop the pipeline and be reported, rather 
+    * than leave the other stages waiting for it
+    * @throws Exception
+    */
+   public void testFailure() throws Exception {
+      final SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.heights_ = new double[] {50.0};
+      sd.threshold_ = 0;
+      final ImagePlus ip = SyntheticStack.createStack(sd);
+      final FloatProcessor[] output = new FloatProcessor[4];
+      for (int i = 0; i < output.length; i++) {
+         output[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      List<TileJob> tiles = TileCoordinator.createTiles("test", sd, WIDTH,
+              HEIGHT, 2);
+      FitPipeline pipeline = new FitPipeline(ip, output, null, null, null,
+              new FitPipeline.FitFactory() {
+         @Override
+         public RunTheFit create(TileJob tile) {
+            if (tile.index_ == 1) {
+               throw new IllegalStateException("fit failed");
+            }
+            RunTheFit rf = OverseeTheFit.createFitThread(tile.x_,
+                    tile.width_, tile.sd_, ip, output, new AtomicInteger(0));
+            rf.setRows(tile.y_, tile.height_);
+            return rf;
+         }
+      }, 2, 3, 1);
+      try {
+         pipeline.run(tiles);
+         fail("The failure of a fit should be reported");
+      } catch (ExecutionException ex) {
+         assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+      
+      // a tile that can not be read
+      SaimData bad = sd.copy();
+      bad.binning_ = 0;
+      tiles = new ArrayList<TileJob>();
+      tiles.add(new TileJob(0, "test", bad, 0, 0, WIDTH, HEIGHT));
+      pipeline = new FitPipeline(ip, output, null, null, null,
+              new FitPipeline.FitFactory() {
+         @Override
+         public RunTheFit create(TileJob tile) {
+            return OverseeTheFit.createFitThread(tile.x_, tile.width_, 
+                    tile.sd_, ip, output, new AtomicInteger(0));
+         }
+      }, 1, 1, 1);
+      try {
+         pipeline.run(tiles);
+         fail("A tile that can not be read should be reported");
+      } catch (ExecutionException ex) {
+         assertTrue(ex.getCause() instanceof InvalidInputException);
+      }
+   }
+
+}
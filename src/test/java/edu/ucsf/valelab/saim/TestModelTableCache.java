@@ -0,0 +1,92 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestModelTableCache.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.FresnelTable;
+import java.io.File;
+import java.nio.ByteOrder;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestModelTableCache extends TestCase {
+
+   public TestModelTableCache (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * A table should be calculated once, and read back with the same values
+    * in the native byte order.
+    * Other parameters give another table, and the oldest table is deleted
+    * when the cache is full.
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      File dir = File.createTempFile("saimtables", "");
+      dir.delete();
+      final double maxAngle = Math.toRadians(45.0);
+      // a table is about 3 MB, the cache holds one
+      ModelTableCache cache = new ModelTableCache(dir, 4000000);
+      FresnelTable calculated = cache.getFresnelTable(488.0, 1895.0, 1905.0,
+              FresnelTable.DOXSTEP, 1.36, maxAngle, FresnelTable.MAPANGLESTEP);
+      assertEquals(1, cache.getNrCalculated());
+      assertEquals(1, dir.listFiles().length);
+
+      // a new cache in the same directory finds the table
+      cache = new ModelTableCache(dir, 4000000);
+      FresnelTable loaded = cache.getFresnelTable(488.0, 1895.0, 1905.0,
+              FresnelTable.DOXSTEP, 1.36, maxAngle, FresnelTable.MAPANGLESTEP);
+      assertEquals(1, cache.getNrLoaded());
+      assertEquals(0, cache.getNrCalculated());
+      // the mapped values are used as they are, without swapping bytes
+      assertEquals(ByteOrder.nativeOrder(), loaded.getReal().order());
+      double[] rTE1 = new double[2];
+      double[] rTE2 = new double[2];
+      for (double angle = 0.0; angle < maxAngle; angle += 0.0123) {
+         for (double dOx = 1895.0; dOx <= 1905.0; dOx += 0.77) {
+            calculated.lookup(angle, dOx, rTE1);
+            loaded.lookup(angle, dOx, rTE2);
+            assertEquals(rTE1[0], rTE2[0]);
+            assertEquals(rTE1[1], rTE2[1]);
+         }
+      }
+
+      // another refractive index does not fit in the cache with the first
+      Thread.sleep(1100);  // file times may only have 1 s resolution
+      cache.getFresnelTable(488.0, 1895.0, 1905.0, FresnelTable.DOXSTEP,
+              1.33, maxAngle, FresnelTable.MAPANGLESTEP);
+      assertEquals(1, cache.getNrCalculated());
+      File[] files = dir.listFiles();
+      assertEquals(1, files.length);
+      cache.getFresnelTable(488.0, 1895.0, 1905.0, FresnelTable.DOXSTEP,
+              1.33, maxAngle, FresnelTable.MAPANGLESTEP);
+      assertEquals(2, cache.getNrLoaded());
+
+      files[0].delete();
+      dir.delete();
+   }
+
+}
@@ -0,0 +1,172 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestResultCache.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestResultCache extends TestCase {
+   static final int WIDTH = SyntheticStack.WIDTH;
+   static final int HEIGHT = SyntheticStack.HEIGHT;
+
+   public TestResultCache (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * Results should be stored and loaded under a key that does not depend
+    * on threshold and heights
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      ImagePlus ip = SyntheticStack.createStack(sd);
+      final String key = ResultCache.key(ip, sd);
+      SaimData other = sd.copy();
+      other.threshold_ = 1;
+      other.heights_ = new double[] {10.0, 20.0};
+      assertEquals(key, ResultCache.key(ip, other));
+      other.dOx_ = 1800.0;
+      assertFalse(key.equals(ResultCache.key(ip, other)));
+
+      File dir = File.createTempFile("saimresults", "");
+      dir.delete();
+      ResultCache cache = new ResultCache(dir, ResultCache.DEFAULTMAXBYTES);
+      assertNull(cache.load(key, WIDTH, HEIGHT));
+      FloatProcessor[] output = new FloatProcessor[4];
+      for (int i = 0; i < 4; i++) {
+         output[i] = new FloatProcessor(WIDTH, HEIGHT);
+         output[i].setf(i, 1, 1.5f + i);
+      }
+      cache.store(key, new ResultCache.Entry(100, new double[] {50.0},
+              output));
+      ResultCache.Entry entry = cache.load(key, WIDTH, HEIGHT);
+      assertEquals(100, entry.threshold_);
+      assertTrue(Arrays.equals(new double[] {50.0}, entry.heights_));
+      assertNull(cache.load(key, WIDTH + 1, HEIGHT));
+      FloatProcessor[] restored = new FloatProcessor[4];
+      for (int i = 0; i < 4; i++) {
+         restored[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      entry.paste(restored);
+      for (int i = 0; i < 4; i++) {
+         assertEquals(1.5f + i, restored[i].getf(i, 1));
+      }
+
+      for (File f : dir.listFiles()) {
+         f.delete();
+      }
+      dir.delete();
+   }
+
+   /**
+    * A fit with a lower threshold and an extra height should only fit the
+    * new pixels, and try only the new height on the others.  A fit with a
+    * higher threshold should not fit anything.
+    * @throws Exception
+    */
+   public void testIncremental() throws Exception {
+      for (SaimData.Engine engine : new SaimData.Engine[] {
+         SaimData.Engine.SINGLE_PIXEL, SaimData.Engine.BATCH}) {
+         SaimData sd = new SaimData();
+         sd.firstAngle_ = 0;
+         sd.engine_ = engine;
+         ImagePlus ip = SyntheticStack.createStack(sd);
+         // threshold between the averages of the brightest half and the rest
+         ProfileExtractor extractor = RunTheFit.createExtractor(ip, sd, null);
+         float[] averages = new float[WIDTH * HEIGHT];
+         float[] values = new float[SyntheticStack.NRANGLES];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               averages[y * WIDTH + x] = extractor.extract(x, y, values);
+            }
+         }
+         float[] sorted = averages.clone();
+         Arrays.sort(sorted);
+         final int high = (int) sorted[sorted.length / 2];
+         final int low = (int) sorted[0] - 1;
+         int nrHigh = 0;
+         for (float average : averages) {
+            nrHigh += average > high ? 1 : 0;
+         }
+
+         // bright pixels with a single guess
+         sd.threshold_ = high;
+         sd.heights_ = new double[] {50.0};
+         FloatProcessor[] first = SyntheticStack.fit(sd, ip, null, null,
+                 new FitReport());
+
+         // all pixels, with an extra guess
+         sd.threshold_ = low;
+         sd.heights_ = new double[] {50.0, 150.0};
+         ResultCache.Entry previous = new ResultCache.Entry(high,
+                 new double[] {50.0}, first);
+         FitReport report = new FitReport();
+         FloatProcessor[] second = SyntheticStack.fit(sd, ip, null, 
+                 previous, report);
+         assertEquals(nrHigh, report.getNrCached());
+         assertEquals(WIDTH * HEIGHT, report.getNrFitted());
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               assertEquals(SyntheticStack.trueHeight(x, y), 
+                       second[0].getf(x, y), 1.0);
+               if (averages[y * WIDTH + x] > high) {
+                  assertTrue(second[1].getf(x, y) >= first[1].getf(x, y));
+               }
+            }
+         }
+         double[] tried = ResultCache.triedHeights(previous, sd);
+         assertTrue(Arrays.equals(new double[] {50.0, 150.0}, tried));
+
+         // back to the bright pixels, nothing needs to be fitted
+         sd.threshold_ = high;
+         previous = new ResultCache.Entry(low, tried, second);
+         report = new FitReport();
+         FloatProcessor[] third = SyntheticStack.fit(sd, ip, null, 
+                 previous, report);
+         assertEquals(nrHigh, report.getNrCached());
+         assertEquals(nrHigh, report.getNrFitted());
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               if (averages[y * WIDTH + x] > high) {
+                  assertEquals(second[0].getf(x, y), third[0].getf(x, y));
+               } else {
+                  assertEquals(0.0f, third[0].getf(x, y));
+                  assertEquals(0.0f, third[1].getf(x, y));
+               }
+            }
+         }
+      }
+   }
+
+}
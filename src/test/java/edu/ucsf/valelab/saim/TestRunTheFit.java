@@ -0,0 +1,504 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestRunTheFit.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.SaimCalc;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestRunTheFit extends TestCase {
+   static final int WIDTH = SyntheticStack.WIDTH;
+   static final int HEIGHT = SyntheticStack.HEIGHT;
+   
+   public TestRunTheFit (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * @param x x coordinate
+    * @param y y coordinate
+    * @return height used for the synthetic pixel at x, y
+    */
+   static double trueHeight(int x, int y) {
+      return 20.0 + 40.0 * x + 7.0 * y;
+   }
+   
+   /**
+    * Creates a noise free stack with the heights given by trueHeight
+    * @param sd settings, angles are taken from here
+    * @return stack
+    */
+   static ImagePlus createStack(SaimData sd) {
+      FloatProcessor heights = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            heights.setf(x, y, (float) trueHeight(x, y));
+         }
+      }
+      return SyntheticStack.createStack(sd, SyntheticStack.constant(1000.0),
+              heights, null, null);
+   }
+   
+   /**
+    * With a very small iteration budget most pixels end up in the retry
+    * queue, these should all be recovered
+    * @throws Exception 
+    */
+   public void testRetryQueue() throws Exception {
+      for (SaimData.Engine engine : SaimData.Engine.values()) {
+         SaimData sd = new SaimData();
+         sd.firstAngle_ = 0;
+         sd.threshold_ = 100;
+         sd.engine_ = engine;
+         sd.fastIterations_ = 2;
+         ImagePlus ip = createStack(sd);
+         FloatProcessor[] fpOut = new FloatProcessor[4];
+         for (int i = 0; i < fpOut.length; i++) {
+            fpOut[i] = new FloatProcessor(WIDTH, HEIGHT);
+         }
+         FitReport report = new FitReport();
+         RunTheFit rf = OverseeTheFit.createFitThread(0, WIDTH, sd, ip, fpOut,
+                 new AtomicInteger(0));
+         rf.setReport(report);
+         rf.run();
+         System.out.println(engine.getLabel() + ": " + report);
+         assertTrue(report.getNrDeferred() > 0);
+         assertEquals(report.getNrDeferred(), report.getNrRecovered());
+         assertEquals(0, report.getNrFailed());
+         assertEquals(WIDTH * HEIGHT, report.getNrFitted());
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               assertEquals(trueHeight(x, y), fpOut[0].getf(x, y), 1.0);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Pixels are handed out brightest first, and pixels that were not 
+    * reached before the deadline are marked as unfitted
+    * @throws Exception 
+    */
+   public void testDeadline() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      ImagePlus ip = createStack(sd);
+      
+      PixelSchedule schedule = PixelSchedule.create(
+              RunTheFit.createExtractor(ip, sd, null), sd, 
+              System.nanoTime() + 60000000000L);
+      assertEquals(WIDTH * HEIGHT, schedule.size());
+      int[] xs = new int[PixelSchedule.CHUNKSIZE];
+      int[] ys = new int[PixelSchedule.CHUNKSIZE];
+      float[] values = new float[ip.getNSlices()];
+      assertEquals(WIDTH * HEIGHT, schedule.next(xs, ys));
+      float previous = Float.MAX_VALUE;
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         float average = RunTheFit.createExtractor(ip, sd, null).extract(
+                 xs[i], ys[i], values);
+         assertTrue(average <= previous);
+         previous = average;
+      }
+      assertEquals(0, schedule.next(xs, ys));
+      
+      for (SaimData.Engine engine : SaimData.Engine.values()) {
+         sd.engine_ = engine;
+         FloatProcessor[] fpOut = new FloatProcessor[4];
+         for (int i = 0; i < fpOut.length; i++) {
+            fpOut[i] = new FloatProcessor(WIDTH, HEIGHT);
+         }
+         // a deadline that has passed, nothing will be fitted
+         schedule = PixelSchedule.create(
+                 RunTheFit.createExtractor(ip, sd, null), sd, 
+                 System.nanoTime() - 1);
+         FitReport report = new FitReport();
+         RunTheFit rf = OverseeTheFit.createFitThread(0, 0, sd, ip, fpOut,
+                 new AtomicInteger(0));
+         rf.setReport(report);
+         rf.setSchedule(schedule);
+         rf.run();
+         report.skipped(schedule.markRemaining(fpOut));
+         assertEquals(0, report.getNrFitted());
+         assertEquals(WIDTH * HEIGHT, report.getNrSkipped());
+         assertEquals(0.0, report.getCoverage(), 0.0);
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               assertEquals(RunTheFit.UNFITTED, fpOut[0].getf(x, y));
+               assertEquals(RunTheFit.UNFITTED, fpOut[1].getf(x, y));
+            }
+         }
+         
+         // a deadline far away, result is the same as without deadline
+         FloatProcessor[] fpRef = new FloatProcessor[4];
+         for (int i = 0; i < fpRef.length; i++) {
+            fpRef[i] = new FloatProcessor(WIDTH, HEIGHT);
+         }
+         OverseeTheFit.createFitThread(0, WIDTH, sd, ip, fpRef,
+                 new AtomicInteger(0)).run();
+         schedule = PixelSchedule.create(
+                 RunTheFit.createExtractor(ip, sd, null), sd, 
+                 System.nanoTime() + 60000000000L);
+         report = new FitReport();
+         rf = OverseeTheFit.createFitThread(0, 0, sd, ip, fpOut,
+                 new AtomicInteger(0));
+         rf.setReport(report);
+         rf.setSchedule(schedule);
+         rf.run();
+         assertEquals(0, schedule.markRemaining(fpOut));
+         assertEquals(WIDTH * HEIGHT, report.getNrFitted());
+         assertEquals(1.0, report.getCoverage(), 0.0);
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               for (int i = 0; i < fpOut.length; i++) {
+                  assertEquals(fpRef[i].getf(x, y), 
+                          fpOut[i].getf(x, y), 0.0);
+               }
+            }
+         }
+      }
+   }
+   
+   /**
+    * Priorities below zero (background subtracted, negative threshold)
+    * should be ordered as well
+    * @throws Exception 
+    */
+   public void testNegativePriorities() throws Exception {
+      SaimData sd = new SaimData();
+      sd.threshold_ = -1000;
+      ImageStack is = new ImageStack(WIDTH, HEIGHT);
+      for (int i = 0; i < 3; i++) {
+         float[] pixels = new float[WIDTH * HEIGHT];
+         for (int j = 0; j < pixels.length; j++) {
+            // mixes negative and positive values, not in order
+            pixels[j] = ((j * 7) % pixels.length) - 20.5f;
+         }
+         is.addSlice("", new FloatProcessor(WIDTH, HEIGHT, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      PixelSchedule schedule = PixelSchedule.create(
+              RunTheFit.createExtractor(ip, sd, null), sd, 
+              System.nanoTime() + 60000000000L);
+      int[] xs = new int[PixelSchedule.CHUNKSIZE];
+      int[] ys = new int[PixelSchedule.CHUNKSIZE];
+      assertEquals(WIDTH * HEIGHT, schedule.next(xs, ys));
+      float[] pixels = (float[]) is.getPixels(1);
+      for (int i = 1; i < WIDTH * HEIGHT; i++) {
+         assertTrue(pixels[ys[i] * WIDTH + xs[i]] < 
+                 pixels[ys[i - 1] * WIDTH + xs[i - 1]]);
+      }
+      assertTrue(PixelSchedule.sortBits(-2.0f) < PixelSchedule.sortBits(-1.0f));
+      assertTrue(PixelSchedule.sortBits(-1.0f) < PixelSchedule.sortBits(0.0f));
+      assertTrue(PixelSchedule.sortBits(0.0f) < PixelSchedule.sortBits(1.0f));
+   }
+   
+   /**
+    * Holes punched in a good fit are repaired from their neighbours
+    * @throws Exception 
+    */
+   public void testRepair() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      ImagePlus ip = createStack(sd);
+      FloatProcessor[] fpOut = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      OverseeTheFit.createFitThread(0, WIDTH, sd, ip, fpOut,
+              new AtomicInteger(0)).run();
+      
+      // holes: two failed pixels and one bad fit
+      int[][] holes = {{1, 1}, {2, 3}, {3, 2}};
+      float[][] expected = new float[holes.length][4];
+      for (int h = 0; h < holes.length; h++) {
+         for (int i = 0; i < 4; i++) {
+            expected[h][i] = fpOut[i].getf(holes[h][0], holes[h][1]);
+            fpOut[i].setf(holes[h][0], holes[h][1], Float.NaN);
+         }
+      }
+      fpOut[0].setf(3, 2, 500.0f);
+      fpOut[1].setf(3, 2, 0.1f);
+      fpOut[2].setf(3, 2, 10.0f);
+      fpOut[3].setf(3, 2, 10.0f);
+      
+      // nothing is repaired once the deadline has passed
+      FitRepair late = new FitRepair(sd, 
+              RunTheFit.createExtractor(ip, sd, null), new FitReport());
+      late.setSchedule(new PixelSchedule(new int[0], WIDTH, 
+              System.nanoTime() - 1));
+      assertEquals(0, late.repair(fpOut, 2));
+      assertTrue(Float.isNaN(fpOut[0].getf(1, 1)));
+      
+      FitReport report = new FitReport();
+      FitRepair repair = new FitRepair(sd, 
+              RunTheFit.createExtractor(ip, sd, null), report);
+      int nrCandidates = FitRepair.findCandidates(fpOut, sd.repairR2_).size();
+      int nrRepaired = repair.repair(fpOut, 2);
+      assertEquals(nrCandidates, report.getNrRepairCandidates());
+      assertEquals(nrRepaired, report.getNrRepaired());
+      assertTrue(nrRepaired >= holes.length);
+      for (int h = 0; h < holes.length; h++) {
+         int x = holes[h][0];
+         int y = holes[h][1];
+         assertEquals(trueHeight(x, y), fpOut[0].getf(x, y), 1.0);
+         assertTrue(fpOut[1].getf(x, y) >= expected[h][1] - 1.0e-4);
+      }
+      // nothing left to repair at these positions
+      for (double[][] candidate : FitRepair.findCandidates(fpOut, 
+              sd.repairR2_)) {
+         for (int[] hole : holes) {
+            assertFalse(candidate[0][0] == hole[0] && 
+                    candidate[0][1] == hole[1]);
+         }
+      }
+   }
+   
+   /**
+    * Reusing the height of similar neighbours on a gently sloped, noisy 
+    * membrane should save fits while keeping the height error small
+    * @throws Exception 
+    */
+   public void testReuse() throws Exception {
+      final int size = 16;
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      // shot noise on a membrane at 120 - 131 nm
+      Random random = new Random(1);
+      ImageStack is = new ImageStack(size, size);
+      for (int i = 0; i < SyntheticStack.NRANGLES; i++) {
+         short[] pixels = new short[size * size];
+         double angle = Math.toRadians(sd.firstAngle_ + i * sd.angleStep_);
+         for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+               double intensity = 4000.0 * SaimCalc.fieldStrength(
+                       sd.wavelength_, angle, sd.nSample_, sd.dOx_, 
+                       120.0 + 0.3 * x + 0.5 * y) + 3000.0;
+               pixels[y * size + x] = (short) Math.round(intensity + 
+                       Math.sqrt(intensity) * random.nextGaussian());
+            }
+         }
+         is.addSlice("", new ShortProcessor(size, size, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      
+      sd.reuseTolerance_ = 1.0;
+      FloatProcessor[] fpOut = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(size, size);
+      }
+      FitReport report = new FitReport();
+      RunTheFit rf = OverseeTheFit.createFitThread(0, size, sd, ip, fpOut,
+              new AtomicInteger(0));
+      rf.setReport(report);
+      rf.run();
+      System.out.println(report);
+      assertTrue(report.getNrReused() > size * size / 10);
+      assertEquals(size * size, report.getNrFitted());
+      double sumSq = 0.0;
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            double error = fpOut[0].getf(x, y) - (120.0 + 0.3 * x + 0.5 * y);
+            assertEquals(0.0, error, 2.0);
+            sumSq += error * error;
+         }
+      }
+      assertTrue(Math.sqrt(sumSq / (size * size)) < 0.5);
+   }
+   
+   /**
+    * Every column sees angles that are off by a different amount.  With the
+    * angle offset map the heights should be found, without it they should
+    * not.
+    * @throws Exception 
+    */
+   public void testAngleOffsets() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      sd.heights_ = new double[] {50.0, 150.0};
+      FloatProcessor offsets = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            offsets.setf(x, y, -1.5f + 0.5f * x);
+         }
+      }
+      ImagePlus ip = SyntheticStack.createStack(sd, 
+              SyntheticStack.constant(1000.0), SyntheticStack.trueHeights(),
+              offsets, null);
+      
+      FloatProcessor[] fpOut = new FloatProcessor[4];
+      FloatProcessor[] uncorrected = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(WIDTH, HEIGHT);
+         uncorrected[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      RunTheFit rf = OverseeTheFit.createFitThread(0, WIDTH, sd, ip, fpOut,
+              new AtomicInteger(0));
+      rf.setPixelMaps(offsets, null,
+              OverseeTheFit.createFresnelTable(sd, SyntheticStack.NRANGLES,
+                      offsets, null));
+      rf.run();
+      OverseeTheFit.createFitThread(0, WIDTH, sd, ip, uncorrected,
+              new AtomicInteger(0)).run();
+      double maxError = 0.0;
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            final double h = SyntheticStack.trueHeight(x, y);
+            assertEquals(h, fpOut[0].getf(x, y), 1.0);
+            assertTrue(fpOut[1].getf(x, y) > 0.999);
+            maxError = Math.max(maxError, 
+                    Math.abs(uncorrected[0].getf(x, y) - h));
+         }
+      }
+      assertTrue(maxError > 5.0);
+   }
+   
+   /**
+    * The oxide thickness changes by 8 nm over the image.  With the 
+    * thickness map the heights should be found, without it they should not.
+    * @throws Exception 
+    */
+   public void testDOxMap() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      sd.heights_ = new double[] {50.0, 150.0};
+      FloatProcessor dOxMap = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            dOxMap.setf(x, y, (float) (sd.dOx_ - 4.0 + x + 0.1 * y));
+         }
+      }
+      ImagePlus ip = SyntheticStack.createStack(sd, 
+              SyntheticStack.constant(1000.0), SyntheticStack.trueHeights(),
+              null, dOxMap);
+      
+      FloatProcessor[] fpOut = new FloatProcessor[4];
+      FloatProcessor[] uncorrected = new FloatProcessor[4];
+      for (int i = 0; i < fpOut.length; i++) {
+         fpOut[i] = new FloatProcessor(WIDTH, HEIGHT);
+         uncorrected[i] = new FloatProcessor(WIDTH, HEIGHT);
+      }
+      RunTheFit rf = OverseeTheFit.createFitThread(0, WIDTH, sd, ip, fpOut,
+              new AtomicInteger(0));
+      rf.setPixelMaps(null, dOxMap, 
+              OverseeTheFit.createFresnelTable(sd, SyntheticStack.NRANGLES,
+                      null, dOxMap));
+      rf.run();
+      OverseeTheFit.createFitThread(0, WIDTH, sd, ip, uncorrected,
+              new AtomicInteger(0)).run();
+      double maxError = 0.0;
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            final double h = SyntheticStack.trueHeight(x, y);
+            assertEquals(h, fpOut[0].getf(x, y), 1.0);
+            assertTrue(fpOut[1].getf(x, y) > 0.999);
+            maxError = Math.max(maxError, 
+                    Math.abs(uncorrected[0].getf(x, y) - h));
+         }
+      }
+      assertTrue(maxError > 2.0);
+   }
+   
+   /**
+    * Fits the height only, with A and B fixed to constants, with only B
+    * fixed, and with A and B from the smoothed result of a full fit.
+    * @throws Exception 
+    */
+   public void testFixedAB() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      sd.heights_ = new double[] {50.0, 150.0};
+      ImagePlus ip = SyntheticStack.createStack(sd, 
+              SyntheticStack.constant(1000.0), SyntheticStack.trueHeights(),
+              null, null);
+      
+      // A and B fixed to the values used to create the data
+      sd.A_ = 1000.0;
+      sd.B_ = 2000.0;
+      sd.fixA_ = true;
+      sd.fixB_ = true;
+      FloatProcessor[] fpOut = SyntheticStack.fit(sd, ip, null, null, null);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            assertEquals(SyntheticStack.trueHeight(x, y), fpOut[0].getf(x, y), 
+                    1.0);
+            assertEquals(1000.0, fpOut[2].getf(x, y), 0.001);
+            assertEquals(2000.0, fpOut[3].getf(x, y), 0.001);
+            assertTrue(fpOut[1].getf(x, y) > 0.999);
+         }
+      }
+      
+      // only B fixed, A should be found
+      sd.A_ = 500.0;
+      sd.fixA_ = false;
+      fpOut = SyntheticStack.fit(sd, ip, null, null, null);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            assertEquals(SyntheticStack.trueHeight(x, y), fpOut[0].getf(x, y), 
+                    1.0);
+            assertEquals(1000.0, fpOut[2].getf(x, y), 5.0);
+         }
+      }
+      
+      // two stages: full fit, with one failed pixel, smoothed A and B of 
+      // well fitted pixels, and a height only fit with these
+      sd.fixB_ = false;
+      fpOut = SyntheticStack.fit(sd, ip, null, null, null);
+      for (int j = 0; j < 4; j++) {
+         fpOut[j].setf(3, 3, Float.NaN);
+      }
+      FloatProcessor[] abMaps = OverseeTheFit.smoothAB(fpOut, 1.0, 0.9);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            assertEquals(1000.0, abMaps[0].getf(x, y), 1.0);
+            assertEquals(2000.0, abMaps[1].getf(x, y), 1.0);
+         }
+      }
+      sd.fixA_ = true;
+      sd.fixB_ = true;
+      fpOut = SyntheticStack.fit(sd, ip, abMaps, null, null);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            assertEquals(SyntheticStack.trueHeight(x, y), fpOut[0].getf(x, y), 
+                    1.0);
+            assertEquals(abMaps[0].getf(x, y), fpOut[2].getf(x, y), 0.001);
+         }
+      }
+   }
+   
+}
@@ -0,0 +1,157 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestSegmentFit.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.SaimCalc;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.process.FloatProcessor;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestSegmentFit extends TestCase {
+
+   public TestSegmentFit (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * Two noisy regions (labels 3 and 7) at different heights on a background
+    * at yet another height.  The mean profile of each region should give
+    * its height.
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      final int width = 20;
+      final int height = 10;
+      final double[] heights = {0.0, 60.0, 140.0};   // background, 3, 7
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+
+      FloatProcessor labelImage = new FloatProcessor(width, height);
+      int[] region = new int[width * height];
+      for (int y = 2; y < 8; y++) {
+         for (int x = 1; x < 8; x++) {
+            labelImage.setf(x, y, 3.0f);
+            region[y * width + x] = 1;
+         }
+         for (int x = 11; x < 19; x++) {
+            labelImage.setf(x, y, 7.0f);
+            region[y * width + x] = 2;
+         }
+      }
+      int[] labels = SaimSegmentFit.labelsFromImage(labelImage);
+
+      Random random = new Random(7);
+      SegmentFit segmentFit = new SegmentFit(sd, labels, 43);
+      assertEquals(2, segmentFit.getNrLabels());
+      for (int i = 0; i < 43; i++) {
+         double angle = Math.toRadians(sd.firstAngle_ + i * sd.angleStep_);
+         short[] pixels = new short[width * height];
+         for (int p = 0; p < pixels.length; p++) {
+            double intensity = region[p] == 0 ? 3000.0 : 3000.0 *
+                    SaimCalc.fieldStrength(sd.wavelength_, angle, sd.nSample_,
+                    sd.dOx_, heights[region[p]]) + 2000.0;
+            pixels[p] = (short) Math.round(intensity +
+                    Math.sqrt(intensity) * random.nextGaussian());
+         }
+         segmentFit.accumulate(i, pixels, null);
+      }
+      segmentFit.fit(2);
+
+      for (int l = 0; l < segmentFit.getNrLabels(); l++) {
+         int label = segmentFit.getLabel(l);
+         assertTrue(label == 3 || label == 7);
+         assertEquals(label == 3 ? 42 : 48, segmentFit.getNrPixels(l));
+         double expected = heights[label == 3 ? 1 : 2];
+         assertEquals(expected, segmentFit.getResult(l)[2], 1.0);
+         assertTrue(segmentFit.getResult(l)[3] > 0.99);
+      }
+
+      FloatProcessor heightMap = segmentFit.createHeightMap(width, height);
+      assertEquals(0.0f, heightMap.getf(0, 0));
+      assertEquals(60.0, heightMap.getf(4, 4), 1.0);
+      assertEquals(140.0, heightMap.getf(15, 4), 1.0);
+   }
+
+   /**
+    * Regions with their own angle offset and oxide thickness should be 
+    * fitted with these, whatever the value of their label
+    * @throws Exception
+    */
+   public void testPixelMaps() throws Exception {
+      final int width = 20;
+      final int height = 10;
+      final int[] labelValues = {Integer.MAX_VALUE, 7};
+      final double[] heights = {60.0, 140.0};
+      final float[] offsets = {1.0f, -1.5f};
+      final float[] thicknesses = {1880.0f, 1920.0f};
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+
+      int[] labels = new int[width * height];
+      int[] region = new int[width * height];
+      FloatProcessor offsetMap = new FloatProcessor(width, height);
+      FloatProcessor dOxMap = new FloatProcessor(width, height);
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            int r = x < width / 2 ? 0 : 1;
+            labels[y * width + x] = labelValues[r];
+            region[y * width + x] = r;
+            offsetMap.setf(x, y, offsets[r]);
+            dOxMap.setf(x, y, thicknesses[r]);
+         }
+      }
+
+      SegmentFit segmentFit = new SegmentFit(sd, labels, 
+              SyntheticStack.NRANGLES);
+      assertEquals(2, segmentFit.getNrLabels());
+      segmentFit.setPixelMaps(offsetMap, dOxMap, 
+              OverseeTheFit.createFresnelTable(sd, SyntheticStack.NRANGLES, 
+                      offsetMap, dOxMap));
+      for (int i = 0; i < SyntheticStack.NRANGLES; i++) {
+         short[] pixels = new short[width * height];
+         for (int p = 0; p < pixels.length; p++) {
+            int r = region[p];
+            double angle = Math.toRadians(sd.firstAngle_ + i * sd.angleStep_ +
+                    offsets[r]);
+            pixels[p] = (short) Math.round(3000.0 * SaimCalc.fieldStrength(
+                    sd.wavelength_, angle, sd.nSample_, thicknesses[r], 
+                    heights[r]) + 2000.0);
+         }
+         segmentFit.accumulate(i, pixels, null);
+      }
+      segmentFit.fit(2);
+
+      for (int l = 0; l < segmentFit.getNrLabels(); l++) {
+         int r = segmentFit.getLabel(l) == labelValues[0] ? 0 : 1;
+         assertEquals(labelValues[r], segmentFit.getLabel(l));
+         assertEquals(heights[r], segmentFit.getResult(l)[2], 1.0);
+         assertTrue(segmentFit.getResult(l)[3] > 0.999);
+      }
+   }
+
+}
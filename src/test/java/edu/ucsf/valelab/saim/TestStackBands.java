@@ -0,0 +1,182 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestStackBands.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.calculations.ProfileExtractor;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestStackBands extends TestCase {
+   static final int WIDTH = 6;
+   static final int HEIGHT = 10;
+   static final int NRSLICES = 5;
+
+   public TestStackBands (String testName )
+   {
+      super (testName);
+   }
+
+   static short value(int slice, int x, int y) {
+      return (short) (1000 * slice + 37 * y + x);
+   }
+
+   /**
+    * Profiles extracted from bands should be those of the whole stack,
+    * also for the last, partial band
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      ImageStack is = new ImageStack(WIDTH, HEIGHT);
+      for (int i = 0; i < NRSLICES; i++) {
+         short[] pixels = new short[WIDTH * HEIGHT];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               pixels[y * WIDTH + x] = value(i, x, y);
+            }
+         }
+         is.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      SaimData sd = new SaimData();
+      sd.binning_ = 2;
+      ProfileExtractor whole = RunTheFit.createExtractor(ip, sd, null);
+      // bands of 4 raw rows, 2 binned rows
+      StackBands bands = new StackBands(ip, 4, 2);
+      float[] expected = new float[NRSLICES];
+      float[] actual = new float[NRSLICES];
+      for (int band = 0; band < 3; band++) {
+         ProfileExtractor extractor = bands.createExtractor(band, sd, null);
+         for (int y = 2 * band; y < Math.min(2 * band + 2, HEIGHT / 2); y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+               assertEquals(whole.extract(x, y, expected),
+                       extractor.extract(x, y, actual));
+               for (int i = 0; i < NRSLICES; i++) {
+                  assertEquals(expected[i], actual[i]);
+               }
+            }
+         }
+         bands.release(band);
+      }
+      // every band was read once, also the ones read ahead
+      assertEquals(3, bands.getNrRead());
+      bands.close();
+   }
+
+   /**
+    * A virtual stack that can only be read through ImageJ should be read
+    * in a single band, so that every image is read from disk once
+    * @throws Exception
+    */
+   public void testVirtualFallback() throws Exception {
+      final AtomicInteger nrImagesRead = new AtomicInteger(0);
+      ImageStack is = new ImageStack(WIDTH, HEIGHT) {
+         @Override
+         public boolean isVirtual() {
+            return true;
+         }
+
+         @Override
+         public ImageProcessor getProcessor(int n) {
+            nrImagesRead.incrementAndGet();
+            return super.getProcessor(n);
+         }
+      };
+      for (int i = 0; i < NRSLICES; i++) {
+         short[] pixels = new short[WIDTH * HEIGHT];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               pixels[y * WIDTH + x] = value(i, x, y);
+            }
+         }
+         is.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      SaimData sd = new SaimData();
+      StackBands bands = new StackBands(ip, 4, 2);
+      assertFalse(bands.readsFile());
+      assertEquals(HEIGHT, bands.getBandRows());
+      ProfileExtractor extractor = bands.createExtractor(0, sd, null);
+      float[] profile = new float[NRSLICES];
+      extractor.extract(2, HEIGHT - 1, profile);
+      for (int i = 0; i < NRSLICES; i++) {
+         assertEquals((float) value(i, 2, HEIGHT - 1), profile[i]);
+      }
+      bands.release(0);
+      assertEquals(NRSLICES, nrImagesRead.get());
+      bands.close();
+   }
+
+   /**
+    * Rows should be read from a raw file in both byte orders
+    * @throws Exception
+    */
+   public void testReadRows() throws Exception {
+      File file = File.createTempFile("saimbands", ".raw");
+      final int header = 8;
+      final int gap = 4;
+      DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
+      try {
+         dos.write(new byte[header]);
+         for (int i = 0; i < NRSLICES; i++) {
+            for (int y = 0; y < HEIGHT; y++) {
+               for (int x = 0; x < WIDTH; x++) {
+                  dos.writeShort(value(i, x, y));
+               }
+            }
+            dos.write(new byte[gap]);
+         }
+      } finally {
+         dos.close();
+      }
+      long[] offsets = new long[NRSLICES];
+      for (int i = 0; i < NRSLICES; i++) {
+         offsets[i] = header + i * (2 * WIDTH * HEIGHT + gap);
+      }
+      short[][] rows = StackBands.readRows(file, offsets, false, WIDTH, 3, 4);
+      for (int i = 0; i < NRSLICES; i++) {
+         assertEquals(WIDTH * 4, rows[i].length);
+         for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               assertEquals(value(i, x, y + 3), rows[i][y * WIDTH + x]);
+            }
+         }
+      }
+      // the same bytes read as little endian
+      short[][] swapped = StackBands.readRows(file, offsets, true, WIDTH, 3,
+              4);
+      assertEquals(Short.reverseBytes(rows[2][5]), swapped[2][5]);
+      file.delete();
+   }
+
+}
@@ -0,0 +1,179 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestStripDecoder.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import ij.io.FileInfo;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestStripDecoder extends TestCase {
+   static final int WIDTH = 100;
+   static final int ROWS = 40;
+
+   public TestStripDecoder (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * Pixels with noise, so that LZW needs codes of all lengths
+    */
+   static byte[] createStrip() {
+      Random random = new Random(7);
+      byte[] strip = new byte[2 * WIDTH * ROWS];
+      for (int i = 0; i < strip.length; i += 2) {
+         int value = 2000 + (i / 2) % 300 + random.nextInt(16);
+         strip[i] = (byte) (value >> 8);
+         strip[i + 1] = (byte) value;
+      }
+      return strip;
+   }
+
+   /**
+    * LZW and Deflate data should decode to the original bytes
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      byte[] strip = createStrip();
+      assertTrue(Arrays.equals(strip,
+              StripDecoder.lzwDecode(lzwEncode(strip), strip.length)));
+      assertTrue(Arrays.equals(strip,
+              StripDecoder.inflate(deflate(strip), strip.length)));
+      // input that ends early gives less data
+      byte[] lzw = lzwEncode(strip);
+      assertTrue(StripDecoder.lzwDecode(Arrays.copyOf(lzw, lzw.length / 2),
+              strip.length).length < strip.length);
+   }
+
+   /**
+    * Only the rows of the strip that are part of the band should be copied
+    * @throws Exception
+    */
+   public void testDecode() throws Exception {
+      byte[] strip = createStrip();
+      // strip holds rows 40 - 79, the band rows 64 - 127
+      final int y0 = 64;
+      short[] band = new short[WIDTH * 64];
+      StripDecoder.decode(deflate(strip), FileInfo.ZIP, false, WIDTH, 40,
+              ROWS, band, y0, 64);
+      for (int y = 64; y < 80; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            int i = 2 * ((y - 40) * WIDTH + x);
+            short expected = (short) (((strip[i] & 0xff) << 8) |
+                    (strip[i + 1] & 0xff));
+            assertEquals(expected, band[(y - y0) * WIDTH + x]);
+         }
+      }
+      assertEquals(0, band[16 * WIDTH]);
+      try {
+         StripDecoder.decode(Arrays.copyOf(lzwEncode(strip), 100),
+                 FileInfo.LZW, false, WIDTH, 40, ROWS, band, y0, 64);
+         fail("A truncated strip should not decode");
+      } catch (java.io.IOException ex) {
+      }
+   }
+
+   static byte[] deflate(byte[] data) {
+      Deflater deflater = new Deflater();
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] buffer = new byte[data.length * 2 + 64];
+      int n = deflater.deflate(buffer);
+      deflater.end();
+      return Arrays.copyOf(buffer, n);
+   }
+
+   /**
+    * TIFF LZW encoder, writes a clear code before the table is full
+    */
+   static byte[] lzwEncode(byte[] data) {
+      BitWriter out = new BitWriter();
+      Map<String, Integer> table = new HashMap<String, Integer>();
+      int codeLength = 9;
+      int next = 258;
+      out.write(256, codeLength);
+      String w = "";
+      for (byte b : data) {
+         String wc = w + (char) (b & 0xff);
+         if (wc.length() == 1 || table.containsKey(wc)) {
+            w = wc;
+            continue;
+         }
+         out.write(code(table, w), codeLength);
+         table.put(wc, next++);
+         if (next == (1 << codeLength) && codeLength < 12) {
+            codeLength++;
+         }
+         if (next >= 4093) {
+            out.write(256, codeLength);
+            table.clear();
+            next = 258;
+            codeLength = 9;
+         }
+         w = "" + (char) (b & 0xff);
+      }
+      out.write(code(table, w), codeLength);
+      next++;
+      if (next == (1 << codeLength) && codeLength < 12) {
+         codeLength++;
+      }
+      out.write(257, codeLength);
+      return out.toByteArray();
+   }
+
+   private static int code(Map<String, Integer> table, String w) {
+      return w.length() == 1 ? w.charAt(0) : table.get(w);
+   }
+
+   private static class BitWriter {
+      private final ByteArrayOutputStream bytes_ = new ByteArrayOutputStream();
+      private int buffer_ = 0;
+      private int bits_ = 0;
+
+      void write(int code, int length) {
+         buffer_ = (buffer_ << length) | code;
+         bits_ += length;
+         while (bits_ >= 8) {
+            bytes_.write(buffer_ >>> (bits_ - 8));
+            bits_ -= 8;
+            buffer_ &= (1 << bits_) - 1;
+         }
+      }
+
+      byte[] toByteArray() {
+         if (bits_ > 0) {
+            bytes_.write(buffer_ << (8 - bits_));
+         }
+         return bytes_.toByteArray();
+      }
+   }
+
+}
@@ -0,0 +1,124 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestWatchFolder.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.IJ;
+import ij.ImagePlus;
+import java.io.File;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestWatchFolder extends TestCase {
+
+   public TestWatchFolder (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * A stack saved before and one saved while the service runs should both
+    * be fitted once, and the results should not be taken for stacks
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      File dir = File.createTempFile("saimwatch", "");
+      dir.delete();
+      dir.mkdirs();
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 0;
+      sd.heights_ = new double[] {50.0, 150.0};
+      ImagePlus ip = SyntheticStack.createStack(sd);
+      File first = new File(dir, "first.tif");
+      assertTrue(IJ.saveAsTiff(ip, first.getPath()));
+
+      WatchFolder watcher = new WatchFolder(dir, sd, 2, 2, 300);
+      Thread t = new Thread(watcher);
+      t.start();
+      File second = new File(dir, "second.tif");
+      assertTrue(IJ.saveAsTiff(ip, second.getPath()));
+      long end = System.currentTimeMillis() + 20000;
+      while (watcher.getNrFitted() < 2 && System.currentTimeMillis() < end) {
+         Thread.sleep(100);
+      }
+      watcher.stop();
+      t.join();
+      assertEquals(2, watcher.getNrFitted());
+      assertEquals(0, watcher.getNrFailed());
+
+      ImagePlus result = IJ.openImage(
+              WatchFolder.resultFile(second).getPath());
+      assertEquals(4, result.getNSlices());
+      for (int y = 0; y < SyntheticStack.HEIGHT; y++) {
+         for (int x = 0; x < SyntheticStack.WIDTH; x++) {
+            assertEquals(SyntheticStack.trueHeight(x, y),
+                    result.getImageStack().getProcessor(1).getf(x, y), 1.0);
+         }
+      }
+      assertFalse(WatchFolder.isStack(WatchFolder.resultFile(first)));
+
+      for (File f : dir.listFiles()) {
+         f.delete();
+      }
+      dir.delete();
+   }
+
+   /**
+    * A fit that throws should be counted as failed rather than disappear
+    * @throws Exception
+    */
+   public void testFailure() throws Exception {
+      File dir = File.createTempFile("saimwatch", "");
+      dir.delete();
+      dir.mkdirs();
+      SaimData sd = new SaimData();
+      File stack = new File(dir, "stack.tif");
+      assertTrue(IJ.saveAsTiff(SyntheticStack.createStack(sd), 
+              stack.getPath()));
+      WatchFolder watcher = new WatchFolder(dir, sd, 1, 1, 100) {
+         @Override
+         protected void process(File file) {
+            throw new IllegalStateException("test");
+         }
+      };
+      Thread t = new Thread(watcher);
+      t.start();
+      long end = System.currentTimeMillis() + 20000;
+      while (watcher.getNrFailed() < 1 && System.currentTimeMillis() < end) {
+         Thread.sleep(100);
+      }
+      watcher.stop();
+      t.join();
+      assertEquals(1, watcher.getNrFailed());
+      assertEquals(0, watcher.getNrFitted());
+
+      for (File f : dir.listFiles()) {
+         f.delete();
+      }
+      dir.delete();
+   }
+
+}
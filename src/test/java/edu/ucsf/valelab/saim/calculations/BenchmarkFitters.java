@@ -0,0 +1,183 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BenchmarkFitters.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.apache.commons.math3.fitting.WeightedObservedPoint;
+
+/**
+ * Compares throughput and height error of the fitting engines on
+ * simulated noisy profiles
+ * 
+ * @author nico
+ */
+public class BenchmarkFitters extends TestCase {
+   
+   public BenchmarkFitters (String testName ) 
+   {
+      super (testName);
+   }
+   
+   public void test() throws Exception {
+      SaimData sd = new SaimData();
+      sd.wavelength_ = 488.0;
+      sd.nSample_ = 1.36;
+      sd.dOx_ = 1900.0;
+      
+      final int nrPixels = 4096;
+      final int blockSize = SaimBatchFitter.DEFAULT_BLOCKSIZE;
+      final double[][] guesses = { {1000.0, 5000.0, 50.0}, 
+         {1000.0, 5000.0, 150.0} };
+      
+      double[] angles = new double[43];
+      for (int i = 0; i < angles.length; i++) {
+         angles[i] = Math.toRadians(i);
+      }
+      final int nrAngles = angles.length;
+      
+      // simulated 16-bit data with shot noise
+      Random random = new Random(42);
+      double[] heights = new double[nrPixels];
+      double[] profiles = new double[nrPixels * nrAngles];
+      float[] fProfiles = new float[nrPixels * nrAngles];
+      for (int p = 0; p < nrPixels; p++) {
+         heights[p] = 20.0 + 180.0 * random.nextDouble();
+         double A = 1000.0 + 2000.0 * random.nextDouble();
+         double B = 5000.0;
+         for (int j = 0; j < nrAngles; j++) {
+            double I = A * SaimCalc.fieldStrength(sd.wavelength_, angles[j], 
+                    sd.nSample_, sd.dOx_, heights[p]) + B;
+            I = Math.round(I + Math.sqrt(I) * random.nextGaussian());
+            profiles[p * nrAngles + j] = I;
+            fProfiles[p * nrAngles + j] = (float) I;
+         }
+      }
+      
+      // warm up and run each batched engine
+      double[] dResults = new double[nrPixels * 4];
+      double[] fResults = new double[nrPixels * 4];
+      SaimBatchFitter sbf = new SaimBatchFitter(sd, angles, blockSize);
+      SaimFloatBatchFitter sfbf = new SaimFloatBatchFitter(sd, angles, 
+              blockSize);
+      long dTime = 0;
+      long fTime = 0;
+      for (int run = 0; run < 3; run++) {
+         long start = System.nanoTime();
+         fitAll(sbf, null, profiles, fProfiles, nrPixels, nrAngles, 
+                 guesses, dResults);
+         dTime = System.nanoTime() - start;
+         start = System.nanoTime();
+         fitAll(null, sfbf, profiles, fProfiles, nrPixels, nrAngles, 
+                 guesses, fResults);
+         fTime = System.nanoTime() - start;
+      }
+      System.out.println("Batched double: " + nrPixels + " pixels took " + 
+              dTime / 1000000 + " ms");
+      System.out.println("Batched float + double refinement: " + nrPixels + 
+              " pixels took " + fTime / 1000000 + " ms");
+      
+      // per pixel with the current fitter on a subset
+      final int nrSingle = 256;
+      SaimFunctionFitter sff = new SaimFunctionFitter(sd.wavelength_, 
+              sd.dOx_, sd.nSample_, false);
+      SaimFunction sf = new SaimFunction(sd.wavelength_, sd.dOx_, sd.nSample_,
+              false);
+      double[] sResults = new double[nrSingle * 3];
+      long start = System.nanoTime();
+      for (int p = 0; p < nrSingle; p++) {
+         ArrayList<WeightedObservedPoint> points = 
+                 new ArrayList<WeightedObservedPoint>();
+         for (int j = 0; j < nrAngles; j++) {
+            points.add(new WeightedObservedPoint(1.0, angles[j], 
+                    profiles[p * nrAngles + j]));
+         }
+         double bestError = Double.MAX_VALUE;
+         for (double[] guess : guesses) {
+            sff.setGuess(guess.clone());
+            double[] result = sff.fit(points);
+            double error = 0.0;
+            for (WeightedObservedPoint point : points) {
+               double diff = point.getY() - sf.value(point.getX(), result);
+               error += diff * diff;
+            }
+            if (error < bestError) {
+               bestError = error;
+               System.arraycopy(result, 0, sResults, p * 3, 3);
+            }
+         }
+      }
+      long sTime = System.nanoTime() - start;
+      System.out.println("SaimFunctionFitter: " + nrSingle + " pixels took " +
+              sTime / 1000000 + " ms (" + 
+              (sTime * nrPixels / nrSingle) / 1000000 + " ms extrapolated)");
+      
+      // height differences between the engines
+      double maxDoubleDiff = 0.0;
+      for (int p = 0; p < nrSingle; p++) {
+         maxDoubleDiff = Math.max(maxDoubleDiff, 
+                 Math.abs(dResults[p * 4 + 2] - sResults[p * 3 + 2]));
+      }
+      // a few pixels end up in different local minima, count those separately
+      double maxFloatDiff = 0.0;
+      int nrDifferent = 0;
+      for (int p = 0; p < nrPixels; p++) {
+         double diff = Math.abs(fResults[p * 4 + 2] - dResults[p * 4 + 2]);
+         if (diff > 0.01 || Double.isNaN(diff)) {
+            nrDifferent++;
+         } else {
+            maxFloatDiff = Math.max(maxFloatDiff, diff);
+         }
+      }
+      System.out.println("Max height difference batched double vs " + 
+              "SaimFunctionFitter: " + maxDoubleDiff + " nm");
+      System.out.println("Max height difference batched float vs " + 
+              "batched double: " + maxFloatDiff + " nm, " + nrDifferent + 
+              " pixels converged to a different minimum");
+      assertTrue(nrDifferent < nrPixels / 100);
+   }
+   
+   private void fitAll(SaimBatchFitter sbf, SaimFloatBatchFitter sfbf, 
+           double[] profiles, float[] fProfiles, int nrPixels, int nrAngles,
+           double[][] guesses, double[] results) {
+      int blockSize = sbf != null ? sbf.getBlockSize() : sfbf.getBlockSize();
+      double[] block = new double[blockSize * nrAngles];
+      float[] fBlock = new float[blockSize * nrAngles];
+      double[] blockResults = new double[blockSize * 4];
+      for (int start = 0; start < nrPixels; start += blockSize) {
+         int n = Math.min(blockSize, nrPixels - start);
+         if (sbf != null) {
+            System.arraycopy(profiles, start * nrAngles, block, 0, 
+                    n * nrAngles);
+            sbf.fit(block, n, guesses, blockResults);
+         } else {
+            System.arraycopy(fProfiles, start * nrAngles, fBlock, 0, 
+                    n * nrAngles);
+            sfbf.fit(fBlock, n, guesses, blockResults);
+         }
+         System.arraycopy(blockResults, 0, results, start * 4, n * 4);
+      }
+   }
+   
+}
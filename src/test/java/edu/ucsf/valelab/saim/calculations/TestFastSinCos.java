@@ -0,0 +1,111 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestFastSinCos.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestFastSinCos extends TestCase {
+   
+   public TestFastSinCos (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Measured error should stay below the documented maximum error
+    * @throws Exception 
+    */
+   public void testError() throws Exception {
+      Random random = new Random(1);
+      double[] sc = new double[2];
+      for (int bits : FastSinCos.TABLEBITS) {
+         FastSinCos fsc = new FastSinCos(bits);
+         double maxError = 0.0;
+         for (int i = 0; i < 1000000; i++) {
+            double x = (random.nextDouble() * 2.0 - 1.0) * 
+                    FastSinCos.MAXARGUMENT;
+            fsc.sinCos(x, sc);
+            maxError = Math.max(maxError, Math.abs(sc[0] - Math.sin(x)));
+            maxError = Math.max(maxError, Math.abs(sc[1] - Math.cos(x)));
+            maxError = Math.max(maxError, Math.abs(fsc.sin(x) - sc[0]));
+            maxError = Math.max(maxError, Math.abs(fsc.cos(x) - sc[1]));
+         }
+         System.out.println("Table 2^" + bits + ", max error: " + maxError + 
+                 ", documented: " + FastSinCos.maxError(bits));
+         assertTrue(maxError <= FastSinCos.maxError(bits));
+      }
+   }
+   
+   /**
+    * Heights fitted with the coarsest table should be very close to those 
+    * fitted with Math.sin and Math.cos, even on noisy data
+    * @throws Exception 
+    */
+   public void testFit() throws Exception {
+      SaimData sd = new SaimData();
+      sd.wavelength_ = 488.0;
+      sd.nSample_ = 1.36;
+      sd.dOx_ = 1900.0;
+      final int nrPixels = 256;
+      final double[][] guesses = { {1000.0, 5000.0, 100.0} };
+      
+      double[] angles = new double[43];
+      for (int i = 0; i < angles.length; i++) {
+         angles[i] = Math.toRadians(i);
+      }
+      Random random = new Random(7);
+      double[] profiles = new double[nrPixels * angles.length];
+      for (int p = 0; p < nrPixels; p++) {
+         double h = 50.0 + 100.0 * random.nextDouble();
+         for (int j = 0; j < angles.length; j++) {
+            double I = 2000.0 * SaimCalc.fieldStrength(sd.wavelength_, 
+                    angles[j], sd.nSample_, sd.dOx_, h) + 5000.0;
+            profiles[p * angles.length + j] = I + Math.sqrt(I) * 
+                    random.nextGaussian();
+         }
+      }
+      
+      double[] exact = new double[nrPixels * 4];
+      new SaimBatchFitter(sd, angles, nrPixels).fit(profiles, nrPixels, 
+              guesses, exact);
+      sd.fastTrigBits_ = FastSinCos.TABLEBITS[0];
+      double[] fast = new double[nrPixels * 4];
+      new SaimBatchFitter(sd, angles, nrPixels).fit(profiles, nrPixels, 
+              guesses, fast);
+      
+      double maxDiff = 0.0;
+      for (int p = 0; p < nrPixels; p++) {
+         maxDiff = Math.max(maxDiff, Math.abs(exact[p * 4 + 2] - fast[p * 4 + 2]));
+      }
+      System.out.println("Max height difference using table 2^" + 
+              sd.fastTrigBits_ + ": " + maxDiff + " nm");
+      // fit precision with this noise level is on the order of 1 nm
+      assertEquals(0.0, maxDiff, 0.001);
+   }
+   
+}
@@ -0,0 +1,165 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestProfileExtractor.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestProfileExtractor extends TestCase {
+   
+   public TestProfileExtractor (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Binned profiles should equal the sum (or average) of the raw profiles,
+    * incomplete bins at the edges are dropped
+    * @throws Exception 
+    */
+   public void test() throws Exception {
+      final int rawWidth = 11;
+      final int rawHeight = 7;
+      final int nrSlices = 5;
+      Object[] pixels = new Object[nrSlices];
+      for (int i = 0; i < nrSlices; i++) {
+         short[] px = new short[rawWidth * rawHeight];
+         for (int j = 0; j < px.length; j++) {
+            // include values above 32767 to check unsigned handling
+            px[j] = (short) (30000 + 100 * i + j);
+         }
+         pixels[i] = px;
+      }
+      
+      SaimData sd = new SaimData();
+      float[] values = new float[nrSlices];
+      for (int bin = 1; bin <= 4; bin++) {
+         sd.binning_ = bin;
+         for (int s = 0; s < 2; s++) {
+            sd.binSum_ = s == 1;
+            ProfileExtractor pe = new ProfileExtractor(pixels, rawWidth, 
+                    rawHeight, sd);
+            assertEquals(rawWidth / bin, pe.getWidth());
+            assertEquals(rawHeight / bin, pe.getHeight());
+            for (int x = 0; x < pe.getWidth(); x++) {
+               for (int y = 0; y < pe.getHeight(); y++) {
+                  float average = pe.extract(x, y, values);
+                  double total = 0.0;
+                  for (int i = 0; i < nrSlices; i++) {
+                     double expected = 0.0;
+                     for (int dy = 0; dy < bin; dy++) {
+                        for (int dx = 0; dx < bin; dx++) {
+                           expected += 30000 + 100 * i + 
+                                   (y * bin + dy) * rawWidth + x * bin + dx;
+                        }
+                     }
+                     total += expected;
+                     if (!sd.binSum_) {
+                        expected /= bin * bin;
+                     }
+                     assertEquals(expected, values[i], 1.0e-6 * expected);
+                  }
+                  total /= nrSlices * bin * bin;
+                  assertEquals(total, average, 1.0e-6 * total);
+               }
+            }
+         }
+      }
+      
+      sd.binning_ = 8;
+      try {
+         new ProfileExtractor(pixels, rawWidth, rawHeight, sd);
+         fail("Binning larger than the image should be refused");
+      } catch (InvalidInputException ex) {
+         // expected
+      }
+   }
+   
+   /**
+    * Background, flat field and laser power correction applied while
+    * extracting should equal correcting first and binning afterwards
+    * @throws Exception 
+    */
+   public void testCorrection() throws Exception {
+      final int rawWidth = 8;
+      final int rawHeight = 6;
+      final int nrPixels = rawWidth * rawHeight;
+      final int nrSlices = 3;
+      Object[] pixels = new Object[nrSlices];
+      float[][] background = new float[1][nrPixels];
+      float[][] flat = new float[nrSlices][nrPixels];
+      double[] power = {1.0, 2.0, 3.0};
+      for (int i = 0; i < nrSlices; i++) {
+         short[] px = new short[nrPixels];
+         for (int j = 0; j < nrPixels; j++) {
+            px[j] = (short) (1000 + 10 * i + j);
+            background[0][j] = 100 + j % 5;
+            flat[i][j] = 1.0f + 0.1f * ((j + i) % 3);
+         }
+         pixels[i] = px;
+      }
+      
+      ProfileCorrection pc = new ProfileCorrection(background, flat, power,
+              nrPixels, nrSlices);
+      SaimData sd = new SaimData();
+      sd.binning_ = 2;
+      ProfileExtractor pe = new ProfileExtractor(pixels, rawWidth, rawHeight,
+              sd, pc);
+      float[] values = new float[nrSlices];
+      for (int x = 0; x < pe.getWidth(); x++) {
+         for (int y = 0; y < pe.getHeight(); y++) {
+            pe.extract(x, y, values);
+            for (int i = 0; i < nrSlices; i++) {
+               double flatMean = 0.0;
+               for (int j = 0; j < nrPixels; j++) {
+                  flatMean += flat[i][j];
+               }
+               flatMean /= nrPixels;
+               double expected = 0.0;
+               for (int dy = 0; dy < 2; dy++) {
+                  for (int dx = 0; dx < 2; dx++) {
+                     int j = (y * 2 + dy) * rawWidth + x * 2 + dx;
+                     expected += (((short[]) pixels[i])[j] - background[0][j])
+                             / (flat[i][j] / flatMean);
+                  }
+               }
+               expected = expected / 4 * 2.0 / power[i];
+               assertEquals(expected, values[i], 1.0e-5 * expected);
+            }
+         }
+      }
+      
+      try {
+         new ProfileCorrection(background, flat, new double[] {1.0, 2.0},
+                 nrPixels, nrSlices);
+         fail("Number of laser powers should match the number of angles");
+      } catch (InvalidInputException ex) {
+         // expected
+      }
+   }
+   
+}
@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestSaimArrayFitter.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestSaimArrayFitter extends TestCase {
+   
+   public TestSaimArrayFitter (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Every engine should find the parameters of noise free profiles, in 
+    * several blocks on the given executor
+    * @throws Exception 
+    */
+   public void test() throws Exception {
+      SaimData sd = new SaimData();
+      sd.heights_ = new double[] {50.0, 150.0};
+      final int nrProfiles = 30;
+      
+      double[] angles = new double[43];
+      for (int i = 0; i < angles.length; i++) {
+         angles[i] = i;
+      }
+      double[][] values = new double[nrProfiles][];
+      float[] profiles = new float[nrProfiles * angles.length];
+      for (int p = 0; p < nrProfiles; p++) {
+         values[p] = new double[] {1000.0 + 20 * p, 500.0 + 10 * p, 
+            20.0 + 6 * p};
+         for (int j = 0; j < angles.length; j++) {
+            profiles[p * angles.length + j] = (float) (values[p][0] * 
+                    SaimCalc.fieldStrength(sd.wavelength_, 
+                    Math.toRadians(angles[j]), sd.nSample_, sd.dOx_, 
+                    values[p][2]) + values[p][1]);
+         }
+      }
+      
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+         for (SaimData.Engine engine : SaimData.Engine.values()) {
+            sd.engine_ = engine;
+            SaimArrayFitter fitter = new SaimArrayFitter(sd, angles, executor);
+            fitter.setBlockSize(7);
+            double[] results = fitter.fit(profiles);
+            assertEquals(nrProfiles * 4, results.length);
+            for (int p = 0; p < nrProfiles; p++) {
+               assertEquals(values[p][0], results[p * 4], 1.0);
+               assertEquals(values[p][1], results[p * 4 + 1], 1.0);
+               assertEquals(values[p][2], results[p * 4 + 2], 0.5);
+               assertEquals(1.0, results[p * 4 + 3], 0.001);
+            }
+         }
+      } finally {
+         executor.shutdown();
+      }
+      
+      // with B * angle, R-squared should be calculated with the same model
+      sd.useBAngle_ = true;
+      for (int p = 0; p < nrProfiles; p++) {
+         for (int j = 0; j < angles.length; j++) {
+            profiles[p * angles.length + j] = (float) (values[p][0] * 
+                    SaimCalc.fieldStrength(sd.wavelength_, 
+                    Math.toRadians(angles[j]), sd.nSample_, sd.dOx_, 
+                    values[p][2]) + values[p][1] * Math.toRadians(angles[j]));
+         }
+      }
+      for (SaimData.Engine engine : SaimData.Engine.values()) {
+         sd.engine_ = engine;
+         double[] results = SaimArrayFitter.fit(profiles, angles, sd);
+         for (int p = 0; p < nrProfiles; p++) {
+            assertEquals(values[p][2], results[p * 4 + 2], 0.5);
+            assertEquals(1.0, results[p * 4 + 3], 0.001);
+         }
+      }
+      sd.useBAngle_ = false;
+      
+      try {
+         SaimArrayFitter.fit(new float[angles.length + 1], angles, sd);
+         fail("Profiles should be a multiple of the number of angles");
+      } catch (InvalidInputException ex) {
+         // expected
+      }
+   }
+   
+}
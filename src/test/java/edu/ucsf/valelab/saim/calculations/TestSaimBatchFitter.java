@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TestSaimBatchFitter.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestSaimBatchFitter extends TestCase {
+   
+   public TestSaimBatchFitter (String testName ) 
+   {
+      super (testName);
+   }
+   
+   public void test() throws Exception {
+      SaimData sd = new SaimData();
+      sd.wavelength_ = 488.0;
+      sd.nSample_ = 1.36;
+      sd.dOx_ = 500.0;
+      
+      final double fractionMaxError = 0.0000001;
+      final int nrPixels = 100;
+      final int blockSize = 64;
+      
+      double[] angles = new double[51];
+      for (int i = 0; i < angles.length; i++) {
+         angles[i] = Math.toRadians(-50 + 2 * i);
+      }
+      
+      // make a set of "observed" profiles with varying parameters
+      double[][] values = new double[nrPixels][];
+      double[] profiles = new double[nrPixels * angles.length];
+      for (int p = 0; p < nrPixels; p++) {
+         values[p] = new double[] {100.0 + p, 100.0 + 2 * p, 10.0 + p * 0.5};
+         for (int j = 0; j < angles.length; j++) {
+            profiles[p * angles.length + j] = values[p][0] * 
+                    SaimCalc.fieldStrength(sd.wavelength_, angles[j], 
+                    sd.nSample_, sd.dOx_, values[p][2]) + values[p][1];
+         }
+      }
+      
+      SaimBatchFitter sbf = new SaimBatchFitter(sd, angles, blockSize);
+      double[][] guesses = { {50.0, 150.0, 30.0}, {50.0, 150.0, 60.0} };
+      double[] results = new double[blockSize * 4];
+      double[] block = new double[blockSize * angles.length];
+      for (int start = 0; start < nrPixels; start += blockSize) {
+         int n = Math.min(blockSize, nrPixels - start);
+         System.arraycopy(profiles, start * angles.length, block, 0, 
+                 n * angles.length);
+         sbf.fit(block, n, guesses, results);
+         for (int p = 0; p < n; p++) {
+            for (int j = 0; j < 3; j++) {
+               double expected = values[start + p][j];
+               assertEquals(expected, results[p * 4 + j], 
+                       expected * fractionMaxError);
+            }
+            assertEquals(1.0, results[p * 4 + 3], fractionMaxError);
+         }
+      }
+   }
+   
+   /**
+    * Single precision with refinement should end up at the double precision
+    * result, and report R-squared calculated in double precision
+    * @throws Exception 
+    */
+   public void testFloat() throws Exception {
+      SaimData sd = new SaimData();
+      sd.dOx_ = 500.0;
+      final int nrPixels = 100;
+      
+      double[] angles = new double[51];
+      for (int i = 0; i < angles.length; i++) {
+         angles[i] = Math.toRadians(-50 + 2 * i);
+      }
+      Random random = new Random(42);
+      double[] profiles = new double[nrPixels * angles.length];
+      float[] fProfiles = new float[nrPixels * angles.length];
+      for (int p = 0; p < nrPixels; p++) {
+         for (int j = 0; j < angles.length; j++) {
+            int index = p * angles.length + j;
+            fProfiles[index] = (float) Math.round((1000.0 + p) * 
+                    SaimCalc.fieldStrength(sd.wavelength_, angles[j], 
+                    sd.nSample_, sd.dOx_, 10.0 + p * 0.5) + 500.0 + 
+                    30.0 * random.nextGaussian());
+            profiles[index] = fProfiles[index];
+         }
+      }
+      
+      double[][] guesses = { {500.0, 1000.0, 30.0}, {500.0, 1000.0, 60.0} };
+      double[] expected = new double[nrPixels * 4];
+      new SaimBatchFitter(sd, angles, nrPixels).fit(profiles, nrPixels, 
+              guesses, expected);
+      double[] results = new double[nrPixels * 4];
+      new SaimFloatBatchFitter(sd, angles, nrPixels).fit(fProfiles, nrPixels, 
+              guesses, results);
+      for (int p = 0; p < nrPixels; p++) {
+         assertEquals(expected[p * 4 + 2], results[p * 4 + 2], 0.01);
+         double avg = 0.0;
+         for (int j = 0; j < angles.length; j++) {
+            avg += profiles[p * angles.length + j] / angles.length;
+         }
+         double ssTot = 0.0;
+         double ssRes = 0.0;
+         for (int j = 0; j < angles.length; j++) {
+            double val = profiles[p * angles.length + j];
+            double r = val - (results[p * 4] * SaimCalc.fieldStrength(
+                    sd.wavelength_, angles[j], sd.nSample_, sd.dOx_, 
+                    results[p * 4 + 2]) + results[p * 4 + 1]);
+            ssTot += (val - avg) * (val - avg);
+            ssRes += r * r;
+         }
+         assertEquals(1.0 - ssRes / ssTot, results[p * 4 + 3], 1.0e-9);
+      }
+   }
+   
+}
@@ -80,4 +80,38 @@ public class TestSaimCalc extends TestCase {
       assertEquals(0.30908357106454865, fc1.getImaginary(), 0.00000000001);
    }
    
+   /**
+    * Interpolated Fresnel coefficients should be close to the exact ones,
+    * also in between the grid points and for negative angles
+    * @throws Exception 
+    */
+   public void testFresnelTable() throws Exception {
+      final double wl = 488.0;
+      final double dOx = 1900.0;
+      final double nSample = 1.36;
+      FresnelTable table = new FresnelTable(wl, dOx, nSample, 
+              Math.toRadians(45.0), FresnelTable.DEFAULTSTEP);
+      double[] rTE = new double[2];
+      for (double angle = -44.0; angle < 45.0; angle += 0.3731) {
+         Complex exact = SaimCalc.fresnelTE(wl, Math.toRadians(angle), dOx, 
+                 nSample);
+         table.lookup(Math.toRadians(angle), rTE);
+         assertEquals(exact.getReal(), rTE[0], 1.0e-6);
+         assertEquals(exact.getImaginary(), rTE[1], 1.0e-6);
+      }
+      
+      // a range of oxide thicknesses
+      table = new FresnelTable(wl, dOx - 5.0, dOx + 5.0, FresnelTable.DOXSTEP,
+              nSample, Math.toRadians(45.0), FresnelTable.MAPANGLESTEP);
+      for (double angle = 0.0; angle < 45.0; angle += 1.3731) {
+         for (double d = dOx - 5.0; d <= dOx + 5.0; d += 0.377) {
+            Complex exact = SaimCalc.fresnelTE(wl, Math.toRadians(angle), d, 
+                    nSample);
+            table.lookup(Math.toRadians(angle), d, rTE);
+            assertEquals(exact.getReal(), rTE[0], 3.0e-5);
+            assertEquals(exact.getImaginary(), rTE[1], 3.0e-5);
+         }
+      }
+   }
+   
 }
@@ -0,0 +1,156 @@
+///////////////////////////////////////////////////////////////////////////////
+ //FILE:          TestSaimCalibration.java
+ //PROJECT:       SAIM
+ //-----------------------------------------------------------------------------
+ //
+ // AUTHOR:       Nico Stuurman
+ //
+ // COPYRIGHT:    University of California, San Francisco 2015
+ //
+ // LICENSE:      This file is distributed under the BSD license.
+ //               License text is included with the source distribution.
+ //
+ //               This file is distributed in the hope that it will be useful,
+ //               but WITHOUT ANY WARRANTY; without even the implied warranty
+ //               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ //
+ //               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ //               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.calculations;
+
+import edu.ucsf.valelab.saim.data.SaimData;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestSaimCalibration extends TestCase {
+   
+   public TestSaimCalibration (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Noisy pixels at many heights on an oxide that is 6 nm thicker than
+    * the starting value.  The calibration should find the thickness.
+    * @throws Exception 
+    */
+   public void test() throws Exception {
+      SaimData truth = new SaimData();
+      truth.dOx_ = 1906.0;
+      truth.nSample_ = 1.36;
+      SaimData sd = truth.copy();
+      sd.dOx_ = 1900.0;
+      
+      double[] angles = new double[43];
+      for (int j = 0; j < angles.length; j++) {
+         angles[j] = Math.toRadians(j);
+      }
+      Random random = new Random(3);
+      SaimCalibration calibration = new SaimCalibration(sd, angles, false);
+      double[] heights = new double[500];
+      for (int i = 0; i < heights.length; i++) {
+         heights[i] = 30.0 + 170.0 * random.nextDouble();
+         calibration.addPixel(profile(truth, angles, heights[i], random));
+      }
+      long start = System.nanoTime();
+      int iterations = calibration.fit(100);
+      System.out.println("Calibration of " + heights.length + " pixels took "
+              + (System.nanoTime() - start) / 1000000 + " ms, " + iterations 
+              + " iterations, dOx: " + calibration.getDOx());
+      assertEquals(truth.dOx_, calibration.getDOx(), 0.5);
+      assertEquals(truth.nSample_, calibration.getNSample(), 0.0);
+      int good = 0;
+      for (int i = 0; i < heights.length; i++) {
+         if (Math.abs(calibration.getResult(i)[2] - heights[i]) < 2.0) {
+            good++;
+         }
+      }
+      assertTrue(good > heights.length * 0.95);
+      // close to the noise level
+      assertTrue(calibration.getRmsResidual() < 1.1 * Math.sqrt(5000.0));
+   }
+   
+   /**
+    * A pixel without modulation (A is 0, so its height is undetermined)
+    * should not stop the others from being fitted
+    * @throws Exception 
+    */
+   public void testFlatPixel() throws Exception {
+      SaimData truth = new SaimData();
+      truth.dOx_ = 1906.0;
+      SaimData sd = truth.copy();
+      sd.dOx_ = 1900.0;
+      
+      double[] angles = new double[43];
+      for (int j = 0; j < angles.length; j++) {
+         angles[j] = Math.toRadians(j);
+      }
+      Random random = new Random(7);
+      SaimCalibration calibration = new SaimCalibration(sd, angles, false);
+      double[] flat = new double[angles.length];
+      Arrays.fill(flat, 2000.0);
+      calibration.addPixel(flat);
+      for (int i = 0; i < 500; i++) {
+         calibration.addPixel(profile(truth, angles, 
+                 30.0 + 170.0 * random.nextDouble(), random));
+      }
+      int iterations = calibration.fit(100);
+      assertTrue(iterations > 1);
+      assertEquals(0.0, calibration.getResult(0)[0], 0.0);
+      assertEquals(truth.dOx_, calibration.getDOx(), 0.5);
+   }
+   
+   /**
+    * With a sample of known height, the refractive index of the sample can 
+    * be fitted as well
+    * @throws Exception 
+    */
+   public void testKnownHeight() throws Exception {
+      SaimData truth = new SaimData();
+      truth.dOx_ = 1897.0;
+      truth.nSample_ = 1.345;
+      SaimData sd = truth.copy();
+      sd.dOx_ = 1900.0;
+      sd.nSample_ = 1.36;
+      
+      double[] angles = new double[43];
+      for (int j = 0; j < angles.length; j++) {
+         angles[j] = Math.toRadians(j);
+      }
+      Random random = new Random(5);
+      SaimCalibration calibration = new SaimCalibration(sd, angles, true);
+      calibration.setKnownHeight(100.0);
+      for (int i = 0; i < 500; i++) {
+         calibration.addPixel(profile(truth, angles, 100.0, random));
+      }
+      calibration.fit(100);
+      System.out.println("dOx: " + calibration.getDOx() + ", nSample: " + 
+              calibration.getNSample());
+      assertEquals(truth.dOx_, calibration.getDOx(), 0.5);
+      assertEquals(truth.nSample_, calibration.getNSample(), 0.002);
+      assertEquals(100.0, calibration.getResult(0)[2], 0.0);
+   }
+   
+   /**
+    * @return profile with A of 1000 to 3000, B of 2000 and shot noise
+    */
+   private static double[] profile(SaimData sd, double[] angles, double h, 
+           Random random) {
+      double a = 1000.0 + 2000.0 * random.nextDouble();
+      double[] values = new double[angles.length];
+      for (int j = 0; j < angles.length; j++) {
+         double intensity = a * SaimCalc.fieldStrength(sd.wavelength_, 
+                 angles[j], sd.nSample_, sd.dOx_, h) + 2000.0;
+         values[j] = intensity + Math.sqrt(intensity) * random.nextGaussian();
+      }
+      return values;
+   }
+   
+}
@@ -130,4 +130,49 @@ public class TestSaimFitter extends TestCase {
       
 
    }
+   /**
+    * Gradients that re-use the sine and cosine calculated for the values
+    * should be those calculated from scratch, also when the height changed
+    * in between
+    * @throws Exception 
+    */
+   public void testTrigReuse() throws Exception {
+      double wavelength = 488.0;
+      double nSample = 1.36;
+      double dOx = 500.0;
+      double[] parameters = {100.0, 100.0, 16.0};
+      double[] other = {100.0, 100.0, 42.0};
+      
+      SaimFunction plain = new SaimFunction(wavelength, dOx, nSample, false);
+      ArrayList<WeightedObservedPoint> points = 
+              new ArrayList<WeightedObservedPoint>();
+      for (int i = -50; i <= 50; i+=2) {
+         double angle = Math.toRadians(i);
+         points.add(new WeightedObservedPoint(1.0, angle, 
+                 plain.value(angle, parameters)));
+      }
+      SaimFunction sf = new SaimFunction(wavelength, dOx, nSample, false);
+      sf.setNrSlices(points.size());
+      for (double[] gradientParameters : new double[][] {parameters, other}) {
+         for (WeightedObservedPoint point : points) {
+            assertEquals(point.getY(), sf.value(point.getX(), parameters), 
+                    0.0);
+         }
+         for (WeightedObservedPoint point : points) {
+            double[] expected = plain.gradient(point.getX(), 
+                    gradientParameters);
+            double[] actual = sf.gradient(point.getX(), gradientParameters);
+            for (int j = 0; j < expected.length; j++) {
+               assertEquals(expected[j], actual[j], 0.0);
+            }
+         }
+      }
+      
+      SaimFunctionFitter sff = new SaimFunctionFitter(wavelength, dOx, 
+              nSample, false);
+      sff.setGuess(new double[] {50.0, 150.0, 30.0});
+      double[] result = sff.fit(points);
+      assertEquals(16.0, result[2], 0.001);
+   }
+   
 }
@@ -21,6 +21,7 @@
 package edu.ucsf.valelab.saim.calculations;
 
 import edu.ucsf.valelab.saim.data.IntensityData;
+import edu.ucsf.valelab.saim.data.SaimData;
 import junit.framework.TestCase;
 
 /**
@@ -50,6 +51,69 @@ public class TestSaimUtils extends TestCase {
       
    }
    
+   /**
+    * A and B at a known height should be found exactly, also when B is
+    * multiplied by the angle
+    * @throws Exception 
+    */
+   public void testFitAB() throws Exception {
+      SaimData sd = new SaimData();
+      for (boolean useBAngle : new boolean[] {false, true}) {
+         SaimFunction sf = SaimUtils.createFunction(sd, useBAngle, null);
+         double[] parameters = {1200.0, 300.0, 80.0};
+         IntensityData observed = new IntensityData();
+         for (int i = 0; i < 43; i++) {
+            double angle = Math.toRadians(i);
+            observed.add(i, angle, sf.value(angle, parameters));
+         }
+         double[] result = SaimUtils.fitAB(observed, 80.0, sf);
+         assertEquals(parameters[0], result[0], 1.0e-6);
+         assertEquals(parameters[1], result[1], 1.0e-6);
+      }
+   }
+   
+   /**
+    * ProfileOrganizer should give the same results as SaimUtils.organize
+    * @throws Exception 
+    */
+   public void testProfileOrganizer() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = -10;
+      sd.angleStep_ = 1;
+      // angles -10 to 10, with 0 doubled for the zeroDoubled case
+      for (int mode = 0; mode < 3; mode++) {
+         sd.zeroDoubled_ = mode == 1;
+         sd.mirrorAround0_ = mode == 2;
+         int nr = sd.zeroDoubled_ ? 22 : 21;
+         double[] anglesDegrees = new double[nr];
+         double[] anglesRadians = new double[nr];
+         float[] values = new float[nr];
+         for (int i = 0; i < nr; i++) {
+            double angle = sd.firstAngle_ + i * sd.angleStep_;
+            if (sd.zeroDoubled_ && angle > 0) {
+               angle -= sd.angleStep_;
+            }
+            anglesDegrees[i] = angle;
+            anglesRadians[i] = Math.toRadians(angle);
+            values[i] = 1000.0f + 17.0f * i;
+         }
+         IntensityData expected = new IntensityData();
+         SaimUtils.organize(expected, sd, values, anglesDegrees, anglesRadians);
+         ProfileOrganizer po = new ProfileOrganizer(sd, anglesDegrees, 
+                 anglesRadians);
+         double[] out = new double[po.size()];
+         po.organize(values, out, 0);
+         assertEquals(expected.size(), po.size());
+         double[] angles = po.getAnglesRadians();
+         for (int i = 0; i < out.length; i++) {
+            assertEquals(expected.getDataList().get(i).getIntensity(), out[i],
+                    0.001);
+            assertEquals(expected.getDataList().get(i).getAngleRadians(), 
+                    angles[i], 0.0000001);
+         }
+      }
+   }
+   
    /**
     * Kahn academy example function
     * @param x x value
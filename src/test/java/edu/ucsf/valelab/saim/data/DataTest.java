@@ -21,6 +21,9 @@
 
 package edu.ucsf.valelab.saim.data;
 
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import java.util.Arrays;
+import java.util.Properties;
 import junit.framework.TestCase;
 
 /**
@@ -43,4 +46,47 @@ public class DataTest extends TestCase {
       assertEquals(1.461, ri, 0.0001);
    }
    
+   public void testProperties() throws Exception {
+      SaimData sd = new SaimData();
+      sd.wavelength_ = 560.0;
+      sd.heights_ = new double[] {50.0, 150.0};
+      sd.engine_ = SaimData.Engine.BATCH;
+      sd.binning_ = 2;
+      sd.repair_ = false;
+      sd.backgroundFile_ = "/data/background.tif";
+      SaimData read = SaimData.fromProperties(sd.toProperties());
+      assertEquals(560.0, read.wavelength_);
+      assertTrue(Arrays.equals(sd.heights_, read.heights_));
+      assertEquals(SaimData.Engine.BATCH, read.engine_);
+      assertEquals(2, read.binning_);
+      assertFalse(read.repair_);
+      assertEquals(sd.backgroundFile_, read.backgroundFile_);
+      assertEquals(0, read.laserPower_.length);
+      // copy should not miss any of the settings
+      sd.useBAngle_ = true;
+      assertEquals(sd.toProperties(), sd.copy().toProperties());
+      
+      Properties properties = new Properties();
+      properties.setProperty("wavelenght", "560");
+      try {
+         SaimData.fromProperties(properties);
+         fail("Unknown settings should not be accepted");
+      } catch (InvalidInputException ex) {
+      }
+      properties.clear();
+      properties.setProperty("binning", "two");
+      try {
+         SaimData.fromProperties(properties);
+         fail("Invalid values should not be accepted");
+      } catch (InvalidInputException ex) {
+      }
+      properties.clear();
+      properties.setProperty("repair", "yes");
+      try {
+         SaimData.fromProperties(properties);
+         fail("Booleans other than true and false should not be accepted");
+      } catch (InvalidInputException ex) {
+      }
+   }
+   
 }
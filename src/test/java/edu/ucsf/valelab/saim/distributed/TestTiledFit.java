@@ -0,0 +1,291 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestTiledFit.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests  
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.distributed;
+
+import edu.ucsf.valelab.saim.StackFit;
+import edu.ucsf.valelab.saim.SyntheticStack;
+import edu.ucsf.valelab.saim.calculations.SaimCalc;
+import edu.ucsf.valelab.saim.data.SaimData;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestTiledFit extends TestCase {
+   
+   public TestTiledFit (String testName ) 
+   {
+      super (testName);
+   }
+   
+   /**
+    * Fits a small synthetic stack with two worker processes and checks that
+    * the merged result is identical to fitting the stack in one go
+    * @throws Exception 
+    */
+   public void test() throws Exception {
+      final int width = 12;
+      final int height = 10;
+      final int nrAngles = 43;
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.angleStep_ = 1;
+      sd.threshold_ = 100;
+      sd.engine_ = SaimData.Engine.BATCH;
+      
+      ImageStack is = new ImageStack(width, height);
+      for (int i = 0; i < nrAngles; i++) {
+         short[] pixels = new short[width * height];
+         double angle = Math.toRadians(sd.firstAngle_ + i * sd.angleStep_);
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               double h = 20.0 + 10.0 * x + 5.0 * y;
+               pixels[y * width + x] = (short) Math.round(1000.0 * 
+                       SaimCalc.fieldStrength(sd.wavelength_, angle, 
+                               sd.nSample_, sd.dOx_, h) + 2000.0);
+            }
+         }
+         is.addSlice("", new ShortProcessor(width, height, pixels, null));
+      }
+      ImagePlus ip = new ImagePlus("test", is);
+      File stack = File.createTempFile("saimtiles", ".tif");
+      File dir = new File(stack.getPath() + ".jobs");
+      try {
+         assertTrue(IJ.saveAsTiff(ip, stack.getPath()));
+         
+         // reference, fitted and repaired the way SaimFit does
+         FloatProcessor[] expected = new StackFit(ip, sd.copy(), 1).fit();
+
+         JobDirectory jobDir = new JobDirectory(dir);
+         TileCoordinator tc = new TileCoordinator(jobDir, ip, sd);
+         assertEquals(9, tc.submit(stack.getPath(), sd, 4));
+         
+         Process[] workers = new Process[2];
+         String java = System.getProperty("java.home") + File.separator + 
+                 "bin" + File.separator + "java";
+         for (int i = 0; i < workers.length; i++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", 
+                    System.getProperty("java.class.path"), 
+                    TileWorker.class.getName(), dir.getPath(), "1", "2");
+            pb.redirectErrorStream(true);
+            workers[i] = pb.start();
+         }
+         FloatProcessor[] result = tc.merge(120000, 60000);
+         for (Process worker : workers) {
+            // drain output so that the worker can not block
+            while (worker.getInputStream().read() >= 0) {}
+            assertEquals(0, worker.waitFor());
+         }
+         
+         for (int i = 0; i < result.length; i++) {
+            for (int y = 0; y < height; y++) {
+               for (int x = 0; x < width; x++) {
+                  assertEquals(expected[i].getf(x, y), result[i].getf(x, y), 
+                          1.0e-4 * Math.abs(expected[i].getf(x, y)));
+               }
+            }
+         }
+         // heights should actually have been fitted
+         assertEquals(20.0 + 10.0 * 5 + 5.0 * 7, result[0].getf(5, 7), 1.0);
+         assertEquals(0, jobDir.nrWaiting());
+         jobDir.clear();
+      } finally {
+         stack.delete();
+         dir.delete();
+      }
+   }
+   
+   /**
+    * Workers should fit with the oxide thickness map of the job
+    * @throws Exception 
+    */
+   public void testMap() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      sd.heights_ = new double[] {50.0, 150.0};
+      
+      FloatProcessor dOx = new FloatProcessor(SyntheticStack.WIDTH, 
+              SyntheticStack.HEIGHT);
+      for (int y = 0; y < SyntheticStack.HEIGHT; y++) {
+         for (int x = 0; x < SyntheticStack.WIDTH; x++) {
+            dOx.setf(x, y, 1860.0f + 10.0f * x);
+         }
+      }
+      ImagePlus ip = SyntheticStack.createStack(sd, 
+              SyntheticStack.constant(1000.0), SyntheticStack.trueHeights(),
+              null, dOx);
+      File stack = File.createTempFile("saimtiles", ".tif");
+      File map = File.createTempFile("saimdox", ".tif");
+      File dir = new File(stack.getPath() + ".jobs");
+      try {
+         assertTrue(IJ.saveAsTiff(ip, stack.getPath()));
+         assertTrue(IJ.saveAsTiff(new ImagePlus("dOx", dOx), map.getPath()));
+         sd.dOxFile_ = map.getPath();
+         
+         JobDirectory jobDir = new JobDirectory(dir);
+         TileCoordinator tc = new TileCoordinator(jobDir, ip, sd);
+         tc.submit(stack.getPath(), sd, 4);
+         new TileWorker(jobDir, "worker", 0).run();
+         FloatProcessor[] result = tc.merge(10000, 60000);
+         for (int y = 0; y < SyntheticStack.HEIGHT; y++) {
+            for (int x = 0; x < SyntheticStack.WIDTH; x++) {
+               assertEquals(SyntheticStack.trueHeight(x, y), 
+                       result[0].getf(x, y), 1.0);
+            }
+         }
+         jobDir.clear();
+      } finally {
+         stack.delete();
+         map.delete();
+         dir.delete();
+      }
+   }
+   
+   /**
+    * A job that waited in the queue longer than the stale time should not
+    * be requeued as soon as it is claimed
+    * @throws Exception 
+    */
+   public void testClaimAge() throws Exception {
+      File dir = File.createTempFile("saimclaims", "");
+      dir.delete();
+      try {
+         JobDirectory jobDir = new JobDirectory(dir);
+         jobDir.submit(new TileJob(0, "stack.tif", new SaimData(), 0, 0, 
+                 4, 4));
+         File[] jobs = dir.listFiles();
+         assertEquals(1, jobs.length);
+         assertTrue(jobs[0].setLastModified(
+                 System.currentTimeMillis() - 3600000));
+         assertNotNull(jobDir.claim("worker"));
+         assertEquals(0, jobDir.requeueStale(60000));
+         assertEquals(0, jobDir.nrWaiting());
+         assertEquals(1, jobDir.requeueStale(-1));
+         assertEquals(1, jobDir.nrWaiting());
+         jobDir.clear();
+      } finally {
+         dir.delete();
+      }
+   }
+
+   /**
+    * Pixels that failed in a tile should be repaired after the merge, the
+    * way SaimFit repairs them
+    * @throws Exception 
+    */
+   public void testRepair() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 100;
+      sd.heights_ = new double[] {50.0, 150.0};
+      ImagePlus ip = SyntheticStack.createStack(sd, 
+              SyntheticStack.constant(1000.0), SyntheticStack.trueHeights(),
+              null, null);
+      File stack = File.createTempFile("saimtiles", ".tif");
+      File dir = new File(stack.getPath() + ".jobs");
+      try {
+         assertTrue(IJ.saveAsTiff(ip, stack.getPath()));
+         JobDirectory jobDir = new JobDirectory(dir);
+         TileCoordinator tc = new TileCoordinator(jobDir, ip, sd);
+         tc.submit(stack.getPath(), sd, 4);
+         new TileWorker(jobDir, "worker", 0).run();
+         // a failed fit of the first pixel
+         TileResult first = jobDir.readResult(0);
+         first.planes_[0][0] = 0.0f;
+         first.planes_[1][0] = 0.0f;
+         jobDir.store(first);
+         
+         FloatProcessor[] result = tc.merge(10000, 60000);
+         assertEquals(SyntheticStack.trueHeight(0, 0), result[0].getf(0, 0), 
+                 1.0);
+         assertTrue(result[1].getf(0, 0) > sd.repairR2_);
+         jobDir.clear();
+      } finally {
+         stack.delete();
+         dir.delete();
+      }
+   }
+   
+   /**
+    * Jobs should survive the job directory, files in another format, such 
+    * as serialized objects, should be refused
+    * @throws Exception 
+    */
+   public void testFormat() throws Exception {
+      File dir = File.createTempFile("saimformat", "");
+      dir.delete();
+      try {
+         JobDirectory jobDir = new JobDirectory(dir);
+         SaimData sd = new SaimData();
+         sd.binning_ = 2;
+         sd.heights_ = new double[] {30.0, 90.0};
+         jobDir.submit(new TileJob(3, "stack.tif", sd, 4, 8, 2, 1));
+         TileJob job = jobDir.claim("worker");
+         assertEquals(3, job.index_);
+         assertEquals("stack.tif", job.imagePath_);
+         assertEquals(2, job.sd_.binning_);
+         assertEquals(90.0, job.sd_.heights_[1], 0.0);
+         assertEquals(4, job.x_);
+         assertEquals(8, job.y_);
+         assertEquals(2, job.width_);
+         assertEquals(1, job.height_);
+         
+         float[][] planes = {{1.0f, 2.0f}, {0.5f, 0.6f}, {3.0f, 4.0f},
+            {5.0f, 6.0f}};
+         jobDir.complete(new TileResult(job, planes, "worker"), "worker");
+         TileResult result = jobDir.readResult(3);
+         assertEquals("worker", result.workerId_);
+         for (int i = 0; i < planes.length; i++) {
+            for (int j = 0; j < planes[i].length; j++) {
+               assertEquals(planes[i][j], result.planes_[i][j], 0.0);
+            }
+         }
+         
+         File other = new File(dir, "tile-000004.result");
+         ObjectOutputStream oos = new ObjectOutputStream(
+                 new FileOutputStream(other));
+         oos.writeObject(planes);
+         oos.close();
+         try {
+            jobDir.readResult(4);
+            fail("Serialized objects should not be read");
+         } catch (IOException ex) {
+            // expected
+         }
+         jobDir.clear();
+      } finally {
+         dir.delete();
+      }
+   }
+   
+}
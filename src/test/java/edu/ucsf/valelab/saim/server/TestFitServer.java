@@ -0,0 +1,175 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TestFitServer.java
+//PROJECT:       SAIM
+//SUBSYSTEM:     Tests
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.saim.server;
+
+import edu.ucsf.valelab.saim.SyntheticStack;
+import edu.ucsf.valelab.saim.data.SaimData;
+import edu.ucsf.valelab.saim.exceptions.InvalidInputException;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author nico
+ */
+public class TestFitServer extends TestCase {
+
+   public TestFitServer (String testName )
+   {
+      super (testName);
+   }
+
+   /**
+    * Two clients sending pixels at the same time should both get the 
+    * heights back, requests with another token or invalid images should 
+    * not be fitted
+    * @throws Exception
+    */
+   public void test() throws Exception {
+      final SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 0;
+      sd.heights_ = new double[] {50.0, 150.0};
+      ImagePlus ip = SyntheticStack.createStack(sd);
+      final Object[] pixels = new Object[ip.getNSlices()];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = ip.getImageStack().getPixels(i + 1);
+      }
+
+      File tokenFile = File.createTempFile("saimserver", ".token");
+      FitServer server = new FitServer(0, 2, tokenFile);
+      Thread t = new Thread(server);
+      t.start();
+      final FitClient client = new FitClient(server.getPort(), 
+              FitServer.readToken(tokenFile));
+      final FitResponse[] responses = new FitResponse[2];
+      Thread[] clients = new Thread[responses.length];
+      for (int i = 0; i < clients.length; i++) {
+         final int index = i;
+         clients[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  responses[index] = client.fit(FitRequest.forPixels(pixels,
+                          SyntheticStack.WIDTH, SyntheticStack.HEIGHT, sd));
+               } catch (java.io.IOException ex) {
+                  // response stays null
+               } catch (InvalidInputException ex) {
+                  // response stays null
+               }
+            }
+         });
+         clients[i].start();
+      }
+      for (Thread c : clients) {
+         c.join();
+      }
+      for (FitResponse response : responses) {
+         assertNotNull(response);
+         assertNull(response.error_);
+         assertEquals(4, response.planes_.length);
+         for (int y = 0; y < SyntheticStack.HEIGHT; y++) {
+            for (int x = 0; x < SyntheticStack.WIDTH; x++) {
+               assertEquals(SyntheticStack.trueHeight(x, y),
+                       response.planes_[0][y * response.width_ + x], 1.0);
+            }
+         }
+      }
+      assertEquals(2, server.getNrServed());
+
+      FitResponse stranger = new FitClient(server.getPort(), "guess").fit(
+              FitRequest.forPixels(pixels, SyntheticStack.WIDTH, 
+                      SyntheticStack.HEIGHT, sd));
+      assertNotNull(stranger.error_);
+      assertEquals(2, server.getNrServed());
+      try {
+         client.fit(FitRequest.forPixels(new Object[] {new int[3]}, 3, 1, 
+                 sd));
+         fail("Images should be short[] or float[]");
+      } catch (InvalidInputException ex) {
+         // expected
+      }
+
+      server.close();
+      t.join();
+      tokenFile.delete();
+   }
+
+   /**
+    * Replacing a correction image under the same name should not give 
+    * results corrected with the old image
+    * @throws Exception
+    */
+   public void testReplacedFile() throws Exception {
+      SaimData sd = new SaimData();
+      sd.firstAngle_ = 0;
+      sd.threshold_ = 0;
+      sd.heights_ = new double[] {50.0, 150.0};
+      ImagePlus ip = SyntheticStack.createStack(sd);
+      Object[] pixels = new Object[ip.getNSlices()];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = ip.getImageStack().getPixels(i + 1);
+      }
+      File background = File.createTempFile("background", ".tif");
+      sd.backgroundFile_ = background.getPath();
+
+      File tokenFile = File.createTempFile("saimserver", ".token");
+      FitServer server = new FitServer(0, 1, tokenFile);
+      Thread t = new Thread(server);
+      t.start();
+      FitClient client = new FitClient(server.getPort(), 
+              FitServer.readToken(tokenFile));
+      double[] meanB = new double[2];
+      try {
+         for (int i = 0; i < meanB.length; i++) {
+            writeBackground(background, 10.0f * i);
+            background.setLastModified(1000000000000L + 2000L * i);
+            FitResponse response = client.fit(FitRequest.forPixels(pixels,
+                    SyntheticStack.WIDTH, SyntheticStack.HEIGHT, sd));
+            assertNull(response.error_);
+            for (float b : response.planes_[3]) {
+               meanB[i] += b / response.planes_[3].length;
+            }
+         }
+      } finally {
+         server.close();
+         t.join();
+         tokenFile.delete();
+         background.delete();
+      }
+      assertEquals(meanB[0] - 10.0, meanB[1], 1.0);
+   }
+
+   private static void writeBackground(File file, float value) {
+      float[] pixels = new float[SyntheticStack.WIDTH * 
+              SyntheticStack.HEIGHT];
+      Arrays.fill(pixels, value);
+      FloatProcessor fp = new FloatProcessor(SyntheticStack.WIDTH, 
+              SyntheticStack.HEIGHT, pixels);
+      IJ.saveAsTiff(new ImagePlus("Background", fp), file.getPath());
+   }
+
+}